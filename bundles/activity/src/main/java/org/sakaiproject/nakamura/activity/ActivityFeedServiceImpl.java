@@ -0,0 +1,307 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.activity;
+
+import static org.sakaiproject.nakamura.api.activity.ActivityConstants.ACTIVITY_STORE_NAME;
+import static org.sakaiproject.nakamura.api.activity.ActivityConstants.PARAM_ACTOR_ID;
+import static org.sakaiproject.nakamura.api.activity.ActivityConstants.PARAM_SOURCE;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.sakaiproject.nakamura.api.activity.ActivityFeedService;
+import org.sakaiproject.nakamura.api.activity.ActivityUtils;
+import org.sakaiproject.nakamura.api.connections.ConnectionManager;
+import org.sakaiproject.nakamura.api.connections.ConnectionState;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Keeps the most recent activities of each actor in a cluster replicated cache, and
+ * merges them into feeds when they are read.
+ * <p>
+ * Each actor's recent activities are held as an Object[] of a long[] of created times and
+ * a String[] of source activity paths, newest first, so that the replicated cache only
+ * carries JDK types. A missing entry is rebuilt from the copies in the actor's own feed.
+ */
+@Component(immediate = true, metatype = true)
+@Service(value = ActivityFeedService.class)
+@Properties(value = {
+    @Property(name = "service.vendor", value = "The Sakai Foundation"),
+    @Property(name = "service.description", value = "Assembles activity feeds from the recent activities of contacts.") })
+public class ActivityFeedServiceImpl implements ActivityFeedService {
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(ActivityFeedServiceImpl.class);
+
+  static final String RECENT_ACTIVITY_CACHE = "activity.recent";
+
+  static final int DEFAULT_RECENT_SIZE = 50;
+  @Property(intValue = DEFAULT_RECENT_SIZE)
+  static final String RECENT_SIZE = "activity.recent.size";
+
+  private static final int TIMES = 0;
+  private static final int PATHS = 1;
+  /**
+   * The length of the 2010-01-21-09 prefix of an activity id.
+   */
+  private static final int ID_HOUR_LENGTH = 13;
+
+  @Reference
+  protected CacheManagerService cacheManagerService;
+
+  @Reference
+  protected ConnectionManager connectionManager;
+
+  @Reference
+  protected Repository sparseRepository;
+
+  private int recentSize = DEFAULT_RECENT_SIZE;
+
+  @Activate
+  @Modified
+  protected void activate(Map<String, Object> properties) {
+    recentSize = OsgiUtil.toInteger(properties.get(RECENT_SIZE), DEFAULT_RECENT_SIZE);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.activity.ActivityFeedService#addActivity(org.sakaiproject.nakamura.api.lite.content.Content)
+   */
+  public void addActivity(Content activity) {
+    String actor = (String) activity.getProperty(PARAM_ACTOR_ID);
+    if (actor == null) {
+      return;
+    }
+    Cache<Object[]> cache = getCache();
+    synchronized (cache) {
+      Object[] recent = cache.get(actor);
+      // an actor that is not cached is rebuilt from their feed when it is next read,
+      // which will include this activity.
+      if (recent == null) {
+        return;
+      }
+      long[] times = (long[]) recent[TIMES];
+      String[] paths = (String[]) recent[PATHS];
+      String path = activity.getPath();
+      for (String p : paths) {
+        if (p.equals(path)) {
+          return;
+        }
+      }
+      int size = Math.min(paths.length + 1, recentSize);
+      long[] newTimes = new long[size];
+      String[] newPaths = new String[size];
+      newTimes[0] = getCreated(activity);
+      newPaths[0] = path;
+      System.arraycopy(times, 0, newTimes, 1, size - 1);
+      System.arraycopy(paths, 0, newPaths, 1, size - 1);
+      cache.put(actor, new Object[] { newTimes, newPaths });
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.activity.ActivityFeedService#getFeed(org.sakaiproject.nakamura.api.lite.Session,
+   *      int)
+   */
+  public List<Content> getFeed(Session session, int maxItems)
+      throws StorageClientException {
+    String user = session.getUserId();
+    List<String> actors = new ArrayList<String>();
+    actors.add(user);
+    List<String> connections = connectionManager.getConnectedUsers(session, user,
+        ConnectionState.ACCEPTED);
+    if (connections != null) {
+      actors.addAll(connections);
+    }
+
+    final List<Object[]> recent = getRecentActivities(actors);
+
+    // merge the recent activities of all the actors, newest first, stopping as soon as
+    // the feed is full.
+    PriorityQueue<int[]> cursors = new PriorityQueue<int[]>(Math.max(1, recent.size()),
+        new Comparator<int[]>() {
+          public int compare(int[] o1, int[] o2) {
+            long t1 = ((long[]) recent.get(o1[0])[TIMES])[o1[1]];
+            long t2 = ((long[]) recent.get(o2[0])[TIMES])[o2[1]];
+            return t1 < t2 ? 1 : (t1 == t2 ? 0 : -1);
+          }
+        });
+    for (int i = 0; i < recent.size(); i++) {
+      if (((String[]) recent.get(i)[PATHS]).length > 0) {
+        cursors.add(new int[] { i, 0 });
+      }
+    }
+    ContentManager contentManager = session.getContentManager();
+    List<Content> feed = new ArrayList<Content>();
+    Set<String> seen = new HashSet<String>();
+    while (feed.size() < maxItems && !cursors.isEmpty()) {
+      int[] cursor = cursors.poll();
+      String[] paths = (String[]) recent.get(cursor[0])[PATHS];
+      String path = paths[cursor[1]];
+      if (++cursor[1] < paths.length) {
+        cursors.add(cursor);
+      }
+      if (!seen.add(path)) {
+        continue;
+      }
+      // reading through the users own session is the access check.
+      try {
+        Content activity = contentManager.get(path);
+        if (activity != null) {
+          feed.add(activity);
+        }
+      } catch (AccessDeniedException e) {
+        LOGGER.debug("{} cannot read activity {} ", user, path);
+      }
+    }
+    return feed;
+  }
+
+  /**
+   * @return the recent activities for each of the actors, rebuilding any that are not
+   *         cached.
+   * @throws StorageClientException
+   */
+  private List<Object[]> getRecentActivities(List<String> actors)
+      throws StorageClientException {
+    Cache<Object[]> cache = getCache();
+    List<Object[]> recent = new ArrayList<Object[]>(actors.size());
+    Session adminSession = null;
+    try {
+      for (String actor : actors) {
+        Object[] activities = cache.get(actor);
+        if (activities == null) {
+          if (adminSession == null) {
+            adminSession = sparseRepository.loginAdministrative();
+          }
+          activities = loadRecentActivities(adminSession, actor);
+          synchronized (cache) {
+            if (!cache.containsKey(actor)) {
+              cache.put(actor, activities);
+            }
+          }
+        }
+        recent.add(activities);
+      }
+    } catch (AccessDeniedException e) {
+      throw new StorageClientException(e.getMessage(), e);
+    } finally {
+      if (adminSession != null) {
+        try {
+          adminSession.logout();
+        } catch (Exception e) {
+          LOGGER.warn("Failed to logout of administrative session {} ", e.getMessage());
+        }
+      }
+    }
+    return recent;
+  }
+
+  /**
+   * Find the most recent activities of an actor from the copies delivered to their own
+   * feed. Activity ids start with the hour they were created in, so the copies are read
+   * newest first and reading stops once there are enough and the hour changes, rather
+   * than loading the whole feed.
+   */
+  private Object[] loadRecentActivities(Session adminSession, String actor)
+      throws StorageClientException, AccessDeniedException {
+    ContentManager contentManager = adminSession.getContentManager();
+    List<String> copies = new ArrayList<String>();
+    Iterator<String> children = contentManager.listChildPaths(ActivityUtils
+        .getUserFeed(actor));
+    while (children.hasNext()) {
+      copies.add(children.next());
+    }
+    Collections.sort(copies, Collections.reverseOrder());
+    List<Object[]> found = new ArrayList<Object[]>();
+    String lastHour = null;
+    for (String copyPath : copies) {
+      String name = StorageClientUtils.getObjectName(copyPath);
+      String hour = name.substring(0, Math.min(name.length(), ID_HOUR_LENGTH));
+      if (found.size() >= recentSize && !hour.equals(lastHour)) {
+        break;
+      }
+      Content copy = contentManager.get(copyPath);
+      if (copy == null) {
+        continue;
+      }
+      String source = (String) copy.getProperty(PARAM_SOURCE);
+      if (source != null && actor.equals(copy.getProperty(PARAM_ACTOR_ID))) {
+        String path = StorageClientUtils.newPath(StorageClientUtils.newPath(source,
+            ACTIVITY_STORE_NAME), name);
+        found.add(new Object[] { getCreated(copy), path });
+        lastHour = hour;
+      }
+    }
+    Collections.sort(found, new Comparator<Object[]>() {
+      public int compare(Object[] o1, Object[] o2) {
+        return ((Long) o2[0]).compareTo((Long) o1[0]);
+      }
+    });
+    int size = Math.min(found.size(), recentSize);
+    long[] times = new long[size];
+    String[] paths = new String[size];
+    for (int i = 0; i < size; i++) {
+      times[i] = (Long) found.get(i)[0];
+      paths[i] = (String) found.get(i)[1];
+    }
+    return new Object[] { times, paths };
+  }
+
+  private long getCreated(Content content) {
+    Object created = content.getProperty("_created");
+    if (created == null) {
+      return 0L;
+    }
+    return StorageClientUtils.toLong(created);
+  }
+
+  private Cache<Object[]> getCache() {
+    return cacheManagerService.getCache(RECENT_ACTIVITY_CACHE,
+        CacheScope.CLUSTERREPLICATED);
+  }
+}
@@ -0,0 +1,175 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.activity;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.sling.SlingServlet;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
+import org.apache.sling.commons.json.JSONException;
+import org.sakaiproject.nakamura.api.activity.ActivityConstants;
+import org.sakaiproject.nakamura.api.activity.ActivityFeedService;
+import org.sakaiproject.nakamura.api.doc.BindingType;
+import org.sakaiproject.nakamura.api.doc.ServiceBinding;
+import org.sakaiproject.nakamura.api.doc.ServiceDocumentation;
+import org.sakaiproject.nakamura.api.doc.ServiceMethod;
+import org.sakaiproject.nakamura.api.doc.ServiceParameter;
+import org.sakaiproject.nakamura.api.doc.ServiceResponse;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.user.BasicUserInfoService;
+import org.sakaiproject.nakamura.api.user.UserConstants;
+import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
+import org.sakaiproject.nakamura.util.FlushingWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.List;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Returns the activity feed of the current user, assembled from the recent activities of
+ * the user and their contacts when it is read.
+ */
+@SlingServlet(methods = { "GET" }, paths = { "/system/activity/feed" }, generateService = true, generateComponent = true)
+@Properties(value = {
+    @Property(name = "service.description", value = "Returns the activity feed of the current user."),
+    @Property(name = "service.vendor", value = "The Sakai Foundation") })
+@ServiceDocumentation(name = "ActivityFeedServlet", okForVersion = "0.11",
+    shortDescription = "Get the activity feed of the current user.",
+    description = "Get the activities of the current user and their contacts, newest first, assembled when the feed is read.",
+    bindings = @ServiceBinding(type = BindingType.PATH, bindings = "/system/activity/feed"),
+    methods = {
+      @ServiceMethod(name = "GET", description = "Get the activity feed of the current user.",
+        parameters = {
+          @ServiceParameter(name = "items", description = "The maximum number of activities to return, 25 by default.")
+        },
+        response = {
+          @ServiceResponse(code = 200, description = "{\"items\": n, \"results\": [ activities ]}"),
+          @ServiceResponse(code = 401, description = "Anonymous users have no feed.")
+        })
+    })
+public class LiteActivityFeedServlet extends SlingSafeMethodsServlet {
+
+  private static final long serialVersionUID = 2890462357893457611L;
+  private static final Logger LOG = LoggerFactory
+      .getLogger(LiteActivityFeedServlet.class);
+
+  static final int DEFAULT_ITEMS = 25;
+  static final int MAX_ITEMS = 100;
+
+  @Reference
+  protected ActivityFeedService activityFeedService;
+
+  @Reference
+  protected BasicUserInfoService basicUserInfoService;
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.apache.sling.api.servlets.SlingSafeMethodsServlet#doGet(org.apache.sling.api.SlingHttpServletRequest,
+   *      org.apache.sling.api.SlingHttpServletResponse)
+   */
+  @Override
+  protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
+      throws ServletException, IOException {
+    String user = request.getRemoteUser();
+    if (user == null || UserConstants.ANON_USERID.equals(user)) {
+      response.sendError(HttpServletResponse.SC_UNAUTHORIZED,
+          "Anonymous users can't see the feed.");
+      return;
+    }
+    int items = DEFAULT_ITEMS;
+    String itemsParam = request.getParameter("items");
+    if (!StringUtils.isBlank(itemsParam)) {
+      try {
+        items = Math.min(MAX_ITEMS, Math.max(1, Integer.parseInt(itemsParam)));
+      } catch (NumberFormatException e) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+            "items must be a number");
+        return;
+      }
+    }
+
+    try {
+      Session session = StorageClientUtils.adaptToSession(request.getResourceResolver()
+          .adaptTo(javax.jcr.Session.class));
+      List<Content> feed = activityFeedService.getFeed(session, items);
+
+      response.setContentType("application/json");
+      response.setCharacterEncoding("UTF-8");
+      // each activity is written with its whole content tree, so stream them out.
+      ExtendedJSONWriter write = new ExtendedJSONWriter(new FlushingWriter(response
+          .getWriter()));
+      AuthorizableManager authorizableManager = session.getAuthorizableManager();
+      write.object();
+      write.key("items");
+      write.value(feed.size());
+      write.key("results");
+      write.array();
+      for (Content activity : feed) {
+        write.object();
+        ExtendedJSONWriter.writeContentTreeToWriter(write, activity, true, -1);
+        String actor = (String) activity.getProperty(ActivityConstants.PARAM_ACTOR_ID);
+        Authorizable actorAuth = actor == null ? null : authorizableManager
+            .findAuthorizable(actor);
+        if (actorAuth != null) {
+          ExtendedJSONWriter.writeValueMapInternals(write,
+              basicUserInfoService.getProperties(actorAuth));
+        } else {
+          LOG.warn("Unable to find actor for activity [{}]", activity.getPath());
+        }
+        write.endObject();
+      }
+      write.endArray();
+      write.endObject();
+    } catch (StorageClientException e) {
+      LOG.error(e.getMessage(), e);
+      sendError(response, e);
+    } catch (AccessDeniedException e) {
+      LOG.error(e.getMessage(), e);
+      sendError(response, e);
+    } catch (JSONException e) {
+      LOG.error(e.getMessage(), e);
+      sendError(response, e);
+    }
+  }
+
+  /**
+   * Once part of the feed has gone out the status can no longer be changed, the client
+   * gets a truncated body instead.
+   */
+  private void sendError(SlingHttpServletResponse response, Exception e)
+      throws IOException {
+    if (!response.isCommitted()) {
+      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+    }
+  }
+}
@@ -28,6 +28,7 @@ import org.apache.sling.jcr.resource.JcrResourceConstants;
 import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
 import org.sakaiproject.nakamura.api.activity.ActivityConstants;
+import org.sakaiproject.nakamura.api.activity.ActivityFeedService;
 import org.sakaiproject.nakamura.api.activity.ActivityRoute;
 import org.sakaiproject.nakamura.api.activity.ActivityRouterManager;
 import org.sakaiproject.nakamura.api.lite.Repository;
@@ -63,6 +64,8 @@ public class LiteActivityListener implements MessageListener {
   protected Repository sparseRepository;
   @Reference
   protected ActivityRouterManager activityRouterManager;
+  @Reference
+  protected ActivityFeedService activityFeedService;
 
   public static final Logger LOG = LoggerFactory
       .getLogger(LiteActivityListener.class);
@@ -132,6 +135,9 @@ public class LiteActivityListener implements MessageListener {
         for (ActivityRoute route : routes) {
           deliverActivityToFeed(session, activity, route.getDestination());
         }
+
+        // Make it available to feeds that are assembled when read.
+        activityFeedService.addActivity(activity);
       } finally {
         try { 
           session.logout(); 
@@ -17,9 +17,14 @@
  */
 package org.sakaiproject.nakamura.activity.routing;
 
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.PropertyOption;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.OsgiUtil;
 import org.apache.sling.jcr.base.util.AccessControlUtil;
 import org.sakaiproject.nakamura.api.activity.AbstractActivityRoute;
 import org.sakaiproject.nakamura.api.activity.ActivityConstants;
@@ -28,8 +33,10 @@ import org.sakaiproject.nakamura.api.activity.ActivityRouter;
 import org.sakaiproject.nakamura.api.activity.ActivityUtils;
 import org.sakaiproject.nakamura.api.connections.ConnectionManager;
 import org.sakaiproject.nakamura.api.connections.ConnectionState;
+import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessControlManager;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.Permissions;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
@@ -39,30 +46,45 @@ import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
-import javax.jcr.Session;
 import javax.jcr.SimpleCredentials;
-import javax.jcr.security.AccessControlManager;
 import javax.jcr.security.Privilege;
 
 /**
- * This router will deliver an activity to the feed of all the contacts of the actor. It
- * will only deliver if the contact has READ access on the node where the activity was
- * performed on.
+ * Routes an activity to the actor's contacts. In push mode the activity is copied to the
+ * feed of every contact who can read it. In pull mode nothing is copied, and contacts see
+ * the activity when their feed is assembled by the
+ * {@link org.sakaiproject.nakamura.api.activity.ActivityFeedService}.
  */
-@Component(immediate = true, enabled = true)
+@Component(immediate = true, enabled = true, metatype = true)
 @Service(value = ActivityRouter.class)
 public class ContactsActivityRouter implements ActivityRouter {
 
+  @Property(value = ActivityConstants.DELIVERY_PUSH, options = {
+      @PropertyOption(name = ActivityConstants.DELIVERY_PUSH, value = "Copy to each contact's feed"),
+      @PropertyOption(name = ActivityConstants.DELIVERY_PULL, value = "Assemble contact feeds when read") })
+  static final String DELIVERY_MODE = "activity.delivery.mode";
+
   @Reference
   protected ConnectionManager connectionManager;
 
   private static final Logger LOGGER = LoggerFactory
       .getLogger(ContactsActivityRouter.class);
 
+  private boolean pull = false;
+
+  @Activate
+  @Modified
+  protected void activate(Map<String, Object> properties) {
+    pull = ActivityConstants.DELIVERY_PULL.equals(OsgiUtil.toString(
+        properties.get(DELIVERY_MODE), ActivityConstants.DELIVERY_PUSH));
+  }
+
   /**
    * {@inheritDoc}
    *
@@ -80,8 +102,11 @@ public class ContactsActivityRouter implements ActivityRouter {
    *      java.util.List)
    */
   public void route(Node activity, List<ActivityRoute> routes) {
+    if (pull) {
+      return;
+    }
     try {
-      Session adminSession = activity.getSession();
+      javax.jcr.Session adminSession = activity.getSession();
       String activityFeedPath = null;
       String actor = activity.getProperty(ActivityConstants.PARAM_ACTOR_ID)
           .getString();
@@ -90,24 +115,26 @@ public class ContactsActivityRouter implements ActivityRouter {
       if (connections != null && connections.size() > 0) {
 
         String activityPath = activity.getPath();
-        AccessControlManager adminACM = AccessControlUtil
+        javax.jcr.security.AccessControlManager adminACM = AccessControlUtil
             .getAccessControlManager(adminSession);
         Privilege readPriv = adminACM.privilegeFromName("jcr:read");
         Privilege[] privs = new Privilege[] { readPriv };
         for (String connection : connections) {
           // Check if this connection has READ access on the path.
           boolean allowCopy = true;
-          Session userSession = null;
+          javax.jcr.Session userSession = null;
           try {
             final SimpleCredentials credentials = new SimpleCredentials(
                 connection, "foo".toCharArray());
             userSession = adminSession.impersonate(credentials);
-            AccessControlManager userACM = AccessControlUtil
+            javax.jcr.security.AccessControlManager userACM = AccessControlUtil
                 .getAccessControlManager(userSession);
             allowCopy = userACM.hasPrivileges(activityPath, privs);
           } finally {
             // We no longer need this session anymore, release it.
-            userSession.logout();
+            if (userSession != null) {
+              userSession.logout();
+            }
           }
 
           if (allowCopy) {
@@ -125,40 +152,62 @@ public class ContactsActivityRouter implements ActivityRouter {
     }
   }
 
-  public void route(Content activity, List<ActivityRoute> routes, org.sakaiproject.nakamura.api.lite.Session adminSession) {
+  public void route(Content activity, List<ActivityRoute> routes, Session adminSession) {
+    if (pull) {
+      return;
+    }
     try {
-      String activityFeedPath = null;
       String actor = (String) activity.getProperty(ActivityConstants.PARAM_ACTOR_ID);
-      List<String> connections = connectionManager.getConnectedUsers(adminSession, actor,
-          ConnectionState.ACCEPTED);
-      org.sakaiproject.nakamura.api.lite.accesscontrol.AccessControlManager accessControlManager = adminSession.getAccessControlManager();
-      AuthorizableManager authorizableManager = adminSession.getAuthorizableManager();
-      if (connections != null && connections.size() > 0) {
-
-        String activityPath = activity.getPath();
-        for (String connection : connections) {
-          // Check if this connection has READ access on the path.
-          try {
-          Authorizable authorizable = authorizableManager.findAuthorizable(connection);
-          boolean allowCopy = accessControlManager.can(authorizable, Security.ZONE_CONTENT, activityPath, Permissions.CAN_READ);
-          if (allowCopy) {
-            // Get the activity feed for this contact and deliver it.
-            activityFeedPath = ActivityUtils.getUserFeed(connection);
-            ActivityRoute route = new AbstractActivityRoute(activityFeedPath) {
-            };
-            routes.add(route);
-          }
-          } catch ( StorageClientException e) {
-            LOGGER.error(e.getMessage(),e);            
-          } catch (AccessDeniedException e) {
-            LOGGER.error(e.getMessage(),e);
-          }
-        }
-      }
+      addRoutes(adminSession, actor, activity.getPath(), routes);
     } catch (StorageClientException e) {
       LOGGER.error(
           "Exception when trying to deliver an activity to contacts feed.", e);
     }
   }
 
+  /**
+   * Add a route to the feed of each contact of the actor who can read the activity, as
+   * content in the sparse store.
+   */
+  private void addRoutes(Session adminSession, String actor, String activityPath,
+      List<ActivityRoute> routes) throws StorageClientException {
+    List<String> connections = connectionManager.getConnectedUsers(adminSession, actor,
+        ConnectionState.ACCEPTED);
+    if (connections != null && connections.size() > 0) {
+      for (String connection : getReaders(adminSession, activityPath, connections)) {
+        // Get the activity feed for this contact and deliver it.
+        String activityFeedPath = ActivityUtils.getUserFeed(connection);
+        ActivityRoute route = new AbstractActivityRoute(activityFeedPath) {
+        };
+        routes.add(route);
+      }
+    }
+  }
+
+  /**
+   * Check which of the candidates can read a path, in one pass with the administrative
+   * session rather than logging in as each of them.
+   *
+   * @return the candidates that have read access on the path.
+   */
+  protected List<String> getReaders(Session adminSession, String path,
+      List<String> candidates) throws StorageClientException {
+    AccessControlManager accessControlManager = adminSession.getAccessControlManager();
+    AuthorizableManager authorizableManager = adminSession.getAuthorizableManager();
+    List<String> readers = new ArrayList<String>(candidates.size());
+    for (String candidate : candidates) {
+      try {
+        Authorizable authorizable = authorizableManager.findAuthorizable(candidate);
+        if (authorizable != null
+            && accessControlManager.can(authorizable, Security.ZONE_CONTENT, path,
+                Permissions.CAN_READ)) {
+          readers.add(candidate);
+        }
+      } catch (AccessDeniedException e) {
+        LOGGER.error(e.getMessage(), e);
+      }
+    }
+    return readers;
+  }
+
 }
@@ -21,12 +21,15 @@ import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.request.RequestParameter;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
 import org.apache.solr.client.solrj.util.ClientUtils;
+import org.apache.solr.common.params.CommonParams;
 import org.sakaiproject.nakamura.api.files.FilesConstants;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
@@ -63,21 +66,111 @@ public class LiteMostActiveContentSearchBatchResultProcessor implements
   private static final Logger LOG = LoggerFactory
       .getLogger(LiteMostActiveContentSearchBatchResultProcessor.class);
 
+  /**
+   * How far down the ranking to read, as a multiple of the end of the page, when some of
+   * the content can't be read by the user.
+   */
+  private static final int MAX_LOOKAHEAD = 4;
+
   @Reference
   private SolrSearchServiceFactory searchServiceFactory;
 
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+  private MostActiveContentCounter mostActiveContentCounter;
+
+  private final MostActiveContentPropertyProvider propertyProvider = new MostActiveContentPropertyProvider();
+
   /**
    * 
    * {@inheritDoc}
    * 
+   * When the counts come from the {@link MostActiveContentCounter} the total is all the
+   * content active in the period, including content the user can't read.
+   * 
    * @see org.sakaiproject.nakamura.api.search.solr.SolrSearchBatchResultProcessor#writeResults(org.apache.sling.api.SlingHttpServletRequest,
    *      org.apache.sling.commons.json.io.JSONWriter, java.util.Iterator)
    */
   public void writeResults(SlingHttpServletRequest request, JSONWriter write,
       Iterator<Result> iterator) throws JSONException {
-    final Map<String, ResourceActivity> resources = new HashMap<String, ResourceActivity>();
     final Session session = StorageClientUtils.adaptToSession(request
         .getResourceResolver().adaptTo(javax.jcr.Session.class));
+    final RequestParameter startpageP = request.getRequestParameter(STARTPAGE_PARAM);
+    int startpage = (startpageP != null) ? Integer.valueOf(startpageP.getString()) : 1;
+    startpage = (startpage < 1) ? 1 : startpage;
+    final RequestParameter numitemsP = request.getRequestParameter(NUMITEMS_PARAM);
+    int numitems = (numitemsP != null) ? Integer.valueOf(numitemsP.getString())
+                                      : SolrSearchConstants.DEFAULT_PAGED_ITEMS;
+    numitems = (numitems < 1) ? SolrSearchConstants.DEFAULT_PAGED_ITEMS : numitems;
+    final int beginPosition = (startpage * numitems) - numitems;
+
+    final List<ResourceActivity> page = new ArrayList<ResourceActivity>();
+    long total;
+    MostActiveContentCounter.MostActive mostActive = getCounted(request, beginPosition
+        + numitems);
+    if (mostActive != null) {
+      // all the content active in the window, including content this user can't read,
+      // working that out would mean loading the whole ranking.
+      total = mostActive.getTotal();
+      page.addAll(getCountedPage(request, session, mostActive, beginPosition, numitems));
+    } else {
+      List<ResourceActivity> resourceActivities = countResults(session, iterator);
+      total = resourceActivities.size();
+      for (int i = beginPosition; i < resourceActivities.size() && page.size() < numitems; i++) {
+        page.add(resourceActivities.get(i));
+      }
+    }
+
+    // KERN-1724 determine how many content items the current user can read
+    long totalCanRead = 0L;
+    try {
+      final String queryString = "resourceType:"
+          + ClientUtils.escapeQueryChars(FilesConstants.POOLED_CONTENT_RT);
+      // only the number found is needed
+      final Map<String, String> options = new HashMap<String, String>();
+      options.put(CommonParams.ROWS, "0");
+      final Query query = new Query(queryString, options);
+      final SolrSearchResultSet rs = searchServiceFactory.getSearchResultSet(request,
+          query);
+      if (rs != null) {
+        totalCanRead = rs.getSize();
+      }
+    } catch (SolrSearchException e) {
+      LOG.error(e.getLocalizedMessage(), e);
+    }
+
+    // write the most-used content to the JSONWriter
+    write.object();
+    write.key("totalCanRead");
+    write.value(totalCanRead);
+    write.key(SolrSearchConstants.TOTAL);
+    write.value(total);
+    write.key(STARTPAGE_PARAM);
+    write.value(startpage);
+    write.key(NUMITEMS_PARAM);
+    write.value(numitems);
+    write.key("content");
+    write.array();
+    for (ResourceActivity resourceActivity : page) {
+      write.object();
+      write.key("id");
+      write.value(resourceActivity.id);
+      write.key("name");
+      write.value(resourceActivity.name);
+      write.key("count");
+      write.value(Long.valueOf(resourceActivity.activityScore));
+      write.endObject();
+    }
+    write.endArray();
+    write.endObject();
+  }
+
+  /**
+   * Count the activity of each resource from the search results.
+   *
+   * @return the resources, most active first.
+   */
+  private List<ResourceActivity> countResults(Session session, Iterator<Result> iterator) {
+    final Map<String, ResourceActivity> resources = new HashMap<String, ResourceActivity>();
 
     // count all the activity
     LOG.debug("Computing the most active content feed.");
@@ -112,62 +205,70 @@ public class LiteMostActiveContentSearchBatchResultProcessor implements
         continue;
       }
     }
-    
-    // KERN-1724 determine how many content items the current user can read
-    long totalCanRead = 0L;
-    try {
-      final String queryString = "resourceType:"
-          + ClientUtils.escapeQueryChars(FilesConstants.POOLED_CONTENT_RT);
-      final Query query = new Query(queryString);
-      final SolrSearchResultSet rs = searchServiceFactory.getSearchResultSet(request,
-          query);
-      if (rs != null) {
-        totalCanRead = rs.getSize();
-      }
-    } catch (SolrSearchException e) {
-      LOG.error(e.getLocalizedMessage(), e);
-    }
-
-    // write the most-used content to the JSONWriter
     final List<ResourceActivity> resourceActivities = new ArrayList<ResourceActivity>(
         resources.values());
     Collections.sort(resourceActivities, Collections.reverseOrder());
-    write.object();
-    write.key("totalCanRead");
-    write.value(totalCanRead);
-    write.key(SolrSearchConstants.TOTAL);
-    write.value(resources.size());
-    final RequestParameter startpageP = request.getRequestParameter(STARTPAGE_PARAM);
-    int startpage = (startpageP != null) ? Integer.valueOf(startpageP.getString()) : 1;
-    startpage = (startpage < 1) ? 1 : startpage;
-    write.key(STARTPAGE_PARAM);
-    write.value(startpage);
-    final RequestParameter numitemsP = request.getRequestParameter(NUMITEMS_PARAM);
-    int numitems = (numitemsP != null) ? Integer.valueOf(numitemsP.getString())
-                                      : SolrSearchConstants.DEFAULT_PAGED_ITEMS;
-    numitems = (numitems < 1) ? SolrSearchConstants.DEFAULT_PAGED_ITEMS : numitems;
-    write.key(NUMITEMS_PARAM);
-    write.value(numitems);
-    final int beginPosition = (startpage * numitems) - numitems;
-    write.key("content");
-    write.array();
-    if (beginPosition < resourceActivities.size()) {
-      int count = 0;
-      for (int i = beginPosition; i < resourceActivities.size() && count < numitems; i++) {
-        final ResourceActivity resourceActivity = resourceActivities.get(i);
-        write.object();
-        write.key("id");
-        write.value(resourceActivity.id);
-        write.key("name");
-        write.value(resourceActivity.name);
-        write.key("count");
-        write.value(Long.valueOf(resourceActivity.activityScore));
-        write.endObject();
-        count++;
+    return resourceActivities;
+  }
+
+  /**
+   * @return the most active content from the counter, or null if the counter can't answer
+   *         for the period requested.
+   */
+  private MostActiveContentCounter.MostActive getCounted(SlingHttpServletRequest request,
+      int max) {
+    MostActiveContentCounter counter = mostActiveContentCounter;
+    if (counter == null) {
+      return null;
+    }
+    long span = System.currentTimeMillis() - propertyProvider.deriveThen(request);
+    return counter.getMostActive(span, max);
+  }
+
+  /**
+   * Read a page of the counted content, leaving out content the user can't read. Only the
+   * ranking up to the end of the page is read, and further as far as
+   * {@link #MAX_LOOKAHEAD} times that to make up for content that is left out.
+   */
+  private List<ResourceActivity> getCountedPage(SlingHttpServletRequest request,
+      Session session, MostActiveContentCounter.MostActive mostActive, int beginPosition,
+      int numitems) {
+    List<ResourceActivity> page = new ArrayList<ResourceActivity>();
+    int readable = 0;
+    int position = 0;
+    int max = beginPosition + numitems;
+    int limit = max * MAX_LOOKAHEAD;
+    while (true) {
+      List<MostActiveContentCounter.ActiveContent> content = mostActive.getContent();
+      for (; position < content.size() && page.size() < numitems; position++) {
+        MostActiveContentCounter.ActiveContent active = content.get(position);
+        try {
+          final Content resourceNode = session.getContentManager().get(active.getId());
+          if (resourceNode == null) {
+            continue;
+          }
+          if (readable++ >= beginPosition) {
+            page.add(new ResourceActivity(active.getId(), active.getCount(),
+                (String) resourceNode.getProperty(FilesConstants.POOLED_CONTENT_FILENAME),
+                0L));
+          }
+        } catch (StorageClientException e) {
+          continue;
+        } catch (AccessDeniedException e) {
+          // this can happen if this content is no longer public
+          continue;
+        }
+      }
+      if (page.size() >= numitems || content.size() < max || max >= limit) {
+        return page;
+      }
+      // some could not be read, get more of the ranking
+      max = Math.min(max * 2, limit);
+      mostActive = getCounted(request, max);
+      if (mostActive == null) {
+        return page;
       }
     }
-    write.endArray();
-    write.endObject();
   }
 
   public class ResourceActivity implements Comparable<ResourceActivity> {
@@ -238,7 +339,18 @@ public class LiteMostActiveContentSearchBatchResultProcessor implements
    */
   public SolrSearchResultSet getSearchResultSet(SlingHttpServletRequest request,
       Query query) throws SolrSearchException {
+    if (getCounted(request, 0) != null) {
+      // the counts are already known, there is no need to scan the activity
+      return new SolrSearchResultSet() {
+        public Iterator<Result> getResultSetIterator() {
+          return Collections.<Result> emptyList().iterator();
+        }
 
+        public long getSize() {
+          return 0;
+        }
+      };
+    }
     return searchServiceFactory.getSearchResultSet(request, query);
   }
 
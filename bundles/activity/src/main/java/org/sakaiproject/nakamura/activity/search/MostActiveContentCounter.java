@@ -0,0 +1,483 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.activity.search;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.felix.scr.annotations.Services;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.apache.sling.commons.scheduler.Scheduler;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.solr.SolrServerService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Counts the updates to each piece of pooled content in hourly buckets, and keeps a
+ * running total and ranking for each of a few sliding windows, so that the most active
+ * content can be read without scanning the updates.
+ * <p>
+ * The current hour is counted from the updates made on this server. Every hour the
+ * recently closed buckets are reloaded from the index so that all servers in a cluster
+ * agree, and when the component starts every bucket in the longest window is loaded from
+ * the index. Until that first load has finished, {@link #getMostActive(long, int)}
+ * returns null.
+ */
+@Component(immediate = true, metatype = true)
+@Services(value = { @Service(value = EventHandler.class),
+    @Service(value = MostActiveContentCounter.class) })
+@Properties(value = {
+    @Property(name = "service.vendor", value = "The Sakai Foundation"),
+    @Property(name = "service.description", value = "Counts updates to pooled content for the most active content feed."),
+    @Property(name = EventConstants.EVENT_TOPIC, value = "org/sakaiproject/nakamura/lite/content/ADDED") })
+public class MostActiveContentCounter implements EventHandler {
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(MostActiveContentCounter.class);
+
+  /**
+   * Each update to pooled content is recorded below this path, as
+   * /activity/content/[poolId]/[updateId].
+   */
+  static final String TRACKING_PATH = "/activity/content/";
+
+  static final long BUCKET_MS = 60L * 60L * 1000L;
+
+  static final int[] DEFAULT_WINDOWS = { 24, 168, 720 };
+  @Property(intValue = { 24, 168, 720 })
+  static final String WINDOWS = "mostactive.windows.hours";
+
+  private static final String LOAD_JOB = "mostActiveContentLoad";
+  private static final int LOAD_PAGE_SIZE = 1000;
+
+  @Reference
+  protected SolrServerService solrServerService;
+
+  @Reference
+  protected Scheduler scheduler;
+
+  private final Object lock = new Object();
+  private long[] spans;
+  private Window[] windows;
+  private TreeMap<Long, Bucket> buckets;
+  private volatile boolean loaded;
+
+  @Activate
+  protected void activate(Map<String, Object> properties) {
+    String[] hours = OsgiUtil.toStringArray(properties.get(WINDOWS));
+    long[] newSpans;
+    if (hours == null || hours.length == 0) {
+      newSpans = new long[DEFAULT_WINDOWS.length];
+      for (int i = 0; i < DEFAULT_WINDOWS.length; i++) {
+        newSpans[i] = DEFAULT_WINDOWS[i] * BUCKET_MS;
+      }
+    } else {
+      newSpans = new long[hours.length];
+      for (int i = 0; i < hours.length; i++) {
+        newSpans[i] = Long.parseLong(hours[i].trim()) * BUCKET_MS;
+      }
+    }
+    init(newSpans);
+    try {
+      scheduler.addPeriodicJob(LOAD_JOB, new Runnable() {
+        public void run() {
+          load(System.currentTimeMillis());
+        }
+      }, null, BUCKET_MS / 1000L, false);
+    } catch (Exception e) {
+      LOGGER.error("Failed to schedule loading the most active content counts", e);
+    }
+  }
+
+  @Deactivate
+  protected void deactivate(Map<String, Object> properties) {
+    scheduler.removeJob(LOAD_JOB);
+  }
+
+  /**
+   * Reset the counter to count over windows of the given lengths.
+   */
+  void init(long[] newSpans) {
+    synchronized (lock) {
+      spans = newSpans.clone();
+      Arrays.sort(spans);
+      windows = new Window[spans.length];
+      for (int i = 0; i < spans.length; i++) {
+        windows[i] = new Window();
+      }
+      buckets = new TreeMap<Long, Bucket>();
+      loaded = false;
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String resourceId = getResourceId((String) event.getProperty("path"));
+    if (resourceId != null) {
+      record(resourceId, System.currentTimeMillis());
+    }
+  }
+
+  /**
+   * @return the id of the pooled content for the path of an update, or null if the path
+   *         is not an update.
+   */
+  static String getResourceId(String path) {
+    if (path == null || !path.startsWith(TRACKING_PATH)) {
+      return null;
+    }
+    int slash = path.indexOf('/', TRACKING_PATH.length());
+    if (slash <= TRACKING_PATH.length() || slash == path.length() - 1
+        || path.indexOf('/', slash + 1) >= 0) {
+      return null;
+    }
+    return path.substring(TRACKING_PATH.length(), slash);
+  }
+
+  /**
+   * Count one update to a piece of content.
+   */
+  void record(String resourceId, long time) {
+    synchronized (lock) {
+      roll(time);
+      Bucket bucket = getBucket(bucketStart(time), time);
+      if (bucket == null) {
+        return;
+      }
+      Counter counter = bucket.counts.get(resourceId);
+      if (counter == null) {
+        counter = new Counter();
+        bucket.counts.put(resourceId, counter);
+      }
+      counter.count++;
+      counter.latest = Math.max(counter.latest, time);
+      for (int i = 0; i < windows.length; i++) {
+        if (bucket.counted[i]) {
+          windows[i].add(resourceId, 1, time);
+        }
+      }
+    }
+  }
+
+  /**
+   * Get the most active content over at least the given time span.
+   *
+   * @param span
+   *          how far back to count, in ms.
+   * @param max
+   *          the maximum number of content items to return.
+   * @return the most active content, or null if the counts are not loaded yet or the span
+   *         is longer than the longest window.
+   */
+  public MostActive getMostActive(long span, int max) {
+    return getMostActive(span, max, System.currentTimeMillis());
+  }
+
+  MostActive getMostActive(long span, int max, long now) {
+    if (!loaded) {
+      return null;
+    }
+    synchronized (lock) {
+      for (int i = 0; i < spans.length; i++) {
+        if (spans[i] >= span) {
+          roll(now);
+          Window window = windows[i];
+          List<ActiveContent> content = new ArrayList<ActiveContent>(Math.min(max,
+              window.ranked.size()));
+          Iterator<ActiveContent> ranked = window.ranked.iterator();
+          while (content.size() < max && ranked.hasNext()) {
+            ActiveContent entry = ranked.next();
+            content.add(new ActiveContent(entry.id, entry.count, entry.latest));
+          }
+          return new MostActive(window.totals.size(), content);
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Reload counts from the index. The first load covers the longest window, after that
+   * just the current and recently closed buckets are reloaded.
+   */
+  void load(long now) {
+    long current = bucketStart(now);
+    long from;
+    synchronized (lock) {
+      from = loaded ? current - 2 * BUCKET_MS : bucketStart(now
+          - spans[spans.length - 1]);
+    }
+    try {
+      for (long start = from; start <= current; start += BUCKET_MS) {
+        replaceBucket(start, query(start, start + BUCKET_MS - 1), now);
+      }
+      loaded = true;
+    } catch (SolrServerException e) {
+      LOGGER.warn("Unable to load the most active content counts {} ", e.getMessage());
+    }
+  }
+
+  /**
+   * @return the number of updates to each piece of content in the time range.
+   */
+  Map<String, Counter> query(long start, long end) throws SolrServerException {
+    Map<String, Counter> counts = new HashMap<String, Counter>();
+    SolrQuery solrQuery = new SolrQuery("path:/activity/content AND "
+        + "resourceType:sakai/resource\\-update AND timestamp:[" + start + " TO " + end
+        + "]");
+    solrQuery.setFields("id");
+    solrQuery.setRows(LOAD_PAGE_SIZE);
+    int offset = 0;
+    while (true) {
+      solrQuery.setStart(offset);
+      QueryResponse response = solrServerService.getServer().query(solrQuery);
+      SolrDocumentList results = response.getResults();
+      for (SolrDocument doc : results) {
+        String resourceId = getResourceId((String) doc.getFirstValue("id"));
+        if (resourceId != null) {
+          Counter counter = counts.get(resourceId);
+          if (counter == null) {
+            counter = new Counter();
+            counter.latest = start;
+            counts.put(resourceId, counter);
+          }
+          counter.count++;
+        }
+      }
+      offset += results.size();
+      if (results.size() == 0 || offset >= results.getNumFound()) {
+        return counts;
+      }
+    }
+  }
+
+  /**
+   * Replace the counts of a bucket, adjusting the windows it is counted in.
+   */
+  void replaceBucket(long start, Map<String, Counter> counts, long now) {
+    synchronized (lock) {
+      roll(now);
+      if (counts.isEmpty() && !buckets.containsKey(start)) {
+        return;
+      }
+      Bucket bucket = getBucket(start, now);
+      if (bucket == null) {
+        return;
+      }
+      for (int i = 0; i < windows.length; i++) {
+        if (bucket.counted[i]) {
+          for (Entry<String, Counter> e : bucket.counts.entrySet()) {
+            windows[i].add(e.getKey(), -e.getValue().count, 0);
+          }
+          for (Entry<String, Counter> e : counts.entrySet()) {
+            windows[i].add(e.getKey(), e.getValue().count, e.getValue().latest);
+          }
+        }
+      }
+      bucket.counts = counts;
+    }
+  }
+
+  /**
+   * Take buckets that have slid out of a window out of its counts, and drop buckets that
+   * are no longer in any window.
+   */
+  private void roll(long now) {
+    Iterator<Bucket> it = buckets.values().iterator();
+    while (it.hasNext()) {
+      Bucket bucket = it.next();
+      boolean counted = false;
+      for (int i = 0; i < windows.length; i++) {
+        if (bucket.counted[i] && !inWindow(bucket.start, i, now)) {
+          for (Entry<String, Counter> e : bucket.counts.entrySet()) {
+            windows[i].add(e.getKey(), -e.getValue().count, 0);
+          }
+          bucket.counted[i] = false;
+        }
+        counted = counted || bucket.counted[i];
+      }
+      if (!counted) {
+        it.remove();
+      } else if (bucket.counted[0]) {
+        // buckets are in time order, so the rest are newer and still in every window.
+        break;
+      }
+    }
+  }
+
+  /**
+   * @return the bucket starting at the time, or null if it is too old to be in any window.
+   */
+  private Bucket getBucket(long start, long now) {
+    Bucket bucket = buckets.get(start);
+    if (bucket == null) {
+      boolean[] counted = new boolean[windows.length];
+      boolean any = false;
+      for (int i = 0; i < windows.length; i++) {
+        counted[i] = inWindow(start, i, now);
+        any = any || counted[i];
+      }
+      if (!any) {
+        return null;
+      }
+      bucket = new Bucket(start, counted);
+      buckets.put(start, bucket);
+    }
+    return bucket;
+  }
+
+  private boolean inWindow(long bucketStart, int window, long now) {
+    return bucketStart + BUCKET_MS > now - spans[window];
+  }
+
+  private static long bucketStart(long time) {
+    return time - (time % BUCKET_MS);
+  }
+
+  /**
+   * The most active content in a window.
+   */
+  public static final class MostActive {
+    private final long total;
+    private final List<ActiveContent> content;
+
+    MostActive(long total, List<ActiveContent> content) {
+      this.total = total;
+      this.content = content;
+    }
+
+    /**
+     * @return the number of pieces of content that were updated in the window.
+     */
+    public long getTotal() {
+      return total;
+    }
+
+    /**
+     * @return the most active content, most updated first.
+     */
+    public List<ActiveContent> getContent() {
+      return content;
+    }
+  }
+
+  /**
+   * A piece of content and how many times it was updated, ordered by count then by the
+   * latest update, most first.
+   */
+  public static final class ActiveContent implements Comparable<ActiveContent> {
+    private final String id;
+    private int count;
+    private long latest;
+
+    ActiveContent(String id, int count, long latest) {
+      this.id = id;
+      this.count = count;
+      this.latest = latest;
+    }
+
+    public String getId() {
+      return id;
+    }
+
+    public int getCount() {
+      return count;
+    }
+
+    public int compareTo(ActiveContent o) {
+      if (count != o.count) {
+        return count > o.count ? -1 : 1;
+      }
+      if (latest != o.latest) {
+        return latest > o.latest ? -1 : 1;
+      }
+      return id.compareTo(o.id);
+    }
+
+  }
+
+  static final class Counter {
+    int count;
+    long latest;
+  }
+
+  private static final class Bucket {
+    private final long start;
+    private final boolean[] counted;
+    private Map<String, Counter> counts = new HashMap<String, Counter>();
+
+    Bucket(long start, boolean[] counted) {
+      this.start = start;
+      this.counted = counted;
+    }
+  }
+
+  /**
+   * The running totals of a window, and the same entries ranked.
+   */
+  private static final class Window {
+    private final Map<String, ActiveContent> totals = new HashMap<String, ActiveContent>();
+    private final TreeSet<ActiveContent> ranked = new TreeSet<ActiveContent>();
+
+    void add(String id, int delta, long latest) {
+      ActiveContent entry = totals.get(id);
+      if (entry == null) {
+        if (delta <= 0) {
+          return;
+        }
+        entry = new ActiveContent(id, 0, 0);
+        totals.put(id, entry);
+      } else {
+        ranked.remove(entry);
+      }
+      entry.count += delta;
+      entry.latest = Math.max(entry.latest, latest);
+      if (entry.count > 0) {
+        ranked.add(entry);
+      } else {
+        totals.remove(id);
+      }
+    }
+  }
+}
@@ -102,5 +102,16 @@ public interface ActivityConstants {
   
   public static final String PRIVACY_PUBLIC = "public";
 
+  /**
+   * Delivery mode where a router copies each activity into the feed of every reader.
+   */
+  public static final String DELIVERY_PUSH = "push";
+  /**
+   * Delivery mode where an activity is written once, and readers assemble their feeds
+   * from the recent activities of the actors they follow when they read them. See
+   * {@link ActivityFeedService}.
+   */
+  public static final String DELIVERY_PULL = "pull";
+
 
 }
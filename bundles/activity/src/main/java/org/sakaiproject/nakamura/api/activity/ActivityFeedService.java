@@ -0,0 +1,56 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.activity;
+
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+
+import java.util.List;
+
+/**
+ * Assembles activity feeds when they are read, rather than when activities are posted.
+ * Routers in {@link ActivityConstants#DELIVERY_PULL} mode record each activity once against
+ * its actor, and a feed is built by merging the recent activities of the reader and their
+ * contacts.
+ */
+public interface ActivityFeedService {
+
+  /**
+   * Record a new activity against the recent activities of its actor.
+   *
+   * @param activity
+   *          the source activity item, with the actor set.
+   */
+  void addActivity(Content activity);
+
+  /**
+   * Get the feed for a user, newest first, assembled from the recent activities of the
+   * user and of their accepted contacts. Activities the session cannot read are left
+   * out.
+   *
+   * @param session
+   *          the session of the user reading the feed.
+   * @param maxItems
+   *          the maximum number of activities to return.
+   * @return the source activity items.
+   * @throws StorageClientException
+   */
+  List<Content> getFeed(Session session, int maxItems) throws StorageClientException;
+
+}
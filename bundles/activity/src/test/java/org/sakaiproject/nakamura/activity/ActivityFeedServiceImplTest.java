@@ -0,0 +1,196 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.activity;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.activity.ActivityConstants;
+import org.sakaiproject.nakamura.api.activity.ActivityUtils;
+import org.sakaiproject.nakamura.api.connections.ConnectionManager;
+import org.sakaiproject.nakamura.api.connections.ConnectionState;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
+
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ *
+ */
+public class ActivityFeedServiceImplTest {
+
+  private ActivityFeedServiceImpl feedService;
+  private Cache<Object[]> cache;
+  private Session session;
+  private ContentManager contentManager;
+  private ConnectionManager connectionManager;
+  private Repository repository;
+
+  @Before
+  public void setUp() throws Exception {
+    cache = new MapCacheImpl<Object[]>();
+    CacheManagerService cacheManagerService = mock(CacheManagerService.class);
+    when(
+        cacheManagerService.<Object[]> getCache(ActivityFeedServiceImpl.RECENT_ACTIVITY_CACHE,
+            CacheScope.CLUSTERREPLICATED)).thenReturn(cache);
+    session = mock(Session.class);
+    contentManager = mock(ContentManager.class);
+    when(session.getUserId()).thenReturn("alice");
+    when(session.getContentManager()).thenReturn(contentManager);
+    connectionManager = mock(ConnectionManager.class);
+    when(connectionManager.getConnectedUsers(session, "alice", ConnectionState.ACCEPTED))
+        .thenReturn(Lists.newArrayList("bob", "carol"));
+    repository = mock(Repository.class);
+
+    feedService = new ActivityFeedServiceImpl();
+    feedService.cacheManagerService = cacheManagerService;
+    feedService.connectionManager = connectionManager;
+    feedService.sparseRepository = repository;
+    feedService.activate(new HashMap<String, Object>());
+  }
+
+  @Test
+  public void testFeedMergesNewestFirst() throws Exception {
+    recent("alice", new long[] { 50, 10 }, "/a/activity/a2", "/a/activity/a1");
+    recent("bob", new long[] { 60, 40, 20 }, "/b/activity/b3", "/b/activity/b2",
+        "/b/activity/b1");
+    recent("carol", new long[] { 30 }, "/c/activity/c1");
+    when(contentManager.get(anyString())).thenAnswer(
+        new org.mockito.stubbing.Answer<Content>() {
+          public Content answer(org.mockito.invocation.InvocationOnMock invocation)
+              throws Throwable {
+            String path = (String) invocation.getArguments()[0];
+            if (path.equals("/b/activity/b2")) {
+              throw new AccessDeniedException("", path, "", "alice");
+            }
+            return new Content(path, null);
+          }
+        });
+
+    List<Content> feed = feedService.getFeed(session, 4);
+    assertEquals(4, feed.size());
+    // b2 can't be read by alice
+    assertEquals("/b/activity/b3", feed.get(0).getPath());
+    assertEquals("/a/activity/a2", feed.get(1).getPath());
+    assertEquals("/c/activity/c1", feed.get(2).getPath());
+    assertEquals("/b/activity/b1", feed.get(3).getPath());
+  }
+
+  @Test
+  public void testAddActivity() throws Exception {
+    recent("bob", new long[] { 20 }, "/b/activity/b1");
+    feedService.addActivity(activity("/b/activity/b2", "bob", 40));
+    // adding it again changes nothing
+    feedService.addActivity(activity("/b/activity/b2", "bob", 40));
+    Object[] recent = cache.get("bob");
+    assertArrayEquals(new String[] { "/b/activity/b2", "/b/activity/b1" },
+        (String[]) recent[1]);
+    assertArrayEquals(new long[] { 40, 20 }, (long[]) recent[0]);
+
+    // actors who are not cached are rebuilt when read instead.
+    feedService.addActivity(activity("/c/activity/c1", "carol", 40));
+    assertNull(cache.get("carol"));
+  }
+
+  @Test
+  public void testRebuildFromFeed() throws Exception {
+    recent("alice", new long[0]);
+    recent("carol", new long[0]);
+    Session adminSession = mock(Session.class);
+    ContentManager adminContentManager = mock(ContentManager.class);
+    when(repository.loginAdministrative()).thenReturn(adminSession);
+    when(adminSession.getContentManager()).thenReturn(adminContentManager);
+    String feed = ActivityUtils.getUserFeed("bob");
+    Content own = new Content(feed + "/2010-01-01-01-abc", ImmutableMap.of(
+        ActivityConstants.PARAM_ACTOR_ID, (Object) "bob",
+        ActivityConstants.PARAM_SOURCE, "/b", "_created", 20L));
+    Content other = new Content(feed + "/2010-01-01-01-def", ImmutableMap.of(
+        ActivityConstants.PARAM_ACTOR_ID, (Object) "dave",
+        ActivityConstants.PARAM_SOURCE, "/d", "_created", 30L));
+    when(adminContentManager.listChildPaths(feed)).thenReturn(
+        Lists.newArrayList(own.getPath(), other.getPath()).iterator());
+    when(adminContentManager.get(own.getPath())).thenReturn(own);
+    when(adminContentManager.get(other.getPath())).thenReturn(other);
+    when(contentManager.get("/b/activity/2010-01-01-01-abc")).thenReturn(
+        new Content("/b/activity/2010-01-01-01-abc", null));
+
+    List<Content> items = feedService.getFeed(session, 10);
+    assertEquals(1, items.size());
+    assertEquals("/b/activity/2010-01-01-01-abc", items.get(0).getPath());
+    assertArrayEquals(new String[] { "/b/activity/2010-01-01-01-abc" }, (String[]) cache
+        .get("bob")[1]);
+  }
+
+  @Test
+  public void testRebuildStopsAtOlderHours() throws Exception {
+    feedService.activate(ImmutableMap.of(ActivityFeedServiceImpl.RECENT_SIZE,
+        (Object) 1));
+    recent("alice", new long[0]);
+    recent("carol", new long[0]);
+    Session adminSession = mock(Session.class);
+    ContentManager adminContentManager = mock(ContentManager.class);
+    when(repository.loginAdministrative()).thenReturn(adminSession);
+    when(adminSession.getContentManager()).thenReturn(adminContentManager);
+    String feed = ActivityUtils.getUserFeed("bob");
+    String older = feed + "/2010-01-01-01-abc";
+    String newer = feed + "/2010-01-01-02-abc";
+    String newest = feed + "/2010-01-01-02-def";
+    when(adminContentManager.listChildPaths(feed)).thenReturn(
+        Lists.newArrayList(older, newest, newer).iterator());
+    when(adminContentManager.get(newer)).thenReturn(new Content(newer, ImmutableMap.of(
+        ActivityConstants.PARAM_ACTOR_ID, (Object) "bob",
+        ActivityConstants.PARAM_SOURCE, "/b", "_created", 40L)));
+    when(adminContentManager.get(newest)).thenReturn(new Content(newest, ImmutableMap.of(
+        ActivityConstants.PARAM_ACTOR_ID, (Object) "bob",
+        ActivityConstants.PARAM_SOURCE, "/b", "_created", 30L)));
+
+    feedService.getFeed(session, 10);
+    // the whole of the newest hour is read, its ids don't order it by time.
+    assertArrayEquals(new String[] { "/b/activity/2010-01-01-02-abc" }, (String[]) cache
+        .get("bob")[1]);
+    verify(adminContentManager, never()).get(older);
+  }
+
+  private void recent(String actor, long[] times, String... paths) {
+    cache.put(actor, new Object[] { times, paths });
+  }
+
+  private Content activity(String path, String actor, long created) {
+    return new Content(path, ImmutableMap.of(ActivityConstants.PARAM_ACTOR_ID,
+        (Object) actor, "_created", created));
+  }
+}
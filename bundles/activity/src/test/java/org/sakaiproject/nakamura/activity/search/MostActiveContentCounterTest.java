@@ -0,0 +1,159 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.activity.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.sakaiproject.nakamura.activity.search.MostActiveContentCounter.BUCKET_MS;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.activity.search.MostActiveContentCounter.ActiveContent;
+import org.sakaiproject.nakamura.activity.search.MostActiveContentCounter.Counter;
+import org.sakaiproject.nakamura.activity.search.MostActiveContentCounter.MostActive;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *
+ */
+public class MostActiveContentCounterTest {
+
+  private static final long DAY = 24 * BUCKET_MS;
+
+  private MostActiveContentCounter counter;
+  private Map<Long, Map<String, Counter>> index;
+  private long now;
+
+  @Before
+  public void setUp() {
+    index = new HashMap<Long, Map<String, Counter>>();
+    counter = new MostActiveContentCounter() {
+      @Override
+      Map<String, Counter> query(long start, long end) {
+        Map<String, Counter> counts = index.get(start);
+        return counts == null ? new HashMap<String, Counter>() : counts;
+      }
+    };
+    counter.init(new long[] { DAY, 7 * DAY });
+    now = 1000 * DAY;
+  }
+
+  @Test
+  public void testResourceId() {
+    assertEquals("abc", MostActiveContentCounter.getResourceId("/activity/content/abc/xyz"));
+    assertNull(MostActiveContentCounter.getResourceId("/activity/content/abc"));
+    assertNull(MostActiveContentCounter.getResourceId("/activity/content/abc/"));
+    assertNull(MostActiveContentCounter.getResourceId("/activity/content/abc/xyz/1"));
+    assertNull(MostActiveContentCounter.getResourceId("/activity/user/abc/xyz"));
+    assertNull(MostActiveContentCounter.getResourceId(null));
+  }
+
+  @Test
+  public void testNotLoaded() {
+    counter.record("a", now);
+    assertNull(counter.getMostActive(DAY, 10, now));
+  }
+
+  @Test
+  public void testLoad() {
+    Map<String, Counter> counts = new HashMap<String, Counter>();
+    counts.put("a", counter(3));
+    index.put(now - 3 * DAY, counts);
+    counts = new HashMap<String, Counter>();
+    counts.put("b", counter(2));
+    index.put(now - 3 * BUCKET_MS, counts);
+    counter.load(now);
+
+    assertIds(counter.getMostActive(DAY, 10, now).getContent(), "b");
+    assertIds(counter.getMostActive(7 * DAY, 10, now).getContent(), "a", "b");
+  }
+
+  @Test
+  public void testRanking() {
+    load();
+    counter.record("a", now);
+    counter.record("b", now + 1);
+    counter.record("b", now + 2);
+    counter.record("c", now + 3);
+
+    MostActive mostActive = counter.getMostActive(DAY, 10, now + 4);
+    assertEquals(3, mostActive.getTotal());
+    assertIds(mostActive.getContent(), "b", "c", "a");
+    assertEquals(2, mostActive.getContent().get(0).getCount());
+
+    assertIds(counter.getMostActive(DAY, 1, now + 4).getContent(), "b");
+    // longer than any window
+    assertNull(counter.getMostActive(8 * DAY, 10, now + 4));
+  }
+
+  @Test
+  public void testWindowsSlide() {
+    load();
+    counter.record("old", now);
+    counter.record("old", now);
+    counter.record("new", now + 2 * DAY);
+
+    // "old" has slid out of the day window but not the week.
+    assertIds(counter.getMostActive(DAY, 10, now + 2 * DAY).getContent(), "new");
+    assertIds(counter.getMostActive(2 * DAY, 10, now + 2 * DAY).getContent(), "old", "new");
+
+    // and later out of both
+    MostActive week = counter.getMostActive(7 * DAY, 10, now + 8 * DAY);
+    assertIds(week.getContent(), "new");
+    assertEquals(1, week.getTotal());
+  }
+
+  @Test
+  public void testReplaceBucket() {
+    load();
+    counter.record("a", now);
+    counter.record("a", now);
+    counter.record("b", now);
+    // the index shows another server updated b more
+    Map<String, Counter> counts = new HashMap<String, Counter>();
+    counts.put("a", counter(2));
+    counts.put("b", counter(5));
+    counter.replaceBucket(now, counts, now + 1);
+
+    List<ActiveContent> content = counter.getMostActive(DAY, 10, now + 1).getContent();
+    assertIds(content, "b", "a");
+    assertEquals(5, content.get(0).getCount());
+    assertEquals(2, content.get(1).getCount());
+  }
+
+  private void load() {
+    // from an index with nothing in it
+    counter.load(now);
+  }
+
+  private Counter counter(int count) {
+    Counter counter = new Counter();
+    counter.count = count;
+    return counter;
+  }
+
+  private void assertIds(List<ActiveContent> content, String... ids) {
+    assertEquals(ids.length, content.size());
+    for (int i = 0; i < ids.length; i++) {
+      assertEquals(ids[i], content.get(i).getId());
+    }
+  }
+}
@@ -17,7 +17,9 @@
  */
 package org.sakaiproject.nakamura.batch;
 
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.sakaiproject.nakamura.batch.BatchServlet.REQUESTS_PARAMETER;
@@ -28,6 +30,7 @@ import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.junit.Before;
 import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.authorizable.User;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -80,4 +83,20 @@ public class BatchServletTest {
     servlet.doPost(request, response);
   }
 
+  @Test
+  public void testAnonModifyRejectedBeforeDispatch() throws Exception {
+    String json = "[{\"url\" : \"/foo/bar\",\"method\" : \"GET\"},"
+        + "{\"url\" : \"/foo/bar\",\"method\" : \"POST\"}]";
+    when(request.getParameter(REQUESTS_PARAMETER)).thenReturn(json);
+    when(request.getRemoteUser()).thenReturn(User.ANON_USER);
+    try {
+      servlet.doPost(request, response);
+      fail("Anonymous modifications should be rejected");
+    } catch (ServletException e) {
+      // expected
+    }
+    verify(request, never()).getResourceResolver();
+    verify(response, never()).getWriter();
+  }
+
 }
@@ -0,0 +1,214 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.cluster;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.osgi.service.component.ComponentContext;
+import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
+import org.sakaiproject.nakamura.api.memory.CacheMessage;
+import org.sakaiproject.nakamura.api.memory.CacheMessageListener;
+import org.sakaiproject.nakamura.api.memory.CacheTransport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.jms.BytesMessage;
+import javax.jms.Connection;
+import javax.jms.DeliveryMode;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.Topic;
+
+/**
+ * Carries cluster cache messages over a JMS topic. Messages are serialized here, so
+ * values in replicated caches must be serializable and their classes must be visible to
+ * this bundle, the memory bundle or the thread context classloader.
+ */
+@Component(immediate = true, label = "Cluster Cache Transport", description = "Sends cluster cache invalidations and replications over JMS")
+@Service(value = CacheTransport.class)
+public class JmsCacheTransport implements CacheTransport, MessageListener {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(JmsCacheTransport.class);
+
+  @Property(value = "org/sakaiproject/nakamura/memory/cache")
+  static final String CACHE_TOPIC = "cache.topic";
+
+  @Reference
+  protected ConnectionFactoryService connFactoryService;
+
+  private final List<CacheMessageListener> listeners = new CopyOnWriteArrayList<CacheMessageListener>();
+  private Connection connection;
+  private Session producerSession;
+  private MessageProducer producer;
+
+  protected void activate(ComponentContext componentContext) {
+    String topicName = String.valueOf(componentContext.getProperties().get(CACHE_TOPIC));
+    try {
+      connection = connFactoryService.getDefaultConnectionFactory().createConnection();
+      Session consumerSession = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+      Topic topic = consumerSession.createTopic(topicName);
+      MessageConsumer consumer = consumerSession.createConsumer(topic);
+      consumer.setMessageListener(this);
+      // sessions are not thread safe, so the producer has its own, guarded by send.
+      producerSession = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+      producer = producerSession.createProducer(producerSession.createTopic(topicName));
+      producer.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+      connection.start();
+    } catch (JMSException e) {
+      LOGGER.error(e.getMessage(), e);
+      deactivate(componentContext);
+    }
+  }
+
+  protected void deactivate(ComponentContext componentContext) {
+    if (connection != null) {
+      try {
+        connection.close();
+      } catch (JMSException e) {
+        LOGGER.debug(e.getMessage(), e);
+      }
+      connection = null;
+    }
+    producer = null;
+    producerSession = null;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.CacheTransport#send(org.sakaiproject.nakamura.api.memory.CacheMessage)
+   */
+  public synchronized void send(CacheMessage message) {
+    if (producer == null) {
+      return;
+    }
+    try {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      ObjectOutputStream out = new ObjectOutputStream(baos);
+      out.writeObject(message);
+      out.close();
+      BytesMessage msg = producerSession.createBytesMessage();
+      msg.writeBytes(baos.toByteArray());
+      producer.send(msg);
+    } catch (IOException e) {
+      LOGGER.warn("Unable to serialize cache message for {} {} ", message.getCacheName(),
+          e.getMessage());
+    } catch (JMSException e) {
+      LOGGER.warn("Unable to send cache message for {} {} ", message.getCacheName(),
+          e.getMessage());
+      LOGGER.debug(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see javax.jms.MessageListener#onMessage(javax.jms.Message)
+   */
+  public void onMessage(Message message) {
+    if (!(message instanceof BytesMessage)) {
+      return;
+    }
+    try {
+      BytesMessage bytesMessage = (BytesMessage) message;
+      byte[] body = new byte[(int) bytesMessage.getBodyLength()];
+      bytesMessage.readBytes(body);
+      ObjectInputStream in = new CacheMessageInputStream(new ByteArrayInputStream(body));
+      CacheMessage cacheMessage;
+      try {
+        cacheMessage = (CacheMessage) in.readObject();
+      } finally {
+        in.close();
+      }
+      for (CacheMessageListener listener : listeners) {
+        listener.onCacheMessage(cacheMessage);
+      }
+    } catch (JMSException e) {
+      LOGGER.warn(e.getMessage(), e);
+    } catch (IOException e) {
+      LOGGER.warn("Unable to read cache message {} ", e.getMessage());
+    } catch (ClassNotFoundException e) {
+      LOGGER.warn("Unable to read cache message, class not visible {} ", e.getMessage());
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.CacheTransport#addListener(org.sakaiproject.nakamura.api.memory.CacheMessageListener)
+   */
+  public void addListener(CacheMessageListener listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.CacheTransport#removeListener(org.sakaiproject.nakamura.api.memory.CacheMessageListener)
+   */
+  public void removeListener(CacheMessageListener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * Resolves classes through the thread context classloader, then the memory bundle,
+   * then this bundle.
+   */
+  private static class CacheMessageInputStream extends ObjectInputStream {
+
+    CacheMessageInputStream(InputStream in) throws IOException {
+      super(in);
+    }
+
+    @Override
+    protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException,
+        ClassNotFoundException {
+      String name = desc.getName();
+      ClassLoader[] loaders = new ClassLoader[] {
+          Thread.currentThread().getContextClassLoader(),
+          CacheMessage.class.getClassLoader(), JmsCacheTransport.class.getClassLoader() };
+      for (ClassLoader loader : loaders) {
+        if (loader != null) {
+          try {
+            return Class.forName(name, false, loader);
+          } catch (ClassNotFoundException e) {
+            // try the next one
+          }
+        }
+      }
+      return super.resolveClass(desc);
+    }
+  }
+
+}
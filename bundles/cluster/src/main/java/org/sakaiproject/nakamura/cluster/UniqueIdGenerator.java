@@ -4,48 +4,96 @@ import org.sakaiproject.nakamura.util.StringUtils;
 
 import java.math.BigInteger;
 import java.util.GregorianCalendar;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Generates ids unique in the cluster. The last issued tick (ms since the epoch * 1000 +
+ * a sequence within the ms) is held in a single atomic long and advanced with a compare
+ * and set, so concurrent callers never block each other and no objects are created for
+ * the numeric form.
+ */
 public class UniqueIdGenerator {
 
-  private Object lockObject = new Object();
-  private long next = 0;
+  private static final char[] ENCODING = StringUtils.URL_SAFE_ENCODING;
+  /**
+   * Each byte adds at most 2 characters, so this holds the encoding of any 9 byte number.
+   */
+  private static final ThreadLocal<char[]> ENCODE_BUFFER = new ThreadLocal<char[]>() {
+    @Override
+    protected char[] initialValue() {
+      return new char[32];
+    }
+  };
+  /**
+   * The largest tick that still gives an id that fits in a long, reached in 2039.
+   */
+  private static final long MAX_LONG_TICK = (Long.MAX_VALUE - 9999) / 10000;
+  private static final BigInteger TEN_THOUSAND = BigInteger.valueOf(10000);
+  private final AtomicLong lastTick = new AtomicLong();
+  private final AtomicInteger rollover = new AtomicInteger();
   private long epoch;
-  private long last = 0;
-  private long micro = 0;
   private int serverId;
-  private int rollover;
 
   public UniqueIdGenerator(int serverId) {
+    this(serverId, new GregorianCalendar(2010, 8, 6).getTimeInMillis());
+  }
+
+  UniqueIdGenerator(int serverId, long epoch) {
     this.serverId = serverId;
-    GregorianCalendar calendar = new GregorianCalendar(2010, 8, 6);
-    epoch = calendar.getTimeInMillis();
+    this.epoch = epoch;
   }
 
   public String nextId() {
-    return StringUtils.encode(nextIdNum().toByteArray(), StringUtils.URL_SAFE_ENCODING);
+    long tick = nextTick();
+    if (tick > MAX_LONG_TICK) {
+      return StringUtils.encode(toIdNum(tick).toByteArray(), ENCODING);
+    }
+    return encode(toId(tick));
   }
-  
+
   public BigInteger nextIdNum() {
+    long tick = nextTick();
+    if (tick > MAX_LONG_TICK) {
+      return toIdNum(tick);
+    }
+    return BigInteger.valueOf(toId(tick));
+  }
+
+  /**
+   * @return the next id as a primitive, the same value as {@link #nextIdNum()}.
+   * @throws IllegalStateException
+   *           from 2039, when the id no longer fits in a long. Use {@link #nextIdNum()}
+   *           or {@link #nextId()}, which carry on past that.
+   */
+  public long nextIdLong() {
+    long tick = nextTick();
+    if (tick > MAX_LONG_TICK) {
+      throw new IllegalStateException("Ids no longer fit in a long, use nextIdNum()");
+    }
+    return toId(tick);
+  }
+
+  private long nextTick() {
     // single threaded this benchmarks at 0.5 ns per invocation, so rollover is possible
-    synchronized (lockObject) {
-      next = System.currentTimeMillis() - epoch;
-      if (next == last) { // 2 in the same ms
-        micro++;
-      } else if (next < last) { // roll over happend in this ms
-        next = last;
-        micro++;
-      } else { // new ms
-        micro = 0;
-        last = next;
-      }
-      // catch any rollover in micro.
-      if (micro > 999) {
-        rollover++;
-        next++;
-        micro = 0;
-        last = next;
+    long tick;
+    while (true) {
+      long last = lastTick.get();
+      long now = (System.currentTimeMillis() - epoch) * 1000;
+      // a new ms starts the sequence at 0, 2 in the same ms or a clock that went back
+      // takes the next in the sequence, which runs into the next ms after 999.
+      tick = (now > last) ? now : last + 1;
+      if (lastTick.compareAndSet(last, tick)) {
+        if (tick > now && tick % 1000 == 0) {
+          rollover.incrementAndGet();
+        }
+        break;
       }
     }
+    return tick;
+  }
+
+  private long toId(long tick) {
     // Collision analysis
     // The server number is unique in the cluster so no 2 servers with the same number can
     // exist at the same time
@@ -55,14 +103,64 @@ public class UniqueIdGenerator {
     // the server part of the number is prefixed
     // by 1 as in 1SSSS therefore this ID can never collide in the cluster or by rollover
     // provided we have < 9001 servers in the cluster.
-    BigInteger idNum = BigInteger.valueOf(next*1000+micro);
-    idNum = idNum.multiply(BigInteger.valueOf(10000));
-    idNum = idNum.add(BigInteger.valueOf(serverId));
-    return idNum;
+    return tick * 10000 + serverId;
+  }
+
+  private BigInteger toIdNum(long tick) {
+    return BigInteger.valueOf(tick).multiply(TEN_THOUSAND).add(BigInteger.valueOf(serverId));
   }
-  
+
   public int getRollover() {
-    return rollover;
+    return rollover.get();
+  }
+
+  /**
+   * Encode a positive number exactly as
+   * StringUtils.encode(BigInteger.valueOf(n).toByteArray(), URL_SAFE_ENCODING) would,
+   * without creating the BigInteger, the byte array or a StringBuilder.
+   *
+   * @param n
+   * @return the encoded id.
+   * @throws IllegalArgumentException
+   *           if n is negative.
+   */
+  static String encode(long n) {
+    if (n < 0) {
+      throw new IllegalArgumentException("Can only encode a positive id, not " + n);
+    }
+    // toByteArray gives the minimal two's complement form, including a sign byte.
+    int nbytes = (64 - Long.numberOfLeadingZeros(n)) / 8 + 1;
+    char[] buffer = ENCODE_BUFFER.get();
+    int len = 0;
+    int shift = (nbytes - 1) * 8;
+    int x = byteAt(n, shift);
+    int i = 0;
+    while (i < nbytes) {
+      if (x < ENCODING.length) {
+        i++;
+        if (i < nbytes) {
+          shift -= 8;
+          if (x == 0) {
+            x = byteAt(n, shift);
+          } else {
+            x = (x + 1) * byteAt(n, shift);
+          }
+        } else {
+          buffer[len++] = ENCODING[x];
+          break;
+        }
+      }
+      buffer[len++] = ENCODING[x % ENCODING.length];
+      x = x / ENCODING.length;
+    }
+    return new String(buffer, 0, len);
+  }
+
+  /**
+   * @return the byte at the shift, as a signed byte + 128.
+   */
+  private static int byteAt(long n, int shift) {
+    return (int) (byte) (n >>> shift) + 128;
   }
 
 }
@@ -27,9 +27,11 @@ import org.slf4j.LoggerFactory;
 import java.math.BigInteger;
 import java.util.HashSet;
 import java.util.Map;
+import java.util.Random;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  *
@@ -125,4 +127,85 @@ public class IDTest {
         + uniqueIdGenerator.getRollover());
   }
 
+  @Test
+  public void testSharedGeneratorCollission() throws Exception {
+    final UniqueIdGenerator uniqueIdGenerator = new UniqueIdGenerator(1);
+    final Map<Long, Long> ids = new ConcurrentHashMap<Long, Long>();
+    final AtomicInteger collisions = new AtomicInteger();
+    Thread[] threads = new Thread[16];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          for (int j = 0; j < 10000; j++) {
+            Long id = uniqueIdGenerator.nextIdLong();
+            if (ids.put(id, id) != null) {
+              collisions.incrementAndGet();
+            }
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    Assert.assertEquals(0, collisions.get());
+    Assert.assertEquals(threads.length * 10000, ids.size());
+    for (Long id : ids.keySet()) {
+      Assert.assertEquals(1L, id % 10000);
+    }
+  }
+
+  @Test
+  public void testEncodingMatchesBigInteger() {
+    UniqueIdGenerator uniqueIdGenerator = new UniqueIdGenerator(1);
+    for (int i = 0; i < 1000; i++) {
+      long id = uniqueIdGenerator.nextIdLong();
+      checkEncoding(id);
+    }
+    Random random = new Random();
+    for (int i = 0; i < 100000; i++) {
+      checkEncoding(random.nextLong() & Long.MAX_VALUE);
+    }
+    for (int i = 0; i < 63; i++) {
+      checkEncoding(1L << i);
+      checkEncoding((1L << i) - 1);
+    }
+    checkEncoding(Long.MAX_VALUE);
+  }
+
+  @Test
+  public void testLongLimit() {
+    // ms since the epoch * 1000 * 10000 passes Long.MAX_VALUE after this many ms.
+    long limitMs = Long.MAX_VALUE / 10000 / 1000;
+    long now = System.currentTimeMillis();
+    UniqueIdGenerator before = new UniqueIdGenerator(1, now - limitMs + 60000);
+    long id = before.nextIdLong();
+    Assert.assertTrue(id > 0);
+    Assert.assertTrue(before.nextIdNum().compareTo(BigInteger.valueOf(id)) > 0);
+
+    UniqueIdGenerator after = new UniqueIdGenerator(1, now - limitMs - 60000);
+    try {
+      after.nextIdLong();
+      Assert.fail("Expected the id to no longer fit in a long");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    BigInteger idNum = after.nextIdNum();
+    Assert.assertTrue(idNum.compareTo(BigInteger.valueOf(Long.MAX_VALUE)) > 0);
+    Assert.assertEquals(1, idNum.mod(BigInteger.valueOf(10000)).intValue());
+    Assert.assertTrue(after.nextId().length() > 0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testEncodeNegative() {
+    UniqueIdGenerator.encode(-1L);
+  }
+
+  private void checkEncoding(long id) {
+    Assert.assertEquals(StringUtils.encode(BigInteger.valueOf(id).toByteArray(),
+        StringUtils.URL_SAFE_ENCODING), UniqueIdGenerator.encode(id));
+  }
+
 }
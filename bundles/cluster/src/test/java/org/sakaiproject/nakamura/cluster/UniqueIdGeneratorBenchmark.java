@@ -0,0 +1,109 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.cluster;
+
+import org.junit.Test;
+import org.sakaiproject.nakamura.testutils.benchmark.Benchmarks;
+import org.sakaiproject.nakamura.testutils.benchmark.Benchmarks.Operation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.math.BigInteger;
+import java.util.GregorianCalendar;
+
+/**
+ * Measures contended id throughput of the generator against the previous synchronized,
+ * BigInteger based implementation at 1 to 64 threads, all sharing one generator.
+ */
+public class UniqueIdGeneratorBenchmark {
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(UniqueIdGeneratorBenchmark.class);
+  private static final int[] THREADS = new int[] { 1, 2, 4, 8, 16, 32, 64 };
+  private static final long WARMUP = 500;
+  private static final long MEASURE = 1000;
+  private static final int BATCH = 1000;
+
+  @Test
+  public void benchmarkContendedThroughput() throws Exception {
+    for (int threads : THREADS) {
+      final SynchronizedIdGenerator previous = new SynchronizedIdGenerator(1);
+      final UniqueIdGenerator current = new UniqueIdGenerator(1);
+      double before = Benchmarks.callsPerMs(threads, WARMUP, MEASURE, BATCH, new Operation() {
+        public void run() {
+          previous.nextIdNum();
+        }
+      });
+      double numeric = Benchmarks.callsPerMs(threads, WARMUP, MEASURE, BATCH, new Operation() {
+        public void run() {
+          current.nextIdLong();
+        }
+      });
+      double encoded = Benchmarks.callsPerMs(threads, WARMUP, MEASURE, BATCH, new Operation() {
+        public void run() {
+          current.nextId();
+        }
+      });
+      LOGGER.info(
+          "{} threads: synchronized {} ids/ms, nextIdLong {} ids/ms, nextId {} ids/ms",
+          new Object[] { threads, (long) before, (long) numeric, (long) encoded });
+    }
+  }
+
+  /**
+   * The generator as it was before it went lock free, for comparison.
+   */
+  private static class SynchronizedIdGenerator {
+    private Object lockObject = new Object();
+    private long next = 0;
+    private long epoch;
+    private long last = 0;
+    private long micro = 0;
+    private int serverId;
+
+    SynchronizedIdGenerator(int serverId) {
+      this.serverId = serverId;
+      epoch = new GregorianCalendar(2010, 8, 6).getTimeInMillis();
+    }
+
+    BigInteger nextIdNum() {
+      synchronized (lockObject) {
+        next = System.currentTimeMillis() - epoch;
+        if (next == last) {
+          micro++;
+        } else if (next < last) {
+          next = last;
+          micro++;
+        } else {
+          micro = 0;
+          last = next;
+        }
+        if (micro > 999) {
+          next++;
+          micro = 0;
+          last = next;
+        }
+      }
+      BigInteger idNum = BigInteger.valueOf(next * 1000 + micro);
+      idNum = idNum.multiply(BigInteger.valueOf(10000));
+      idNum = idNum.add(BigInteger.valueOf(serverId));
+      return idNum;
+    }
+  }
+
+}
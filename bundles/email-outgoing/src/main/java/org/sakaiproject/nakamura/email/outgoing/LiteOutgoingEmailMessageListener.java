@@ -50,6 +50,7 @@ import java.util.Date;
 import java.util.Dictionary;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -80,9 +81,24 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
   private static final String MAX_RETRIES = "sakai.email.maxRetries";
   @Property(intValue = 30)
   private static final String RETRY_INTERVAL = "sakai.email.retryIntervalMinutes";
+  @Property(intValue = 4, label = "SMTP connections", description = "The most connections kept open to the SMTP server, and the number of queued messages sent at once.")
+  private static final String SMTP_CONNECTIONS = "sakai.smtp.connections";
+  @Property(intValue = 100, label = "Messages per SMTP connection", description = "The number of messages sent on an SMTP connection before it is closed and reopened.")
+  private static final String SMTP_MESSAGES_PER_CONNECTION = "sakai.smtp.messagesPerConnection";
+  @Property(intValue = 30, label = "SMTP connection idle seconds", description = "The seconds an SMTP connection is kept open without being used.")
+  private static final String SMTP_IDLE_SECONDS = "sakai.smtp.idleSeconds";
+  @Property(intValue = 2, label = "SMTP connections per domain", description = "The most messages to any one recipient domain sent at once.")
+  private static final String SMTP_CONNECTIONS_PER_DOMAIN = "sakai.smtp.connectionsPerDomain";
+  @Property(intValue = 1000, label = "Address cache size", description = "The number of user email addresses remembered.")
+  private static final String ADDRESS_CACHE_SIZE = "sakai.email.addressCacheSize";
+  @Property(intValue = 300, label = "Address cache seconds", description = "The seconds a user email address is remembered for.")
+  private static final String ADDRESS_CACHE_SECONDS = "sakai.email.addressCacheSeconds";
 
   protected static final String QUEUE_NAME = "org/sakaiproject/nakamura/message/email/outgoing";
 
+  private static final String IDLE_JOB_NAME = LiteOutgoingEmailMessageListener.class.getName()
+      + ".closeIdle";
+
   @Reference
   protected SlingRepository repository;
   @Reference
@@ -112,6 +128,10 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
 
   private Integer retryInterval;
 
+  private volatile SmtpTransportPool smtpPool;
+  private Map<String, CachedAddress> addressCache;
+  private long addressCacheTtl;
+
   public LiteOutgoingEmailMessageListener() {
   }
 
@@ -171,7 +191,15 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
                     email.setSmtpPort(smtpPort);
                     email.setHostName(smtpServer);
 
-                    email.send();
+                    // send on a pooled connection rather than opening one per message
+                    SmtpTransportPool pool = smtpPool;
+                    if (pool == null) {
+                      email.send();
+                    } else {
+                      email.setMailSession(pool.getSession());
+                      email.buildMimeMessage();
+                      pool.send(email.getMimeMessage());
+                    }
                   } catch (EmailException e) {
                     String exMessage = e.getMessage();
                     Throwable cause = e.getCause();
@@ -279,7 +307,7 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
     }
     for (String r : toRecipients) {
       try {
-        email.addTo(convertToEmail(r, sparseSession));
+        email.addTo(r);
       } catch (EmailException e) {
         throw new EmailDeliveryException("Invalid To Address [" + r
             + "], message is being dropped :" + e.getMessage(), e);
@@ -287,7 +315,7 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
     }
     for (String r : bccRecipients) {
       try {
-        email.addBcc(convertToEmail(r, sparseSession));
+        email.addBcc(r);
       } catch (EmailException e) {
         throw new EmailDeliveryException("Invalid Bcc Address [" + r
             + "], message is being dropped :" + e.getMessage(), e);
@@ -382,7 +410,11 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
       org.sakaiproject.nakamura.api.lite.Session session) throws StorageClientException,
       AccessDeniedException {
     if (address.indexOf('@') < 0) {
-      String emailAddress = null;
+      String emailAddress = getCachedAddress(address);
+      if (emailAddress != null) {
+        return emailAddress;
+      }
+      String userId = address;
 
       Authorizable user = session.getAuthorizableManager().findAuthorizable(address);
       if (user != null) {
@@ -395,10 +427,39 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
       } else {
         address = address + "@" + smtpServer;
       }
+      putCachedAddress(userId, address);
     }
     return address;
   }
 
+  private String getCachedAddress(String userId) {
+    Map<String, CachedAddress> cache = addressCache;
+    if (cache == null) {
+      return null;
+    }
+    synchronized (cache) {
+      CachedAddress cached = cache.get(userId);
+      if (cached == null) {
+        return null;
+      }
+      if (cached.expires < System.currentTimeMillis()) {
+        cache.remove(userId);
+        return null;
+      }
+      return cached.address;
+    }
+  }
+
+  private void putCachedAddress(String userId, String address) {
+    Map<String, CachedAddress> cache = addressCache;
+    if (cache != null) {
+      synchronized (cache) {
+        cache.put(userId, new CachedAddress(address, System.currentTimeMillis()
+            + addressCacheTtl));
+      }
+    }
+  }
+
   private void scheduleRetry(int errorCode, Content contentNode) {
     // All retry-able SMTP errors should have codes starting with 4
     if ((errorCode / 100) == 4) {
@@ -487,12 +548,53 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
       LOGGER.error("No SMTP server set");
     }
 
+    int connections = OsgiUtil.toInteger(props.get(SMTP_CONNECTIONS), 4);
+    int idleSeconds = Math.max(1, OsgiUtil.toInteger(props.get(SMTP_IDLE_SECONDS), 30));
+    scheduler.removeJob(IDLE_JOB_NAME);
+    if (smtpPool != null) {
+      smtpPool.close();
+      smtpPool = null;
+    }
+    if (smtpServer != null && smtpPort != null) {
+      smtpPool = new SmtpTransportPool(smtpServer, smtpPort, connections,
+          OsgiUtil.toInteger(props.get(SMTP_MESSAGES_PER_CONNECTION), 100),
+          idleSeconds * 1000L,
+          OsgiUtil.toInteger(props.get(SMTP_CONNECTIONS_PER_DOMAIN), 2));
+      try {
+        // an idle connection is closed at most one idle period late.
+        scheduler.addPeriodicJob(IDLE_JOB_NAME, new Runnable() {
+          public void run() {
+            SmtpTransportPool pool = smtpPool;
+            if (pool != null) {
+              pool.closeIdle();
+            }
+          }
+        }, null, idleSeconds, false);
+      } catch (Exception e) {
+        LOGGER.error("Failed to add periodic job to close idle SMTP connections", e);
+      }
+    }
+
+    final int addressCacheSize = OsgiUtil.toInteger(props.get(ADDRESS_CACHE_SIZE), 1000);
+    addressCacheTtl = OsgiUtil.toInteger(props.get(ADDRESS_CACHE_SECONDS), 300) * 1000L;
+    addressCache = new LinkedHashMap<String, CachedAddress>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CachedAddress> eldest) {
+        return size() > addressCacheSize;
+      }
+    };
+
     try {
       connection = connFactoryService.getDefaultConnectionFactory().createConnection();
-      Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
-      Queue dest = session.createQueue(QUEUE_NAME);
-      MessageConsumer consumer = session.createConsumer(dest);
-      consumer.setMessageListener(this);
+      // one consumer per pooled connection, so that many queued messages are sent at once.
+      for (int i = 0; i < Math.max(1, connections); i++) {
+        Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        Queue dest = session.createQueue(QUEUE_NAME);
+        MessageConsumer consumer = session.createConsumer(dest);
+        consumer.setMessageListener(this);
+      }
       connection.start();
     } catch (JMSException e) {
       LOGGER.error(e.getMessage(), e);
@@ -506,12 +608,17 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
   }
 
   protected void deactivate(ComponentContext ctx) {
+    scheduler.removeJob(IDLE_JOB_NAME);
     if (connection != null) {
       try {
         connection.close();
       } catch (JMSException e) {
       }
     }
+    if (smtpPool != null) {
+      smtpPool.close();
+      smtpPool = null;
+    }
   }
 
   private void setError(Content node, String error) {
@@ -538,4 +645,13 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
     return diff;
   }
 
+  private static class CachedAddress {
+    private final String address;
+    private final long expires;
+
+    private CachedAddress(String address, long expires) {
+      this.address = address;
+      this.expires = expires;
+    }
+  }
 }
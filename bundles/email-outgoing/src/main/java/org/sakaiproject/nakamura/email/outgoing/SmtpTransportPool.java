@@ -0,0 +1,349 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.email.outgoing;
+
+import org.apache.commons.mail.EmailException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * A pool of open SMTP connections to one server. Connections are kept open between
+ * messages and reused until they have sent a number of messages or been idle too long,
+ * so sending a queue of messages does not pay for a connection and handshake per message.
+ * Idle connections are closed when {@link #closeIdle()} is called, which the owner of the
+ * pool should do periodically, and any found expired when they are next borrowed.
+ * The number of messages being sent to any one recipient domain at a time is limited, so
+ * a large mailing to one domain cannot take all the connections.
+ */
+public class SmtpTransportPool {
+  private static final Logger LOGGER = LoggerFactory.getLogger(SmtpTransportPool.class);
+
+  /**
+   * Connections idle for longer than this are checked before they are reused.
+   */
+  private static final long VALIDATE_AFTER = 5000L;
+
+  private final Session session;
+  private final String server;
+  private final int maxMessagesPerConnection;
+  private final long maxIdle;
+  private final int maxPerDomain;
+
+  private final Semaphore connections;
+  private final LinkedList<PooledTransport> idle = new LinkedList<PooledTransport>();
+  /**
+   * The permits for each recipient domain being sent to, removed when no message is using
+   * them so the map does not grow with every domain ever mailed.
+   */
+  private final Map<String, DomainPermits> domains = new HashMap<String, DomainPermits>();
+  private final AtomicInteger opened = new AtomicInteger();
+  private volatile boolean closed;
+
+  /**
+   * @param host
+   *          the SMTP server.
+   * @param port
+   *          the SMTP port.
+   * @param maxConnections
+   *          the most connections open at once.
+   * @param maxMessagesPerConnection
+   *          the number of messages sent on a connection before it is closed.
+   * @param maxIdle
+   *          the ms a connection may be idle before it is closed by {@link #closeIdle()}
+   *          or on its next use.
+   * @param maxPerDomain
+   *          the most messages to one recipient domain sent at once.
+   */
+  public SmtpTransportPool(String host, int port, int maxConnections,
+      int maxMessagesPerConnection, long maxIdle, int maxPerDomain) {
+    Properties properties = new Properties();
+    properties.put("mail.transport.protocol", "smtp");
+    properties.put("mail.smtp.host", host);
+    properties.put("mail.smtp.port", String.valueOf(port));
+    this.session = Session.getInstance(properties);
+    this.server = host + ":" + port;
+    this.connections = new Semaphore(Math.max(1, maxConnections), true);
+    this.maxMessagesPerConnection = Math.max(1, maxMessagesPerConnection);
+    this.maxIdle = maxIdle;
+    this.maxPerDomain = Math.max(1, maxPerDomain);
+  }
+
+  /**
+   * @return the mail session messages sent through this pool should be built with.
+   */
+  public Session getSession() {
+    return session;
+  }
+
+  /**
+   * Send a message on a pooled connection, waiting for a connection and for the recipient
+   * domains to be free.
+   *
+   * @param message
+   * @throws EmailException
+   *           if the message could not be sent, with the cause from the server.
+   */
+  public void send(MimeMessage message) throws EmailException {
+    if (closed) {
+      throw new EmailException("The SMTP connection pool to " + server + " is closed");
+    }
+    Address[] recipients;
+    try {
+      recipients = message.getAllRecipients();
+    } catch (MessagingException e) {
+      throw new EmailException("Unable to read the recipients of the message", e);
+    }
+    if (recipients == null || recipients.length == 0) {
+      throw new EmailException("The message has no recipients");
+    }
+    // take the domain permits in a fixed order so two messages can't deadlock.
+    Set<String> messageDomains = new TreeSet<String>();
+    for (Address address : recipients) {
+      messageDomains.add(getDomain(address));
+    }
+    LinkedList<String> reserved = new LinkedList<String>();
+    LinkedList<Semaphore> held = new LinkedList<Semaphore>();
+    boolean haveConnection = false;
+    try {
+      for (String domain : messageDomains) {
+        Semaphore permits = reserveDomain(domain);
+        reserved.addFirst(domain);
+        permits.acquire();
+        held.addFirst(permits);
+      }
+      connections.acquire();
+      haveConnection = true;
+      sendOnPooledTransport(message, recipients);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new EmailException("Interrupted waiting to send to " + server, e);
+    } finally {
+      if (haveConnection) {
+        connections.release();
+      }
+      for (Semaphore permits : held) {
+        permits.release();
+      }
+      for (String domain : reserved) {
+        unreserveDomain(domain);
+      }
+    }
+  }
+
+  /**
+   * Close the connections that have been idle for longer than the maximum idle time.
+   */
+  public void closeIdle() {
+    long now = System.currentTimeMillis();
+    LinkedList<PooledTransport> expired = new LinkedList<PooledTransport>();
+    synchronized (idle) {
+      // least recently used are at the end.
+      Iterator<PooledTransport> i = idle.descendingIterator();
+      while (i.hasNext()) {
+        PooledTransport transport = i.next();
+        if (now - transport.lastUsed <= maxIdle) {
+          break;
+        }
+        i.remove();
+        expired.add(transport);
+      }
+    }
+    for (PooledTransport transport : expired) {
+      transport.close();
+    }
+    if (expired.size() > 0) {
+      LOGGER.debug("Closed {} idle SMTP connections to {} ", expired.size(), server);
+    }
+  }
+
+  /**
+   * Close all the idle connections, connections in use are closed when they are returned.
+   */
+  public void close() {
+    closed = true;
+    synchronized (idle) {
+      for (PooledTransport transport : idle) {
+        transport.close();
+      }
+      idle.clear();
+    }
+  }
+
+  /**
+   * @return the number of connections opened by this pool.
+   */
+  public int getConnectionsOpened() {
+    return opened.get();
+  }
+
+  /**
+   * @return the number of idle connections held open by this pool.
+   */
+  public int getConnectionsIdle() {
+    synchronized (idle) {
+      return idle.size();
+    }
+  }
+
+  /**
+   * @return the number of recipient domains with messages being sent to them.
+   */
+  int getDomainsTracked() {
+    synchronized (domains) {
+      return domains.size();
+    }
+  }
+
+  private void sendOnPooledTransport(MimeMessage message, Address[] recipients)
+      throws EmailException {
+    PooledTransport transport = null;
+    try {
+      transport = borrow();
+      if (message.getSentDate() == null) {
+        message.setSentDate(new Date());
+      }
+      message.saveChanges();
+      transport.transport.sendMessage(message, recipients);
+      transport.sent++;
+    } catch (MessagingException e) {
+      // the state of the connection is unknown, don't reuse it.
+      if (transport != null) {
+        transport.close();
+        transport = null;
+      }
+      throw new EmailException("Sending the email to the following server failed : "
+          + server, e);
+    } finally {
+      if (transport != null) {
+        giveBack(transport);
+      }
+    }
+  }
+
+  private PooledTransport borrow() throws MessagingException {
+    long now = System.currentTimeMillis();
+    while (true) {
+      PooledTransport transport;
+      synchronized (idle) {
+        transport = idle.poll();
+      }
+      if (transport == null) {
+        break;
+      }
+      long idleFor = now - transport.lastUsed;
+      if (idleFor > maxIdle
+          || (idleFor > VALIDATE_AFTER && !transport.transport.isConnected())) {
+        transport.close();
+      } else {
+        return transport;
+      }
+    }
+    Transport transport = session.getTransport("smtp");
+    transport.connect();
+    opened.incrementAndGet();
+    LOGGER.debug("Opened SMTP connection to {} ", server);
+    return new PooledTransport(transport);
+  }
+
+  private void giveBack(PooledTransport transport) {
+    if (closed || transport.sent >= maxMessagesPerConnection) {
+      transport.close();
+      return;
+    }
+    transport.lastUsed = System.currentTimeMillis();
+    synchronized (idle) {
+      // most recently used first, so the least used connections go idle and expire.
+      idle.addFirst(transport);
+    }
+  }
+
+  private Semaphore reserveDomain(String domain) {
+    synchronized (domains) {
+      DomainPermits permits = domains.get(domain);
+      if (permits == null) {
+        permits = new DomainPermits(maxPerDomain);
+        domains.put(domain, permits);
+      }
+      permits.users++;
+      return permits.semaphore;
+    }
+  }
+
+  private void unreserveDomain(String domain) {
+    synchronized (domains) {
+      DomainPermits permits = domains.get(domain);
+      if (permits != null && --permits.users <= 0) {
+        // nobody holds or waits on the permits, so they are all free.
+        domains.remove(domain);
+      }
+    }
+  }
+
+  private static String getDomain(Address address) {
+    String value = (address instanceof InternetAddress) ? ((InternetAddress) address)
+        .getAddress() : address.toString();
+    int at = (value == null) ? -1 : value.lastIndexOf('@');
+    return (at < 0) ? "" : value.substring(at + 1).toLowerCase();
+  }
+
+  private static class DomainPermits {
+    private final Semaphore semaphore;
+    private int users;
+
+    private DomainPermits(int permits) {
+      this.semaphore = new Semaphore(permits, true);
+    }
+  }
+
+  private static class PooledTransport {
+    private final Transport transport;
+    private int sent;
+    private long lastUsed;
+
+    private PooledTransport(Transport transport) {
+      this.transport = transport;
+      this.lastUsed = System.currentTimeMillis();
+    }
+
+    private void close() {
+      try {
+        transport.close();
+      } catch (MessagingException e) {
+        LOGGER.debug("Failed to close SMTP connection {} ", e.getMessage());
+      }
+    }
+  }
+}
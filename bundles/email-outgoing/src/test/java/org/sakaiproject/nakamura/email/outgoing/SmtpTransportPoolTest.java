@@ -0,0 +1,162 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.email.outgoing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.subethamail.wiser.Wiser;
+
+import java.net.BindException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.mail.Message.RecipientType;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+public class SmtpTransportPoolTest {
+  private static final Logger LOGGER = LoggerFactory.getLogger(SmtpTransportPoolTest.class);
+
+  private static Wiser wiser;
+  private static int smtpPort;
+
+  private SmtpTransportPool pool;
+
+  @BeforeClass
+  public static void startWiser() {
+    wiser = new Wiser();
+    smtpPort = 8125;
+    boolean started = false;
+    while (!started) {
+      wiser.setPort(smtpPort);
+      try {
+        wiser.start();
+        started = true;
+      } catch (RuntimeException re) {
+        if (re.getCause() instanceof BindException) {
+          smtpPort++;
+        }
+      }
+    }
+  }
+
+  @AfterClass
+  public static void stopWiser() {
+    wiser.stop();
+  }
+
+  @Before
+  public void setUp() {
+    wiser.getMessages().clear();
+  }
+
+  @After
+  public void tearDown() {
+    if (pool != null) {
+      pool.close();
+    }
+  }
+
+  @Test
+  public void testReusesConnections() throws Exception {
+    pool = new SmtpTransportPool("localhost", smtpPort, 1, 10, 30000, 1);
+    for (int i = 0; i < 25; i++) {
+      pool.send(createMessage(i, "user" + i + "@example.com"));
+    }
+    assertEquals(25, wiser.getMessages().size());
+    // 10 messages a connection
+    assertEquals(3, pool.getConnectionsOpened());
+  }
+
+  @Test
+  public void testSendConcurrently() throws Exception {
+    final int threads = 4;
+    final int messages = 200;
+    pool = new SmtpTransportPool("localhost", smtpPort, threads, 50, 30000, 2);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      long start = System.currentTimeMillis();
+      List<Future<Void>> sent = new ArrayList<Future<Void>>();
+      for (int i = 0; i < messages; i++) {
+        final int n = i;
+        sent.add(executor.submit(new Callable<Void>() {
+          public Void call() throws Exception {
+            pool.send(createMessage(n, "user" + n + "@domain" + (n % 3) + ".example.com"));
+            return null;
+          }
+        }));
+      }
+      for (Future<Void> f : sent) {
+        f.get();
+      }
+      long elapsed = Math.max(1, System.currentTimeMillis() - start);
+      LOGGER.info("Sent {} messages on {} connections at {} messages/s ", new Object[] {
+          messages, pool.getConnectionsOpened(), (messages * 1000L) / elapsed });
+    } finally {
+      executor.shutdown();
+    }
+    assertEquals(messages, wiser.getMessages().size());
+    // at most one partly used connection per thread beyond the full ones
+    assertTrue(pool.getConnectionsOpened() <= messages / 50 + threads);
+  }
+
+  @Test
+  public void testCloseIdle() throws Exception {
+    pool = new SmtpTransportPool("localhost", smtpPort, 1, 10, 50, 1);
+    pool.send(createMessage(0, "user@example.com"));
+    assertEquals(1, pool.getConnectionsIdle());
+    pool.closeIdle();
+    assertEquals(1, pool.getConnectionsIdle());
+    Thread.sleep(100);
+    pool.closeIdle();
+    assertEquals(0, pool.getConnectionsIdle());
+    pool.send(createMessage(1, "user@example.com"));
+    assertEquals(2, pool.getConnectionsOpened());
+  }
+
+  @Test
+  public void testDomainPermitsRemovedWhenFree() throws Exception {
+    pool = new SmtpTransportPool("localhost", smtpPort, 1, 10, 30000, 1);
+    for (int i = 0; i < 5; i++) {
+      pool.send(createMessage(i, "user" + i + "@domain" + i + ".example.com"));
+    }
+    assertEquals(5, wiser.getMessages().size());
+    assertEquals(0, pool.getDomainsTracked());
+  }
+
+  private MimeMessage createMessage(int n, String to) throws Exception {
+    MimeMessage message = new MimeMessage(pool.getSession());
+    message.setFrom(new InternetAddress("sender@example.com"));
+    message.addRecipient(RecipientType.TO, new InternetAddress(to));
+    message.setSubject("Message " + n);
+    message.setText("Body of message " + n);
+    return message;
+  }
+}
@@ -88,6 +88,8 @@ public interface EventDeliveryConstants {
   /**
    * The name ofthe property for specifying the acknowledgement from the message fabric.
    * The object value of this property must be a {@link EventAcknowledgeMode} enum value.
+   * Acknowledgement only applies to consuming messages, the OSGi to JMS bridge sends
+   * events in batches on a shared session and ignores this property.
    */
   public static final String ACKNOWLEDGE_MODE = "sakai:event-acknowledgemode";
 
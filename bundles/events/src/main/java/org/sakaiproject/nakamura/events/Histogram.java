@@ -0,0 +1,100 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.events;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram with power of two buckets. The first bucket counts values up to 1, the next
+ * values up to 2, then up to 4 and so on, and the last bucket counts everything larger.
+ * Recording is lock free.
+ */
+public class Histogram {
+
+  private final AtomicLongArray counts;
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong total = new AtomicLong();
+
+  /**
+   * @param buckets
+   *          the number of buckets, the last one holds values above 2^(buckets - 2).
+   */
+  public Histogram(int buckets) {
+    counts = new AtomicLongArray(buckets);
+  }
+
+  /**
+   * @param value
+   *          the value to count.
+   */
+  public void record(long value) {
+    int bucket = 0;
+    long bound = 1;
+    int last = counts.length() - 1;
+    while (bucket < last && value > bound) {
+      bucket++;
+      bound <<= 1;
+    }
+    counts.incrementAndGet(bucket);
+    count.incrementAndGet();
+    total.addAndGet(value);
+  }
+
+  /**
+   * @return the number of values recorded.
+   */
+  public long getCount() {
+    return count.get();
+  }
+
+  /**
+   * @return the mean of the values recorded, 0 if there are none.
+   */
+  public double getMean() {
+    long n = count.get();
+    return n == 0 ? 0 : (double) total.get() / n;
+  }
+
+  /**
+   * @return a line per bucket of the form "&lt;= bound: count", the last being "&gt; bound:
+   *         count".
+   */
+  public String[] getBuckets() {
+    int n = counts.length();
+    String[] buckets = new String[n];
+    long bound = 1;
+    for (int i = 0; i < n - 1; i++) {
+      buckets[i] = "<= " + bound + ": " + counts.get(i);
+      bound <<= 1;
+    }
+    buckets[n - 1] = "> " + (bound >> 1) + ": " + counts.get(n - 1);
+    return buckets;
+  }
+
+  /**
+   * Reset all the counts.
+   */
+  public void clear() {
+    for (int i = 0; i < counts.length(); i++) {
+      counts.set(i, 0);
+    }
+    count.set(0);
+    total.set(0);
+  }
+}
@@ -17,11 +17,16 @@
  */
 package org.sakaiproject.nakamura.events;
 
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.Dictionary;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import javax.jms.Connection;
 import javax.jms.DeliveryMode;
@@ -30,6 +35,8 @@ import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.MessageProducer;
 import javax.jms.Session;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
@@ -43,7 +50,6 @@ import org.osgi.service.event.EventHandler;
 import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
 import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
 import org.sakaiproject.nakamura.api.events.EventDeliveryConstants;
-import org.sakaiproject.nakamura.api.events.EventDeliveryConstants.EventAcknowledgeMode;
 import org.sakaiproject.nakamura.api.events.EventDeliveryConstants.EventDeliveryMode;
 import org.sakaiproject.nakamura.api.events.EventDeliveryConstants.EventMessageMode;
 import org.sakaiproject.nakamura.util.osgi.EventUtils;
@@ -52,9 +58,16 @@ import org.slf4j.LoggerFactory;
 
 /**
  * Bridge to send OSGi events onto a JMS topic.
+ * <p>
+ * Events are queued and sent by a single sender thread. That thread keeps one connection,
+ * session and producer open and sends the events in batches, committing once per batch
+ * when the session is transacted. A batch is whatever is queued, up to the maximum batch
+ * size, after waiting up to the linger time for more events to arrive. When the queue is
+ * full the threads posting events wait for it to drain. If a batch can't be sent its
+ * events are retried one at a time, so only the events that fail on their own are lost.
  */
 @Component(label = "%bridge.name", description = "%bridge.description", metatype = true, immediate = true)
-@Service
+@Service(value = EventHandler.class)
 public class OsgiJmsBridge implements EventHandler {
   private static final Logger LOGGER = LoggerFactory.getLogger(OsgiJmsBridge.class);
 
@@ -64,7 +77,7 @@ public class OsgiJmsBridge implements EventHandler {
   @Property(value = "sakai.event.bridge")
   static final String CONNECTION_CLIENT_ID = "bridge.connectionClientId";
 
-  @Property(boolValue = false, propertyPrivate = true)
+  @Property(boolValue = true, propertyPrivate = true)
   static final String SESSION_TRANSACTED = "bridge.sessionTransacted";
 
   @Property(intValue = Session.AUTO_ACKNOWLEDGE, propertyPrivate = true)
@@ -73,6 +86,28 @@ public class OsgiJmsBridge implements EventHandler {
   @Property(value = {"org/osgi/service/log/LogEntry/LOG_DEBUG", "org/osgi/service/log/LogEntry/LOG_INFO", "org/osgi/service/log/LogEntry/LOG_TRACE"})
   private static final String IGNORE_EVENT_TOPICS = "bridge.ignore.event.topics";
 
+  private static final int DEFAULT_MAX_BATCH_SIZE = 100;
+  @Property(intValue = DEFAULT_MAX_BATCH_SIZE)
+  static final String MAX_BATCH_SIZE = "bridge.batch.max";
+
+  private static final long DEFAULT_LINGER = 5;
+  @Property(longValue = DEFAULT_LINGER)
+  static final String LINGER = "bridge.batch.linger";
+
+  private static final int DEFAULT_QUEUE_SIZE = 10000;
+  @Property(intValue = DEFAULT_QUEUE_SIZE)
+  static final String QUEUE_SIZE = "bridge.queue.size";
+
+  /**
+   * How long the sender waits for an event before checking whether it has been stopped.
+   */
+  private static final long POLL_INTERVAL = 1000;
+
+  /**
+   * How long deactivation waits for the queued events to be sent.
+   */
+  private static final long SHUTDOWN_TIMEOUT = 10000;
+
   private Set<String> ignoreEventTopics = new HashSet<String>();
 
 
@@ -86,11 +121,24 @@ public class OsgiJmsBridge implements EventHandler {
   private boolean transacted;
   private String connectionClientId;
   private int acknowledgeMode;
+  private int maxBatchSize;
+  private long linger;
 
   private long lastMessage = System.currentTimeMillis();
 
   private String serverId;
 
+  private BlockingQueue<Event> queue;
+  private volatile boolean running;
+  private Thread senderThread;
+  private OsgiJmsBridgeStatistics statistics;
+  private ObjectName statisticsName;
+
+  // only used by the sender thread
+  private Connection conn;
+  private Session clientSession;
+  private MessageProducer producer;
+
   /**
    * Default constructor.
    */
@@ -120,9 +168,12 @@ public class OsgiJmsBridge implements EventHandler {
   protected void activate(ComponentContext ctx) {
     Dictionary props = ctx.getProperties();
 
-    transacted = OsgiUtil.toBoolean(props.get(SESSION_TRANSACTED), false);
-    acknowledgeMode = OsgiUtil.toInteger(props.get(ACKNOWLEDGE_MODE), 0);
+    transacted = OsgiUtil.toBoolean(props.get(SESSION_TRANSACTED), true);
+    acknowledgeMode = OsgiUtil.toInteger(props.get(ACKNOWLEDGE_MODE), Session.AUTO_ACKNOWLEDGE);
     connectionClientId = OsgiUtil.toString(props.get(CONNECTION_CLIENT_ID), "sakai.event.bridge");
+    maxBatchSize = Math.max(1, OsgiUtil.toInteger(props.get(MAX_BATCH_SIZE), DEFAULT_MAX_BATCH_SIZE));
+    linger = OsgiUtil.toLong(props.get(LINGER), DEFAULT_LINGER);
+    int queueSize = OsgiUtil.toInteger(props.get(QUEUE_SIZE), DEFAULT_QUEUE_SIZE);
     serverId = clusterTrackingService.getCurrentServerId();
 
     String[] ignoreEventTopicsValues = OsgiUtil.toStringArray(props.get(IGNORE_EVENT_TOPICS));
@@ -134,16 +185,58 @@ public class OsgiJmsBridge implements EventHandler {
       }
     }
 
-    LOGGER.info("Session Transacted: {}, Acknowledge Mode: {}, " + "Client ID: {}",
-        new Object[] { transacted, acknowledgeMode, connectionClientId });
+    queue = new LinkedBlockingQueue<Event>(queueSize);
+    statistics = new OsgiJmsBridgeStatistics(queue);
+    try {
+      statisticsName = new ObjectName("org.sakaiproject.nakamura:type=OsgiJmsBridge");
+      ManagementFactory.getPlatformMBeanServer().registerMBean(statistics, statisticsName);
+    } catch (JMException e) {
+      LOGGER.warn("Unable to register OSGi JMS bridge statistics {} ", e.getMessage());
+      statisticsName = null;
+    }
+
+    running = true;
+    senderThread = new Thread(new Runnable() {
+      public void run() {
+        sendQueuedEvents();
+      }
+    }, "OSGi JMS Bridge Sender");
+    senderThread.setDaemon(true);
+    senderThread.start();
+
+    LOGGER.info("Session Transacted: {}, Acknowledge Mode: {}, " + "Client ID: {}, "
+        + "Max Batch Size: {}, Linger: {}ms, Queue Size: {}", new Object[] { transacted,
+        acknowledgeMode, connectionClientId, maxBatchSize, linger, queueSize });
   }
 
   /**
-   * Called by the OSGi container to deactivate this component.
+   * Called by the OSGi container to deactivate this component. Events already queued are
+   * sent before this returns.
    *
    * @param ctx
    */
   protected void deactivate(ComponentContext ctx) {
+    running = false;
+    if (senderThread != null) {
+      try {
+        senderThread.join(SHUTDOWN_TIMEOUT);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      if (senderThread.isAlive()) {
+        LOGGER.warn("Gave up waiting for {} queued events to be sent to JMS", queue.size());
+        senderThread.interrupt();
+      }
+      senderThread = null;
+    }
+    if (statisticsName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(statisticsName);
+      } catch (JMException e) {
+        LOGGER.debug(e.getMessage(), e);
+      }
+      statisticsName = null;
+    }
   }
 
   /**
@@ -157,121 +250,239 @@ public class OsgiJmsBridge implements EventHandler {
       // Ignore Log messages in jms.
       return;
     }
-    Connection conn = null;
-
-    LOGGER.debug("Processing event {}", event);
-    Session clientSession = null;
+    if (!running) {
+      LOGGER.debug("Bridge is not running, dropping event {}", event);
+      return;
+    }
+    LOGGER.debug("Queueing event {}", event);
     try {
+      queue.put(event);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      LOGGER.warn("Interrupted while queueing event {}", event);
+    }
+  }
 
-      conn = connFactoryService.getDefaultPooledConnectionFactory().createConnection();
-      // conn.setClientID(connectionClientId);
-      // post to JMS
-      // Sessions are not thread safe, so we need to create and destroy a session, for
-      // sending.
-      EventDeliveryMode deliveryMode = (EventDeliveryMode) event
-          .getProperty(EventDeliveryConstants.DELIVERY_MODE);
-      EventMessageMode messageMode = (EventMessageMode) event
-          .getProperty(EventDeliveryConstants.MESSAGE_MODE);
-
-      EventAcknowledgeMode acknowledgeModeForEvent = (EventAcknowledgeMode) event
-          .getProperty(EventDeliveryConstants.ACKNOWLEDGE_MODE);
-
-      int clientAcknowledgeMode = acknowledgeMode;
-      if (acknowledgeModeForEvent != null) {
-        switch (acknowledgeModeForEvent) {
-        case AUTO_ACKNOWLEDGE:
-          clientAcknowledgeMode = Session.AUTO_ACKNOWLEDGE;
-          break;
-        case CLIENT_ACKNOWLEDGE:
-          clientAcknowledgeMode = Session.CLIENT_ACKNOWLEDGE;
-          break;
-        case DUPS_OK_ACKNOWLEDGE:
-          clientAcknowledgeMode = Session.DUPS_OK_ACKNOWLEDGE;
-          break;
-        }
-      }
+  /**
+   * @return the statistics for the bridge.
+   */
+  protected OsgiJmsBridgeStatisticsMBean getStatistics() {
+    return statistics;
+  }
 
-      clientSession = conn.createSession(transacted, clientAcknowledgeMode);
-
-      Message msg = clientSession.createMessage();
-
-      // may need to set a delivery mode eg persistent for certain types of messages.
-      // this should be specified in the OSGi event.
-      if (messageMode != null) {
-        switch (messageMode) {
-        case PERSISTENT:
-          msg.setJMSDeliveryMode(DeliveryMode.PERSISTENT);
-          break;
-        case NON_PERSISTENT:
-        default:
-          msg.setJMSDeliveryMode(DeliveryMode.NON_PERSISTENT);
-          break;
+  /**
+   * The sender thread: take batches off the queue and send them until stopped and the
+   * queue is empty.
+   */
+  private void sendQueuedEvents() {
+    List<Event> batch = new ArrayList<Event>(maxBatchSize);
+    try {
+      while (running || !queue.isEmpty()) {
+        Event first = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+        batch.add(first);
+        queue.drainTo(batch, maxBatchSize - 1);
+        if (running && linger > 0) {
+          long end = System.currentTimeMillis() + linger;
+          while (batch.size() < maxBatchSize) {
+            long wait = end - System.currentTimeMillis();
+            Event next = (wait > 0) ? queue.poll(wait, TimeUnit.MILLISECONDS) : null;
+            if (next == null) {
+              break;
+            }
+            batch.add(next);
+            queue.drainTo(batch, maxBatchSize - batch.size());
+          }
         }
-      } else {
-        msg.setJMSDeliveryMode(DeliveryMode.NON_PERSISTENT);
+        try {
+          sendBatch(batch);
+        } catch (RuntimeException e) {
+          // keep the sender alive, otherwise everything posting events will block
+          statistics.failed(batch.size());
+          LOGGER.error(e.getMessage(), e);
+          closeSession();
+        }
+        batch.clear();
       }
+    } catch (InterruptedException e) {
+      LOGGER.warn("Interrupted, {} events were not sent to JMS", batch.size() + queue.size());
+    } finally {
+      closeSession();
+    }
+  }
 
-      Destination destination = null;
-      if (deliveryMode != null) {
-        switch (deliveryMode) {
-        case P2P:
-          destination = clientSession.createQueue(event.getTopic());
-          break;
-        case BROADCAST:
-        default:
-          destination = clientSession.createTopic(event.getTopic());
-          break;
-        }
-      } else {
-        destination = clientSession.createTopic(event.getTopic());
+  /**
+   * Send a batch of events in one transaction. If the batch fails it is rolled back, the
+   * session is closed and the events that may not have been delivered are sent again one
+   * at a time, each on a fresh session if the one before it failed, so one bad event
+   * doesn't lose the rest of its batch.
+   *
+   * @param batch
+   */
+  private void sendBatch(List<Event> batch) {
+    long start = System.nanoTime();
+    int delivered = 0;
+    try {
+      Session session = getSession();
+      for (Event event : batch) {
+        send(session, event);
+        delivered++;
       }
-      MessageProducer producer = clientSession.createProducer(destination);
-      msg.setJMSType(event.getTopic());
-
-      for (String name : event.getPropertyNames()) {
-        Object obj = event.getProperty(name);
-        // "Only objectified primitive objects, String, Map and List types are
-        // allowed" as stated by an exception when putting something into the
-        // message that was not of one of these types.
-        if (obj instanceof Byte || obj instanceof Boolean || obj instanceof Character
-            || obj instanceof Number || obj instanceof Map || obj instanceof String
-            || obj instanceof List || obj instanceof Object[]) {
-          msg.setObjectProperty(name, EventUtils.cleanProperty(obj));
+      if (transacted) {
+        session.commit();
+      }
+      statistics.sent(batch.size(), System.nanoTime() - start);
+      return;
+    } catch (JMSException e) {
+      rollbackSession();
+      if (batch.size() == 1) {
+        statistics.failed(1);
+        logFailure(e);
+        return;
+      }
+      LOGGER.debug("Batch of {} events failed, sending them one at a time: {}",
+          batch.size(), e.getMessage());
+    }
+    // without a transaction the events before the failure have already gone.
+    int from = transacted ? 0 : delivered;
+    if (from > 0) {
+      statistics.sent(from, System.nanoTime() - start);
+    }
+    for (Event event : batch.subList(from, batch.size())) {
+      long eventStart = System.nanoTime();
+      try {
+        Session session = getSession();
+        send(session, event);
+        if (transacted) {
+          session.commit();
         }
+        statistics.sent(1, System.nanoTime() - eventStart);
+      } catch (JMSException e) {
+        statistics.failed(1);
+        LOGGER.warn("Failed to send event {}", event);
+        logFailure(e);
+        rollbackSession();
       }
+    }
+  }
 
-      msg.setStringProperty("clusterServerId", serverId);
-
-      // add the current user
+  private void send(Session session, Event event) throws JMSException {
+    LOGGER.debug("Processing event {}", event);
+    Message msg = createMessage(session, event);
+    Destination destination = createDestination(session, event);
+    LOGGER.debug("Sending Message {} to {}  ", msg, destination);
+    producer.send(destination, msg, msg.getJMSDeliveryMode(), Message.DEFAULT_PRIORITY,
+        Message.DEFAULT_TIME_TO_LIVE);
+  }
 
-      LOGGER.debug("Sending Message {} to {}  ",msg, destination);
-      producer.send(msg);
-    } catch (JMSException e) {
-      Throwable t = e.getCause();
-      if ( t != null && t.getClass().getName().equals("org.apache.activemq.transport.TransportDisposedIOException") ) {
-        if ( (System.currentTimeMillis() - lastMessage) > 15000L ) {
-          lastMessage = System.currentTimeMillis();
-          LOGGER.info("Transport disposed, probably on shutdown, use debug level logging to see more :{} ", e.getMessage());
-        }
-        LOGGER.debug(e.getMessage(), e);
-      } else {
-        LOGGER.error(e.getMessage(), e);
+  private void logFailure(JMSException e) {
+    Throwable t = e.getCause();
+    if ( t != null && t.getClass().getName().equals("org.apache.activemq.transport.TransportDisposedIOException") ) {
+      if ( (System.currentTimeMillis() - lastMessage) > 15000L ) {
+        lastMessage = System.currentTimeMillis();
+        LOGGER.info("Transport disposed, probably on shutdown, use debug level logging to see more :{} ", e.getMessage());
       }
-    } finally {
+      LOGGER.debug(e.getMessage(), e);
+    } else {
+      LOGGER.error(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Roll back any open transaction and close the session, to be opened again by the next
+   * send.
+   */
+  private void rollbackSession() {
+    if (transacted && clientSession != null) {
       try {
-        if (conn != null) {
-          conn.close();
-        }
-      } catch (Exception e) {
-        LOGGER.error(e.getMessage(), e);
+        clientSession.rollback();
+      } catch (JMSException e) {
+        LOGGER.debug("Rollback failed, the session is closed anyway: {}", e.getMessage());
       }
+    }
+    closeSession();
+  }
+
+  /**
+   * @return the sender's session, opening it if needed. Sessions are not thread safe, this
+   *         one is only used by the sender thread.
+   * @throws JMSException
+   */
+  private Session getSession() throws JMSException {
+    if (clientSession == null) {
       try {
-        if (clientSession != null) {
-          clientSession.close();
-        }
-      } catch (Exception e) {
-        LOGGER.error(e.getMessage(), e);
+        conn = connFactoryService.getDefaultPooledConnectionFactory().createConnection();
+        // conn.setClientID(connectionClientId);
+        clientSession = conn.createSession(transacted, acknowledgeMode);
+        // one producer for all destinations, the destination is given on each send.
+        producer = clientSession.createProducer(null);
+      } catch (JMSException e) {
+        closeSession();
+        throw e;
+      }
+    }
+    return clientSession;
+  }
+
+  private void closeSession() {
+    try {
+      if (clientSession != null) {
+        clientSession.close();
+      }
+    } catch (Exception e) {
+      LOGGER.error(e.getMessage(), e);
+    }
+    try {
+      if (conn != null) {
+        conn.close();
       }
+    } catch (Exception e) {
+      LOGGER.error(e.getMessage(), e);
     }
+    producer = null;
+    clientSession = null;
+    conn = null;
+  }
+
+  private Destination createDestination(Session session, Event event) throws JMSException {
+    EventDeliveryMode deliveryMode = (EventDeliveryMode) event
+        .getProperty(EventDeliveryConstants.DELIVERY_MODE);
+    if (deliveryMode == EventDeliveryMode.P2P) {
+      return session.createQueue(event.getTopic());
+    }
+    return session.createTopic(event.getTopic());
+  }
+
+  private Message createMessage(Session session, Event event) throws JMSException {
+    EventMessageMode messageMode = (EventMessageMode) event
+        .getProperty(EventDeliveryConstants.MESSAGE_MODE);
+
+    Message msg = session.createMessage();
+
+    // may need to set a delivery mode eg persistent for certain types of messages.
+    // this should be specified in the OSGi event.
+    if (messageMode == EventMessageMode.PERSISTENT) {
+      msg.setJMSDeliveryMode(DeliveryMode.PERSISTENT);
+    } else {
+      msg.setJMSDeliveryMode(DeliveryMode.NON_PERSISTENT);
+    }
+    msg.setJMSType(event.getTopic());
+
+    for (String name : event.getPropertyNames()) {
+      Object obj = event.getProperty(name);
+      // "Only objectified primitive objects, String, Map and List types are
+      // allowed" as stated by an exception when putting something into the
+      // message that was not of one of these types.
+      if (obj instanceof Byte || obj instanceof Boolean || obj instanceof Character
+          || obj instanceof Number || obj instanceof Map || obj instanceof String
+          || obj instanceof List || obj instanceof Object[]) {
+        msg.setObjectProperty(name, EventUtils.cleanProperty(obj));
+      }
+    }
+
+    msg.setStringProperty("clusterServerId", serverId);
+    return msg;
   }
 }
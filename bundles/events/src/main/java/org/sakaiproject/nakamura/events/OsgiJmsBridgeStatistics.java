@@ -0,0 +1,149 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.events;
+
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Statistics for the OSGi to JMS bridge.
+ */
+public class OsgiJmsBridgeStatistics implements OsgiJmsBridgeStatisticsMBean {
+
+  private final Queue<?> queue;
+  private final AtomicLong eventsSent = new AtomicLong();
+  private final AtomicLong eventsFailed = new AtomicLong();
+  private final Histogram batchSizes = new Histogram(12);
+  private final Histogram sendLatency = new Histogram(24);
+
+  /**
+   * @param queue
+   *          the queue of events waiting to be sent.
+   */
+  public OsgiJmsBridgeStatistics(Queue<?> queue) {
+    this.queue = queue;
+  }
+
+  /**
+   * A batch was sent.
+   *
+   * @param size
+   *          the number of events in the batch.
+   * @param nanos
+   *          the time taken to send and commit the batch.
+   */
+  public void sent(int size, long nanos) {
+    eventsSent.addAndGet(size);
+    batchSizes.record(size);
+    sendLatency.record(nanos / 1000);
+  }
+
+  /**
+   * Events could not be sent.
+   *
+   * @param size
+   *          the number of events lost.
+   */
+  public void failed(int size) {
+    eventsFailed.addAndGet(size);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.events.OsgiJmsBridgeStatisticsMBean#getQueueDepth()
+   */
+  public int getQueueDepth() {
+    return queue.size();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.events.OsgiJmsBridgeStatisticsMBean#getEventsSent()
+   */
+  public long getEventsSent() {
+    return eventsSent.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.events.OsgiJmsBridgeStatisticsMBean#getEventsFailed()
+   */
+  public long getEventsFailed() {
+    return eventsFailed.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.events.OsgiJmsBridgeStatisticsMBean#getBatchesSent()
+   */
+  public long getBatchesSent() {
+    return batchSizes.getCount();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.events.OsgiJmsBridgeStatisticsMBean#getMeanBatchSize()
+   */
+  public double getMeanBatchSize() {
+    return batchSizes.getMean();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.events.OsgiJmsBridgeStatisticsMBean#getBatchSizeHistogram()
+   */
+  public String[] getBatchSizeHistogram() {
+    return batchSizes.getBuckets();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.events.OsgiJmsBridgeStatisticsMBean#getMeanSendLatency()
+   */
+  public double getMeanSendLatency() {
+    return sendLatency.getMean();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.events.OsgiJmsBridgeStatisticsMBean#getSendLatencyHistogram()
+   */
+  public String[] getSendLatencyHistogram() {
+    return sendLatency.getBuckets();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.events.OsgiJmsBridgeStatisticsMBean#clearStatistics()
+   */
+  public void clearStatistics() {
+    eventsSent.set(0);
+    eventsFailed.set(0);
+    batchSizes.clear();
+    sendLatency.clear();
+  }
+}
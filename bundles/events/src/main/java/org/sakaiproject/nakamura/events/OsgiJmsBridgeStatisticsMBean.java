@@ -0,0 +1,70 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.events;
+
+/**
+ * Management view of the OSGi to JMS bridge.
+ */
+public interface OsgiJmsBridgeStatisticsMBean {
+
+  /**
+   * @return the number of events waiting to be sent to JMS.
+   */
+  int getQueueDepth();
+
+  /**
+   * @return the number of events sent to JMS.
+   */
+  long getEventsSent();
+
+  /**
+   * @return the number of events that could not be sent to JMS.
+   */
+  long getEventsFailed();
+
+  /**
+   * @return the number of batches sent to JMS.
+   */
+  long getBatchesSent();
+
+  /**
+   * @return the mean number of events in a batch.
+   */
+  double getMeanBatchSize();
+
+  /**
+   * @return the number of batches by size.
+   */
+  String[] getBatchSizeHistogram();
+
+  /**
+   * @return the mean time in microseconds to send and commit a batch.
+   */
+  double getMeanSendLatency();
+
+  /**
+   * @return the number of batches by the time in microseconds taken to send and commit
+   *         them.
+   */
+  String[] getSendLatencyHistogram();
+
+  /**
+   * Reset the counters.
+   */
+  void clearStatistics();
+}
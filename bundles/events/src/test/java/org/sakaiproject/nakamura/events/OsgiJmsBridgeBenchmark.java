@@ -0,0 +1,187 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.events;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+
+import java.net.URI;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.DeliveryMode;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.pool.PooledConnectionFactory;
+import org.junit.Test;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
+import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
+import org.sakaiproject.nakamura.testutils.benchmark.Benchmarks;
+import org.sakaiproject.nakamura.testutils.benchmark.Benchmarks.Operation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Measures events per second sent to an embedded, non persistent broker by the batching
+ * bridge against the previous approach of a connection, session and producer per event.
+ */
+public class OsgiJmsBridgeBenchmark {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(OsgiJmsBridgeBenchmark.class);
+  private static final int THREADS = 4;
+  private static final int EVENTS = 20000;
+
+  /**
+   * Something that takes events.
+   */
+  private interface EventSink {
+    void send(Event event) throws JMSException;
+  }
+
+  @Test
+  public void benchmarkEventsPerSecond() throws Exception {
+    ActiveMQConnectionFactory broker = new ActiveMQConnectionFactory(
+        "vm://benchmark?broker.persistent=false&broker.useJmx=false");
+    final PooledConnectionFactory pooled = new PooledConnectionFactory(broker);
+    // keep the embedded broker up between runs
+    Connection keepAlive = broker.createConnection();
+    keepAlive.start();
+    try {
+      for (int pass = 0; pass < 2; pass++) {
+        // the first pass warms up
+        double before = runPerEvent(pooled);
+        double after = runBridge(pooled, 100, 5);
+        if (pass == 1) {
+          LOGGER.info("Connection per event: {} events/s", (long) before);
+          LOGGER.info("Batching bridge: {} events/s", (long) after);
+        }
+      }
+    } finally {
+      pooled.stop();
+      keepAlive.close();
+    }
+  }
+
+  private double runPerEvent(final ConnectionFactory factory) throws Exception {
+    return run(new EventSink() {
+      public void send(Event event) throws JMSException {
+        Connection conn = factory.createConnection();
+        try {
+          Session session = conn.createSession(false, Session.AUTO_ACKNOWLEDGE);
+          try {
+            Message msg = session.createMessage();
+            msg.setJMSDeliveryMode(DeliveryMode.NON_PERSISTENT);
+            msg.setJMSType(event.getTopic());
+            for (String name : event.getPropertyNames()) {
+              Object obj = event.getProperty(name);
+              if (obj instanceof String) {
+                msg.setObjectProperty(name, obj);
+              }
+            }
+            msg.setStringProperty("clusterServerId", "benchmark");
+            MessageProducer producer = session.createProducer(session.createTopic(event
+                .getTopic()));
+            producer.send(msg);
+          } finally {
+            session.close();
+          }
+        } finally {
+          conn.close();
+        }
+      }
+    }, null);
+  }
+
+  private double runBridge(final ConnectionFactory factory, int maxBatchSize, long linger)
+      throws Exception {
+    Hashtable<Object, Object> props = new Hashtable<Object, Object>();
+    props.put(OsgiJmsBridge.MAX_BATCH_SIZE, maxBatchSize);
+    props.put(OsgiJmsBridge.LINGER, linger);
+    ComponentContext ctx = createMock(ComponentContext.class);
+    expect(ctx.getProperties()).andReturn(props).anyTimes();
+    ClusterTrackingService clusterTrackingService = createMock(ClusterTrackingService.class);
+    expect(clusterTrackingService.getCurrentServerId()).andReturn("benchmark").anyTimes();
+    replay(ctx, clusterTrackingService);
+
+    final OsgiJmsBridge bridge = new OsgiJmsBridge(new ConnectionFactoryService() {
+      public ConnectionFactory getDefaultPooledConnectionFactory() {
+        return factory;
+      }
+
+      public ConnectionFactory getDefaultConnectionFactory() {
+        return factory;
+      }
+
+      public ConnectionFactory createFactory(URI brokerURL) {
+        throw new UnsupportedOperationException();
+      }
+
+      public ConnectionFactory createFactory(String brokerURL) {
+        throw new UnsupportedOperationException();
+      }
+    });
+    bridge.clusterTrackingService = clusterTrackingService;
+    bridge.activate(ctx);
+    double rate = run(new EventSink() {
+      public void send(Event event) {
+        bridge.handleEvent(event);
+      }
+    }, new Runnable() {
+      public void run() {
+        // sends whatever is still queued
+        bridge.deactivate(null);
+      }
+    });
+    if (bridge.getStatistics().getEventsSent() != EVENTS) {
+      throw new IllegalStateException("Sent " + bridge.getStatistics().getEventsSent()
+          + " of " + EVENTS + " events");
+    }
+    return rate;
+  }
+
+  /**
+   * @return events per second.
+   */
+  private double run(final EventSink sink, Runnable finish) throws Exception {
+    final AtomicInteger n = new AtomicInteger();
+    long nanos = Benchmarks.nanosFor(THREADS, EVENTS / THREADS, new Operation() {
+      public void run() throws JMSException {
+        Dictionary<String, Object> props = new Hashtable<String, Object>();
+        props.put("path", "/p/benchmark" + n.incrementAndGet());
+        props.put("resourceType", "sakai/pooled-content");
+        sink.send(new Event("org/sakaiproject/nakamura/lite/content/UPDATED", props));
+      }
+    });
+    if (finish != null) {
+      long start = System.nanoTime();
+      finish.run();
+      nanos += System.nanoTime() - start;
+    }
+    return EVENTS / (nanos / 1000000000.0);
+  }
+}
@@ -17,8 +17,11 @@
  */
 package org.sakaiproject.nakamura.events;
 
+import static org.easymock.EasyMock.anyInt;
+import static org.easymock.EasyMock.anyLong;
 import static org.easymock.EasyMock.anyObject;
 import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.eq;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.expectLastCall;
 import static org.easymock.EasyMock.replay;
@@ -33,6 +36,7 @@ import java.util.Hashtable;
 
 import javax.jms.Connection;
 import javax.jms.ConnectionFactory;
+import javax.jms.DeliveryMode;
 import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.MessageProducer;
@@ -187,8 +191,10 @@ public class OsgiJmsBridgeTest {
     // construct and send the message
     Dictionary<Object, Object> props = buildEventProperties();
     sendMessage(props);
+    bridge.deactivate(ctx);
     // should log the message, but not fail
     verify(ctx, connFactory, clusterTrackingService);
+    assertEquals(1, bridge.getStatistics().getEventsFailed());
   }
 
 
@@ -203,6 +209,8 @@ public class OsgiJmsBridgeTest {
     // handling.
     sess = createMock(Session.class);
     expect(conn.createSession(false, Session.AUTO_ACKNOWLEDGE)).andReturn(sess);
+    prod = createMock(MessageProducer.class);
+    expect(sess.createProducer(null)).andReturn(prod);
     sess.run();
     expectLastCall();
     sess.close();
@@ -223,6 +231,105 @@ public class OsgiJmsBridgeTest {
     verify(ctx, conn, connFactory, clusterTrackingService);
   }
 
+  /**
+   * Events posted together should go out in one transaction on one session.
+   */
+  @Test
+  public void testBatchedTransactedSend() throws Exception {
+    compProps.put(OsgiJmsBridge.SESSION_TRANSACTED, true);
+    compProps.put(OsgiJmsBridge.LINGER, 500L);
+    clusterTrackingService = createMock(ClusterTrackingService.class);
+    expect(clusterTrackingService.getCurrentServerId()).andReturn("CurrentServerID");
+
+    conn = createMock(Connection.class);
+    expect(connFactory.createConnection()).andReturn(conn);
+    sess = createMock(Session.class);
+    expect(conn.createSession(true, Session.AUTO_ACKNOWLEDGE)).andReturn(sess);
+    prod = createMock(MessageProducer.class);
+    expect(sess.createProducer(null)).andReturn(prod);
+    topic = createMock(Topic.class);
+    expect(sess.createTopic("test-event")).andReturn(topic).times(3);
+    message = new ActiveMQMessage();
+    expect(sess.createMessage()).andReturn(message).times(3);
+    prod.send(topic, message, DeliveryMode.NON_PERSISTENT, Message.DEFAULT_PRIORITY,
+        Message.DEFAULT_TIME_TO_LIVE);
+    expectLastCall().times(3);
+    sess.commit();
+    sess.close();
+    conn.close();
+
+    replay(ctx, connFactory, connFactoryService, conn, sess, topic, prod,
+        clusterTrackingService);
+
+    bridge = new OsgiJmsBridge(connFactoryService);
+    bridge.clusterTrackingService = clusterTrackingService;
+    bridge.activate(ctx);
+    for (int i = 0; i < 3; i++) {
+      bridge.handleEvent(new Event("test-event", buildEventProperties()));
+    }
+    bridge.deactivate(ctx);
+
+    verify(ctx, connFactory, conn, sess, topic, prod, clusterTrackingService);
+    OsgiJmsBridgeStatisticsMBean statistics = bridge.getStatistics();
+    assertEquals(3, statistics.getEventsSent());
+    assertEquals(1, statistics.getBatchesSent());
+    assertEquals(0, statistics.getQueueDepth());
+    assertEquals("<= 4: 1", statistics.getBatchSizeHistogram()[2]);
+  }
+
+  /**
+   * An event that can't be sent should not take the rest of its batch with it.
+   */
+  @Test
+  public void testFailedEventDoesNotLoseBatch() throws Exception {
+    compProps.put(OsgiJmsBridge.SESSION_TRANSACTED, true);
+    compProps.put(OsgiJmsBridge.LINGER, 500L);
+    clusterTrackingService = createMock(ClusterTrackingService.class);
+    expect(clusterTrackingService.getCurrentServerId()).andReturn("CurrentServerID");
+
+    // the batch, then a session for the first retry and one after the bad event fails.
+    conn = createMock(Connection.class);
+    expect(connFactory.createConnection()).andReturn(conn).times(3);
+    sess = createMock(Session.class);
+    expect(conn.createSession(true, Session.AUTO_ACKNOWLEDGE)).andReturn(sess).times(3);
+    prod = createMock(MessageProducer.class);
+    expect(sess.createProducer(null)).andReturn(prod).times(3);
+    topic = createMock(Topic.class);
+    Topic badTopic = createMock(Topic.class);
+    expect(sess.createTopic("test-event")).andReturn(topic).times(3);
+    expect(sess.createTopic("bad-event")).andReturn(badTopic).times(2);
+    message = new ActiveMQMessage();
+    expect(sess.createMessage()).andReturn(message).times(5);
+    prod.send(eq(topic), (Message) anyObject(), anyInt(), anyInt(), anyLong());
+    expectLastCall().times(3);
+    prod.send(eq(badTopic), (Message) anyObject(), anyInt(), anyInt(), anyLong());
+    expectLastCall().andThrow(new JMSException("can't send")).times(2);
+    sess.commit();
+    expectLastCall().times(2);
+    sess.rollback();
+    expectLastCall().times(2);
+    sess.close();
+    expectLastCall().times(3);
+    conn.close();
+    expectLastCall().times(3);
+
+    replay(ctx, connFactory, connFactoryService, conn, sess, topic, badTopic, prod,
+        clusterTrackingService);
+
+    bridge = new OsgiJmsBridge(connFactoryService);
+    bridge.clusterTrackingService = clusterTrackingService;
+    bridge.activate(ctx);
+    bridge.handleEvent(new Event("test-event", buildEventProperties()));
+    bridge.handleEvent(new Event("bad-event", buildEventProperties()));
+    bridge.handleEvent(new Event("test-event", buildEventProperties()));
+    bridge.deactivate(ctx);
+
+    verify(ctx, connFactory, conn, sess, topic, badTopic, prod, clusterTrackingService);
+    OsgiJmsBridgeStatisticsMBean statistics = bridge.getStatistics();
+    assertEquals(2, statistics.getEventsSent());
+    assertEquals(1, statistics.getEventsFailed());
+  }
+
   /**
    * Constructs the bridge, activates it, constructs a message with 2 properties
    * and calls the bridge to handle it.
@@ -313,14 +420,15 @@ public class OsgiJmsBridgeTest {
 
       // mock a producer for the session to create and expect it
       prod = createMock(MessageProducer.class);
-      expect(sess.createProducer(topic)).andReturn(prod);
+      expect(sess.createProducer(null)).andReturn(prod);
 
       // mock the return of a mapped message
       message = new ActiveMQMessage();
       expect(sess.createMessage()).andReturn(message);
 
       // expect the message to be sent
-      prod.send(message);
+      prod.send(topic, message, DeliveryMode.NON_PERSISTENT, Message.DEFAULT_PRIORITY,
+          Message.DEFAULT_TIME_TO_LIVE);
       
 
       sess.close();
@@ -17,14 +17,19 @@
  */
 package org.sakaiproject.nakamura.files.pool;
 
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.request.RequestPathInfo;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
+import org.apache.sling.commons.osgi.OsgiUtil;
 import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
@@ -34,13 +39,16 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 
 /**
- *
+ * Streams an alternative stream of pooled content, named by the first selector. Selectors
+ * naming a configured thumbnail size, eg /p/id.thumb128x128.jpg, stream a copy of an image
+ * scaled to fit that size, made on the first request.
  */
 @Service(value=DefaultServletDelegate.class)
 @Component(immediate=true, enabled=true, metatype=true)
@@ -56,6 +64,27 @@ public class GetAlternativeContentPoolStreamServlet extends SlingSafeMethodsServ
     RESERVED_SELECTORS.add("selector-used-elsewhere");
   }
 
+  private static final String[] DEFAULT_THUMBNAIL_SIZES = new String[] { "64x64", "128x128",
+      "256x256" };
+  @Property(value = { "64x64", "128x128", "256x256" }, label = "Thumbnail Sizes", description = "The sizes images can be asked for as thumbnails, with a thumb<size> selector.")
+  static final String THUMBNAIL_SIZES = "sakai.thumbnail.sizes";
+
+  private static final long DEFAULT_THUMBNAIL_BUDGET = 256L * 1024L * 1024L;
+  @Property(longValue = DEFAULT_THUMBNAIL_BUDGET, label = "Thumbnail Budget", description = "The bytes thumbnails may take up in the store, the least recently used are emptied past it.")
+  static final String THUMBNAIL_BUDGET = "sakai.thumbnail.budget";
+
+  @Reference
+  protected transient Repository repository;
+
+  private transient ThumbnailRenditions thumbnails;
+
+  @Activate
+  protected void activate(Map<?, ?> properties) {
+    thumbnails = new ThumbnailRenditions(repository, OsgiUtil.toStringArray(properties
+        .get(THUMBNAIL_SIZES), DEFAULT_THUMBNAIL_SIZES), OsgiUtil.toLong(properties
+        .get(THUMBNAIL_BUDGET), DEFAULT_THUMBNAIL_BUDGET));
+  }
+
   public void doDelegateGet(SlingHttpServletRequest request,
       SlingHttpServletResponse response) throws ServletException, IOException {
    doGet(request, response);
@@ -69,6 +98,10 @@ public class GetAlternativeContentPoolStreamServlet extends SlingSafeMethodsServ
       Content node = resource.adaptTo(Content.class);
       ContentManager contentManager = resource.adaptTo(ContentManager.class);
       String alternativeStream = getAlternativeStream(request);
+      if (thumbnails != null && thumbnails.isRendition(alternativeStream)
+          && thumbnails.ensure(contentManager, node, alternativeStream)) {
+        node = contentManager.get(node.getPath());
+      }
       
       StreamHelper streamHelper = new StreamHelper();
       
@@ -0,0 +1,394 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files.pool;
+
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Makes sized copies of pooled images the first time they are asked for, and keeps them as
+ * alternative streams of the pooled content named by their size, eg thumb128x128 for an
+ * image that fits in 128 by 128 pixels. A copy of a different body is made again. Only
+ * one request makes a given copy, others asking for it at the same time wait for that one.
+ * The copies are kept within a budget of bytes, evicting the least recently used; the
+ * store cannot remove a single alternative stream, so an evicted copy is emptied and made
+ * again when it is next asked for.
+ * <p>
+ * The budget is kept by each server for the copies it has made or served, so a cluster
+ * can hold up to the budget on every server. Emptying a copy only gives the space back if
+ * the store deletes the body it replaces.
+ */
+public class ThumbnailRenditions {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ThumbnailRenditions.class);
+
+  private static final Pattern SIZE = Pattern.compile("thumb(\\d+)x(\\d+)");
+
+  /**
+   * Property of a rendition recording the body it was made from.
+   */
+  static final String SOURCE_FIELD = "thumbnailSource";
+  private static final String BODY_LOCATION_FIELD = "_bodyLocation";
+
+  private final Repository repository;
+  private final Set<String> renditions;
+  private final long budget;
+
+  /**
+   * Renditions being made, by key.
+   */
+  private final ConcurrentMap<String, FutureTask<Boolean>> pending = new ConcurrentHashMap<String, FutureTask<Boolean>>();
+
+  /**
+   * The size of the renditions known to be in the store, by key, least recently used first.
+   * Guarded by itself.
+   */
+  private final LinkedHashMap<String, Long> stored = new LinkedHashMap<String, Long>(16,
+      0.75f, true);
+  private long storedBytes;
+
+  /**
+   * @param repository
+   *          used to write the renditions, the requesting user may only be able to read
+   *          the image.
+   * @param sizes
+   *          the sizes that may be asked for, eg 128x128.
+   * @param budget
+   *          the bytes the renditions may take up in the store.
+   */
+  public ThumbnailRenditions(Repository repository, String[] sizes, long budget) {
+    this.repository = repository;
+    this.budget = budget;
+    renditions = new HashSet<String>();
+    for (String size : sizes) {
+      String rendition = "thumb" + size.trim();
+      if (SIZE.matcher(rendition).matches()) {
+        renditions.add(rendition);
+      } else {
+        LOGGER.warn("Ignoring thumbnail size {}, sizes look like 128x128", size);
+      }
+    }
+  }
+
+  /**
+   * @param alternativeStream
+   * @return true if the alternative stream is one of the configured thumbnail sizes.
+   */
+  public boolean isRendition(String alternativeStream) {
+    return alternativeStream != null && renditions.contains(alternativeStream);
+  }
+
+  /**
+   * Makes sure a rendition of an image is in the store.
+   *
+   * @param contentManager
+   *          of the requesting user, used to read the image.
+   * @param content
+   *          the pooled content.
+   * @param rendition
+   *          the name of the rendition, as accepted by {@link #isRendition(String)}.
+   * @return true if the rendition is in the store, false if the content is not an image
+   *         that can be scaled.
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   * @throws IOException
+   */
+  public boolean ensure(final ContentManager contentManager, final Content content,
+      final String rendition) throws StorageClientException, AccessDeniedException,
+      IOException {
+    final String key = rendition + ":" + content.getPath();
+    if (isMade(content, rendition, key)) {
+      return true;
+    }
+
+    FutureTask<Boolean> task = new FutureTask<Boolean>(new Callable<Boolean>() {
+      public Boolean call() throws Exception {
+        return make(contentManager, content, rendition, key);
+      }
+    });
+    FutureTask<Boolean> running = pending.putIfAbsent(key, task);
+    if (running == null) {
+      try {
+        task.run();
+      } finally {
+        pending.remove(key);
+      }
+      running = task;
+    }
+    try {
+      return running.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted waiting for " + key);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof StorageClientException) {
+        throw (StorageClientException) cause;
+      } else if (cause instanceof AccessDeniedException) {
+        throw (AccessDeniedException) cause;
+      } else if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw (Error) cause;
+    }
+  }
+
+  /**
+   * @return true if the content already has a copy made from its current body, which is
+   *         then counted as stored.
+   */
+  private boolean isMade(Content content, String rendition, String key) {
+    long length = StorageClientUtils.toLong(content.getProperty(StorageClientUtils
+        .getAltField(Content.LENGTH_FIELD, rendition)));
+    Object source = content.getProperty(StorageClientUtils.getAltField(SOURCE_FIELD,
+        rendition));
+    if (length > 0 && getSource(content).equals(source)) {
+      // made before, perhaps before a restart or by another request, so it may not be
+      // counted yet
+      add(key, length);
+      return true;
+    }
+    return false;
+  }
+
+  private boolean make(ContentManager contentManager, Content content, String rendition,
+      String key) throws StorageClientException, AccessDeniedException, IOException {
+    Matcher m = SIZE.matcher(rendition);
+    m.matches();
+    int maxWidth = Integer.parseInt(m.group(1));
+    int maxHeight = Integer.parseInt(m.group(2));
+
+    byte[] bytes;
+    Session adminSession = repository.loginAdministrative();
+    try {
+      ContentManager adminContentManager = adminSession.getContentManager();
+      // the caller's copy of the content may be from before another request made this
+      Content adminContent = adminContentManager.get(content.getPath());
+      if (adminContent == null) {
+        return false;
+      }
+      if (isMade(adminContent, rendition, key)) {
+        return true;
+      }
+
+      BufferedImage image = read(contentManager, content.getPath(), maxWidth, maxHeight);
+      if (image == null) {
+        return false;
+      }
+      boolean alpha = image.getColorModel().hasAlpha();
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      ImageIO.write(image, alpha ? "png" : "jpg", out);
+      bytes = out.toByteArray();
+
+      adminContent.setProperty(StorageClientUtils.getAltField(Content.MIMETYPE_FIELD,
+          rendition), alpha ? "image/png" : "image/jpeg");
+      adminContent.setProperty(StorageClientUtils.getAltField(SOURCE_FIELD, rendition),
+          getSource(adminContent));
+      adminContentManager.update(adminContent);
+      adminContentManager.writeBody(content.getPath(), new ByteArrayInputStream(bytes),
+          rendition);
+    } finally {
+      adminSession.logout();
+    }
+    LOGGER.debug("Made {} of {} bytes", key, bytes.length);
+    add(key, bytes.length);
+    return true;
+  }
+
+  /**
+   * @return identifies the body of the content, changing when a new body is written.
+   */
+  private String getSource(Content content) {
+    return content.getProperty(BODY_LOCATION_FIELD) + ":"
+        + StorageClientUtils.toLong(content.getProperty(Content.LENGTH_FIELD));
+  }
+
+  /**
+   * Reads an image scaled to fit in a box, keeping its proportions. Images are not made
+   * larger. Pixels are skipped while decoding large images, down to twice the size wanted,
+   * and the rest of the way is scaled smoothly.
+   *
+   * @return the scaled image, or null if the content is not an image ImageIO can read.
+   */
+  protected BufferedImage read(ContentManager contentManager, String path, int maxWidth,
+      int maxHeight) throws StorageClientException, AccessDeniedException, IOException {
+    InputStream in = contentManager.getInputStream(path);
+    if (in == null) {
+      return null;
+    }
+    ImageInputStream iis = null;
+    ImageReader reader = null;
+    try {
+      iis = ImageIO.createImageInputStream(in);
+      if (iis == null) {
+        return null;
+      }
+      Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+      if (!readers.hasNext()) {
+        return null;
+      }
+      reader = readers.next();
+      reader.setInput(iis, true, true);
+      int width = reader.getWidth(0);
+      int height = reader.getHeight(0);
+      double scale = Math.min(1.0, Math.min((double) maxWidth / width, (double) maxHeight
+          / height));
+      int targetWidth = Math.max(1, (int) Math.round(width * scale));
+      int targetHeight = Math.max(1, (int) Math.round(height * scale));
+
+      ImageReadParam param = reader.getDefaultReadParam();
+      int subsampling = Math.max(1, Math.min(width / (2 * targetWidth), height
+          / (2 * targetHeight)));
+      param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+      return scale(reader.read(0, param), targetWidth, targetHeight);
+    } finally {
+      if (reader != null) {
+        reader.dispose();
+      }
+      if (iis != null) {
+        iis.close();
+      }
+      in.close();
+    }
+  }
+
+  /**
+   * Scales down in halves until the target size is reached.
+   */
+  private BufferedImage scale(BufferedImage img, int targetWidth, int targetHeight) {
+    int type = img.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB
+        : BufferedImage.TYPE_INT_RGB;
+    BufferedImage ret = img;
+    int w = img.getWidth();
+    int h = img.getHeight();
+    do {
+      w = Math.max(w / 2, targetWidth);
+      h = Math.max(h / 2, targetHeight);
+      BufferedImage tmp = new BufferedImage(w, h, type);
+      Graphics2D g2 = tmp.createGraphics();
+      g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+          RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+      g2.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+      g2.drawImage(ret, 0, 0, w, h, null);
+      g2.dispose();
+      ret = tmp;
+    } while (w > targetWidth || h > targetHeight);
+    return ret;
+  }
+
+  /**
+   * Counts a rendition as stored and most recently used, and empties the least recently
+   * used renditions while over budget.
+   */
+  private void add(String key, long length) {
+    List<String> evicted = null;
+    synchronized (stored) {
+      Long old = stored.put(key, length);
+      storedBytes += length - (old == null ? 0 : old);
+      Iterator<Map.Entry<String, Long>> eldest = stored.entrySet().iterator();
+      while (storedBytes > budget && eldest.hasNext()) {
+        Map.Entry<String, Long> e = eldest.next();
+        if (e.getKey().equals(key)) {
+          // never evict the one just asked for
+          continue;
+        }
+        if (evicted == null) {
+          evicted = new ArrayList<String>();
+        }
+        evicted.add(e.getKey());
+        storedBytes -= e.getValue();
+        eldest.remove();
+      }
+    }
+    if (evicted != null) {
+      evict(evicted);
+    }
+  }
+
+  private void evict(List<String> keys) {
+    Session adminSession = null;
+    try {
+      adminSession = repository.loginAdministrative();
+      ContentManager contentManager = adminSession.getContentManager();
+      for (String key : keys) {
+        int i = key.indexOf(':');
+        String rendition = key.substring(0, i);
+        String path = key.substring(i + 1);
+        if (contentManager.exists(path)) {
+          contentManager.writeBody(path, new ByteArrayInputStream(new byte[0]), rendition);
+          LOGGER.debug("Evicted {}", key);
+        }
+      }
+    } catch (Exception e) {
+      LOGGER.warn("Failed to evict thumbnails {}: {}", keys, e.getMessage());
+    } finally {
+      if (adminSession != null) {
+        try {
+          adminSession.logout();
+        } catch (Exception e) {
+          LOGGER.debug(e.getMessage(), e);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the bytes of the renditions known to be in the store.
+   */
+  long getStoredBytes() {
+    synchronized (stored) {
+      return storedBytes;
+    }
+  }
+}
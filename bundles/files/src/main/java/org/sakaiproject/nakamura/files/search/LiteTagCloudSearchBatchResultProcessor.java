@@ -17,8 +17,9 @@
  */
 package org.sakaiproject.nakamura.files.search;
 
-import static org.sakaiproject.nakamura.api.files.FilesConstants.SAKAI_TAG_UUIDS;
+import static org.sakaiproject.nakamura.api.files.FilesConstants.SAKAI_TAG_NAME;
 
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
@@ -28,34 +29,43 @@ import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.request.RequestParameter;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
+import org.apache.sling.commons.osgi.OsgiUtil;
 import org.apache.sling.jcr.api.SlingRepository;
-import org.sakaiproject.nakamura.api.lite.Session;
-import org.sakaiproject.nakamura.api.lite.StorageClientException;
-import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
-import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
-import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
-import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.apache.solr.client.solrj.response.FacetField;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.FacetParams;
 import org.sakaiproject.nakamura.api.search.solr.Query;
 import org.sakaiproject.nakamura.api.search.solr.Result;
+import org.sakaiproject.nakamura.api.search.solr.SolrQueryResponseWrapper;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchBatchResultProcessor;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchException;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchServiceFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 import javax.jcr.ItemNotFoundException;
 import javax.jcr.Node;
-import javax.jcr.PathNotFoundException;
 import javax.jcr.RepositoryException;
-import javax.jcr.ValueFormatException;
 
+/**
+ * Formats the most used tags of the items matching a search. The tags are counted by a
+ * Solr facet over the indexed tag uuids, which also cuts out the requested page, so no
+ * tagged item is loaded however many match. Tag names are resolved for the page only and
+ * kept in memory, a tag's name does not change for the life of its uuid. The names are not
+ * faceted: the indexed tag names are a separate field from the uuids, so a facet count
+ * could not be paired with its uuid, and pairing them in one field needs a schema change.
+ */
 @Component(immediate = true, label = "TagCloudResultProcessor", description = "Formatter for tag cloud")
 @Service(value = SolrSearchBatchResultProcessor.class)
 @Properties(value = { @Property(name = "service.vendor", value = "The Sakai Foundation"),
@@ -63,123 +73,96 @@ import javax.jcr.ValueFormatException;
 public class LiteTagCloudSearchBatchResultProcessor implements
     SolrSearchBatchResultProcessor {
 
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(LiteTagCloudSearchBatchResultProcessor.class);
+
   public static final String STARTPAGE_PARAM = "startpage";
   public static final String NUMITEMS_PARAM = "numitems";
 
+  /**
+   * The indexed field holding the uuids of the tags on an item.
+   */
+  static final String TAG_UUID_FIELD = "taguuid";
+  static final String COUNT = "count";
+
+  @Property(intValue = 10000, description = "The number of tag names to keep in memory")
+  static final String TAG_NAME_CACHE_SIZE = "tagNameCacheSize";
+
   @Reference
   private SolrSearchServiceFactory searchServiceFactory;
 
   @Reference
   protected SlingRepository slingRepository;
 
+  private Map<String, String> tagNames = createTagNameCache(10000);
+
+  public LiteTagCloudSearchBatchResultProcessor() {
+  }
+
+  // Just here to support the unit tests.
+  LiteTagCloudSearchBatchResultProcessor(SolrSearchServiceFactory searchServiceFactory) {
+    this.searchServiceFactory = searchServiceFactory;
+  }
+
+  @Activate
+  protected void activate(Map<?, ?> props) {
+    tagNames = createTagNameCache(OsgiUtil.toInteger(props.get(TAG_NAME_CACHE_SIZE),
+        10000));
+  }
+
   /**
-   * 
    * {@inheritDoc}
-   * 
+   *
+   * The total written is the number of tags up to the end of this page, plus one if
+   * there is another page.
+   *
    * @see org.sakaiproject.nakamura.api.search.solr.SolrSearchBatchResultProcessor#writeResults(org.apache.sling.api.SlingHttpServletRequest,
    *      org.apache.sling.commons.json.io.JSONWriter, java.util.Iterator)
    */
   public void writeResults(SlingHttpServletRequest request, JSONWriter write,
       Iterator<Result> iterator) throws JSONException {
-    final Map<String, Tag> tags = new HashMap<String, Tag>();
-    final Session session = StorageClientUtils.adaptToSession(request
-        .getResourceResolver().adaptTo(javax.jcr.Session.class));
     final javax.jcr.Session jcrSession = request.getResourceResolver().adaptTo(
         javax.jcr.Session.class);
+    final int startpage = getStartPage(request);
+    final int numitems = getNumItems(request);
+    final int beginPosition = (startpage * numitems) - numitems;
 
-    // count all the tags
+    // the facet engine has already sorted the tags and skipped to this page
+    final List<Tag> foundTags = new ArrayList<Tag>(numitems);
+    int counted = 0;
     while (iterator.hasNext()) {
-      try {
-        final Result result = iterator.next();
-        final String resourceType = String.valueOf(result.getFirstValue("resourceType"));
-        String[] tagUuids = null;
-        if ("authorizable".equals(resourceType)) {
-          final String id = (String) result.getFirstValue("id");
-          final Authorizable az = session.getAuthorizableManager().findAuthorizable(id);
-          if (az != null && az.hasProperty(SAKAI_TAG_UUIDS)) {
-            // each node that has been tagged has one or more tag UUIDs riding with it
-            tagUuids = (String[]) az.getProperty(SAKAI_TAG_UUIDS);
-          }
-        } else {
-          final String path = result.getPath();
-          final Content content = session.getContentManager().get(path);
-          if (content != null && content.hasProperty(SAKAI_TAG_UUIDS)) {
-            // each node that has been tagged has one or more tag UUIDs riding with it
-            tagUuids = (String[]) content.getProperty(SAKAI_TAG_UUIDS);
-          }
-        }
-        if (tagUuids != null) {
-          for (final String uuid : tagUuids) {
-            if (!tags.containsKey(uuid)) {
-              tags.put(uuid, new Tag(uuid, 0));
-            }
-            // increment the count for this particular tag UUID.
-            tags.get(uuid).frequency++;
-          }
-        }
-      } catch (StorageClientException e) {
-        // if something is wrong with this particular resourceNode,
-        // we don't let it wreck the whole feed
-      } catch (AccessDeniedException e) {
-        // if something is wrong with this particular resourceNode,
-        // we don't let it wreck the whole feed
+      final Result result = iterator.next();
+      counted++;
+      if (counted > numitems) {
+        // the one tag fetched past the page only tells us there is another page
+        break;
+      }
+      final String uuid = String.valueOf(result.getFirstValue(TAG_UUID_FIELD));
+      final String name = getTagName(jcrSession, uuid);
+      if (name != null) {
+        final Tag tag = new Tag(uuid,
+            ((Number) result.getFirstValue(COUNT)).intValue());
+        tag.name = name;
+        foundTags.add(tag);
       }
     }
 
-    // write the most-used tags to the JSONWriter
-    final List<Tag> foundTags = new ArrayList<Tag>(tags.values());
-    Collections.sort(foundTags, Collections.reverseOrder());
     write.object();
     write.key(SolrSearchConstants.TOTAL);
-    write.value(foundTags.size());
-    final RequestParameter startpageP = request.getRequestParameter(STARTPAGE_PARAM);
-    int startpage = (startpageP != null) ? Integer.valueOf(startpageP.getString()) : 1;
-    startpage = (startpage < 1) ? 1 : startpage;
+    write.value(beginPosition + counted);
     write.key(STARTPAGE_PARAM);
     write.value(startpage);
-    final RequestParameter numitemsP = request.getRequestParameter(NUMITEMS_PARAM);
-    int numitems = (numitemsP != null) ? Integer.valueOf(numitemsP.getString())
-                                      : SolrSearchConstants.DEFAULT_PAGED_ITEMS;
-    numitems = (numitems < 1) ? SolrSearchConstants.DEFAULT_PAGED_ITEMS : numitems;
     write.key(NUMITEMS_PARAM);
     write.value(numitems);
-    final int beginPosition = (startpage * numitems) - numitems;
     write.key("tags");
     write.array();
-    try {
-      if (beginPosition < foundTags.size()) {
-        int count = 0;
-        for (int i = beginPosition; i < foundTags.size() && count < numitems; i++) {
-          final Tag tag = foundTags.get(i);
-          final Node tagNode = jcrSession.getNodeByIdentifier(tag.id);
-          if (tagNode != null
-              && tagNode
-                  .hasProperty(org.sakaiproject.nakamura.api.files.FilesConstants.SAKAI_TAG_NAME)) {
-            tag.name = tagNode.getProperty(
-                org.sakaiproject.nakamura.api.files.FilesConstants.SAKAI_TAG_NAME)
-                .getString();
-            write.object();
-            write.key("name");
-            write.value(tag.name);
-            write.key("count");
-            write.value(Long.valueOf(tag.frequency));
-            write.endObject();
-            count++;
-          }
-        }
-      }
-    } catch (ItemNotFoundException e) {
-      // if something is wrong with this particular resourceNode,
-      // we don't let it wreck the whole feed
-    } catch (ValueFormatException e) {
-      // if something is wrong with this particular resourceNode,
-      // we don't let it wreck the whole feed
-    } catch (PathNotFoundException e) {
-      // if something is wrong with this particular resourceNode,
-      // we don't let it wreck the whole feed
-    } catch (RepositoryException e) {
-      // if something is wrong with this particular resourceNode,
-      // we don't let it wreck the whole feed
+    for (Tag tag : foundTags) {
+      write.object();
+      write.key("name");
+      write.value(tag.name);
+      write.key("count");
+      write.value(Long.valueOf(tag.frequency));
+      write.endObject();
     }
     write.endArray();
     write.endObject();
@@ -187,16 +170,135 @@ public class LiteTagCloudSearchBatchResultProcessor implements
 
   /**
    * {@inheritDoc}
-   * 
+   *
+   * Runs the query as a facet over the tag uuids, without fetching any documents. The
+   * result set holds one result per tag on the requested page, most used first, and one
+   * more if there is a following page.
+   *
    * @see org.sakaiproject.nakamura.api.search.solr.SolrSearchBatchResultProcessor#getSearchResultSet(org.apache.sling.api.SlingHttpServletRequest,
    *      org.sakaiproject.nakamura.api.search.solr.Query)
    */
   public SolrSearchResultSet getSearchResultSet(SlingHttpServletRequest request,
       Query query) throws SolrSearchException {
+    final int numitems = getNumItems(request);
+    final int beginPosition = (getStartPage(request) * numitems) - numitems;
+
+    Map<String, String> options = query.getOptions();
+    if (options == null) {
+      options = new HashMap<String, String>();
+      query = new Query(query.getName(), query.getType(), query.getQueryString(), options);
+    }
+    options.put(CommonParams.ROWS, "0");
+    options.put(FacetParams.FACET, "true");
+    options.put(FacetParams.FACET_FIELD, TAG_UUID_FIELD);
+    options.put(FacetParams.FACET_MINCOUNT, "1");
+    options.put(FacetParams.FACET_SORT, FacetParams.FACET_SORT_COUNT);
+    options.put(FacetParams.FACET_OFFSET, Integer.toString(beginPosition));
+    options.put(FacetParams.FACET_LIMIT, Integer.toString(numitems + 1));
+
+    final SolrSearchResultSet rs = searchServiceFactory.getSearchResultSet(request, query);
+    final List<Result> tags = new ArrayList<Result>();
+    if (rs instanceof SolrQueryResponseWrapper) {
+      final FacetField facet = ((SolrQueryResponseWrapper) rs).getQueryResponse()
+          .getFacetField(TAG_UUID_FIELD);
+      if (facet != null && facet.getValues() != null) {
+        for (FacetField.Count count : facet.getValues()) {
+          tags.add(new TagCount(count.getName(), count.getCount()));
+        }
+      }
+    } else if (rs != null) {
+      LOGGER.warn("Unable to count tags, the tag cloud needs a Solr query not {} ", query);
+    }
+    return new SolrSearchResultSet() {
+      public Iterator<Result> getResultSetIterator() {
+        return tags.iterator();
+      }
 
-    return searchServiceFactory.getSearchResultSet(request, query);
+      public long getSize() {
+        return tags.size();
+      }
+    };
+  }
+
+  /**
+   * Get the name of a tag, from memory if it has been seen before.
+   *
+   * @param jcrSession
+   * @param uuid
+   * @return the name of the tag or null if there is no such tag.
+   */
+  private String getTagName(javax.jcr.Session jcrSession, String uuid) {
+    String name = tagNames.get(uuid);
+    if (name == null && jcrSession != null) {
+      try {
+        final Node tagNode = jcrSession.getNodeByIdentifier(uuid);
+        if (tagNode != null && tagNode.hasProperty(SAKAI_TAG_NAME)) {
+          name = tagNode.getProperty(SAKAI_TAG_NAME).getString();
+          tagNames.put(uuid, name);
+        }
+      } catch (ItemNotFoundException e) {
+        // the tag has gone, but items tagged with it may not have been reindexed yet.
+        LOGGER.debug("No tag for uuid {} ", uuid);
+      } catch (RepositoryException e) {
+        // if something is wrong with this particular tag,
+        // we don't let it wreck the whole cloud
+        LOGGER.warn("Unable to read tag {} {} ", uuid, e.getMessage());
+      }
+    }
+    return name;
   }
 
+  private int getStartPage(SlingHttpServletRequest request) {
+    final RequestParameter startpageP = request.getRequestParameter(STARTPAGE_PARAM);
+    int startpage = (startpageP != null) ? Integer.valueOf(startpageP.getString()) : 1;
+    return (startpage < 1) ? 1 : startpage;
+  }
+
+  private int getNumItems(SlingHttpServletRequest request) {
+    final RequestParameter numitemsP = request.getRequestParameter(NUMITEMS_PARAM);
+    int numitems = (numitemsP != null) ? Integer.valueOf(numitemsP.getString())
+                                      : SolrSearchConstants.DEFAULT_PAGED_ITEMS;
+    return (numitems < 1) ? SolrSearchConstants.DEFAULT_PAGED_ITEMS : numitems;
+  }
+
+  private static Map<String, String> createTagNameCache(final int maxSize) {
+    return Collections.synchronizedMap(new LinkedHashMap<String, String>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+        return size() > maxSize;
+      }
+    });
+  }
+
+  /**
+   * The count of one tag, as returned by the facet engine.
+   */
+  static final class TagCount implements Result {
+    private final String uuid;
+    private final Map<String, Collection<Object>> properties;
+
+    TagCount(String uuid, long count) {
+      this.uuid = uuid;
+      properties = new HashMap<String, Collection<Object>>();
+      properties.put(TAG_UUID_FIELD, Collections.<Object> singletonList(uuid));
+      properties.put(COUNT, Collections.<Object> singletonList(Long.valueOf(count)));
+    }
+
+    public String getPath() {
+      return uuid;
+    }
+
+    public Map<String, Collection<Object>> getProperties() {
+      return properties;
+    }
+
+    public Object getFirstValue(String name) {
+      final Collection<Object> values = properties.get(name);
+      return (values == null || values.isEmpty()) ? null : values.iterator().next();
+    }
+  }
 }
 
 final class Tag implements Comparable<Tag> {
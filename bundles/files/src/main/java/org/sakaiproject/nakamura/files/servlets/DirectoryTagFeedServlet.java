@@ -52,6 +52,7 @@ import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchServiceFactory;
 import org.sakaiproject.nakamura.files.search.LiteFileSearchBatchResultProcessor;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
+import org.sakaiproject.nakamura.util.FlushingWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -149,7 +150,8 @@ public class DirectoryTagFeedServlet extends SlingSafeMethodsServlet {
     
     request.setAttribute("depth", depth);
 
-    JSONWriter write = new JSONWriter(response.getWriter());
+    // each branch of the directory runs its own search, so send each as it is written.
+    JSONWriter write = new JSONWriter(new FlushingWriter(response.getWriter()));
     write.setTidy(tidy);
     Resource directoryResource = request.getResource();
     try {
@@ -0,0 +1,179 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files.pool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+
+public class ThumbnailRenditionsTest {
+
+  private ContentManager contentManager;
+  private Map<String, byte[]> bodies;
+  private Repository repository;
+
+  @Before
+  public void setUp() throws Exception {
+    bodies = new HashMap<String, byte[]>();
+    contentManager = mock(ContentManager.class);
+    when(contentManager.getInputStream(anyString())).thenAnswer(new Answer<InputStream>() {
+      public InputStream answer(InvocationOnMock invocation) throws Throwable {
+        byte[] body = bodies.get(invocation.getArguments()[0]);
+        return body == null ? null : new ByteArrayInputStream(body);
+      }
+    });
+    when(contentManager.get(anyString())).thenAnswer(new Answer<Content>() {
+      public Content answer(InvocationOnMock invocation) throws Throwable {
+        return new Content((String) invocation.getArguments()[0], null);
+      }
+    });
+    when(contentManager.exists(anyString())).thenReturn(true);
+    Session session = mock(Session.class);
+    when(session.getContentManager()).thenReturn(contentManager);
+    repository = mock(Repository.class);
+    when(repository.loginAdministrative()).thenReturn(session);
+  }
+
+  @Test
+  public void testIsRendition() {
+    ThumbnailRenditions thumbnails = new ThumbnailRenditions(repository, new String[] {
+        "64x64", "large" }, 1000);
+    assertTrue(thumbnails.isRendition("thumb64x64"));
+    assertFalse(thumbnails.isRendition("thumb128x128"));
+    assertFalse(thumbnails.isRendition("thumblarge"));
+    assertFalse(thumbnails.isRendition(null));
+  }
+
+  @Test
+  public void testNotAnImage() throws Exception {
+    bodies.put("/p/text", "not an image".getBytes("UTF-8"));
+    ThumbnailRenditions thumbnails = new ThumbnailRenditions(repository,
+        new String[] { "64x64" }, 1000000);
+    assertFalse(thumbnails.ensure(contentManager, new Content("/p/text", null),
+        "thumb64x64"));
+    verify(contentManager, never()).writeBody(anyString(), any(InputStream.class),
+        anyString());
+  }
+
+  @Test
+  public void testMakesScaledRendition() throws Exception {
+    bodies.put("/p/image", png(300, 200));
+    ThumbnailRenditions thumbnails = new ThumbnailRenditions(repository,
+        new String[] { "128x128" }, 1000000);
+    assertTrue(thumbnails.ensure(contentManager, new Content("/p/image", null),
+        "thumb128x128"));
+    ArgumentCaptor<InputStream> body = ArgumentCaptor.forClass(InputStream.class);
+    verify(contentManager).writeBody(eq("/p/image"), body.capture(), eq("thumb128x128"));
+    byte[] written = read(body.getValue());
+    BufferedImage thumbnail = ImageIO.read(new ByteArrayInputStream(written));
+    assertEquals(128, thumbnail.getWidth());
+    assertEquals(85, thumbnail.getHeight());
+    assertEquals(written.length, thumbnails.getStoredBytes());
+
+    // once made it is served as it is
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put(StorageClientUtils.getAltField(Content.LENGTH_FIELD, "thumb128x128"),
+        (long) written.length);
+    properties.put(StorageClientUtils.getAltField(ThumbnailRenditions.SOURCE_FIELD,
+        "thumb128x128"), "null:0");
+    assertTrue(thumbnails.ensure(contentManager, new Content("/p/image", properties),
+        "thumb128x128"));
+    verify(contentManager, times(1)).writeBody(anyString(), any(InputStream.class),
+        eq("thumb128x128"));
+  }
+
+  @Test
+  public void testFindsRenditionMadeSinceContentWasRead() throws Exception {
+    bodies.put("/p/image", png(300, 200));
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put(StorageClientUtils.getAltField(Content.LENGTH_FIELD, "thumb128x128"),
+        100L);
+    properties.put(StorageClientUtils.getAltField(ThumbnailRenditions.SOURCE_FIELD,
+        "thumb128x128"), "null:0");
+    when(contentManager.get("/p/image")).thenReturn(new Content("/p/image", properties));
+    ThumbnailRenditions thumbnails = new ThumbnailRenditions(repository,
+        new String[] { "128x128" }, 1000000);
+
+    // the content the caller read has no rendition yet
+    assertTrue(thumbnails.ensure(contentManager, new Content("/p/image", null),
+        "thumb128x128"));
+    verify(contentManager, never()).getInputStream(anyString());
+    verify(contentManager, never()).writeBody(anyString(), any(InputStream.class),
+        anyString());
+    assertEquals(100L, thumbnails.getStoredBytes());
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsed() throws Exception {
+    bodies.put("/p/a", png(300, 300));
+    bodies.put("/p/b", png(300, 300));
+    ThumbnailRenditions thumbnails = new ThumbnailRenditions(repository,
+        new String[] { "64x64" }, 1);
+    assertTrue(thumbnails.ensure(contentManager, new Content("/p/a", null), "thumb64x64"));
+    assertTrue(thumbnails.ensure(contentManager, new Content("/p/b", null), "thumb64x64"));
+
+    // a is emptied to make room for b, b is kept even though it is over budget
+    verify(contentManager, times(2)).writeBody(eq("/p/a"), any(InputStream.class),
+        eq("thumb64x64"));
+    verify(contentManager, times(1)).writeBody(eq("/p/b"), any(InputStream.class),
+        eq("thumb64x64"));
+  }
+
+  private byte[] png(int width, int height) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), "png", out);
+    return out.toByteArray();
+  }
+
+  private byte[] read(InputStream in) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    for (int i = in.read(buffer); i >= 0; i = in.read(buffer)) {
+      out.write(buffer, 0, i);
+    }
+    return out.toByteArray();
+  }
+}
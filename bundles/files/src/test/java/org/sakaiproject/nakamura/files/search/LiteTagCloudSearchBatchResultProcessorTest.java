@@ -0,0 +1,176 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import com.google.common.collect.Maps;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.request.RequestParameter;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.commons.json.JSONArray;
+import org.apache.sling.commons.json.JSONObject;
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.apache.solr.client.solrj.response.FacetField;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.sakaiproject.nakamura.api.files.FilesConstants;
+import org.sakaiproject.nakamura.api.search.solr.Query;
+import org.sakaiproject.nakamura.api.search.solr.SolrQueryResponseWrapper;
+import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
+import org.sakaiproject.nakamura.api.search.solr.SolrSearchServiceFactory;
+
+import java.io.StringWriter;
+import java.util.Map;
+
+import javax.jcr.ItemNotFoundException;
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.Session;
+
+@RunWith(MockitoJUnitRunner.class)
+public class LiteTagCloudSearchBatchResultProcessorTest {
+
+  private LiteTagCloudSearchBatchResultProcessor processor;
+
+  @Mock
+  private SlingHttpServletRequest request;
+
+  @Mock
+  private ResourceResolver resourceResolver;
+
+  @Mock
+  private Session jcrSession;
+
+  @Mock
+  private SolrSearchServiceFactory searchServiceFactory;
+
+  @Mock
+  private QueryResponse queryResponse;
+
+  private FacetField facet;
+
+  @Before
+  public void setUp() throws Exception {
+    processor = new LiteTagCloudSearchBatchResultProcessor(searchServiceFactory);
+
+    when(request.getResourceResolver()).thenReturn(resourceResolver);
+    when(resourceResolver.adaptTo(Session.class)).thenReturn(jcrSession);
+    setParameter(LiteTagCloudSearchBatchResultProcessor.STARTPAGE_PARAM, "2");
+    setParameter(LiteTagCloudSearchBatchResultProcessor.NUMITEMS_PARAM, "2");
+
+    SolrSearchResultSet rs = mock(SolrSearchResultSet.class, withSettings()
+        .extraInterfaces(SolrQueryResponseWrapper.class));
+    when(((SolrQueryResponseWrapper) rs).getQueryResponse()).thenReturn(queryResponse);
+    when(searchServiceFactory.getSearchResultSet(eq(request), any(Query.class)))
+        .thenReturn(rs);
+
+    facet = new FacetField("taguuid");
+    when(queryResponse.getFacetField("taguuid")).thenReturn(facet);
+
+    addTag("uuid-a", "alpha");
+    addTag("uuid-b", "beta");
+    when(jcrSession.getNodeByIdentifier("uuid-gone")).thenThrow(
+        new ItemNotFoundException());
+  }
+
+  @Test
+  public void testFacetQuery() throws Exception {
+    Map<String, String> options = Maps.newHashMap();
+    processor.getSearchResultSet(request, new Query("taguuid:[* TO *]", options));
+
+    assertEquals("true", options.get("facet"));
+    assertEquals("taguuid", options.get("facet.field"));
+    assertEquals("0", options.get("rows"));
+    // the second page of two starts at the third tag, and one more is asked for.
+    assertEquals("2", options.get("facet.offset"));
+    assertEquals("3", options.get("facet.limit"));
+  }
+
+  @Test
+  public void testWriteTagCloud() throws Exception {
+    facet.add("uuid-a", 9);
+    facet.add("uuid-b", 4);
+    facet.add("uuid-c", 1);
+
+    JSONObject json = writeCloud();
+    assertEquals(5, json.getInt("total"));
+    JSONArray tags = json.getJSONArray("tags");
+    assertEquals(2, tags.length());
+    assertEquals("alpha", tags.getJSONObject(0).getString("name"));
+    assertEquals(9, tags.getJSONObject(0).getInt("count"));
+    assertEquals("beta", tags.getJSONObject(1).getString("name"));
+    assertEquals(4, tags.getJSONObject(1).getInt("count"));
+  }
+
+  @Test
+  public void testLastPage() throws Exception {
+    facet.add("uuid-gone", 7);
+    facet.add("uuid-b", 4);
+
+    JSONObject json = writeCloud();
+    assertEquals(4, json.getInt("total"));
+    JSONArray tags = json.getJSONArray("tags");
+    assertEquals(1, tags.length());
+    assertEquals("beta", tags.getJSONObject(0).getString("name"));
+  }
+
+  @Test
+  public void testTagNamesCached() throws Exception {
+    facet.add("uuid-a", 9);
+
+    writeCloud();
+    writeCloud();
+    verify(jcrSession, times(1)).getNodeByIdentifier("uuid-a");
+  }
+
+  private JSONObject writeCloud() throws Exception {
+    SolrSearchResultSet rs = processor.getSearchResultSet(request, new Query(
+        "taguuid:[* TO *]", Maps.<String, String> newHashMap()));
+    StringWriter out = new StringWriter();
+    processor.writeResults(request, new JSONWriter(out), rs.getResultSetIterator());
+    return new JSONObject(out.toString());
+  }
+
+  private void setParameter(String name, String value) {
+    RequestParameter param = mock(RequestParameter.class);
+    when(param.getString()).thenReturn(value);
+    when(request.getRequestParameter(name)).thenReturn(param);
+  }
+
+  private void addTag(String uuid, String name) throws Exception {
+    Node tagNode = mock(Node.class);
+    Property property = mock(Property.class);
+    when(property.getString()).thenReturn(name);
+    when(tagNode.hasProperty(FilesConstants.SAKAI_TAG_NAME)).thenReturn(true);
+    when(tagNode.getProperty(FilesConstants.SAKAI_TAG_NAME)).thenReturn(property);
+    when(jcrSession.getNodeByIdentifier(uuid)).thenReturn(tagNode);
+  }
+}
@@ -36,6 +36,10 @@ import java.util.Dictionary;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
 import javax.servlet.Filter;
@@ -55,6 +59,11 @@ import javax.servlet.http.HttpServletResponse;
  * 
  * When more than one pattern matches, the filter sets the lowest maxage of the collection
  * of matching patterns.
+ *
+ * Responses with a .requestCache age are cached, separately for each value of the request
+ * headers named by the configured Vary header. Cached responses carry an ETag and answer
+ * conditional requests with a 304. Concurrent requests for a response that is not cached
+ * wait for the first of them to produce it rather than all rendering it.
  */
 @Component(immediate = true, metatype = true)
 @Properties(value = {
@@ -98,6 +107,21 @@ public class CacheControlFilter implements Filter {
   @Property(intValue=5)
   private static final String FILTER_PRIORITY_CONF = "filter.priority";
 
+  @Property(intValue = 10, label = "Render wait", description = "Seconds a request waits for another request producing the same cacheable response, before producing it itself.")
+  static final String RENDER_WAIT_CONF = "sakai.cache.renderWait";
+
+  @Property(longValue = 0, label = "Off heap bytes", description = "If more than 0, cached responses are held outside the heap in this many bytes, rather than in the shared cache.")
+  static final String OFF_HEAP_BYTES_CONF = "sakai.cache.offheap.bytes";
+
+  /**
+   * requests producing a cacheable response, by cache key, for others to wait on.
+   */
+  private final ConcurrentMap<String, CountDownLatch> rendering = new ConcurrentHashMap<String, CountDownLatch>();
+
+  private long renderWait = 10000L;
+
+  private OffHeapResponseCache offHeapCache;
+
   
   @Reference 
   protected CacheManagerService cacheManagerService;
@@ -159,28 +183,63 @@ public class CacheControlFilter implements Filter {
       sresponse.setStatus(respCode);
       sresponse.flushBuffer();
     } else {
+      CountDownLatch rendered = null;
       if ( cacheAge > 0 ) {
-        cachedResponseManager = new CachedResponseManager(srequest, cacheAge, getCache());
+        cachedResponseManager = new CachedResponseManager(srequest, cacheAge, getCache(), headers.get("Vary"));
         if ( cachedResponseManager.isValid() ) {
-          cachedResponseManager.send(sresponse);
+          cachedResponseManager.send(srequest, sresponse);
           return;
         }
+        rendered = new CountDownLatch(1);
+        CountDownLatch other = rendering.putIfAbsent(cachedResponseManager.getKey(), rendered);
+        if ( other != null ) {
+          // another request is producing this response, use that when it is ready.
+          rendered = null;
+          if ( await(other) && cachedResponseManager.reload() ) {
+            cachedResponseManager.send(srequest, sresponse);
+            return;
+          }
+        }
       }
-      if ( !withLastModfied || !withCookies || cachedResponseManager != null ) {
-        fresponse = new FilterResponseWrapper(sresponse, withLastModfied, withCookies, cachedResponseManager != null);
-      }
-      if ( fresponse != null ) {
-        chain.doFilter(request, fresponse);
-        if ( cachedResponseManager != null ) {
-          cachedResponseManager.save(fresponse.getResponseOperation());
+      try {
+        if ( !withLastModfied || !withCookies || cachedResponseManager != null ) {
+          fresponse = new FilterResponseWrapper(sresponse, withLastModfied, withCookies, cachedResponseManager != null);
+        }
+        if ( fresponse != null ) {
+          chain.doFilter(request, fresponse);
+          if ( cachedResponseManager != null ) {
+            cachedResponseManager.save(fresponse.getResponseOperation());
+            String etag = cachedResponseManager.getETag();
+            if ( etag != null && !sresponse.isCommitted() ) {
+              // the body is still buffered, so the client that rendered it can revalidate too.
+              sresponse.setHeader("ETag", etag);
+            }
+          }
+        } else {
+          chain.doFilter(request, response);
+        }
+      } finally {
+        if ( rendered != null ) {
+          rendering.remove(cachedResponseManager.getKey(), rendered);
+          rendered.countDown();
         }
-      } else {
-        chain.doFilter(request, response);
       }
     }
   }
 
+  private boolean await(CountDownLatch latch) {
+    try {
+      return latch.await(renderWait, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
   private Cache<CachedResponse> getCache() {
+    if (offHeapCache != null) {
+      return offHeapCache;
+    }
     return cacheManagerService.getCache(CacheControlFilter.class.getName()+"-cache", CacheScope.INSTANCE);
   }
 
@@ -260,6 +319,10 @@ public class CacheControlFilter implements Filter {
       rootPathPatterns = new HashMap<Pattern, Map<String, String>>();
     }
 
+    renderWait = OsgiUtil.toInteger(properties.get(RENDER_WAIT_CONF), 10) * 1000L;
+    long offHeapBytes = OsgiUtil.toLong(properties.get(OFF_HEAP_BYTES_CONF), 0);
+    offHeapCache = (offHeapBytes > 0) ? new OffHeapResponseCache(offHeapBytes) : null;
+
     int filterPriority = OsgiUtil.toInteger(properties.get(FILTER_PRIORITY_CONF),0);
 
     extHttpService.registerFilter(this, ".*", null, filterPriority, null);
@@ -270,6 +333,9 @@ public class CacheControlFilter implements Filter {
   @Deactivate
   public void deactivate(ComponentContext componentContext) {
     extHttpService.unregisterFilter(this);
+    if (offHeapCache != null) {
+      offHeapCache.clear();
+    }
   }
 
   private Map<String, String> toMap(int starting, String[] cp) {
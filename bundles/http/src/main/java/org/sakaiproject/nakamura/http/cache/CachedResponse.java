@@ -19,7 +19,14 @@ package org.sakaiproject.nakamura.http.cache;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 /**
@@ -30,11 +37,20 @@ public class CachedResponse implements Serializable {
   /**
    * 
    */
-  private static final long serialVersionUID = -533080549451000116L;
+  private static final long serialVersionUID = -8856610118112377583L;
+  private static final String UTF8 = "UTF-8";
   private long expires;
   private Operation[] operations;
   private byte[] byteContent;
   private String stringContent;
+  private String etag;
+  private long lastModified = -1;
+  /**
+   * The body once moved out of the heap, only kept in this JVM.
+   */
+  private transient ByteBuffer offHeapContent;
+  private boolean offHeapString;
+  private int size;
 
   public CachedResponse(OperationResponseCapture responseOperation, int cacheAge) throws IOException {
     expires = System.currentTimeMillis() + cacheAge*1000L;
@@ -42,20 +58,156 @@ public class CachedResponse implements Serializable {
     operations = responseOperation.getRedoLog();
     byteContent = responseOperation.getByteContent();
     stringContent = responseOperation.getStringContent();
+    for (Operation o : operations) {
+      int op = o.getOperation();
+      if ((op == OperationResponseCapture.SET_DATE_HEADER || op == OperationResponseCapture.ADD_DATE_HEADER)
+          && "Last-Modified".equalsIgnoreCase((String) o.get(0))) {
+        lastModified = (Long) o.get(1);
+      } else if ((op == OperationResponseCapture.SET_HEADER || op == OperationResponseCapture.ADD_HEADER)
+          && "ETag".equalsIgnoreCase((String) o.get(0))) {
+        // the response already carries its own entity tag
+        etag = (String) o.get(1);
+      }
+    }
+    byte[] body = getBody();
+    size = body.length;
+    if (etag == null) {
+      etag = "\"" + digest(body) + "\"";
+    }
   }
 
   public boolean isValid() {
     return expires > System.currentTimeMillis();
   }
 
+  /**
+   * @return the entity tag of the body.
+   */
+  public String getETag() {
+    return etag;
+  }
+
+  /**
+   * @return the size of the body in bytes.
+   */
+  public int getSize() {
+    return size;
+  }
+
+  /**
+   * @param request
+   * @return true if the request is conditional and the client already has this response.
+   */
+  public boolean isNotModified(HttpServletRequest request) {
+    String ifNoneMatch = request.getHeader("If-None-Match");
+    if (ifNoneMatch != null) {
+      for (String tag : ifNoneMatch.split(",")) {
+        tag = tag.trim();
+        if (tag.startsWith("W/")) {
+          tag = tag.substring(2);
+        }
+        if ("*".equals(tag) || etag.equals(tag)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    if (lastModified > 0 && request.getHeader("If-Modified-Since") != null) {
+      try {
+        long ifModifiedSince = request.getDateHeader("If-Modified-Since");
+        return ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+      } catch (IllegalArgumentException e) {
+        return false;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Tell the client the copy it has is current.
+   * @param response
+   */
+  public void sendNotModified(HttpServletResponse response) {
+    response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    response.setHeader("ETag", etag);
+    if (lastModified > 0) {
+      response.setDateHeader("Last-Modified", lastModified);
+    }
+  }
+
+  /**
+   * Move the body out of the heap into a direct buffer, so large numbers of responses can be
+   * held without adding to garbage collection. A response moved off heap can no longer be
+   * serialized with its body.
+   * @return this response.
+   */
+  public CachedResponse moveOffHeap() {
+    if (offHeapContent == null) {
+      byte[] body = getBody();
+      ByteBuffer buffer = ByteBuffer.allocateDirect(body.length);
+      buffer.put(body);
+      buffer.flip();
+      offHeapString = stringContent != null;
+      offHeapContent = buffer;
+      byteContent = null;
+      stringContent = null;
+    }
+    return this;
+  }
+
   public void replay(HttpServletResponse response) throws IOException {
-    OperationResponseReplay responseOperation = new OperationResponseReplay(operations, byteContent, stringContent);
-    responseOperation.replay(response);
+    response.setHeader("ETag", etag);
+    ByteBuffer buffer = offHeapContent;
+    if (buffer == null) {
+      OperationResponseReplay responseOperation = new OperationResponseReplay(operations, byteContent, stringContent);
+      responseOperation.replay(response);
+      return;
+    }
+    new OperationResponseReplay(operations, null, null).replay(response);
+    if (offHeapString) {
+      // text bodies were encoded as UTF-8 when they were moved off heap.
+      response.setCharacterEncoding(UTF8);
+    }
+    // write from the direct buffer without copying the body onto the heap, using a
+    // duplicate so concurrent replays each have their own position.
+    ByteBuffer body = buffer.duplicate();
+    WritableByteChannel channel = Channels.newChannel(response.getOutputStream());
+    while (body.hasRemaining()) {
+      channel.write(body);
+    }
+  }
+
+  private byte[] getBody() {
+    try {
+      if (stringContent != null) {
+        return stringContent.getBytes(UTF8);
+      } else if (byteContent != null) {
+        return byteContent;
+      }
+      return new byte[0];
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String digest(byte[] body) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("MD5");
+      byte[] hash = md.digest(body);
+      StringBuilder sb = new StringBuilder(hash.length * 2);
+      for (byte b : hash) {
+        sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+        sb.append(Character.forDigit(b & 0xf, 16));
+      }
+      return sb.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
   }
   
   @Override
   public String toString() {
-    return "redo "+operations.length+" operations "+String.valueOf(stringContent==null?byteContent.length:stringContent.length());
+    return "redo "+operations.length+" operations "+String.valueOf(size);
   }
 
 }
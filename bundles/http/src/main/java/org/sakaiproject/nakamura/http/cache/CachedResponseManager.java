@@ -23,6 +23,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.Arrays;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -36,16 +37,59 @@ public class CachedResponseManager {
   private CachedResponse cachedResponse;
 
   public CachedResponseManager(HttpServletRequest request, int cacheAge, Cache<CachedResponse> cache) {
+    this(request, cacheAge, cache, null);
+  }
+
+  /**
+   * @param request
+   * @param cacheAge
+   * @param cache
+   * @param vary
+   *          a comma separated list of the request headers the response varies by, may be
+   *          null. Requests with different values of these headers are cached separately.
+   */
+  public CachedResponseManager(HttpServletRequest request, int cacheAge, Cache<CachedResponse> cache, String vary) {
     this.cacheAge = cacheAge;
-    this.key = hashKey(request.getPathInfo()+"?"+request.getQueryString());
+    this.key = hashKey(request.getPathInfo()+"?"+request.getQueryString(), request, vary);
     this.cache = cache;
     this.cachedResponse = load();
   }
 
-  private String hashKey(String key) {
+  private String hashKey(String key, HttpServletRequest request, String vary) {
+    if (vary == null) {
+      return key;
+    }
+    String[] names = vary.split(",");
+    for (int i = 0; i < names.length; i++) {
+      names[i] = names[i].trim().toLowerCase();
+    }
+    Arrays.sort(names);
+    StringBuilder sb = new StringBuilder(key);
+    for (String name : names) {
+      String value = (name.length() == 0) ? null : request.getHeader(name);
+      if (value != null) {
+        sb.append('\n').append(name).append(':').append(value.replaceAll("\\s", "").toLowerCase());
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * @return the key the response is cached under.
+   */
+  public String getKey() {
     return key;
   }
 
+  /**
+   * Look for the response in the cache again, after another request has produced it.
+   * @return true if the response is now cached.
+   */
+  public boolean reload() {
+    this.cachedResponse = load();
+    return isValid();
+  }
+
   /**
    * @return true if the CacheResponse is current and valid.
    */
@@ -56,7 +100,8 @@ public class CachedResponseManager {
   public void save(OperationResponseCapture responseOperation) {
     try {
       if ( responseOperation.canCache() ) {
-        cache.put(key, new CachedResponse(responseOperation, cacheAge));
+        cachedResponse = new CachedResponse(responseOperation, cacheAge);
+        cache.put(key, cachedResponse);
       }
     } catch (IOException e) {
       LOGGER.error("Failed to save response in cache ",e);
@@ -73,9 +118,30 @@ public class CachedResponseManager {
     return cachedResponse;
   }
 
+  /**
+   * @return the entity tag of the cached response, or null if there is none.
+   */
+  public String getETag() {
+    return (cachedResponse == null) ? null : cachedResponse.getETag();
+  }
+
   public void send(HttpServletResponse response) throws IOException {
     cachedResponse.replay(response);
   }
+
+  /**
+   * Send the cached response, or tell the client the copy it has is still current.
+   * @param request
+   * @param response
+   * @throws IOException
+   */
+  public void send(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    if (cachedResponse.isNotModified(request)) {
+      cachedResponse.sendNotModified(response);
+    } else {
+      cachedResponse.replay(response);
+    }
+  }
   
   @Override
   public String toString() {
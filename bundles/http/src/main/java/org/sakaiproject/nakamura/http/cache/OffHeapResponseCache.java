@@ -0,0 +1,143 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.cache;
+
+import org.sakaiproject.nakamura.api.memory.Cache;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map.Entry;
+
+/**
+ * A cache of responses held in direct buffers outside the heap, bounded by the total size of
+ * the bodies rather than the number of responses. The least recently used responses are
+ * evicted first. It is local to this JVM.
+ */
+public class OffHeapResponseCache implements Cache<CachedResponse> {
+
+  private final long maxBytes;
+  private final LinkedHashMap<String, CachedResponse> responses = new LinkedHashMap<String, CachedResponse>(
+      16, 0.75f, true);
+  private long bytes;
+
+  /**
+   * @param maxBytes
+   *          the most body bytes held.
+   */
+  public OffHeapResponseCache(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.memory.Cache#put(java.lang.String, java.lang.Object)
+   */
+  public synchronized CachedResponse put(String key, CachedResponse payload) {
+    if (payload.getSize() > maxBytes) {
+      remove(key);
+      return null;
+    }
+    CachedResponse previous = responses.put(key, payload.moveOffHeap());
+    if (previous != null) {
+      bytes -= previous.getSize();
+    }
+    bytes += payload.getSize();
+    Iterator<CachedResponse> eldest = responses.values().iterator();
+    while (bytes > maxBytes && eldest.hasNext()) {
+      bytes -= eldest.next().getSize();
+      eldest.remove();
+    }
+    return previous;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.memory.Cache#putLocal(java.lang.String, java.lang.Object)
+   */
+  public CachedResponse putLocal(String key, CachedResponse payload) {
+    return put(key, payload);
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.memory.Cache#containsKey(java.lang.String)
+   */
+  public synchronized boolean containsKey(String key) {
+    return responses.containsKey(key);
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.memory.Cache#get(java.lang.String)
+   */
+  public synchronized CachedResponse get(String key) {
+    return responses.get(key);
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.memory.Cache#clear()
+   */
+  public synchronized void clear() {
+    responses.clear();
+    bytes = 0;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.memory.Cache#remove(java.lang.String)
+   */
+  public synchronized void remove(String key) {
+    CachedResponse removed = responses.remove(key);
+    if (removed != null) {
+      bytes -= removed.getSize();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.memory.Cache#removeChildren(java.lang.String)
+   */
+  public synchronized void removeChildren(String key) {
+    Iterator<Entry<String, CachedResponse>> entries = responses.entrySet().iterator();
+    while (entries.hasNext()) {
+      Entry<String, CachedResponse> e = entries.next();
+      if (e.getKey().startsWith(key)) {
+        bytes -= e.getValue().getSize();
+        entries.remove();
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.memory.Cache#list()
+   */
+  public synchronized List<CachedResponse> list() {
+    return new ArrayList<CachedResponse>(responses.values());
+  }
+
+  /**
+   * @return the body bytes held.
+   */
+  public synchronized long getBytes() {
+    return bytes;
+  }
+}
@@ -17,6 +17,7 @@
  */
 package org.sakaiproject.nakamura.http.cache;
 
+import static org.junit.Assert.assertEquals;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
@@ -45,11 +46,18 @@ import java.io.StringWriter;
 import java.util.Dictionary;
 import java.util.Hashtable;
 import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
 import javax.servlet.ServletException;
 import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 @RunWith(MockitoJUnitRunner.class)
 public class CacheControlFilterTest {
@@ -158,9 +166,7 @@ public class CacheControlFilterTest {
 
     verify(response, Mockito.atLeastOnce()).setHeader(anyString(), anyString());
     verify(cache).put(Mockito.eq("/cacheable/config.json?null"), Matchers.any(CachedResponse.class));
-    
-    
-    
+    verify(response).setHeader(Mockito.eq("ETag"), anyString());
   }
   
   
@@ -242,6 +248,121 @@ public class CacheControlFilterTest {
   }
 
 
+  @Test
+  public void checkNotModified() throws Exception {
+    when(request.getMethod()).thenReturn("GET");
+    when(request.getPathInfo()).thenReturn("/cacheable/config.json");
+    when(cacheMangerService.getCache(CacheControlFilter.class.getName()+"-cache", CacheScope.INSTANCE)).thenReturn(cache);
+    CachedResponse cachedResponse  = populateResponseCapture(true);
+    when(cache.get("/cacheable/config.json?null")).thenReturn(cachedResponse);
+    when(request.getHeader("If-None-Match")).thenReturn(cachedResponse.getETag());
+
+    cacheControlFilter.cacheManagerService = cacheMangerService;
+    cacheControlFilter.doFilter(request, response, null);
+
+    verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    verify(response).setHeader("ETag", cachedResponse.getETag());
+    verify(response, never()).getOutputStream();
+  }
+
+  @Test
+  public void checkRequestCachingVaries() throws Exception {
+    when(request.getMethod()).thenReturn("GET");
+    when(request.getPathInfo()).thenReturn("/cacheable/config.json");
+    when(request.getHeader("accept-encoding")).thenReturn("gzip, deflate");
+    StringWriter stringWriter = new StringWriter();
+    when(response.getWriter()).thenReturn(new PrintWriter(stringWriter));
+    when(cacheMangerService.getCache(CacheControlFilter.class.getName()+"-cache", CacheScope.INSTANCE)).thenReturn(cache);
+
+    cacheControlFilter.cacheManagerService = cacheMangerService;
+    cacheControlFilter.doFilter(request, response, new TFilter(false));
+
+    verify(cache).put(Mockito.eq("/cacheable/config.json?null\naccept-encoding:gzip,deflate"), Matchers.any(CachedResponse.class));
+  }
+
+  @Test
+  public void checkConcurrentMissesRenderOnce() throws Exception {
+    Dictionary<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(CacheControlFilter.SAKAI_CACHE_PATHS, new String[] {
+        "cacheable;.requestCache:3600;Vary:Accept-Encoding" });
+    properties.put(CacheControlFilter.OFF_HEAP_BYTES_CONF, 1024L * 1024L);
+    when(componentContext.getProperties()).thenReturn(properties);
+    final CacheControlFilter filter = new CacheControlFilter();
+    filter.extHttpService = extHttpService;
+    filter.activate(componentContext);
+
+    final CountDownLatch rendering = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicInteger renders = new AtomicInteger();
+    final FilterChain slowChain = new FilterChain() {
+      public void doFilter(ServletRequest request, ServletResponse response)
+          throws IOException, ServletException {
+        renders.incrementAndGet();
+        rendering.countDown();
+        try {
+          release.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          throw new ServletException(e);
+        }
+        response.getWriter().write("rendered once");
+      }
+    };
+    final StringWriter first = new StringWriter();
+    final StringWriter second = new StringWriter();
+    final ByteArrayOutputStream secondBytes = new ByteArrayOutputStream();
+    Thread leader = new Thread() {
+      public void run() {
+        try {
+          filter.doFilter(cacheableRequest(), writingResponse(first, new ByteArrayOutputStream()), slowChain);
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    Thread follower = new Thread() {
+      public void run() {
+        try {
+          filter.doFilter(cacheableRequest(), writingResponse(second, secondBytes), slowChain);
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    leader.start();
+    rendering.await(5, TimeUnit.SECONDS);
+    follower.start();
+    // give the follower time to start waiting on the leader
+    Thread.sleep(100);
+    release.countDown();
+    leader.join(5000);
+    follower.join(5000);
+
+    assertEquals(1, renders.get());
+    assertEquals("rendered once", first.toString());
+    // the follower is replayed from the off heap cache, which writes bytes.
+    assertEquals("rendered once", second.toString() + secondBytes.toString("UTF-8"));
+  }
+
+  private HttpServletRequest cacheableRequest() {
+    HttpServletRequest r = Mockito.mock(HttpServletRequest.class);
+    when(r.getMethod()).thenReturn("GET");
+    when(r.getPathInfo()).thenReturn("/cacheable/config.json");
+    return r;
+  }
+
+  private HttpServletResponse writingResponse(StringWriter writer,
+      final ByteArrayOutputStream bytes) throws IOException {
+    HttpServletResponse r = Mockito.mock(HttpServletResponse.class);
+    when(r.getWriter()).thenReturn(new PrintWriter(writer, true));
+    when(r.getOutputStream()).thenReturn(new ServletOutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        bytes.write(b);
+      }
+    });
+    return r;
+  }
+
   private void verifyExpiresHeaderWithPath(String method, String path,
       boolean expectHeader) throws ServletException, IOException {
     when(request.getMethod()).thenReturn(method);
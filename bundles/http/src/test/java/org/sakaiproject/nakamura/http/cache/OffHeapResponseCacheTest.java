@@ -0,0 +1,100 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+
+public class OffHeapResponseCacheTest {
+
+  @Test
+  public void testBoundedByBytes() throws Exception {
+    OffHeapResponseCache cache = new OffHeapResponseCache(2500);
+    cache.put("a", bytesResponse(1000));
+    cache.put("b", bytesResponse(1000));
+    // use a so b is the least recently used
+    cache.get("a");
+    cache.put("c", bytesResponse(1000));
+
+    assertTrue(cache.containsKey("a"));
+    assertFalse(cache.containsKey("b"));
+    assertTrue(cache.containsKey("c"));
+    assertEquals(2000, cache.getBytes());
+
+    cache.put("huge", bytesResponse(3000));
+    assertNull(cache.get("huge"));
+    cache.removeChildren("a");
+    assertEquals(1000, cache.getBytes());
+  }
+
+  @Test
+  public void testReplayFromOffHeap() throws Exception {
+    OffHeapResponseCache cache = new OffHeapResponseCache(10000);
+    OperationResponseCapture capture = new OperationResponseCapture();
+    capture.setContentType("text/plain");
+    capture.getWriter(new PrintWriter(new StringWriter())).write("off heap body");
+    CachedResponse original = new CachedResponse(capture, 30);
+    String etag = original.getETag();
+    cache.put("text", original);
+
+    final ByteArrayOutputStream replayed = new ByteArrayOutputStream();
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        replayed.write(b);
+      }
+    });
+    cache.get("text").replay(response);
+    // a second hit replays the whole body again
+    replayed.reset();
+    cache.get("text").replay(response);
+
+    assertEquals("off heap body", replayed.toString("UTF-8"));
+    verify(response, times(2)).setCharacterEncoding("UTF-8");
+    assertEquals(etag, cache.get("text").getETag());
+  }
+
+  private CachedResponse bytesResponse(int size) throws IOException {
+    OperationResponseCapture capture = new OperationResponseCapture();
+    final ByteArrayOutputStream base = new ByteArrayOutputStream();
+    capture.getOutputStream(new ServletOutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        base.write(b);
+      }
+    }).write(new byte[size]);
+    return new CachedResponse(capture, 30);
+  }
+}
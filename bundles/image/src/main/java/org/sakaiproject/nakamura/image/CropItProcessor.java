@@ -25,7 +25,6 @@ import org.apache.sanselan.ImageInfo;
 import org.apache.sanselan.ImageReadException;
 import org.apache.sanselan.ImageWriteException;
 import org.apache.sanselan.Sanselan;
-import org.apache.sanselan.util.IOUtils;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.sakaiproject.nakamura.api.jcr.JCRConstants;
@@ -41,15 +40,27 @@ import org.slf4j.LoggerFactory;
 
 import java.awt.Dimension;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import javax.jcr.Binary;
 import javax.jcr.Node;
 import javax.jcr.PathNotFoundException;
@@ -61,6 +72,37 @@ public class CropItProcessor {
   private static final Logger LOGGER = LoggerFactory.getLogger(CropItProcessor.class);
 
   /**
+   * The image formats read with a region and subsampling through ImageIO, by ImageIO
+   * format name. Anything else is decoded in full with Sanselan.
+   */
+  private static final Map<String, ImageFormat> IMAGEIO_FORMATS = ImmutableMap.of(
+      "jpeg", ImageFormat.IMAGE_FORMAT_JPEG, "png", ImageFormat.IMAGE_FORMAT_PNG, "gif",
+      ImageFormat.IMAGE_FORMAT_GIF, "bmp", ImageFormat.IMAGE_FORMAT_BMP);
+
+  /**
+   * The mime types of the renditions of the images read through ImageIO.
+   */
+  private static final Map<ImageFormat, String> MIME_TYPES = ImmutableMap.of(
+      ImageFormat.IMAGE_FORMAT_JPEG, "image/jpeg", ImageFormat.IMAGE_FORMAT_PNG,
+      "image/png", ImageFormat.IMAGE_FORMAT_GIF, "image/gif", ImageFormat.IMAGE_FORMAT_BMP,
+      "image/bmp");
+
+  /**
+   * Crops and scales an image, one dimension after another in the calling thread.
+   *
+   * @see #crop(ResourceResolver, int, int, int, int, List, String, String, ExecutorService)
+   */
+  public static String[] crop(ResourceResolver resourceResolver, int x, int y, int width, int height,
+      List<Dimension> dimensions, String img, String save) throws ImageException, StorageClientException, AccessDeniedException {
+    return crop(resourceResolver, x, y, width, height, dimensions, img, save, null);
+  }
+
+  /**
+   * Cuts a piece out of an image and saves it scaled to each of the dimensions. Images
+   * ImageIO can read are streamed from the store and only the piece is decoded, skipping
+   * pixels when the piece is more than twice the size of the largest dimension, so a crop
+   * of a large upload doesn't hold the whole image in memory. Other images are read and
+   * decoded in full.
    *
    * @param session
    *          The JCR session
@@ -81,18 +123,23 @@ public class CropItProcessor {
    *          The location of the image to scale.
    * @param save
    *          The location where to save all the scaled instances.
+   * @param executor
+   *          Scales and encodes the dimensions in parallel, or null to do them one after
+   *          another in the calling thread. The renditions are saved by the calling thread.
    * @return returns an array with all the location of the scaled instances.
    * @throws ImageException
    * @throws AccessDeniedException
    * @throws StorageClientException
    */
   public static String[] crop(ResourceResolver resourceResolver, int x, int y, int width, int height,
-      List<Dimension> dimensions, String img, String save) throws ImageException, StorageClientException, AccessDeniedException {
+      List<Dimension> dimensions, String img, String save, ExecutorService executor) throws ImageException, StorageClientException, AccessDeniedException {
 
     Session session = StorageClientUtils.adaptToSession(resourceResolver.adaptTo(javax.jcr.Session.class));
     ContentManager contentManager = session.getContentManager();
 
     InputStream in = null;
+    ImageInputStream iis = null;
+    ImageReader reader = null;
 
     // The array that will contain all the cropped and resized images.
     String[] arrFiles = new String[dimensions.size()];
@@ -130,50 +177,103 @@ public class CropItProcessor {
           throw new ImageException(406, "Image "+img+" too large to crop > 100MB Si "+in.available());
         }
         try {
-
-          // NOTE: I'd prefer to use the InputStream, but I don't see a way to get the
-          // ImageInfo _and_ the BufferedImage.
-          // I've tried using a BufferedInputStream which allows you to reset, but for BMP
-          // this doesn't help.
-          byte[] bytes = IOUtils.getInputStreamBytes(in);
-          ImageInfo info = Sanselan.getImageInfo(bytes);
-          BufferedImage imgBuf = getBufferedImage(bytes, info);
+          iis = ImageIO.createImageInputStream(in);
+          reader = getImageReader(iis);
+
+          ImageFormat format;
+          String renditionMimeType;
+          int imgWidth;
+          int imgHeight;
+          BufferedImage imgBuf = null;
+          if (reader != null) {
+            format = IMAGEIO_FORMATS.get(reader.getFormatName().toLowerCase());
+            renditionMimeType = MIME_TYPES.get(format);
+            imgWidth = reader.getWidth(0);
+            imgHeight = reader.getHeight(0);
+          } else {
+            // NOTE: I'd prefer to use the InputStream, but I don't see a way to get the
+            // ImageInfo _and_ the BufferedImage.
+            // I've tried using a BufferedInputStream which allows you to reset, but for BMP
+            // this doesn't help.
+            byte[] bytes = readFully(iis);
+            ImageInfo info = Sanselan.getImageInfo(bytes);
+            format = info.getFormat();
+            renditionMimeType = info.getMimeType();
+            imgWidth = info.getWidth();
+            imgHeight = info.getHeight();
+            imgBuf = getBufferedImage(bytes, info);
+          }
 
           // Set the correct width & height.
-          width = (width <= 0) ? info.getWidth() : width;
-          height = (height <= 0) ? info.getHeight() : height;
+          width = (width <= 0) ? imgWidth : width;
+          height = (height <= 0) ? imgHeight : height;
 
-          if (x + width > info.getWidth()) {
-            width = info.getWidth() - x;
+          if (x + width > imgWidth) {
+            width = imgWidth - x;
           }
-          if (y + height > info.getHeight()) {
-            height = info.getHeight() - y;
+          if (y + height > imgHeight) {
+            height = imgHeight - y;
           }
 
-          // Cut the desired piece out of the image.
-          BufferedImage subImage = imgBuf.getSubimage(x, y, width, height);
-
-          // Loop the dimensions and create and save an image for each
-          // one.
+          // The size of each dimension.
+          final int[] widths = new int[dimensions.size()];
+          final int[] heights = new int[dimensions.size()];
+          int maxWidth = 1;
+          int maxHeight = 1;
           for (int i = 0; i < dimensions.size(); i++) {
-
             Dimension d = dimensions.get(i);
+            widths[i] = (d.width <= 0) ? imgWidth : d.width;
+            heights[i] = (d.height <= 0) ? imgHeight : d.height;
+            maxWidth = Math.max(maxWidth, widths[i]);
+            maxHeight = Math.max(maxHeight, heights[i]);
+          }
 
-            // get dimension size
-            int iWidth = d.width;
-            int iHeight = d.height;
+          // Cut the desired piece out of the image.
+          BufferedImage subImage;
+          if (reader != null) {
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceRegion(new Rectangle(x, y, width, height));
+            int subsampling = getSubsampling(width, height, maxWidth, maxHeight);
+            param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+            subImage = reader.read(0, param);
+          } else {
+            subImage = imgBuf.getSubimage(x, y, width, height);
+          }
+
+          // Scale and encode an image for each dimension from the one piece.
+          final BufferedImage piece = subImage;
+          final String name = imgName;
+          final ImageFormat renditionFormat = format;
+          List<Future<byte[]>> renditions = new ArrayList<Future<byte[]>>();
+          for (int i = 0; i < dimensions.size(); i++) {
+            final int iWidth = widths[i];
+            final int iHeight = heights[i];
+            FutureTask<byte[]> rendition = new FutureTask<byte[]>(new Callable<byte[]>() {
+              public byte[] call() throws Exception {
+                return scaleAndWriteToByteArray(iWidth, iHeight, piece, name,
+                    renditionFormat);
+              }
+            });
+            if (executor == null) {
+              rendition.run();
+            } else {
+              executor.execute(rendition);
+            }
+            renditions.add(rendition);
+          }
 
-            iWidth = (iWidth <= 0) ? info.getWidth() : iWidth;
-            iHeight = (iHeight <= 0) ? info.getHeight() : iHeight;
+          // Save each one, the session is only used from this thread.
+          for (int i = 0; i < dimensions.size(); i++) {
+            int iWidth = widths[i];
+            int iHeight = heights[i];
 
-            // Create the image.
-            byte[] image = scaleAndWriteToByteArray(iWidth, iHeight, subImage, imgName, info);
+            byte[] image = getRendition(renditions.get(i));
 
             if ( image != null ) {
 
               String sPath = save + "/" + iWidth + "x" + iHeight + "_" + imgName;
               // Save new image to JCR.
-              saveImageToContentStore(sPath, info.getMimeType(), image, session);
+              saveImageToContentStore(sPath, renditionMimeType, image, session);
 
               arrFiles[i] = sPath;
             } else {
@@ -186,10 +286,6 @@ public class CropItProcessor {
           LOGGER.error("Can't parse this format. Image {}, mime Type {} :{}", new Object[]{img, mimeType, e.getMessage()});
           LOGGER.debug("Cause: ", e);
           throw new ImageException(406, "Can't parse this format.  Image "+img+", mime Type "+mimeType);
-        } catch (ImageWriteException e) {
-          LOGGER.error("Can't crop this Image {}, mime Type {}  :{} ", new Object[]{img, mimeType, e.getMessage()});
-          LOGGER.debug("Cause: ", e);
-          throw new ImageException(406, "Can't crop this Image "+img+", mime Type "+mimeType);
         }
 
     } catch (IOException e) {
@@ -206,6 +302,16 @@ public class CropItProcessor {
       throw new ImageException(500, "Unable to read image in order to crop it.");
     } finally {
       // close the streams
+      if (reader != null) {
+        reader.dispose();
+      }
+      if (iis != null) {
+        try {
+          iis.close();
+        } catch (IOException e) {
+          LOGGER.debug("Exception closing imageinputstream.");
+        }
+      }
       if (in != null) {
         try {
           in.close();
@@ -217,6 +323,73 @@ public class CropItProcessor {
     return arrFiles;
   }
 
+  /**
+   * @param iis
+   * @return a reader positioned on the stream for an image in one of the
+   *         {@link #IMAGEIO_FORMATS}, or null if the image is in some other format.
+   */
+  private static ImageReader getImageReader(ImageInputStream iis) {
+    if (iis == null) {
+      return null;
+    }
+    Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+    while (readers.hasNext()) {
+      ImageReader reader = readers.next();
+      try {
+        if (IMAGEIO_FORMATS.containsKey(reader.getFormatName().toLowerCase())) {
+          reader.setInput(iis, true, true);
+          return reader;
+        }
+      } catch (IOException e) {
+        LOGGER.debug("No format name for reader {}", reader);
+      }
+      reader.dispose();
+    }
+    return null;
+  }
+
+  /**
+   * @return how many pixels to step over when decoding a piece of width by height, keeping
+   *         at least twice the largest dimension so scaling it down stays smooth.
+   */
+  protected static int getSubsampling(int width, int height, int maxWidth, int maxHeight) {
+    return Math.max(1, Math.min(width / (2 * maxWidth), height / (2 * maxHeight)));
+  }
+
+  /**
+   * @param iis
+   * @return the rest of the stream.
+   * @throws IOException
+   */
+  private static byte[] readFully(ImageInputStream iis) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    if (iis != null) {
+      byte[] buffer = new byte[8192];
+      for (int i = iis.read(buffer); i >= 0; i = iis.read(buffer)) {
+        out.write(buffer, 0, i);
+      }
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * @param rendition
+   * @return the encoded rendition, or null if it could not be made.
+   * @throws ImageException
+   *           if interrupted while waiting for it.
+   */
+  private static byte[] getRendition(Future<byte[]> rendition) throws ImageException {
+    try {
+      return rendition.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ImageException(500, "Interrupted while cropping the image.");
+    } catch (ExecutionException e) {
+      LOGGER.error("Failed to process image " + e.getCause().getMessage(), e.getCause());
+      return null;
+    }
+  }
+
   /**
    * @param bytes
    * @param info
@@ -314,6 +487,27 @@ public class CropItProcessor {
   protected static byte[] scaleAndWriteToByteArray(int width, int height,
       BufferedImage img, String imgName, ImageInfo info) throws IOException,
       ImageWriteException {
+    return scaleAndWriteToByteArray(width, height, img, imgName, info.getFormat());
+  }
+
+  /**
+   * This method will scale an image to a desired width and height and shall output the
+   * stream of that scaled image.
+   *
+   * @param width
+   *          The desired width of the scaled image.
+   * @param height
+   *          The desired height of the scaled image.
+   * @param img
+   *          The image that you want to scale
+   * @param imgName
+   *          Filename of the image
+   * @param format
+   *          The format to write the scaled image in.
+   * @return Returns the bytes of the scaled image, or null if it could not be scaled.
+   */
+  protected static byte[] scaleAndWriteToByteArray(int width, int height,
+      BufferedImage img, String imgName, ImageFormat format) {
     try {
       // Get a scaled image.
       BufferedImage imgScaled = getScaledInstance(img, width, height);
@@ -322,12 +516,12 @@ public class CropItProcessor {
       ByteArrayOutputStream out = new ByteArrayOutputStream();
 
       // Write to stream.
-      if (info.getFormat() == ImageFormat.IMAGE_FORMAT_JPEG) {
+      if (format == ImageFormat.IMAGE_FORMAT_JPEG) {
         ImageIO.write(imgScaled, "jpg", out);
-      } else if (info.getFormat() == ImageFormat.IMAGE_FORMAT_PNG) {
+      } else if (format == ImageFormat.IMAGE_FORMAT_PNG) {
         ImageIO.write(imgScaled, "png", out);
       } else {
-        Sanselan.writeImage(imgScaled, out, info.getFormat(), null);
+        Sanselan.writeImage(imgScaled, out, format, null);
       }
       out.close();
       return out.toByteArray();
@@ -358,6 +552,14 @@ public class CropItProcessor {
     // until the target size is reached
     int w = img.getWidth();
     int h = img.getHeight();
+    // images decoded by ImageIO can have a custom type, which can't be created, and
+    // palette images would be quantised again at every step, so scale both in full colour
+    int type = img.getType();
+    if (type == BufferedImage.TYPE_CUSTOM || type == BufferedImage.TYPE_BYTE_INDEXED
+        || type == BufferedImage.TYPE_BYTE_BINARY) {
+      type = img.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB
+          : BufferedImage.TYPE_INT_RGB;
+    }
 
     while (w > targetWidth || h > targetHeight) {
       // Bit shifting by one is faster than dividing by 2.
@@ -372,7 +574,7 @@ public class CropItProcessor {
         h = targetHeight;
       }
 
-      BufferedImage tmp = new BufferedImage(w, h, img.getType());
+      BufferedImage tmp = new BufferedImage(w, h, type);
       Graphics2D g2 = tmp.createGraphics();
       g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
           RenderingHints.VALUE_INTERPOLATION_BILINEAR);
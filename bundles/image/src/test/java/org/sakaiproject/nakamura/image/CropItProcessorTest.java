@@ -48,6 +48,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.imageio.ImageIO;
 import javax.jcr.RepositoryException;
@@ -89,6 +91,14 @@ public class CropItProcessorTest {
     assertEquals(50, croppedImg.getHeight());
   }
 
+  @Test
+  public void testGetScaledInstanceOfPaletteImage() {
+    BufferedImage gif = new BufferedImage(200, 200, BufferedImage.TYPE_BYTE_INDEXED);
+    BufferedImage scaled = CropItProcessor.getScaledInstance(gif, 50, 50);
+    assertEquals(50, scaled.getWidth());
+    assertEquals(BufferedImage.TYPE_INT_RGB, scaled.getType());
+  }
+
   @Test
   public void testInvalidImage() throws RepositoryException, StorageClientException, AccessDeniedException {
     node.setProperty("path", "/path/to/the/file/foo.bar");
@@ -133,6 +143,51 @@ public class CropItProcessorTest {
     }
   }
 
+  @Test
+  public void testCropStreamsRegion() throws Exception {
+    session.getContentManager().writeBody(img, getClass().getResourceAsStream("people.png"));
+    node = session.getContentManager().get(img);
+    ResourceResolver resourceResolver = mock(ResourceResolver.class);
+    SparseContentResource someResource = mock(SparseContentResource.class);
+    when(someResource.adaptTo(Content.class)).thenReturn(node);
+    JackrabbitSession jrSession = mock(JackrabbitSession.class);
+    SparseMapUserManager userManager = mock(SparseMapUserManager.class);
+    when(userManager.getSession()).thenReturn(session);
+    when(jrSession.getUserManager()).thenReturn(userManager);
+    when(resourceResolver.adaptTo(javax.jcr.Session.class)).thenReturn(jrSession);
+    when(resourceResolver.getResource(anyString())).thenReturn(someResource);
+    dimensions.add(new Dimension(20, 20));
+    dimensions.add(new Dimension(64, 64));
+
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      String[] files = CropItProcessor.crop(resourceResolver, x, y, width, height,
+          dimensions, img, save, executor);
+      assertEquals(3, files.length);
+      for (int i = 0; i < files.length; i++) {
+        Dimension d = dimensions.get(i);
+        assertEquals(save + "/" + d.width + "x" + d.height + "_people.png", files[i]);
+        assertEquals("image/png", session.getContentManager().get(files[i]).getProperty(
+            "mimeType"));
+        BufferedImage rendition = ImageIO.read(session.getContentManager().getInputStream(
+            files[i]));
+        assertEquals(d.width, rendition.getWidth());
+        assertEquals(d.height, rendition.getHeight());
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testSubsampling() {
+    // never below twice the largest dimension
+    assertEquals(1, CropItProcessor.getSubsampling(100, 100, 50, 50));
+    assertEquals(2, CropItProcessor.getSubsampling(400, 400, 64, 100));
+    assertEquals(25, CropItProcessor.getSubsampling(4000, 3000, 32, 32));
+    assertEquals(1, CropItProcessor.getSubsampling(4000, 3000, 4000, 3000));
+  }
+
   @Test
   public void testscaleAndWriteToStream() throws IOException, ImageWriteException,
       ImageReadException {
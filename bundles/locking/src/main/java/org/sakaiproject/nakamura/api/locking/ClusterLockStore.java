@@ -0,0 +1,48 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.locking;
+
+/**
+ * Shared storage for cluster lock leases. The store must be visible to every node in the
+ * cluster and compareAndSet must be atomic across the cluster, it is the only thing that
+ * provides mutual exclusion between nodes.
+ */
+public interface ClusterLockStore {
+
+  /**
+   * @param id
+   *          the locked id.
+   * @return the current lease for the id, or null if the id has never been locked.
+   */
+  LockLease get(String id);
+
+  /**
+   * Replace the lease for an id, only if it has not changed since it was read.
+   *
+   * @param id
+   *          the locked id.
+   * @param expected
+   *          the lease as it was read, null if there was none.
+   * @param update
+   *          the new lease.
+   * @return true if the lease was replaced, false if it had changed or the store could
+   *         not tell, in which case the caller should read again and retry.
+   */
+  boolean compareAndSet(String id, LockLease expected, LockLease update);
+
+}
@@ -0,0 +1,138 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.locking;
+
+import java.io.Serializable;
+
+/**
+ * An immutable record of the cluster wide lease on a lock id. The token is incremented
+ * every time the lease changes hands and is never reused for the same id, so it can be
+ * used as a fencing token by anything that writes under the lock. A released lease keeps
+ * its token and has no server.
+ */
+public final class LockLease implements Serializable {
+
+  /**
+   *
+   */
+  private static final long serialVersionUID = 3155862924812052186L;
+  private final String id;
+  private final String serverId;
+  private final long ownerId;
+  private final long token;
+  private final long expires;
+
+  /**
+   * @param id
+   *          the locked id.
+   * @param serverId
+   *          the cluster server holding the lease, null if released.
+   * @param ownerId
+   *          the thread on that server holding the lease.
+   * @param token
+   *          the fencing token.
+   * @param expires
+   *          the time at which the lease lapses unless renewed.
+   */
+  public LockLease(String id, String serverId, long ownerId, long token, long expires) {
+    this.id = id;
+    this.serverId = serverId;
+    this.ownerId = ownerId;
+    this.token = token;
+    this.expires = expires;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public String getServerId() {
+    return serverId;
+  }
+
+  public long getOwnerId() {
+    return ownerId;
+  }
+
+  public long getToken() {
+    return token;
+  }
+
+  public long getExpires() {
+    return expires;
+  }
+
+  /**
+   * @param now
+   * @return true if the lease is held and has not lapsed.
+   */
+  public boolean isHeld(long now) {
+    return serverId != null && expires > now;
+  }
+
+  /**
+   * @return a copy of this lease with a new expiry.
+   */
+  public LockLease renew(long expires) {
+    return new LockLease(id, serverId, ownerId, token, expires);
+  }
+
+  /**
+   * @return a copy of this lease that is released.
+   */
+  public LockLease release() {
+    return new LockLease(id, null, 0L, token, 0L);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.lang.Object#equals(java.lang.Object)
+   */
+  @Override
+  public boolean equals(Object obj) {
+    if (!(obj instanceof LockLease)) {
+      return false;
+    }
+    LockLease other = (LockLease) obj;
+    return id.equals(other.id) && token == other.token && ownerId == other.ownerId
+        && expires == other.expires
+        && (serverId == null ? other.serverId == null : serverId.equals(other.serverId));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.lang.Object#hashCode()
+   */
+  @Override
+  public int hashCode() {
+    return id.hashCode() ^ (int) (token ^ (token >>> 32));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    return id + " token " + token + " held by " + serverId + ":" + ownerId + " until "
+        + expires;
+  }
+}
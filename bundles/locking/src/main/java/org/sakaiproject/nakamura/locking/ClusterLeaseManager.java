@@ -0,0 +1,216 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.locking;
+
+import org.sakaiproject.nakamura.api.cluster.ClusterServer;
+import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
+import org.sakaiproject.nakamura.api.locking.ClusterLockStore;
+import org.sakaiproject.nakamura.api.locking.LockLease;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Takes, renews and releases cluster wide leases for locks held by one node. A lease held
+ * by another server blocks this node until it is released, it lapses, or the server stops
+ * being listed by the {@link ClusterTrackingService}, whichever comes first.
+ */
+public class ClusterLeaseManager implements Runnable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ClusterLeaseManager.class);
+  /**
+   * Attempts at a compare and set before reporting the lock as held.
+   */
+  private static final int CAS_RETRIES = 5;
+
+  private final ClusterLockStore store;
+  private final ClusterTrackingService clusterTrackingService;
+  private final long leaseTime;
+  private final Map<String, HeldLease> held = new ConcurrentHashMap<String, HeldLease>();
+
+  /**
+   * @param store
+   *          the shared lease store.
+   * @param clusterTrackingService
+   *          used to identify this server and to find which servers are alive.
+   * @param leaseTime
+   *          the time in ms a lease lasts without renewal.
+   */
+  public ClusterLeaseManager(ClusterLockStore store,
+      ClusterTrackingService clusterTrackingService, long leaseTime) {
+    this.store = store;
+    this.clusterTrackingService = clusterTrackingService;
+    this.leaseTime = leaseTime;
+  }
+
+  /**
+   * Try once to take the lease for a lock already held locally by the thread.
+   *
+   * @param lock
+   *          the local lock.
+   * @return the lease now in the store, which belongs to the lock if
+   *         {@link #isOwnedBy(LockLease, LockImpl)}, otherwise it is held elsewhere.
+   */
+  public LockLease acquire(LockImpl lock) {
+    String id = lock.getLocked();
+    String serverId = clusterTrackingService.getCurrentServerId();
+    LockLease current = null;
+    for (int i = 0; i < CAS_RETRIES; i++) {
+      long now = System.currentTimeMillis();
+      current = store.get(id);
+      if (current != null && isOwnedBy(current, lock)) {
+        held.put(id, new HeldLease(current, lock));
+        return current;
+      }
+      // a lease held by this server was left by a thread that no longer holds the local
+      // lock, the local lock manager already guarantees exclusion within the server.
+      if (current != null && current.isHeld(now) && !serverId.equals(current.getServerId())
+          && isServerAlive(current.getServerId())) {
+        return current;
+      }
+      long token = (current == null) ? 1L : current.getToken() + 1;
+      LockLease update = new LockLease(id, serverId, lock.getOwnerId(), token, now
+          + leaseTime);
+      if (store.compareAndSet(id, current, update)) {
+        if (current != null && current.isHeld(now)) {
+          LOGGER.info("Took over lease {} ", current);
+        }
+        held.put(id, new HeldLease(update, lock));
+        return update;
+      }
+    }
+    return current;
+  }
+
+  /**
+   * @param lease
+   * @param lock
+   * @return true if the lease belongs to the local lock.
+   */
+  public boolean isOwnedBy(LockLease lease, LockImpl lock) {
+    return lease != null && lease.getServerId() != null
+        && lease.getServerId().equals(clusterTrackingService.getCurrentServerId())
+        && lease.getOwnerId() == lock.getOwnerId();
+  }
+
+  /**
+   * Release the lease held for the lock, if there is one.
+   *
+   * @param lock
+   */
+  public void release(LockImpl lock) {
+    HeldLease h = held.get(lock.getLocked());
+    if (h == null || h.lock != lock) {
+      return;
+    }
+    held.remove(lock.getLocked());
+    for (int i = 0; i < CAS_RETRIES; i++) {
+      LockLease current = store.get(lock.getLocked());
+      if (current == null || current.getToken() != h.lease.getToken()
+          || current.getServerId() == null) {
+        // somebody else has it now.
+        return;
+      }
+      if (store.compareAndSet(lock.getLocked(), current, current.release())) {
+        return;
+      }
+    }
+    LOGGER.warn("Failed to release lease {}, it will lapse ", h.lease);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * Renew every lease held by this server, marking locks whose lease has been lost as
+   * unlocked. Invoked periodically by the lock manager.
+   *
+   * @see java.lang.Runnable#run()
+   */
+  public void run() {
+    for (Entry<String, HeldLease> e : held.entrySet()) {
+      HeldLease h = e.getValue();
+      if (!h.lock.isLocked()) {
+        held.remove(e.getKey());
+        continue;
+      }
+      try {
+        LockLease current = store.get(e.getKey());
+        LockLease renewed = null;
+        if (current != null && current.getToken() == h.lease.getToken()
+            && isOwnedBy(current, h.lock)) {
+          renewed = current.renew(System.currentTimeMillis() + leaseTime);
+          if (!store.compareAndSet(e.getKey(), current, renewed)) {
+            // try again next time round, the lease is still ours until it lapses.
+            continue;
+          }
+        }
+        if (renewed == null) {
+          LOGGER.warn("Lost lease on {}, now {} ", e.getKey(), current);
+          held.remove(e.getKey());
+          h.lock.setLocked(false);
+        } else {
+          h.lease = renewed;
+        }
+      } catch (RuntimeException ex) {
+        LOGGER.warn("Failed to renew lease on {} {} ", e.getKey(), ex.getMessage());
+      }
+    }
+  }
+
+  /**
+   * @return the number of leases held by this server.
+   */
+  public int getHeldLeases() {
+    return held.size();
+  }
+
+  /**
+   * @param lock
+   * @return the lease held for the lock, or null.
+   */
+  public LockLease getLease(LockImpl lock) {
+    HeldLease h = held.get(lock.getLocked());
+    return (h == null || h.lock != lock) ? null : h.lease;
+  }
+
+  private boolean isServerAlive(String serverId) {
+    for (ClusterServer server : clusterTrackingService.getAllServers()) {
+      if (serverId.equals(server.getServerId())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * A lease and the local lock it was taken for.
+   */
+  private static class HeldLease {
+    private volatile LockLease lease;
+    private final LockImpl lock;
+
+    HeldLease(LockLease lease, LockImpl lock) {
+      this.lease = lease;
+      this.lock = lock;
+    }
+  }
+
+}
@@ -0,0 +1,173 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.locking;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.sakaiproject.nakamura.api.locking.ClusterLockStore;
+import org.sakaiproject.nakamura.api.locking.LockLease;
+import org.sakaiproject.nakamura.util.JcrUtils;
+import org.sakaiproject.nakamura.util.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.UnsupportedEncodingException;
+import java.security.NoSuchAlgorithmException;
+
+import javax.jcr.InvalidItemStateException;
+import javax.jcr.ItemExistsException;
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ * Stores cluster lock leases as nodes in the shared JCR repository. Compare and set
+ * relies on the repository rejecting a save of an item that was changed by another
+ * session (or cluster node) since it was read. The lease nodes and their parents are
+ * sling:Folders, which don't allow same name siblings, so of two sessions creating the
+ * same lease at once only the first save succeeds.
+ */
+@Component(immediate = true, label = "JCR Cluster Lock Store", description = "Stores cluster lock leases in the JCR repository")
+@Service(value = ClusterLockStore.class)
+public class JcrClusterLockStore implements ClusterLockStore {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(JcrClusterLockStore.class);
+  private static final String LOCK_ROOT = "/var/cluster/locks";
+  private static final String LOCK_NODE_TYPE = "sling:Folder";
+  private static final String PROP_ID = "sakai:lockId";
+  private static final String PROP_SERVER = "sakai:lockServer";
+  private static final String PROP_OWNER = "sakai:lockOwner";
+  private static final String PROP_TOKEN = "sakai:lockToken";
+  private static final String PROP_EXPIRES = "sakai:lockExpires";
+
+  @Property(value = "The Sakai Foundation")
+  static final String SERVICE_VENDOR = "service.vendor";
+
+  @Reference
+  protected SlingRepository slingRepository;
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.locking.ClusterLockStore#get(java.lang.String)
+   */
+  public LockLease get(String id) {
+    Session session = null;
+    try {
+      session = slingRepository.loginAdministrative(null);
+      String path = getPath(id);
+      if (!session.itemExists(path)) {
+        return null;
+      }
+      return read((Node) session.getItem(path));
+    } catch (RepositoryException e) {
+      LOGGER.warn("Unable to read lease for {} {} ", id, e.getMessage());
+      throw new IllegalStateException(e);
+    } finally {
+      if (session != null) {
+        session.logout();
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.locking.ClusterLockStore#compareAndSet(java.lang.String,
+   *      org.sakaiproject.nakamura.api.locking.LockLease,
+   *      org.sakaiproject.nakamura.api.locking.LockLease)
+   */
+  public boolean compareAndSet(String id, LockLease expected, LockLease update) {
+    Session session = null;
+    try {
+      session = slingRepository.loginAdministrative(null);
+      String path = getPath(id);
+      Node node;
+      if (expected == null) {
+        if (session.itemExists(path)) {
+          return false;
+        }
+        int i = path.lastIndexOf('/');
+        Node parent = JcrUtils.deepGetOrCreateNode(session, path.substring(0, i),
+            LOCK_NODE_TYPE);
+        node = parent.addNode(path.substring(i + 1), LOCK_NODE_TYPE);
+      } else {
+        if (!session.itemExists(path)) {
+          return false;
+        }
+        node = (Node) session.getItem(path);
+        if (!expected.equals(read(node))) {
+          return false;
+        }
+      }
+      node.setProperty(PROP_ID, update.getId());
+      node.setProperty(PROP_SERVER, update.getServerId());
+      node.setProperty(PROP_OWNER, update.getOwnerId());
+      node.setProperty(PROP_TOKEN, update.getToken());
+      node.setProperty(PROP_EXPIRES, update.getExpires());
+      session.save();
+      return true;
+    } catch (ItemExistsException e) {
+      // created by somebody else since we looked.
+      return false;
+    } catch (InvalidItemStateException e) {
+      // changed by somebody else since we read it.
+      return false;
+    } catch (RepositoryException e) {
+      LOGGER.warn("Unable to update lease for {} {} ", id, e.getMessage());
+      return false;
+    } finally {
+      if (session != null) {
+        session.logout();
+      }
+    }
+  }
+
+  private LockLease read(Node node) throws RepositoryException {
+    String serverId = null;
+    if (node.hasProperty(PROP_SERVER)) {
+      serverId = node.getProperty(PROP_SERVER).getString();
+    }
+    return new LockLease(node.getProperty(PROP_ID).getString(), serverId, node
+        .getProperty(PROP_OWNER).getLong(), node.getProperty(PROP_TOKEN).getLong(), node
+        .getProperty(PROP_EXPIRES).getLong());
+  }
+
+  /**
+   * Lock ids are paths, so they are hashed into a fixed depth tree to keep the number of
+   * children of any one node small.
+   *
+   * @param id
+   * @return the path of the node holding the lease.
+   */
+  private String getPath(String id) {
+    try {
+      String hash = StringUtils.sha1Hash(id);
+      return LOCK_ROOT + "/" + hash.substring(0, 2) + "/" + hash.substring(2, 4) + "/"
+          + hash;
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+}
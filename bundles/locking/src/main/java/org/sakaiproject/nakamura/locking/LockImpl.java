@@ -101,6 +101,13 @@ public class LockImpl implements Lock, ThreadBound {
     return String.valueOf(ownerId);
   }
 
+  /**
+   * @return the id of the thread that owns the lock.
+   */
+  protected long getOwnerId() {
+    return ownerId;
+  }
+
   /**
    * {@inheritDoc}
    * @return true if the lock is bound to the same lock manager as the orriginating manager.
@@ -159,4 +166,12 @@ public class LockImpl implements Lock, ThreadBound {
   public long getLockId() {
     return lockId;
   }
+
+  /**
+   * @param lockId
+   *          the lock id, set to the lease token when the lock is leased from the cluster.
+   */
+  protected void setLockId(long lockId) {
+    this.lockId = lockId;
+  }
 }
@@ -20,11 +20,19 @@ package org.sakaiproject.nakamura.locking;
 
 import edu.umd.cs.findbugs.annotations.SuppressWarnings;
 
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
+import org.sakaiproject.nakamura.api.locking.ClusterLockStore;
 import org.sakaiproject.nakamura.api.locking.Lock;
+import org.sakaiproject.nakamura.api.locking.LockLease;
 import org.sakaiproject.nakamura.api.locking.LockManager;
 import org.sakaiproject.nakamura.api.locking.LockTimeoutException;
 import org.sakaiproject.nakamura.api.memory.Cache;
@@ -33,23 +41,41 @@ import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.lang.management.ManagementFactory;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 /**
- * A lock manager that uses a cluster replicated cache to manage the locks
+ * A lock manager that holds locks in JVM. Lock state is split over a number of stripes,
+ * each guarded by its own mutex, so unrelated ids do not contend. Threads waiting for a
+ * lock queue on the id and park until the holder unlocks, at which point the lock is
+ * handed directly to the thread at the head of the queue.
+ * <p>
+ * With the cluster backend a thread that holds the local lock must also take a lease on
+ * the id from the {@link ClusterLockStore} before the lock is granted, so only one thread
+ * in the whole cluster holds a lock. The lease token becomes the lock id and can be used
+ * as a fencing token.
+ * </p>
  */
-@Component(immediate = true)
+@Component(immediate = true, metatype = true)
 @Service
 @SuppressWarnings(justification="Circular dependency noted ", value={"CD_CIRCULAR_DEPENDENCY"})
 public class LockManagerImpl implements LockManager {
 
-  /**
-   * The name of the cluster replicated cache. This cache must be configured with a
-   * suitable expiry to allow removal o stale locks and configured with a cluster wide
-   * replication.
-   */
-  private static final String LOCKMAP = "lockmanager.lockmap";
   /**
    *
    */
@@ -69,15 +95,44 @@ public class LockManagerImpl implements LockManager {
   @Property(value = "In JVM Lock Manager")
   static final String SERVICE_DESCRIPTION = "service.description";
 
+  private static final int DEFAULT_STRIPES = 64;
+  @Property(intValue = DEFAULT_STRIPES, description = "The number of independent mutexes lock ids are spread over")
+  static final String LOCK_STRIPES = "lock.stripes";
+
+  /**
+   * The longest the polling lock manager waited: 300 tries, sleeping 110 ms rising by
+   * 10 ms a try to 500 ms.
+   */
+  private static final long DEFAULT_TIMEOUT = 142200L;
+  @Property(longValue = DEFAULT_TIMEOUT, description = "The time in ms waitForLock waits before failing with a LockTimeoutException")
+  static final String LOCK_TIMEOUT = "lock.timeout";
+
+  private static final long DEFAULT_EXPIRY = 600000L;
+  @Property(longValue = DEFAULT_EXPIRY, description = "The time in ms after which a held lock is considered stale and may be broken")
+  static final String LOCK_EXPIRY = "lock.expiry";
+
+  static final String BACKEND_LOCAL = "local";
+  static final String BACKEND_CLUSTER = "cluster";
+  @Property(value = BACKEND_LOCAL, options = {
+      @org.apache.felix.scr.annotations.PropertyOption(name = BACKEND_LOCAL, value = "Locks held in this JVM only"),
+      @org.apache.felix.scr.annotations.PropertyOption(name = BACKEND_CLUSTER, value = "Locks leased cluster wide from the ClusterLockStore") }, description = "Where locks are held")
+  static final String LOCK_BACKEND = "lock.backend";
+
+  private static final long DEFAULT_LEASE = 30000L;
+  @Property(longValue = DEFAULT_LEASE, description = "The time in ms a cluster lease lasts without renewal, leases are renewed every third of this time")
+  static final String LOCK_LEASE = "lock.lease";
+
   /**
    * Service dependency, the Cache Manager
    */
   @Reference
   private CacheManagerService cacheManagerService;
-  /**
-   * container for Locks.
-   */
-  private Cache<LockImpl> lockMap;
+
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+  private ClusterLockStore clusterLockStore;
+
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+  private ClusterTrackingService clusterTrackingService;
   /**
    * The id of this instance of this class.
    */
@@ -100,7 +155,19 @@ public class LockManagerImpl implements LockManager {
       return random.nextLong();
     }
   };
-  private Object monitor = new Object();
+  /**
+   * Source of lock ids, avoiding the SecureRandom monitor on every lock.
+   */
+  private AtomicLong lockIds;
+  private LockStripe[] stripes;
+  private long lockTimeout = DEFAULT_TIMEOUT;
+  private long lockExpiry = DEFAULT_EXPIRY;
+  private LockManagerStatistics statistics = new LockManagerStatistics();
+  private ObjectName statisticsName;
+  private boolean clusterBackend;
+  private long leaseTime = DEFAULT_LEASE;
+  private volatile ClusterLeaseManager leaseManager;
+  private ScheduledExecutorService leaseRenewer;
 
   /**
    * @throws NoSuchAlgorithmException
@@ -110,6 +177,65 @@ public class LockManagerImpl implements LockManager {
       throws NoSuchAlgorithmException {
     random = SecureRandom.getInstance("SHA1PRNG");
     instanceId = random.nextLong();
+    lockIds = new AtomicLong(random.nextLong());
+    stripes = createStripes(DEFAULT_STRIPES);
+  }
+
+  @Activate
+  protected void activate(Map<?, ?> props) {
+    int nstripes = OsgiUtil.toInteger(props.get(LOCK_STRIPES), DEFAULT_STRIPES);
+    if (nstripes != stripes.length && nstripes > 0) {
+      stripes = createStripes(nstripes);
+    }
+    lockTimeout = OsgiUtil.toLong(props.get(LOCK_TIMEOUT), DEFAULT_TIMEOUT);
+    lockExpiry = OsgiUtil.toLong(props.get(LOCK_EXPIRY), DEFAULT_EXPIRY);
+    leaseTime = OsgiUtil.toLong(props.get(LOCK_LEASE), DEFAULT_LEASE);
+    clusterBackend = BACKEND_CLUSTER.equals(OsgiUtil.toString(props.get(LOCK_BACKEND),
+        BACKEND_LOCAL));
+    updateLeaseManager();
+    if (clusterBackend) {
+      leaseRenewer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "Lock Lease Renewer");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+      long period = Math.max(leaseTime / 3, 1L);
+      leaseRenewer.scheduleWithFixedDelay(new Runnable() {
+        public void run() {
+          ClusterLeaseManager lm = leaseManager;
+          if (lm != null) {
+            lm.run();
+          }
+        }
+      }, period, period, TimeUnit.MILLISECONDS);
+    }
+    try {
+      statisticsName = new ObjectName("org.sakaiproject.nakamura:type=LockManager,instance="
+          + instanceId);
+      ManagementFactory.getPlatformMBeanServer().registerMBean(statistics, statisticsName);
+    } catch (JMException e) {
+      LOGGER.warn("Unable to register lock manager statistics {} ", e.getMessage());
+      statisticsName = null;
+    }
+  }
+
+  @Deactivate
+  protected void deactivate(Map<?, ?> props) {
+    if (leaseRenewer != null) {
+      leaseRenewer.shutdown();
+      leaseRenewer = null;
+    }
+    if (statisticsName != null) {
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      try {
+        mBeanServer.unregisterMBean(statisticsName);
+      } catch (JMException e) {
+        LOGGER.debug(e.getMessage(), e);
+      }
+      statisticsName = null;
+    }
   }
 
   public Lock getLock(String id) {
@@ -117,26 +243,43 @@ public class LockManagerImpl implements LockManager {
   }
 
   /**
+   * Get the lock on an id without waiting. When the id is held on another server, the
+   * local lock is given up and a lock standing for the remote holder is returned, with the
+   * token and owner of its lease and an instance that is never this one, so
+   * {@link Lock#isLocal()} and {@link Lock#isOwner()} are false. It only describes the
+   * holder, it can't be unlocked from here.
+   *
    * @param id
-   * @return
+   * @param create
+   *          if true and nobody holds the lock, take it.
+   * @return the lock, or null if nobody holds it and create is false.
    */
   public Lock getLock(String id, boolean create) {
-    LockImpl lock = lockMap.get(id);
-    if (create) {
-      if (lock == null || !lock.isLocked()) {
-        synchronized (monitor) {
-          lock = lockMap.get(id);
-          if (lock == null || !lock.isLocked()) {
-            Cache<LockImpl> requestLocks = getRequestLocks();
-            lock = new LockImpl(id, random.nextLong(), threadId.get(), instanceId);
-            lockMap.put(id, lock);
-            requestLocks.put(id, lock);
-          }
-        }
+    LockStripe stripe = getStripe(id);
+    LockImpl lock = null;
+    stripe.mutex.lock();
+    try {
+      LockState state = getState(stripe, id);
+      if (state != null) {
+        lock = state.holder;
+      } else if (create) {
+        lock = grant(stripe, id, threadId.get());
       }
+    } finally {
+      stripe.mutex.unlock();
     }
-    if (lock != null) {
-      lock.bind(this);
+    lock = bind(lock);
+    ClusterLeaseManager lm = leaseManager;
+    if (lock != null && lm != null && lock.isOwner() && lm.getLease(lock) == null) {
+      LockLease lease = lm.acquire(lock);
+      if (lm.isOwnedBy(lease, lock)) {
+        lock.setLockId(lease.getToken());
+      } else {
+        // held on another server, give up the local lock and report the remote holder.
+        lock.unlock();
+        lock = new LockImpl(id, lease.getToken(), lease.getOwnerId(), ~instanceId);
+        lock.bind(this);
+      }
     }
     return lock;
   }
@@ -154,13 +297,26 @@ public class LockManagerImpl implements LockManager {
    * @param lock
    */
   protected void unlock(LockImpl lock) {
-    if (lock.isOwner() && lock.isLocked()) {
+    // a lock whose cluster lease was lost is already marked unlocked, but is still held
+    // locally until the owner lets go of it.
+    if (lock.isOwner()) {
       if (debug) {
         LOGGER.debug(Thread.currentThread() + " unlocked " + lock.getLocked());
       }
+      ClusterLeaseManager lm = leaseManager;
+      if (lm != null && lock.isLocked()) {
+        lm.release(lock);
+      }
       lock.setLocked(false);
-      synchronized (monitor) {
-        lockMap.remove(lock.getLocked());
+      LockStripe stripe = getStripe(lock.getLocked());
+      stripe.mutex.lock();
+      try {
+        LockState state = stripe.states.get(lock.getLocked());
+        if (state != null && state.holder == lock) {
+          handOff(stripe, state);
+        }
+      } finally {
+        stripe.mutex.unlock();
       }
     }
   }
@@ -185,36 +341,108 @@ public class LockManagerImpl implements LockManager {
    * @see org.sakaiproject.nakamura.api.locking.LockManager#lock(java.lang.String)
    */
   public Lock waitForLock(String id) throws LockTimeoutException {
-    long sleepTime = 100;
-    int tries = 0;
     if (debug) {
       LOGGER.debug(Thread.currentThread() + " locking " + id);
     }
-    while (tries++ < 300) {
-      Lock lock = getLock(id);
-      if (lock != null && lock.isOwner()) {
-        if (debug) {
-          LOGGER.debug(Thread.currentThread() + " lock Granted " + lock.getLocked());
+    long ownerId = threadId.get();
+    LockStripe stripe = getStripe(id);
+    LockImpl lock = null;
+    boolean interrupted = false;
+    long deadline = System.currentTimeMillis() + lockTimeout;
+    stripe.mutex.lock();
+    try {
+      LockState state = getState(stripe, id);
+      if (state == null) {
+        lock = grant(stripe, id, ownerId);
+      } else if (state.holder.getOwnerId() == ownerId) {
+        lock = state.holder;
+      } else {
+        Waiter waiter = new Waiter(ownerId, stripe.mutex.newCondition());
+        state.waiters.add(waiter);
+        statistics.startWaiting();
+        long start = System.currentTimeMillis();
+        try {
+          long now = start;
+          while (waiter.granted == null && now < deadline) {
+            // wake at the deadline, or when the holder would become stale.
+            long wait = Math.min(deadline, state.acquired + lockExpiry) - now;
+            waiter.condition.await(Math.max(wait, 1L), TimeUnit.MILLISECONDS);
+            if (waiter.granted == null) {
+              getState(stripe, id);
+            }
+            now = System.currentTimeMillis();
+          }
+        } catch (InterruptedException e) {
+          interrupted = true;
         }
-        return lock;
+        if (waiter.granted == null) {
+          state.waiters.remove(waiter);
+        }
+        lock = waiter.granted;
+        statistics.endWaiting(System.currentTimeMillis() - start, lock == null);
       }
-      if (sleepTime < 500) {
-        sleepTime = sleepTime + 10;
+    } finally {
+      stripe.mutex.unlock();
+    }
+    if (lock == null) {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+        throw new LockTimeoutException("Interrupted waiting for lock on " + id);
+      }
+      LOGGER.warn(Thread.currentThread() + " gave up waiting for " + id + " after "
+          + lockTimeout + " ms");
+      throw new LockTimeoutException("Failed to lock node " + id);
+    }
+    lock = bind(lock);
+    ClusterLeaseManager lm = leaseManager;
+    if (lm != null) {
+      waitForLease(lm, lock, deadline);
+    }
+    if (debug) {
+      LOGGER.debug(Thread.currentThread() + " lock Granted " + lock.getLocked());
+    }
+    return lock;
+  }
+
+  /**
+   * Poll for the cluster lease on a lock held locally. Polling is deliberate: the lease
+   * store can't notify a server when a lease held by another server is released or
+   * expires, so the holder retries with a backoff of up to 250 ms until the deadline. Only
+   * the local holder polls, so at most one thread per server is competing for any id.
+   *
+   * @param lm
+   * @param lock
+   * @param deadline
+   * @throws LockTimeoutException
+   *           if the lease was not taken by the deadline, the local lock is released.
+   */
+  private void waitForLease(ClusterLeaseManager lm, LockImpl lock, long deadline)
+      throws LockTimeoutException {
+    long sleep = 10;
+    while (true) {
+      LockLease lease = lm.acquire(lock);
+      if (lm.isOwnedBy(lease, lock)) {
+        lock.setLockId(lease.getToken());
+        return;
+      }
+      long now = System.currentTimeMillis();
+      if (now >= deadline) {
+        break;
       }
       try {
-       
-        if (debug && tries % 5 == 0) {
-          LOGGER.debug(Thread.currentThread() + " locking " + id);
-        }
-        if (tries % 100 == 0) {
-          LOGGER.warn(Thread.currentThread() + " Waiting for " + sleepTime
-              + " ms " + tries);
-        }
-        Thread.sleep(sleepTime);
+        Thread.sleep(Math.min(sleep, deadline - now));
       } catch (InterruptedException e) {
+        lock.unlock();
+        Thread.currentThread().interrupt();
+        throw new LockTimeoutException("Interrupted waiting for lease on "
+            + lock.getLocked());
       }
+      sleep = Math.min(sleep * 2, 250);
     }
-    throw new LockTimeoutException("Failed to lock node " + id);
+    lock.unlock();
+    statistics.leaseTimedOut();
+    throw new LockTimeoutException("Failed to lease node " + lock.getLocked()
+        + " from the cluster");
   }
 
   /**
@@ -228,21 +456,196 @@ public class LockManagerImpl implements LockManager {
     requestLocks.clear();
   }
 
- 
+  /**
+   * Bind the lock to this manager and, if the current thread owns it, to the request so
+   * that it is released when the request ends.
+   *
+   * @param lock
+   * @return the lock.
+   */
+  private LockImpl bind(LockImpl lock) {
+    if (lock != null) {
+      lock.bind(this);
+      if (lock.isOwner()) {
+        getRequestLocks().put(lock.getLocked(), lock);
+      }
+    }
+    return lock;
+  }
+
+  /**
+   * Get the state of a lock, breaking the lock if it has been held beyond the expiry.
+   * Must be called with the stripe mutex held.
+   *
+   * @param stripe
+   * @param id
+   * @return the state or null if the lock is free.
+   */
+  private LockState getState(LockStripe stripe, String id) {
+    LockState state = stripe.states.get(id);
+    if (state != null && System.currentTimeMillis() - state.acquired > lockExpiry) {
+      LOGGER.warn("Breaking stale lock on {} held for more than {} ms", id, lockExpiry);
+      state.holder.setLocked(false);
+      statistics.expired();
+      handOff(stripe, state);
+      state = stripe.states.get(id);
+    }
+    return state;
+  }
+
+  /**
+   * Create a lock for the owner. Must be called with the stripe mutex held.
+   *
+   * @param stripe
+   * @param id
+   * @param ownerId
+   * @return the new lock.
+   */
+  private LockImpl grant(LockStripe stripe, String id, long ownerId) {
+    LockImpl lock = new LockImpl(id, lockIds.incrementAndGet(), ownerId, instanceId);
+    stripe.states.put(id, new LockState(lock));
+    statistics.granted();
+    return lock;
+  }
+
+  /**
+   * Pass the lock to the first waiter, or free it if there are none. Must be called with
+   * the stripe mutex held.
+   *
+   * @param stripe
+   * @param state
+   */
+  private void handOff(LockStripe stripe, LockState state) {
+    statistics.released();
+    Waiter next = state.waiters.poll();
+    String id = state.holder.getLocked();
+    if (next == null) {
+      stripe.states.remove(id);
+    } else {
+      state.holder = new LockImpl(id, lockIds.incrementAndGet(), next.ownerId, instanceId);
+      state.acquired = System.currentTimeMillis();
+      next.granted = state.holder;
+      statistics.granted();
+      next.condition.signal();
+    }
+  }
+
+  private LockStripe getStripe(String id) {
+    int h = id.hashCode();
+    // spread the hash so that similar paths land on different stripes.
+    h ^= (h >>> 20) ^ (h >>> 12);
+    h ^= (h >>> 7) ^ (h >>> 4);
+    return stripes[(h & 0x7fffffff) % stripes.length];
+  }
+
+  private static LockStripe[] createStripes(int n) {
+    LockStripe[] s = new LockStripe[n];
+    for (int i = 0; i < n; i++) {
+      s[i] = new LockStripe();
+    }
+    return s;
+  }
+
+  /**
+   * @return the statistics for this manager.
+   */
+  protected LockManagerStatistics getStatistics() {
+    return statistics;
+  }
+
+  /**
+   * Create or drop the lease manager, depending on the backend and the available
+   * services.
+   */
+  private synchronized void updateLeaseManager() {
+    if (clusterBackend && clusterLockStore != null && clusterTrackingService != null) {
+      if (leaseManager == null) {
+        leaseManager = new ClusterLeaseManager(clusterLockStore, clusterTrackingService,
+            leaseTime);
+      }
+    } else {
+      if (clusterBackend) {
+        LOGGER.warn("Cluster lock backend configured but no ClusterLockStore or ClusterTrackingService, locks are local only");
+      }
+      leaseManager = null;
+    }
+  }
+
+  protected void bindClusterLockStore(ClusterLockStore clusterLockStore) {
+    this.clusterLockStore = clusterLockStore;
+    updateLeaseManager();
+  }
+
+  protected void unbindClusterLockStore(ClusterLockStore clusterLockStore) {
+    this.clusterLockStore = null;
+    updateLeaseManager();
+  }
+
+  protected void bindClusterTrackingService(ClusterTrackingService clusterTrackingService) {
+    this.clusterTrackingService = clusterTrackingService;
+    updateLeaseManager();
+  }
+
+  protected void unbindClusterTrackingService(ClusterTrackingService clusterTrackingService) {
+    this.clusterTrackingService = null;
+    updateLeaseManager();
+  }
+
+  /**
+   * @return the lease manager, null when locks are local only.
+   */
+  protected ClusterLeaseManager getLeaseManager() {
+    return leaseManager;
+  }
+
   /**
    * @param cacheManagerService
    */
   protected void bindCacheManagerService(CacheManagerService cacheManagerService) {
     this.cacheManagerService = cacheManagerService;
-    lockMap = cacheManagerService.getCache(LOCKMAP, CacheScope.CLUSTERREPLICATED);
   }
   /**
    * @param cacheManagerService
    */
   protected void unbindCacheManagerService(CacheManagerService cacheManagerService) {
     this.cacheManagerService = null;
-    lockMap = null;
   }
- 
- 
+
+  /**
+   * A mutex and the locks whose ids hash to it.
+   */
+  private static class LockStripe {
+    private final ReentrantLock mutex = new ReentrantLock();
+    private final Map<String, LockState> states = new HashMap<String, LockState>();
+  }
+
+  /**
+   * The holder of a lock and the threads waiting for it, in arrival order.
+   */
+  private static class LockState {
+    private LockImpl holder;
+    private long acquired;
+    private final LinkedList<Waiter> waiters = new LinkedList<Waiter>();
+
+    LockState(LockImpl holder) {
+      this.holder = holder;
+      this.acquired = System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * A thread waiting for a lock, parked on its own condition so it alone is woken when
+   * the lock is handed to it.
+   */
+  private static class Waiter {
+    private final long ownerId;
+    private final Condition condition;
+    private LockImpl granted;
+
+    Waiter(long ownerId, Condition condition) {
+      this.ownerId = ownerId;
+      this.condition = condition;
+    }
+  }
+
 }
@@ -0,0 +1,126 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.locking;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters maintained by the lock manager and registered with JMX.
+ */
+public class LockManagerStatistics implements LockManagerStatisticsMBean {
+
+  private final AtomicLong locksGranted = new AtomicLong();
+  private final AtomicLong contendedLocks = new AtomicLong();
+  private final AtomicLong timeouts = new AtomicLong();
+  private final AtomicLong expiredLocks = new AtomicLong();
+  private final AtomicLong totalWaitTime = new AtomicLong();
+  private final AtomicLong maxWaitTime = new AtomicLong();
+  private final AtomicInteger waitingThreads = new AtomicInteger();
+  private final AtomicInteger heldLocks = new AtomicInteger();
+
+  void granted() {
+    locksGranted.incrementAndGet();
+    heldLocks.incrementAndGet();
+  }
+
+  void released() {
+    heldLocks.decrementAndGet();
+  }
+
+  void expired() {
+    expiredLocks.incrementAndGet();
+  }
+
+  void leaseTimedOut() {
+    timeouts.incrementAndGet();
+  }
+
+  void startWaiting() {
+    contendedLocks.incrementAndGet();
+    waitingThreads.incrementAndGet();
+  }
+
+  /**
+   * @param waitTime
+   *          the time in ms spent waiting.
+   * @param timedOut
+   *          true if the wait ended without the lock.
+   */
+  void endWaiting(long waitTime, boolean timedOut) {
+    waitingThreads.decrementAndGet();
+    if (timedOut) {
+      timeouts.incrementAndGet();
+    }
+    totalWaitTime.addAndGet(waitTime);
+    long max = maxWaitTime.get();
+    while (waitTime > max && !maxWaitTime.compareAndSet(max, waitTime)) {
+      max = maxWaitTime.get();
+    }
+  }
+
+  public long getLocksGranted() {
+    return locksGranted.get();
+  }
+
+  public long getContendedLocks() {
+    return contendedLocks.get();
+  }
+
+  public long getTimeouts() {
+    return timeouts.get();
+  }
+
+  public long getExpiredLocks() {
+    return expiredLocks.get();
+  }
+
+  public long getTotalWaitTime() {
+    return totalWaitTime.get();
+  }
+
+  public long getMaxWaitTime() {
+    return maxWaitTime.get();
+  }
+
+  public double getAverageWaitTime() {
+    long contended = contendedLocks.get();
+    if (contended == 0) {
+      return 0.0;
+    }
+    return ((double) totalWaitTime.get()) / contended;
+  }
+
+  public int getWaitingThreads() {
+    return waitingThreads.get();
+  }
+
+  public int getHeldLocks() {
+    return heldLocks.get();
+  }
+
+  public void clearStatistics() {
+    locksGranted.set(0);
+    contendedLocks.set(0);
+    timeouts.set(0);
+    expiredLocks.set(0);
+    totalWaitTime.set(0);
+    maxWaitTime.set(0);
+  }
+
+}
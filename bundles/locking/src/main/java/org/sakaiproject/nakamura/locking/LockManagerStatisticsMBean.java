@@ -0,0 +1,76 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.locking;
+
+/**
+ * JMX view of the lock manager.
+ */
+public interface LockManagerStatisticsMBean {
+
+  /**
+   * @return the number of locks granted.
+   */
+  long getLocksGranted();
+
+  /**
+   * @return the number of times a thread had to wait for a lock held by another thread.
+   */
+  long getContendedLocks();
+
+  /**
+   * @return the number of waits that ended without the lock.
+   */
+  long getTimeouts();
+
+  /**
+   * @return the number of held locks that were broken because they were older than the
+   *         lock expiry.
+   */
+  long getExpiredLocks();
+
+  /**
+   * @return the total time in ms threads have spent waiting for locks.
+   */
+  long getTotalWaitTime();
+
+  /**
+   * @return the longest single wait in ms.
+   */
+  long getMaxWaitTime();
+
+  /**
+   * @return the mean wait in ms of contended locks.
+   */
+  double getAverageWaitTime();
+
+  /**
+   * @return the number of threads waiting now.
+   */
+  int getWaitingThreads();
+
+  /**
+   * @return the number of locks held now.
+   */
+  int getHeldLocks();
+
+  /**
+   * Reset the counters to 0.
+   */
+  void clearStatistics();
+
+}
@@ -0,0 +1,233 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.locking;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.easymock.IAnswer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.cluster.ClusterServer;
+import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
+import org.sakaiproject.nakamura.api.locking.Lock;
+import org.sakaiproject.nakamura.api.locking.LockTimeoutException;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Simulates several cluster nodes in one JVM, each with its own lock manager, sharing a
+ * lease store and a list of live servers.
+ */
+public class ClusteredLockManagerTest {
+
+  private static final long LEASE = 300L;
+
+  private ThreadLocal<Cache<Object>> requestCache = new ThreadLocal<Cache<Object>>() {
+    @Override
+    protected Cache<Object> initialValue() {
+      return new MapCacheImpl<Object>();
+    }
+  };
+  private InMemoryClusterLockStore store;
+  private List<ClusterServer> liveServers;
+  private LockManagerImpl nodeA;
+  private LockManagerImpl nodeB;
+
+  @Before
+  public void setUp() throws Exception {
+    store = new InMemoryClusterLockStore();
+    liveServers = Collections.synchronizedList(new ArrayList<ClusterServer>());
+    nodeA = createNode("serverA");
+    nodeB = createNode("serverB");
+  }
+
+  @After
+  public void tearDown() {
+    nodeA.deactivate(null);
+    nodeB.deactivate(null);
+  }
+
+  @Test
+  public void testLockIsExclusiveAcrossNodes() throws Exception {
+    Lock a = nodeA.waitForLock("foo");
+    assertTrue(a.isOwner());
+
+    Lock seenFromB = nodeB.getLock("foo");
+    assertNotNull(seenFromB);
+    assertFalse(seenFromB.isOwner());
+    assertFalse(seenFromB.isLocal());
+    assertEquals(a.getLockId(), seenFromB.getLockId());
+    // the local lock on B was given up again.
+    assertEquals(0, nodeB.getStatistics().getHeldLocks());
+
+    final List<Lock> granted = Collections.synchronizedList(new ArrayList<Lock>());
+    Thread waiter = new Thread() {
+      @Override
+      public void run() {
+        try {
+          Lock l = nodeB.waitForLock("foo");
+          granted.add(l);
+          l.unlock();
+        } catch (LockTimeoutException e) {
+          // reported by the assertion below.
+        }
+      }
+    };
+    waiter.start();
+    Thread.sleep(100);
+    assertEquals(0, granted.size());
+    a.unlock();
+    waiter.join(5000);
+    assertEquals(1, granted.size());
+    assertTrue(granted.get(0).getLockId() > a.getLockId());
+  }
+
+  @Test
+  public void testFencingTokensIncrease() throws Exception {
+    long last = 0;
+    for (int i = 0; i < 6; i++) {
+      LockManagerImpl node = (i % 2 == 0) ? nodeA : nodeB;
+      Lock l = node.waitForLock("foo");
+      assertTrue(l.getLockId() > last);
+      last = l.getLockId();
+      l.unlock();
+    }
+    assertEquals(6L, last);
+  }
+
+  @Test
+  public void testWaitForLockTimesOutOnRemoteHolder() throws Exception {
+    nodeA.waitForLock("foo");
+    final List<Exception> failures = Collections.synchronizedList(new ArrayList<Exception>());
+    Thread waiter = new Thread() {
+      @Override
+      public void run() {
+        try {
+          nodeB.waitForLock("foo");
+        } catch (LockTimeoutException e) {
+          failures.add(e);
+        }
+      }
+    };
+    waiter.start();
+    waiter.join(5000);
+    assertEquals(1, failures.size());
+    assertEquals(1L, nodeB.getStatistics().getTimeouts());
+    assertEquals(0, nodeB.getStatistics().getHeldLocks());
+  }
+
+  @Test
+  public void testLeaseOfDeadServerIsTakenOver() throws Exception {
+    Lock a = nodeA.waitForLock("foo");
+    removeServer("serverA");
+    Lock b = nodeB.waitForLock("foo");
+    assertTrue(b.isOwner());
+    assertTrue(b.getLockId() > a.getLockId());
+  }
+
+  @Test
+  public void testLapsedLeaseIsLost() throws Exception {
+    LockImpl a = (LockImpl) nodeA.waitForLock("foo");
+    // stop renewing the leases on A, as if it had been partitioned.
+    nodeA.deactivate(null);
+    Thread.sleep(LEASE + 100);
+    Lock b = nodeB.waitForLock("foo");
+    assertTrue(b.isOwner());
+
+    nodeA.getLeaseManager().run();
+    assertFalse(a.isLocked());
+    assertEquals(0, nodeA.getLeaseManager().getHeldLeases());
+    // A can still let go of its local lock without disturbing B.
+    a.unlock();
+    assertEquals(0, nodeA.getStatistics().getHeldLocks());
+    assertEquals(b.getLockId(), store.get("foo").getToken());
+  }
+
+  @Test
+  public void testLeaseIsRenewed() throws Exception {
+    Lock a = nodeA.waitForLock("foo");
+    Thread.sleep(LEASE * 2);
+    assertTrue(store.get("foo").isHeld(System.currentTimeMillis()));
+    assertEquals(a.getLockId(), store.get("foo").getToken());
+    a.unlock();
+    assertEquals(null, store.get("foo").getServerId());
+  }
+
+  private LockManagerImpl createNode(final String serverId) throws Exception {
+    CacheManagerService cacheManagerService = createMock(CacheManagerService.class);
+    expect(
+        cacheManagerService.getCache("lockmanager.requestmap",
+            CacheScope.REQUEST)).andAnswer(new IAnswer<Cache<Object>>() {
+      public Cache<Object> answer() throws Throwable {
+        return requestCache.get();
+      }
+    }).anyTimes();
+    ClusterServer server = createMock(ClusterServer.class);
+    expect(server.getServerId()).andReturn(serverId).anyTimes();
+    ClusterTrackingService clusterTrackingService = createMock(ClusterTrackingService.class);
+    expect(clusterTrackingService.getCurrentServerId()).andReturn(serverId).anyTimes();
+    expect(clusterTrackingService.getAllServers()).andAnswer(
+        new IAnswer<List<ClusterServer>>() {
+          public List<ClusterServer> answer() throws Throwable {
+            synchronized (liveServers) {
+              return new ArrayList<ClusterServer>(liveServers);
+            }
+          }
+        }).anyTimes();
+    replay(cacheManagerService, server, clusterTrackingService);
+    liveServers.add(server);
+
+    LockManagerImpl lockManager = new LockManagerImpl();
+    lockManager.bindCacheManagerService(cacheManagerService);
+    lockManager.bindClusterLockStore(store);
+    lockManager.bindClusterTrackingService(clusterTrackingService);
+    Map<String, Object> props = new HashMap<String, Object>();
+    props.put(LockManagerImpl.LOCK_BACKEND, LockManagerImpl.BACKEND_CLUSTER);
+    props.put(LockManagerImpl.LOCK_LEASE, LEASE);
+    props.put(LockManagerImpl.LOCK_TIMEOUT, 500L);
+    lockManager.activate(props);
+    return lockManager;
+  }
+
+  private void removeServer(String serverId) {
+    synchronized (liveServers) {
+      for (ClusterServer server : liveServers) {
+        if (serverId.equals(server.getServerId())) {
+          liveServers.remove(server);
+          return;
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,47 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.locking;
+
+import org.sakaiproject.nakamura.api.locking.ClusterLockStore;
+import org.sakaiproject.nakamura.api.locking.LockLease;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A lease store shared by several lock managers in one JVM, standing in for the
+ * repository in tests.
+ */
+class InMemoryClusterLockStore implements ClusterLockStore {
+
+  private final Map<String, LockLease> leases = new HashMap<String, LockLease>();
+
+  public synchronized LockLease get(String id) {
+    return leases.get(id);
+  }
+
+  public synchronized boolean compareAndSet(String id, LockLease expected, LockLease update) {
+    LockLease current = leases.get(id);
+    if (current == null ? expected != null : !current.equals(expected)) {
+      return false;
+    }
+    leases.put(id, update);
+    return true;
+  }
+
+}
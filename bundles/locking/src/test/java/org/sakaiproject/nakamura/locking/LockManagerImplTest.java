@@ -22,23 +22,42 @@ import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import org.easymock.IAnswer;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.sakaiproject.nakamura.api.locking.Lock;
+import org.sakaiproject.nakamura.api.locking.LockTimeoutException;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.memory.MapCacheImpl;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 /**
  *
  */
 public class LockManagerImplTest {
 
-  private Cache<Object> lockCache;
-  private Cache<Object> requestCache;
+  /**
+   * Request caches are bound to the thread, as they would be in a real request.
+   */
+  private ThreadLocal<Cache<Object>> requestCache = new ThreadLocal<Cache<Object>>() {
+    @Override
+    protected Cache<Object> initialValue() {
+      return new MapCacheImpl<Object>();
+    }
+  };
   private CacheManagerService cacheManagerService;
   private LockManagerImpl lockManager;
 
@@ -47,16 +66,14 @@ public class LockManagerImplTest {
    */
   @Before
   public void setUp() throws Exception {
-    lockCache = new MapCacheImpl<Object>();
-    requestCache = new MapCacheImpl<Object>();
-
     cacheManagerService = createMock(CacheManagerService.class);
-    expect(
-        cacheManagerService.getCache("lockmanager.lockmap",
-            CacheScope.CLUSTERREPLICATED)).andReturn(lockCache).anyTimes();
     expect(
         cacheManagerService.getCache("lockmanager.requestmap",
-            CacheScope.REQUEST)).andReturn(requestCache).anyTimes();
+            CacheScope.REQUEST)).andAnswer(new IAnswer<Cache<Object>>() {
+      public Cache<Object> answer() throws Throwable {
+        return requestCache.get();
+      }
+    }).anyTimes();
 
     replay(cacheManagerService);
 
@@ -69,6 +86,7 @@ public class LockManagerImplTest {
    */
   @After
   public void tearDown() {
+    lockManager.deactivate(null);
     lockManager.unbindCacheManagerService(cacheManagerService);
     verify(cacheManagerService);
   }
@@ -97,4 +115,122 @@ public class LockManagerImplTest {
     assertEquals(null, lock);
   }
 
+  @Test
+  public void testWaitForLockHandsOffOnUnlock() throws Exception {
+    Lock held = lockManager.waitForLock("foo");
+    final CountDownLatch granted = new CountDownLatch(1);
+    final List<Lock> waiterLock = Collections.synchronizedList(new ArrayList<Lock>());
+    Thread waiter = new Thread() {
+      @Override
+      public void run() {
+        try {
+          Lock l = lockManager.waitForLock("foo");
+          waiterLock.add(l);
+          granted.countDown();
+          l.unlock();
+        } catch (LockTimeoutException e) {
+          fail(e.getMessage());
+        }
+      }
+    };
+    waiter.start();
+    waitForWaiters(1);
+    assertEquals(1L, granted.getCount());
+    held.unlock();
+    assertTrue(granted.await(5, TimeUnit.SECONDS));
+    waiter.join();
+    assertEquals("foo", waiterLock.get(0).getLocked());
+    assertEquals(1L, lockManager.getStatistics().getContendedLocks());
+    assertEquals(0, lockManager.getStatistics().getHeldLocks());
+  }
+
+  @Test
+  public void testWaitForLockIsFifo() throws Exception {
+    Lock held = lockManager.waitForLock("foo");
+    final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < 5; i++) {
+      final String name = "waiter" + i;
+      Thread t = new Thread() {
+        @Override
+        public void run() {
+          try {
+            Lock l = lockManager.waitForLock("foo");
+            order.add(name);
+            l.unlock();
+          } catch (LockTimeoutException e) {
+            order.add(e.getMessage());
+          }
+        }
+      };
+      t.start();
+      // make sure each thread is queued before the next arrives.
+      waitForWaiters(i + 1);
+      threads.add(t);
+    }
+    held.unlock();
+    for (Thread t : threads) {
+      t.join(5000);
+    }
+    assertEquals(5, order.size());
+    for (int i = 0; i < 5; i++) {
+      assertEquals("waiter" + i, order.get(i));
+    }
+  }
+
+  @Test
+  public void testWaitForLockTimeout() throws Exception {
+    Map<String, Object> props = new HashMap<String, Object>();
+    props.put(LockManagerImpl.LOCK_TIMEOUT, 100L);
+    lockManager.activate(props);
+    lockManager.waitForLock("foo");
+    final List<Exception> failures = Collections.synchronizedList(new ArrayList<Exception>());
+    Thread waiter = new Thread() {
+      @Override
+      public void run() {
+        try {
+          lockManager.waitForLock("foo");
+        } catch (LockTimeoutException e) {
+          failures.add(e);
+        }
+      }
+    };
+    waiter.start();
+    waiter.join(5000);
+    assertEquals(1, failures.size());
+    assertEquals(1L, lockManager.getStatistics().getTimeouts());
+    assertEquals(0, lockManager.getStatistics().getWaitingThreads());
+  }
+
+  @Test
+  public void testStripedLocksDoNotBlock() throws Exception {
+    lockManager.waitForLock("foo");
+    final List<Lock> locks = Collections.synchronizedList(new ArrayList<Lock>());
+    Thread other = new Thread() {
+      @Override
+      public void run() {
+        try {
+          for (int i = 0; i < 100; i++) {
+            Lock l = lockManager.waitForLock("bar" + i);
+            locks.add(l);
+            l.unlock();
+          }
+        } catch (LockTimeoutException e) {
+          fail(e.getMessage());
+        }
+      }
+    };
+    other.start();
+    other.join(5000);
+    assertEquals(100, locks.size());
+    assertEquals(0L, lockManager.getStatistics().getContendedLocks());
+  }
+
+  private void waitForWaiters(int n) throws InterruptedException {
+    for (int i = 0; i < 500 && lockManager.getStatistics().getWaitingThreads() < n; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(n, lockManager.getStatistics().getWaitingThreads());
+  }
+
 }
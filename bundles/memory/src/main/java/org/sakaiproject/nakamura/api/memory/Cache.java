@@ -37,6 +37,20 @@ public interface Cache<V> {
    */
   V put(String key, V payload);
 
+  /**
+   * Cache an object that has just been read from storage after a miss. In a cluster
+   * scope the other nodes are not told, as their copies, if any, are no older than this
+   * one. Use {@link #put(String, Object)} or {@link #remove(String)} when the data has
+   * changed.
+   *
+   * @param key
+   *          The key with which to find the object.
+   * @param payload
+   *          The object to cache.
+   * @return the object previously cached under the key, or null.
+   */
+  V putLocal(String key, V payload);
+
   /**
    * Test for a non expired entry in the cache.
    *
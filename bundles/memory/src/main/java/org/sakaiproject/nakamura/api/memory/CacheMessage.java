@@ -0,0 +1,131 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.memory;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A batch of cache operations sent between cluster nodes for a single named cache. A
+ * message for a {@link CacheScope#CLUSTERINVALIDATED} cache only ever contains
+ * removals, a message for a {@link CacheScope#CLUSTERREPLICATED} cache may also carry
+ * values, which must be serializable.
+ */
+public class CacheMessage implements Serializable {
+
+  /**
+   *
+   */
+  private static final long serialVersionUID = -3530496829813738045L;
+
+  /**
+   * The operation to apply to the remote copy of the cache.
+   */
+  public enum Operation {
+    /**
+     * Store the value against the key.
+     */
+    PUT(),
+    /**
+     * Remove (invalidate) the key.
+     */
+    REMOVE(),
+    /**
+     * Remove (invalidate) the key and all child keys.
+     */
+    REMOVE_CHILDREN(),
+    /**
+     * Remove everything.
+     */
+    CLEAR();
+  }
+
+  /**
+   * A single operation within the message.
+   */
+  public static class Entry implements Serializable {
+
+    /**
+     *
+     */
+    private static final long serialVersionUID = 2447718484512937962L;
+    private final Operation operation;
+    private final String key;
+    private final Object value;
+
+    public Entry(Operation operation, String key, Object value) {
+      this.operation = operation;
+      this.key = key;
+      this.value = value;
+    }
+
+    public Operation getOperation() {
+      return operation;
+    }
+
+    public String getKey() {
+      return key;
+    }
+
+    public Object getValue() {
+      return value;
+    }
+  }
+
+  private final String origin;
+  private final String cacheName;
+  private final CacheScope scope;
+  private final List<Entry> entries;
+
+  /**
+   * @param origin
+   *          the id of the node that sent the message, so that it can ignore its own
+   *          messages.
+   * @param cacheName
+   *          the name of the cache the entries apply to.
+   * @param scope
+   *          the scope of the cache.
+   * @param entries
+   *          the operations in the order they should be applied.
+   */
+  public CacheMessage(String origin, String cacheName, CacheScope scope, List<Entry> entries) {
+    this.origin = origin;
+    this.cacheName = cacheName;
+    this.scope = scope;
+    this.entries = Collections.unmodifiableList(new ArrayList<Entry>(entries));
+  }
+
+  public String getOrigin() {
+    return origin;
+  }
+
+  public String getCacheName() {
+    return cacheName;
+  }
+
+  public CacheScope getScope() {
+    return scope;
+  }
+
+  public List<Entry> getEntries() {
+    return entries;
+  }
+
+}
@@ -0,0 +1,48 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.memory;
+
+/**
+ * Carries cache invalidation and replication messages between the nodes of a cluster.
+ * When a transport is registered as a service the cache manager uses it for the
+ * {@link CacheScope#CLUSTERINVALIDATED} and {@link CacheScope#CLUSTERREPLICATED} scopes,
+ * without one those scopes behave as {@link CacheScope#INSTANCE}.
+ */
+public interface CacheTransport {
+
+  /**
+   * Send a message to every node in the cluster. Implementations should not block for
+   * long, as the message is sent from the cache manager flush thread.
+   *
+   * @param message
+   */
+  void send(CacheMessage message);
+
+  /**
+   * @param listener
+   *          a listener to receive messages from the cluster.
+   */
+  void addListener(CacheMessageListener listener);
+
+  /**
+   * @param listener
+   *          the listener to remove.
+   */
+  void removeListener(CacheMessageListener listener);
+
+}
@@ -24,6 +24,7 @@ import org.sakaiproject.nakamura.api.memory.Cache;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 
 /**
  *
@@ -32,6 +33,7 @@ public class CacheImpl<V> implements Cache<V> {
 
   private String cacheName;
   private net.sf.ehcache.Cache cache;
+  private PathKeyIndex keyIndex;
 
   /**
    * @param cacheManager
@@ -52,9 +54,33 @@ public class CacheImpl<V> implements Cache<V> {
           throw new RuntimeException("Failed to create Cache with name " + cacheName);
         }
       }
+      keyIndex = findKeyIndex(cache);
     }
   }
 
+  /**
+   * Several CacheImpls may wrap the same ehcache, they share the index registered on it.
+   *
+   * @param cache
+   * @return the key index listening to the cache.
+   */
+  private static PathKeyIndex findKeyIndex(net.sf.ehcache.Cache cache) {
+    Set<?> listeners = cache.getCacheEventNotificationService().getCacheEventListeners();
+    for (Object listener : listeners) {
+      if (listener instanceof PathKeyIndex) {
+        return (PathKeyIndex) listener;
+      }
+    }
+    PathKeyIndex index = new PathKeyIndex();
+    for (Object k : cache.getKeys()) {
+      if (k instanceof String) {
+        index.add((String) k);
+      }
+    }
+    cache.getCacheEventNotificationService().registerListener(index);
+    return index;
+  }
+
   /**
    * {@inheritDoc}
    * 
@@ -105,6 +131,14 @@ public class CacheImpl<V> implements Cache<V> {
     return previous;
   }
 
+  /**
+   * {@inherit-doc}
+   * @see org.sakaiproject.nakamura.api.memory.Cache#putLocal(java.lang.String, java.lang.Object)
+   */
+  public V putLocal(String key, V payload) {
+    return put(key, payload);
+  }
+
   /**
    * {@inherit-doc}
    * 
@@ -121,14 +155,9 @@ public class CacheImpl<V> implements Cache<V> {
    */
   public void removeChildren(String key) {
     cache.remove(key);
-    if (!key.endsWith("/")) {
-      key = key + "/";
-    }
-    List<?> keys = cache.getKeys();
-    for (Object k : keys) {
-      if (((String) k).startsWith(key)) {
-        cache.remove(k);
-      }
+    // the index drops each key as ehcache notifies the removal.
+    for (String k : keyIndex.getChildren(key)) {
+      cache.remove(k);
     }
   }
 
@@ -20,12 +20,21 @@ package org.sakaiproject.nakamura.memory;
 import net.sf.ehcache.CacheManager;
 import net.sf.ehcache.management.ManagementService;
 
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.OsgiUtil;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheMessage;
+import org.sakaiproject.nakamura.api.memory.CacheMessageListener;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.api.memory.CacheTransport;
 import org.sakaiproject.nakamura.util.ResourceLoader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -35,15 +44,18 @@ import java.io.InputStream;
 import java.lang.management.ManagementFactory;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.UUID;
 
+import javax.management.JMException;
 import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 /**
  * The <code>CacheManagerServiceImpl</code>
  */
 @Component(immediate = true, label = "CacheManagerServiceImpl", description = "Implementation of the Cache Manager Service")
 @Service
-public class CacheManagerServiceImpl implements CacheManagerService {
+public class CacheManagerServiceImpl implements CacheManagerService, CacheMessageListener {
 
   @Property(value = "The Sakai Foundation")
   static final String SERVICE_VENDOR = "service.vendor";
@@ -51,17 +63,69 @@ public class CacheManagerServiceImpl implements CacheManagerService {
   @Property(value = "Cache Manager Service Implementation")
   static final String SERVICE_DESCRIPTION = "service.description";
 
+  private static final long DEFAULT_FLUSH_INTERVAL = 50L;
+  @Property(longValue = DEFAULT_FLUSH_INTERVAL, description = "The maximum time in ms a change to a cluster cache waits before being sent to the cluster")
+  static final String CLUSTER_FLUSH_INTERVAL = "cluster.flush.interval";
+
+  private static final int DEFAULT_MAX_BATCH = 500;
+  @Property(intValue = DEFAULT_MAX_BATCH, description = "The number of pending changes to a single cluster cache that causes an immediate send")
+  static final String CLUSTER_MAX_BATCH = "cluster.max.batch";
+
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC, bind = "bindCacheTransport", unbind = "unbindCacheTransport")
+  private CacheTransport cacheTransport;
+
   private static final String CONFIG_PATH = "res://org/sakaiproject/nakamura/memory/ehcacheConfig.xml";
   private static final Logger logger = LoggerFactory.getLogger(CacheManagerServiceImpl.class);
   private CacheManager cacheManager;
   private Map<String, Cache<?>> caches = new HashMap<String, Cache<?>>();
   private ThreadLocalCacheMap requestCacheMapHolder = new ThreadLocalCacheMap();
   private ThreadLocalCacheMap threadCacheMapHolder = new ThreadLocalCacheMap();
+  private Map<String, ClusterCacheImpl<?>> clusterCaches = new HashMap<String, ClusterCacheImpl<?>>();
+  private Map<String, ObjectName> clusterCacheMBeans = new HashMap<String, ObjectName>();
+  private String nodeId = UUID.randomUUID().toString();
+  private ClusterCacheBroadcaster broadcaster;
+  private Thread shutdownHook;
+  private boolean stopped;
 
   public CacheManagerServiceImpl() throws IOException {
     create();
   }
 
+  /**
+   * Constructor for testing, binding a transport so that several instances in the same
+   * JVM form a cluster.
+   *
+   * @param cacheTransport
+   * @throws IOException
+   */
+  public CacheManagerServiceImpl(CacheTransport cacheTransport) throws IOException {
+    create();
+    bindCacheTransport(cacheTransport);
+  }
+
+  @Activate
+  protected void activate(Map<String, Object> properties) {
+    long flushInterval = OsgiUtil.toLong(properties.get(CLUSTER_FLUSH_INTERVAL),
+        DEFAULT_FLUSH_INTERVAL);
+    broadcaster.setMaxBatchSize(OsgiUtil.toInteger(properties.get(CLUSTER_MAX_BATCH),
+        DEFAULT_MAX_BATCH));
+    broadcaster.start(flushInterval);
+  }
+
+  /**
+   * Stop the broadcaster and unregister the MBeans, a new instance is created if the
+   * component is activated again.
+   */
+  @Deactivate
+  protected void deactivate(Map<String, Object> properties) {
+    try {
+      Runtime.getRuntime().removeShutdownHook(shutdownHook);
+    } catch (IllegalStateException e) {
+      // the JVM is shutting down, the hook is stopping this instance already.
+    }
+    stop();
+  }
+
   private void create() throws IOException {
     logger.info("Loading Resource using "+this.getClass().getClassLoader());
     logger.info("Locally Stream was "+this.getClass().getClassLoader().getResourceAsStream(CONFIG_PATH));
@@ -72,7 +136,7 @@ public class CacheManagerServiceImpl implements CacheManagerService {
     /*
      * Add in a shutdown hook, for safety
      */
-    Runtime.getRuntime().addShutdownHook(new Thread() {
+    shutdownHook = new Thread() {
       /*
        * (non-Javadoc)
        *
@@ -88,23 +152,55 @@ public class CacheManagerServiceImpl implements CacheManagerService {
           // others
         }
       }
-    });
+    };
+    Runtime.getRuntime().addShutdownHook(shutdownHook);
 
     // register the cache manager with JMX
     MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
     ManagementService.registerMBeans(cacheManager, mBeanServer, true, true,
         true, true);
 
+    broadcaster = new ClusterCacheBroadcaster(nodeId, DEFAULT_MAX_BATCH);
+    broadcaster.start(DEFAULT_FLUSH_INTERVAL);
   }
 
   /**
    * perform a shutdown
    */
-  public void stop() {
+  public synchronized void stop() {
+    if (stopped) {
+      return;
+    }
+    stopped = true;
+    broadcaster.stop();
+    unregisterClusterCacheMBeans();
+    // also unregisters the ehcache MBeans
     cacheManager.shutdown();
     // we really want to notify all threads that have maps
   }
 
+  protected void bindCacheTransport(CacheTransport cacheTransport) {
+    this.cacheTransport = cacheTransport;
+    cacheTransport.addListener(this);
+    broadcaster.setTransport(cacheTransport);
+  }
+
+  protected void unbindCacheTransport(CacheTransport cacheTransport) {
+    cacheTransport.removeListener(this);
+    if (broadcaster.getTransport() == cacheTransport) {
+      broadcaster.setTransport(null);
+      this.cacheTransport = null;
+    }
+  }
+
+  /**
+   * Send any pending changes to cluster caches now, rather than waiting for the flush
+   * thread.
+   */
+  public void flush() {
+    broadcaster.flush();
+  }
+
   /**
    * {@inheritDoc}
    *
@@ -115,9 +211,9 @@ public class CacheManagerServiceImpl implements CacheManagerService {
     case INSTANCE:
       return getInstanceCache(name);
     case CLUSTERINVALIDATED:
-      return getInstanceCache(name);
+      return getClusterCache(name, scope);
     case CLUSTERREPLICATED:
-      return getInstanceCache(name);
+      return getClusterCache(name, scope);
     case REQUEST:
       return getRequestCache(name);
     case THREAD:
@@ -179,6 +275,86 @@ public class CacheManagerServiceImpl implements CacheManagerService {
     }
   }
 
+  /**
+   * Generate a cache bound to the instance that is kept in step with the cluster.
+   *
+   * @param name
+   * @param scope
+   * @return
+   */
+  @SuppressWarnings("unchecked")
+  private synchronized <V> Cache<V> getClusterCache(String name, CacheScope scope) {
+    if (name == null) {
+      name = "default";
+    }
+    String key = scope + ":" + name;
+    ClusterCacheImpl<V> c = (ClusterCacheImpl<V>) clusterCaches.get(key);
+    if (c == null) {
+      Cache<V> local = getInstanceCache(name);
+      c = new ClusterCacheImpl<V>(name, scope, local, broadcaster);
+      clusterCaches.put(key, c);
+      registerClusterCacheMBean(key, c.getStatistics());
+    }
+    return c;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * Apply changes made to cluster caches on other nodes.
+   *
+   * @see org.sakaiproject.nakamura.api.memory.CacheMessageListener#onCacheMessage(org.sakaiproject.nakamura.api.memory.CacheMessage)
+   */
+  public void onCacheMessage(CacheMessage message) {
+    if (nodeId.equals(message.getOrigin())) {
+      return;
+    }
+    CacheScope scope = message.getScope();
+    ClusterCacheImpl<?> c;
+    synchronized (this) {
+      c = clusterCaches.get(scope + ":" + message.getCacheName());
+    }
+    if (c == null) {
+      if (scope != CacheScope.CLUSTERREPLICATED) {
+        // nothing on this node uses the cache, so nothing to invalidate.
+        return;
+      }
+      c = (ClusterCacheImpl<?>) getClusterCache(message.getCacheName(), scope);
+    }
+    c.apply(message);
+  }
+
+  /**
+   * Register the cluster statistics next to the ehcache MBeans.
+   *
+   * @param key
+   * @param statistics
+   */
+  private void registerClusterCacheMBean(String key, ClusterCacheStatistics statistics) {
+    try {
+      ObjectName objectName = new ObjectName("net.sf.ehcache:type=ClusterCacheStatistics,CacheManager="
+          + nodeId + ",scope=" + statistics.getScope() + ",name="
+          + statistics.getCacheName().replaceAll("[,=:*?\"]", "_"));
+      ManagementFactory.getPlatformMBeanServer().registerMBean(statistics, objectName);
+      clusterCacheMBeans.put(key, objectName);
+    } catch (JMException e) {
+      logger.warn("Unable to register cluster cache statistics for {} {} ", key,
+          e.getMessage());
+    }
+  }
+
+  private synchronized void unregisterClusterCacheMBeans() {
+    MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+    for (ObjectName objectName : clusterCacheMBeans.values()) {
+      try {
+        mBeanServer.unregisterMBean(objectName);
+      } catch (JMException e) {
+        logger.debug(e.getMessage(), e);
+      }
+    }
+    clusterCacheMBeans.clear();
+  }
+
   /**
    * {@inheritDoc}
    *
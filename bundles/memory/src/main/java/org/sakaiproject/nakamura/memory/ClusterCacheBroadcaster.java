@@ -0,0 +1,277 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import org.sakaiproject.nakamura.api.memory.CacheMessage;
+import org.sakaiproject.nakamura.api.memory.CacheMessage.Entry;
+import org.sakaiproject.nakamura.api.memory.CacheMessage.Operation;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.api.memory.CacheTransport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects local changes to cluster scoped caches and sends them to the cluster in
+ * batches, one message per cache. Within a batch operations are coalesced per key, so a
+ * key that is changed many times between flushes is only sent once. Batches are sent by
+ * a single flush thread, either when the flush interval expires or when a batch reaches
+ * the maximum size, which keeps messages for the same cache in order.
+ */
+public class ClusterCacheBroadcaster implements Runnable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ClusterCacheBroadcaster.class);
+  private static final String CLEAR_SLOT = "*";
+  private static final String KEY_SLOT = "k:";
+  private static final String CHILDREN_SLOT = "c:";
+
+  private final String origin;
+  private volatile CacheTransport transport;
+  private volatile int maxBatchSize;
+  private final Object pendingLock = new Object();
+  private Map<String, PendingBatch> pending = new HashMap<String, PendingBatch>();
+  private ScheduledExecutorService executor;
+
+  /**
+   * @param origin
+   *          the id of this node, attached to every message.
+   * @param maxBatchSize
+   *          the number of coalesced operations for a single cache that triggers an
+   *          immediate flush.
+   */
+  public ClusterCacheBroadcaster(String origin, int maxBatchSize) {
+    this.origin = origin;
+    this.maxBatchSize = maxBatchSize;
+  }
+
+  /**
+   * Start the flush thread.
+   *
+   * @param flushInterval
+   *          the maximum time in ms a change waits before it is sent.
+   */
+  public synchronized void start(long flushInterval) {
+    if (executor != null) {
+      executor.shutdown();
+    }
+    executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "Cluster Cache Broadcaster " + origin);
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    executor.scheduleWithFixedDelay(this, flushInterval, flushInterval,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stop the flush thread, sending anything that is pending.
+   */
+  public synchronized void stop() {
+    if (executor != null) {
+      executor.shutdown();
+      try {
+        executor.awaitTermination(5, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      executor = null;
+    }
+    flush();
+  }
+
+  public void setTransport(CacheTransport transport) {
+    this.transport = transport;
+  }
+
+  public CacheTransport getTransport() {
+    return transport;
+  }
+
+  public void setMaxBatchSize(int maxBatchSize) {
+    this.maxBatchSize = maxBatchSize;
+  }
+
+  public String getOrigin() {
+    return origin;
+  }
+
+  /**
+   * Queue an operation for the cluster. If there is no transport the operation is
+   * discarded, as there is nobody to tell.
+   *
+   * @param cacheName
+   * @param scope
+   * @param statistics
+   *          the statistics for the cache, updated as operations are sent.
+   * @param operation
+   * @param key
+   * @param value
+   *          the value for a {@link Operation#PUT}, otherwise null.
+   */
+  public void enqueue(String cacheName, CacheScope scope, ClusterCacheStatistics statistics,
+      Operation operation, String key, Object value) {
+    if (transport == null) {
+      return;
+    }
+    boolean full = false;
+    synchronized (pendingLock) {
+      String batchKey = scope + ":" + cacheName;
+      PendingBatch batch = pending.get(batchKey);
+      if (batch == null) {
+        batch = new PendingBatch(cacheName, scope, statistics);
+        pending.put(batchKey, batch);
+      }
+      batch.add(operation, key, value);
+      full = batch.size() >= maxBatchSize;
+    }
+    if (full) {
+      requestFlush();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * Invoked by the flush thread.
+   *
+   * @see java.lang.Runnable#run()
+   */
+  public void run() {
+    try {
+      flush();
+    } catch (Throwable t) {
+      // never let the scheduled task die.
+      LOGGER.error("Failed to flush cluster cache messages " + t.getMessage(), t);
+    }
+  }
+
+  /**
+   * Send everything that is pending.
+   */
+  public void flush() {
+    Map<String, PendingBatch> toSend;
+    synchronized (pendingLock) {
+      if (pending.isEmpty()) {
+        return;
+      }
+      toSend = pending;
+      pending = new HashMap<String, PendingBatch>();
+    }
+    CacheTransport t = transport;
+    if (t == null) {
+      return;
+    }
+    for (PendingBatch batch : toSend.values()) {
+      try {
+        t.send(batch.toMessage(origin));
+      } catch (RuntimeException e) {
+        LOGGER.warn("Failed to send cache message for {} {} ", batch.cacheName,
+            e.getMessage());
+        LOGGER.debug(e.getMessage(), e);
+      }
+    }
+  }
+
+  /**
+   * Ask the flush thread to send now, keeping all sends on the one thread.
+   */
+  private void requestFlush() {
+    ScheduledExecutorService e;
+    synchronized (this) {
+      e = executor;
+    }
+    if (e == null) {
+      flush();
+    } else {
+      try {
+        e.execute(this);
+      } catch (RejectedExecutionException ex) {
+        flush();
+      }
+    }
+  }
+
+  /**
+   * The coalesced operations for a single cache. Operations are held in the order they
+   * were last made, a later operation on a key replaces the earlier one.
+   */
+  private static class PendingBatch {
+
+    private final String cacheName;
+    private final CacheScope scope;
+    private final ClusterCacheStatistics statistics;
+    private final LinkedHashMap<String, Entry> slots = new LinkedHashMap<String, Entry>();
+
+    PendingBatch(String cacheName, CacheScope scope, ClusterCacheStatistics statistics) {
+      this.cacheName = cacheName;
+      this.scope = scope;
+      this.statistics = statistics;
+    }
+
+    void add(Operation operation, String key, Object value) {
+      String slot;
+      switch (operation) {
+      case CLEAR:
+        // nothing queued before a clear matters.
+        slots.clear();
+        slot = CLEAR_SLOT;
+        break;
+      case REMOVE_CHILDREN:
+        slot = CHILDREN_SLOT + key;
+        break;
+      default:
+        slot = KEY_SLOT + key;
+        break;
+      }
+      // remove first so the slot moves to the end and order is preserved.
+      slots.remove(slot);
+      slots.put(slot, new Entry(operation, key, value));
+    }
+
+    int size() {
+      return slots.size();
+    }
+
+    CacheMessage toMessage(String origin) {
+      List<Entry> entries = new ArrayList<Entry>(slots.values());
+      if (statistics != null) {
+        for (Entry e : entries) {
+          if (e.getOperation() == Operation.PUT) {
+            statistics.replicationSent();
+          } else {
+            statistics.invalidationSent();
+          }
+        }
+      }
+      return new CacheMessage(origin, cacheName, scope, entries);
+    }
+  }
+
+}
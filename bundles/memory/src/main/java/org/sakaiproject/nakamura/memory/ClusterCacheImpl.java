@@ -0,0 +1,188 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheMessage;
+import org.sakaiproject.nakamura.api.memory.CacheMessage.Entry;
+import org.sakaiproject.nakamura.api.memory.CacheMessage.Operation;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+
+import java.util.List;
+
+/**
+ * A cache that is stored in the local instance, and kept in step with the same cache on
+ * other nodes by sending changes through the {@link ClusterCacheBroadcaster}.
+ * <p>
+ * For {@link CacheScope#CLUSTERINVALIDATED} changes are sent as invalidations. Every put
+ * is sent, even when this node had no copy of the key, as other nodes may still hold the
+ * old value. Values read through the cache after a miss should be stored with
+ * {@link #putLocal(String, Object)}, which tells no one, so that a hot key read on every
+ * node is not invalidated back and forth. For {@link CacheScope#CLUSTERREPLICATED} every
+ * put sends the value, which must be serializable.
+ * </p>
+ */
+public class ClusterCacheImpl<V> implements Cache<V> {
+
+  private final String name;
+  private final CacheScope scope;
+  private final Cache<V> local;
+  private final ClusterCacheBroadcaster broadcaster;
+  private final ClusterCacheStatistics statistics;
+
+  /**
+   * @param name
+   *          the name of the cache, the same on all nodes.
+   * @param scope
+   *          either CLUSTERINVALIDATED or CLUSTERREPLICATED.
+   * @param local
+   *          the local storage for the cache.
+   * @param broadcaster
+   *          where to send changes.
+   */
+  public ClusterCacheImpl(String name, CacheScope scope, Cache<V> local,
+      ClusterCacheBroadcaster broadcaster) {
+    this.name = name;
+    this.scope = scope;
+    this.local = local;
+    this.broadcaster = broadcaster;
+    this.statistics = new ClusterCacheStatistics(name, scope);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#get(java.lang.String)
+   */
+  public V get(String key) {
+    V v = local.get(key);
+    if (v == null) {
+      statistics.miss();
+    } else {
+      statistics.hit();
+    }
+    return v;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#containsKey(java.lang.String)
+   */
+  public boolean containsKey(String key) {
+    return local.containsKey(key);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#put(java.lang.String, java.lang.Object)
+   */
+  public V put(String key, V payload) {
+    V previous = local.put(key, payload);
+    if (scope == CacheScope.CLUSTERREPLICATED) {
+      broadcaster.enqueue(name, scope, statistics, Operation.PUT, key, payload);
+    } else {
+      broadcaster.enqueue(name, scope, statistics, Operation.REMOVE, key, null);
+    }
+    return previous;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#putLocal(java.lang.String, java.lang.Object)
+   */
+  public V putLocal(String key, V payload) {
+    return local.put(key, payload);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#remove(java.lang.String)
+   */
+  public void remove(String key) {
+    local.remove(key);
+    broadcaster.enqueue(name, scope, statistics, Operation.REMOVE, key, null);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#removeChildren(java.lang.String)
+   */
+  public void removeChildren(String key) {
+    local.removeChildren(key);
+    broadcaster.enqueue(name, scope, statistics, Operation.REMOVE_CHILDREN, key, null);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#clear()
+   */
+  public void clear() {
+    local.clear();
+    broadcaster.enqueue(name, scope, statistics, Operation.CLEAR, null, null);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#list()
+   */
+  public List<V> list() {
+    return local.list();
+  }
+
+  /**
+   * Apply a message from another node to the local storage, without sending anything
+   * back to the cluster.
+   *
+   * @param message
+   */
+  @SuppressWarnings("unchecked")
+  public void apply(CacheMessage message) {
+    for (Entry e : message.getEntries()) {
+      switch (e.getOperation()) {
+      case PUT:
+        local.put(e.getKey(), (V) e.getValue());
+        statistics.replicationReceived();
+        break;
+      case REMOVE:
+        local.remove(e.getKey());
+        statistics.invalidationReceived();
+        break;
+      case REMOVE_CHILDREN:
+        local.removeChildren(e.getKey());
+        statistics.invalidationReceived();
+        break;
+      case CLEAR:
+        local.clear();
+        statistics.invalidationReceived();
+        break;
+      }
+    }
+  }
+
+  public ClusterCacheStatistics getStatistics() {
+    return statistics;
+  }
+
+}
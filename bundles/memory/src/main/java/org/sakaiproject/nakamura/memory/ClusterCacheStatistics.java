@@ -0,0 +1,108 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for a cluster scoped cache, registered with JMX by the cache manager.
+ */
+public class ClusterCacheStatistics implements ClusterCacheStatisticsMBean {
+
+  private final String cacheName;
+  private final CacheScope scope;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong invalidationsSent = new AtomicLong();
+  private final AtomicLong invalidationsReceived = new AtomicLong();
+  private final AtomicLong replicationsSent = new AtomicLong();
+  private final AtomicLong replicationsReceived = new AtomicLong();
+
+  public ClusterCacheStatistics(String cacheName, CacheScope scope) {
+    this.cacheName = cacheName;
+    this.scope = scope;
+  }
+
+  void hit() {
+    hits.incrementAndGet();
+  }
+
+  void miss() {
+    misses.incrementAndGet();
+  }
+
+  void invalidationSent() {
+    invalidationsSent.incrementAndGet();
+  }
+
+  void invalidationReceived() {
+    invalidationsReceived.incrementAndGet();
+  }
+
+  void replicationSent() {
+    replicationsSent.incrementAndGet();
+  }
+
+  void replicationReceived() {
+    replicationsReceived.incrementAndGet();
+  }
+
+  public String getCacheName() {
+    return cacheName;
+  }
+
+  public String getScope() {
+    return scope.toString();
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public long getInvalidationsSent() {
+    return invalidationsSent.get();
+  }
+
+  public long getInvalidationsReceived() {
+    return invalidationsReceived.get();
+  }
+
+  public long getReplicationsSent() {
+    return replicationsSent.get();
+  }
+
+  public long getReplicationsReceived() {
+    return replicationsReceived.get();
+  }
+
+  public void clearStatistics() {
+    hits.set(0);
+    misses.set(0);
+    invalidationsSent.set(0);
+    invalidationsReceived.set(0);
+    replicationsSent.set(0);
+    replicationsReceived.set(0);
+  }
+
+}
@@ -0,0 +1,58 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+/**
+ * JMX view of the cluster behaviour of a single cluster scoped cache.
+ */
+public interface ClusterCacheStatisticsMBean {
+
+  String getCacheName();
+
+  String getScope();
+
+  long getHits();
+
+  long getMisses();
+
+  /**
+   * @return the number of local changes sent to the cluster as invalidations.
+   */
+  long getInvalidationsSent();
+
+  /**
+   * @return the number of invalidations received from other nodes and applied locally.
+   */
+  long getInvalidationsReceived();
+
+  /**
+   * @return the number of values sent to the cluster.
+   */
+  long getReplicationsSent();
+
+  /**
+   * @return the number of values received from other nodes and stored locally.
+   */
+  long getReplicationsReceived();
+
+  /**
+   * Reset all the counters to 0.
+   */
+  void clearStatistics();
+
+}
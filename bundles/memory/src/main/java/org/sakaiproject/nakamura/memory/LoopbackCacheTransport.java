@@ -0,0 +1,95 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import org.sakaiproject.nakamura.api.memory.CacheMessage;
+import org.sakaiproject.nakamura.api.memory.CacheMessageListener;
+import org.sakaiproject.nakamura.api.memory.CacheTransport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * An in JVM transport that delivers every message to all listeners synchronously. Used to
+ * run several cache managers as a cluster inside a single JVM for testing. Messages are
+ * copied through serialization so that nodes never share value instances, as they would
+ * not over a real transport.
+ */
+public class LoopbackCacheTransport implements CacheTransport {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(LoopbackCacheTransport.class);
+  private final List<CacheMessageListener> listeners = new CopyOnWriteArrayList<CacheMessageListener>();
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.CacheTransport#send(org.sakaiproject.nakamura.api.memory.CacheMessage)
+   */
+  public void send(CacheMessage message) {
+    for (CacheMessageListener listener : listeners) {
+      try {
+        listener.onCacheMessage(copy(message));
+      } catch (IOException e) {
+        LOGGER.error("Failed to copy cache message " + e.getMessage(), e);
+      } catch (ClassNotFoundException e) {
+        LOGGER.error("Failed to copy cache message " + e.getMessage(), e);
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.CacheTransport#addListener(org.sakaiproject.nakamura.api.memory.CacheMessageListener)
+   */
+  public void addListener(CacheMessageListener listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.CacheTransport#removeListener(org.sakaiproject.nakamura.api.memory.CacheMessageListener)
+   */
+  public void removeListener(CacheMessageListener listener) {
+    listeners.remove(listener);
+  }
+
+  private CacheMessage copy(CacheMessage message) throws IOException,
+      ClassNotFoundException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(baos);
+    out.writeObject(message);
+    out.close();
+    ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(
+        baos.toByteArray()));
+    try {
+      return (CacheMessage) in.readObject();
+    } finally {
+      in.close();
+    }
+  }
+
+}
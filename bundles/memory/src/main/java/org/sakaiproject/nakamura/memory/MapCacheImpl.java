@@ -23,7 +23,7 @@ import org.sakaiproject.nakamura.api.memory.ThreadBound;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 
 /**
  *
@@ -36,6 +36,8 @@ public class MapCacheImpl<V> extends HashMap<String, V>implements Cache<V>  {
    */
   private static final long serialVersionUID = -5400056532743570231L;
 
+  private PathKeyIndex keyIndex = new PathKeyIndex();
+
   /**
    * {@inheritDoc}
    * @see org.sakaiproject.nakamura.api.memory.Cache#containsKey(java.lang.String)
@@ -52,17 +54,59 @@ public class MapCacheImpl<V> extends HashMap<String, V>implements Cache<V>  {
     return super.get(key);
   }
 
+  /**
+   * {@inheritDoc}
+   * @see java.util.HashMap#put(java.lang.Object, java.lang.Object)
+   */
+  @Override
+  public V put(String key, V value) {
+    keyIndex.add(key);
+    return super.put(key, value);
+  }
+
+  /**
+   * {@inheritDoc}
+   * Goes through {@link #put(String, Object)} so the keys are indexed.
+   * @see java.util.HashMap#putAll(java.util.Map)
+   */
+  @Override
+  public void putAll(Map<? extends String, ? extends V> m) {
+    for (Map.Entry<? extends String, ? extends V> e : m.entrySet()) {
+      put(e.getKey(), e.getValue());
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.memory.Cache#putLocal(java.lang.String, java.lang.Object)
+   */
+  public V putLocal(String key, V value) {
+    return put(key, value);
+  }
+
   /**
    * {@inheritDoc}
    * @see org.sakaiproject.nakamura.api.memory.Cache#remove(java.lang.String)
    */
   public void remove(String key) {
-    V o = super.remove(key);
+    V o = remove((Object) key);
     if ( o instanceof ThreadBound ) {
       ((ThreadBound) o).unbind();
     }
   }
 
+  /**
+   * {@inheritDoc}
+   * @see java.util.HashMap#remove(java.lang.Object)
+   */
+  @Override
+  public V remove(Object key) {
+    if (key instanceof String) {
+      keyIndex.remove((String) key);
+    }
+    return super.remove(key);
+  }
+
 
   /**
    * {@inheritDoc}
@@ -76,6 +120,7 @@ public class MapCacheImpl<V> extends HashMap<String, V>implements Cache<V>  {
         ((ThreadBound) o).unbind();
       }
     }
+    keyIndex.clear();
     super.clear();
   }
 
@@ -84,15 +129,11 @@ public class MapCacheImpl<V> extends HashMap<String, V>implements Cache<V>  {
    * @see org.sakaiproject.nakamura.api.memory.Cache#removeChildren(java.lang.String)
    */
   public void removeChildren(String key) {
+    keyIndex.remove(key);
     super.remove(key);
-    if ( !key.endsWith("/") ) {
-      key = key + "/";
-    }
-    Set<String> keys = super.keySet();
-    for ( String k : keys) {
-      if ( (k).startsWith(key) ) {
-        super.remove(k);
-      }
+    for ( String k : keyIndex.getChildren(key) ) {
+      keyIndex.remove(k);
+      super.remove(k);
     }
   }
 
@@ -42,8 +42,12 @@ public class MapDeligate<K, V> implements Map<K, V> {
     throw new UnsupportedOperationException("This map is lookup only.");
   }
 
+  /**
+   * The storage caches are only put to after a read from storage; a write removes the
+   * key instead. So the value is cached here without invalidating other nodes.
+   */
   public V put(K key, V value) {
-    return cache.put((String) key, value);
+    return cache.putLocal((String) key, value);
   }
 
   public void putAll(Map<? extends K, ? extends V> m) {
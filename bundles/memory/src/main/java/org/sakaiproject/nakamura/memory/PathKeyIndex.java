@@ -0,0 +1,171 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import net.sf.ehcache.CacheException;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.event.CacheEventListener;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * A sorted index of path like cache keys, so that a key and all its children can be
+ * found in O(log n + k) rather than by scanning every key in the cache. When registered
+ * as a listener on an ehcache the index follows every put, removal, expiry and eviction.
+ * The keys are held in a concurrent skip list, so puts and removals on different threads
+ * don't wait for each other or for a lookup of children.
+ */
+public class PathKeyIndex implements CacheEventListener, Serializable {
+
+  /**
+   *
+   */
+  private static final long serialVersionUID = 6069633932612788422L;
+  private final ConcurrentSkipListSet<String> keys = new ConcurrentSkipListSet<String>();
+
+  public void add(String key) {
+    keys.add(key);
+  }
+
+  public void remove(String key) {
+    keys.remove(key);
+  }
+
+  public void clear() {
+    keys.clear();
+  }
+
+  /**
+   * @return the number of keys, this walks the whole index.
+   */
+  public int size() {
+    return keys.size();
+  }
+
+  /**
+   * @param key
+   *          the parent key.
+   * @return a copy of the keys that are children of key, not including key itself. A
+   *         child starts with key followed by a /. Children added or removed while the
+   *         copy is made may or may not be included.
+   */
+  public List<String> getChildren(String key) {
+    String prefix = key.endsWith("/") ? key : key + "/";
+    // the first string that sorts after everything starting with the prefix.
+    String end = prefix.substring(0, prefix.length() - 1)
+        + (char) (prefix.charAt(prefix.length() - 1) + 1);
+    return new ArrayList<String>(keys.subSet(prefix, end));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see net.sf.ehcache.event.CacheEventListener#notifyElementPut(net.sf.ehcache.Ehcache,
+   *      net.sf.ehcache.Element)
+   */
+  public void notifyElementPut(Ehcache cache, Element element) throws CacheException {
+    add(element);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see net.sf.ehcache.event.CacheEventListener#notifyElementUpdated(net.sf.ehcache.Ehcache,
+   *      net.sf.ehcache.Element)
+   */
+  public void notifyElementUpdated(Ehcache cache, Element element) throws CacheException {
+    add(element);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see net.sf.ehcache.event.CacheEventListener#notifyElementRemoved(net.sf.ehcache.Ehcache,
+   *      net.sf.ehcache.Element)
+   */
+  public void notifyElementRemoved(Ehcache cache, Element element) throws CacheException {
+    remove(element);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see net.sf.ehcache.event.CacheEventListener#notifyElementExpired(net.sf.ehcache.Ehcache,
+   *      net.sf.ehcache.Element)
+   */
+  public void notifyElementExpired(Ehcache cache, Element element) {
+    remove(element);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see net.sf.ehcache.event.CacheEventListener#notifyElementEvicted(net.sf.ehcache.Ehcache,
+   *      net.sf.ehcache.Element)
+   */
+  public void notifyElementEvicted(Ehcache cache, Element element) {
+    remove(element);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see net.sf.ehcache.event.CacheEventListener#notifyRemoveAll(net.sf.ehcache.Ehcache)
+   */
+  public void notifyRemoveAll(Ehcache cache) {
+    clear();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see net.sf.ehcache.event.CacheEventListener#dispose()
+   */
+  public void dispose() {
+    clear();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * An index belongs to exactly one cache, so it can't be cloned with it.
+   *
+   * @see java.lang.Object#clone()
+   */
+  @Override
+  public Object clone() throws CloneNotSupportedException {
+    throw new CloneNotSupportedException("A PathKeyIndex is bound to a single cache");
+  }
+
+  private void add(Element element) {
+    if (element != null && element.getObjectKey() instanceof String) {
+      add((String) element.getObjectKey());
+    }
+  }
+
+  private void remove(Element element) {
+    if (element != null && element.getObjectKey() instanceof String) {
+      remove((String) element.getObjectKey());
+    }
+  }
+
+}
@@ -0,0 +1,136 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.osgi.memory;
+
+import static org.junit.Assert.assertEquals;
+
+import net.sf.ehcache.CacheManager;
+
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.memory.CacheImpl;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
+import org.sakaiproject.nakamura.testutils.benchmark.Benchmarks;
+import org.sakaiproject.nakamura.testutils.benchmark.Benchmarks.Operation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares removeChildren against the previous full key scan, with caches of 10k to 1M keys
+ * in 100 subtrees of which one is removed.
+ */
+public class RemoveChildrenBenchmark {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(RemoveChildrenBenchmark.class);
+  private static final int[] SIZES = new int[] { 10000, 100000, 1000000 };
+  private static final int SUBTREES = 100;
+
+  @Test
+  public void benchmarkMapCache() throws Exception {
+    for (int size : SIZES) {
+      final Map<String, String> scanned = new HashMap<String, String>();
+      final MapCacheImpl<String> indexed = new MapCacheImpl<String>();
+      for (String k : keys(size)) {
+        scanned.put(k, k);
+        indexed.put(k, k);
+      }
+      long scan = Benchmarks.nanosFor(1, 1, new Operation() {
+        public void run() {
+          scanRemoveChildren(scanned, "/tree42");
+        }
+      });
+      long index = Benchmarks.nanosFor(1, 1, new Operation() {
+        public void run() {
+          indexed.removeChildren("/tree42");
+        }
+      });
+      assertEquals(scanned.size(), indexed.size());
+      report("MapCacheImpl", size, scan, index);
+    }
+  }
+
+  @Test
+  public void benchmarkEhcache() throws Exception {
+    for (int size : SIZES) {
+      CacheManager cacheManager = new CacheManager();
+      try {
+        cacheManager.addCache(new net.sf.ehcache.Cache("scanned", size, false, true, 0, 0));
+        cacheManager.addCache(new net.sf.ehcache.Cache("indexed", size, false, true, 0, 0));
+        final net.sf.ehcache.Cache scanned = cacheManager.getCache("scanned");
+        final Cache<String> indexed = new CacheImpl<String>(cacheManager, "indexed");
+        for (String k : keys(size)) {
+          scanned.put(new net.sf.ehcache.Element(k, k));
+          indexed.put(k, k);
+        }
+        long scan = Benchmarks.nanosFor(1, 1, new Operation() {
+          public void run() {
+            String prefix = "/tree42/";
+            scanned.remove("/tree42");
+            for (Object k : scanned.getKeys()) {
+              if (((String) k).startsWith(prefix)) {
+                scanned.remove(k);
+              }
+            }
+          }
+        });
+        long index = Benchmarks.nanosFor(1, 1, new Operation() {
+          public void run() {
+            indexed.removeChildren("/tree42");
+          }
+        });
+        assertEquals(scanned.getSize(), cacheManager.getCache("indexed").getSize());
+        report("CacheImpl", size, scan, index);
+      } finally {
+        cacheManager.shutdown();
+      }
+    }
+  }
+
+  private List<String> keys(int size) {
+    List<String> keys = new ArrayList<String>(size);
+    for (int i = 0; i < size; i++) {
+      keys.add("/tree" + (i % SUBTREES) + "/node" + i);
+    }
+    return keys;
+  }
+
+  private void scanRemoveChildren(Map<String, String> map, String key) {
+    map.remove(key);
+    String prefix = key + "/";
+    List<String> toRemove = new ArrayList<String>();
+    for (String k : map.keySet()) {
+      if (k.startsWith(prefix)) {
+        toRemove.add(k);
+      }
+    }
+    for (String k : toRemove) {
+      map.remove(k);
+    }
+  }
+
+  private void report(String name, int size, long scanNanos, long indexNanos) {
+    LOGGER.info("{} removeChildren with {} keys: scan {} us, index {} us", new Object[] {
+        name, size, scanNanos / 1000, indexNanos / 1000 });
+  }
+
+}
@@ -30,8 +30,11 @@ import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.api.memory.ThreadBound;
 import org.sakaiproject.nakamura.memory.CacheManagerServiceImpl;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
 
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 
 public class TestCache {
 
@@ -83,15 +86,37 @@ public class TestCache {
       assertTrue("Expected element to be in cache", cache.containsKey("fish"));
       cache.put("fish/child", "childcat");
       cache.put("fish/child/child", "childcatchild");
+      cache.put("fishy", "sibling");
+      cache.put("fish.child", "sibling");
       Cache<String> sameCache = cacheManagerService.getCache(cacheName, scope);
       sameCache.removeChildren("fish/child/child");
       assertNull("Expected key to be removed", cache.get("fish/child/child"));
       sameCache.removeChildren("fish");
       assertNull("Expected key to be removed", cache.get("fish"));
       assertNull("Expected key to be removed", cache.get("fish/child"));
+      assertEquals("Expected sibling to remain", "sibling", cache.get("fishy"));
+      assertEquals("Expected sibling to remain", "sibling", cache.get("fish.child"));
+      cacheManagerService.unbind(scope);
     }
   }
 
+  @Test
+  public void testMapCachePutAllIsIndexed() {
+    MapCacheImpl<String> cache = new MapCacheImpl<String>();
+    Map<String, String> children = new HashMap<String, String>();
+    children.put("fish/child", "childcat");
+    children.put("fish/child/child", "childcatchild");
+    cache.putAll(children);
+    cache.put("fishy", "sibling");
+    cache.removeChildren("fish");
+    assertNull("Expected key to be removed", cache.get("fish/child"));
+    assertNull("Expected key to be removed", cache.get("fish/child/child"));
+    assertEquals("Expected sibling to remain", "sibling", cache.get("fishy"));
+    Map<String, String> map = cache;
+    assertEquals("sibling", map.remove("fishy"));
+    assertTrue(cache.isEmpty());
+  }
+
   @Test
   public void testThreadUnbinding() {
     ThreadBound testItem = createMock(ThreadBound.class);
@@ -0,0 +1,169 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.osgi.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheMessage;
+import org.sakaiproject.nakamura.api.memory.CacheMessageListener;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.memory.CacheManagerServiceImpl;
+import org.sakaiproject.nakamura.memory.ClusterCacheBroadcaster;
+import org.sakaiproject.nakamura.memory.ClusterCacheImpl;
+import org.sakaiproject.nakamura.memory.LoopbackCacheTransport;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class TestClusterCache {
+
+  private LoopbackCacheTransport transport;
+  private CacheManagerServiceImpl nodeA;
+  private CacheManagerServiceImpl nodeB;
+
+  @Before
+  public void setUp() throws IOException {
+    transport = new LoopbackCacheTransport();
+    nodeA = new CacheManagerServiceImpl(transport);
+    nodeB = new CacheManagerServiceImpl(transport);
+  }
+
+  @After
+  public void tearDown() {
+    nodeA.stop();
+    nodeB.stop();
+  }
+
+  @Test
+  public void testInvalidation() {
+    Cache<String> a = nodeA.getCache("invalidated", CacheScope.CLUSTERINVALIDATED);
+    Cache<String> b = nodeB.getCache("invalidated", CacheScope.CLUSTERINVALIDATED);
+    b.putLocal("fish", "cat");
+    a.put("fish", "dog");
+    nodeA.flush();
+    assertEquals("dog", a.get("fish"));
+    assertNull("Expected the remote copy to be invalidated", b.get("fish"));
+
+    b.putLocal("fish", "dog");
+    a.put("fish", "cow");
+    nodeA.flush();
+    assertEquals("cow", a.get("fish"));
+    assertNull("Expected the remote copy to be invalidated", b.get("fish"));
+
+    a.putLocal("fish/child", "x");
+    b.putLocal("fish/child", "x");
+    b.putLocal("fish/child/child", "y");
+    a.removeChildren("fish");
+    nodeA.flush();
+    assertNull(b.get("fish/child"));
+    assertNull(b.get("fish/child/child"));
+
+    b.putLocal("foo", "bar");
+    a.clear();
+    nodeA.flush();
+    assertNull(b.get("foo"));
+
+    ClusterCacheImpl<String> cb = (ClusterCacheImpl<String>) b;
+    assertEquals(4L, cb.getStatistics().getInvalidationsReceived());
+    assertEquals(0L, cb.getStatistics().getReplicationsReceived());
+  }
+
+  @Test
+  public void testInvalidationWithoutLocalCopy() {
+    Cache<String> a = nodeA.getCache("writethrough", CacheScope.CLUSTERINVALIDATED);
+    Cache<String> b = nodeB.getCache("writethrough", CacheScope.CLUSTERINVALIDATED);
+    b.put("fish", "cat");
+    nodeB.flush();
+    // node A never cached the key, writing it must still evict node B's old copy.
+    assertNull(a.get("fish"));
+    a.put("fish", "dog");
+    nodeA.flush();
+    assertEquals("dog", a.get("fish"));
+    assertNull("Expected the remote copy to be invalidated", b.get("fish"));
+  }
+
+  @Test
+  public void testReadThroughStaysLocal() {
+    Cache<String> a = nodeA.getCache("readthrough", CacheScope.CLUSTERINVALIDATED);
+    Cache<String> b = nodeB.getCache("readthrough", CacheScope.CLUSTERINVALIDATED);
+    // both nodes read the same hot key after a miss, neither should evict the other.
+    a.putLocal("fish", "cat");
+    b.putLocal("fish", "cat");
+    nodeA.flush();
+    nodeB.flush();
+    assertEquals("cat", a.get("fish"));
+    assertEquals("cat", b.get("fish"));
+    ClusterCacheImpl<String> ca = (ClusterCacheImpl<String>) a;
+    assertEquals(0L, ca.getStatistics().getInvalidationsReceived());
+  }
+
+  @Test
+  public void testReplication() {
+    Cache<String> a = nodeA.getCache("replicated", CacheScope.CLUSTERREPLICATED);
+    a.put("fish", "cat");
+    nodeA.flush();
+    // node B never asked for the cache, it should be created on the first message.
+    Cache<String> b = nodeB.getCache("replicated", CacheScope.CLUSTERREPLICATED);
+    assertEquals("cat", b.get("fish"));
+    b.remove("fish");
+    nodeB.flush();
+    assertNull(a.get("fish"));
+    ClusterCacheImpl<String> ca = (ClusterCacheImpl<String>) a;
+    assertEquals(1L, ca.getStatistics().getReplicationsSent());
+    assertEquals(1L, ca.getStatistics().getInvalidationsReceived());
+    assertEquals(1L, ca.getStatistics().getMisses());
+  }
+
+  @Test
+  public void testCoalescing() {
+    final List<CacheMessage> messages = new ArrayList<CacheMessage>();
+    transport.addListener(new CacheMessageListener() {
+      public void onCacheMessage(CacheMessage message) {
+        messages.add(message);
+      }
+    });
+    // no flush thread, so everything stays pending until the explicit flush.
+    ClusterCacheBroadcaster broadcaster = new ClusterCacheBroadcaster("test", 500);
+    broadcaster.setTransport(transport);
+    Cache<String> a = new ClusterCacheImpl<String>("coalesced",
+        CacheScope.CLUSTERREPLICATED, new MapCacheImpl<String>(), broadcaster);
+    for (int i = 0; i < 100; i++) {
+      a.put("fish", "cat" + i);
+      a.put("dog", "cat" + i);
+    }
+    a.remove("dog");
+    broadcaster.flush();
+    assertEquals(1, messages.size());
+    List<CacheMessage.Entry> entries = messages.get(0).getEntries();
+    assertEquals(2, entries.size());
+    assertEquals("fish", entries.get(0).getKey());
+    assertEquals("cat99", entries.get(0).getValue());
+    assertEquals(CacheMessage.Operation.REMOVE, entries.get(1).getOperation());
+    Cache<String> b = nodeB.getCache("coalesced", CacheScope.CLUSTERREPLICATED);
+    assertEquals("cat99", b.get("fish"));
+    assertNull(b.get("dog"));
+  }
+
+}
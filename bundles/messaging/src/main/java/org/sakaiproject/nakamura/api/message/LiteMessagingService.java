@@ -122,5 +122,21 @@ public interface LiteMessagingService {
    */
   public boolean checkDeliveryAccessOk(String recipient, Content originalMessage, Session session);
 
+  /**
+   * Get the counts of the internal messages in a store. The counts are kept up to date as
+   * messages are created, read, moved between boxes and deleted, and recounted in full
+   * from time to time.
+   *
+   * @param storePath
+   *          the path to the store, as returned by
+   *          {@link #getFullPathToStore(String, Session)}.
+   * @param session
+   * @return the counts, or null if the store has not been counted yet.
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   */
+  public MessageCounts getCounts(String storePath, Session session)
+      throws StorageClientException, AccessDeniedException;
+
 
 }
@@ -88,6 +88,26 @@ public interface MessageConstants {
    */
   public static final String PROP_SAKAI_MESSAGE_STORE = "sakai:messagestore";
 
+  /**
+   * This property will hold the category of a message. ex: message, invitation, ..
+   */
+  public static final String PROP_SAKAI_CATEGORY = "sakai:category";
+
+  /**
+   * Property of a message holding the counter cell it is counted in by its message store.
+   */
+  public static final String PROP_SAKAI_COUNTED = "sakai:counted";
+
+  /**
+   * Property of a message store holding the counts of its internal messages.
+   */
+  public static final String PROP_SAKAI_MESSAGE_COUNTS = "sakai:messagecounts";
+
+  /**
+   * Property of a message store holding the time its counts were last recounted.
+   */
+  public static final String PROP_SAKAI_MESSAGE_COUNTS_RECONCILED = "sakai:messagecounts-reconciled";
+
   /**
    * Value for a date.
    */
@@ -130,7 +150,20 @@ public interface MessageConstants {
    *
    */
   public static final String EVENT_LOCATION = "location";
-  
+  /**
+   * Raised once for each batch of recipients an internal message has been delivered to.
+   */
+  public static final String DELIVEREDMESSAGE_EVENT = "org/sakaiproject/nakamura/message/delivered";
+  /**
+   * Event property holding the recipients a message was delivered to.
+   */
+  public static final String EVENT_RECIPIENTS = "recipients";
+  /**
+   * Event property holding the paths of the delivered copies, in the order of the
+   * recipients.
+   */
+  public static final String EVENT_PATHS = "paths";
+
   /**
    * JCR folder name for messages.
    */
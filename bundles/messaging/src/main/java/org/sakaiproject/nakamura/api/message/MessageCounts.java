@@ -0,0 +1,205 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.message;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+/**
+ * The counts of the internal messages in a message store. Messages are counted in cells,
+ * one for each combination of box, read state and category, so the store can be counted
+ * by any of those without looking at the messages. A message without one of the values is
+ * counted, but never matches a filter or a group on it.
+ */
+public final class MessageCounts {
+
+  /**
+   * The names of the counted values, as used in searches.
+   */
+  public static final String BOX = "messagebox";
+  public static final String READ = "read";
+  public static final String CATEGORY = "category";
+
+  private static final String[] FIELDS = new String[] { BOX, READ, CATEGORY };
+  private static final char SEPARATOR = '\t';
+
+  private final Map<String, Long> cells;
+  private final long reconciled;
+
+  /**
+   * @param cells
+   *          the count of each cell, keyed by {@link #cell(Object, Object, Object)}.
+   * @param reconciled
+   *          the time the store was last counted in full.
+   */
+  public MessageCounts(Map<String, Long> cells, long reconciled) {
+    this.cells = Collections.unmodifiableMap(new TreeMap<String, Long>(cells));
+    this.reconciled = reconciled;
+  }
+
+  /**
+   * @param field
+   * @return true if messages can be counted by this field, without the sakai: prefix.
+   */
+  public static boolean isCounted(String field) {
+    return indexOf(field) >= 0;
+  }
+
+  /**
+   * Get the key of the cell a message is counted in.
+   *
+   * @param box
+   *          the sakai:messagebox of the message, may be null.
+   * @param read
+   *          the sakai:read of the message, may be null.
+   * @param category
+   *          the sakai:category of the message, may be null.
+   * @return the key of the cell.
+   */
+  public static String cell(Object box, Object read, Object category) {
+    return toValue(box) + SEPARATOR + toValue(read) + SEPARATOR + toValue(category);
+  }
+
+  /**
+   * Read the counts as stored on a message store.
+   *
+   * @param stored
+   *          one entry per cell, as written by {@link #toStored()}.
+   * @param reconciled
+   * @return the counts.
+   */
+  public static MessageCounts fromStored(String[] stored, long reconciled) {
+    Map<String, Long> cells = new TreeMap<String, Long>();
+    for (String entry : stored) {
+      int i = entry.lastIndexOf(SEPARATOR);
+      if (i > 0) {
+        cells.put(entry.substring(0, i), Long.valueOf(entry.substring(i + 1)));
+      }
+    }
+    return new MessageCounts(cells, reconciled);
+  }
+
+  /**
+   * @return the counts as stored on a message store, empty cells are left out.
+   */
+  public String[] toStored() {
+    List<String> stored = new ArrayList<String>(cells.size());
+    for (Entry<String, Long> e : cells.entrySet()) {
+      if (e.getValue() > 0) {
+        stored.add(e.getKey() + SEPARATOR + e.getValue());
+      }
+    }
+    return stored.toArray(new String[stored.size()]);
+  }
+
+  /**
+   * @return the count of each cell.
+   */
+  public Map<String, Long> getCells() {
+    return cells;
+  }
+
+  /**
+   * @return the time the store was last counted in full.
+   */
+  public long getReconciled() {
+    return reconciled;
+  }
+
+  /**
+   * Count the messages matching all the filters.
+   *
+   * @param filters
+   *          values keyed by counted field, may be empty.
+   * @return the number of messages.
+   */
+  public long getCount(Map<String, String> filters) {
+    long count = 0;
+    for (Entry<String, Long> e : cells.entrySet()) {
+      if (matches(split(e.getKey()), filters)) {
+        count += e.getValue();
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Count the messages matching all the filters, grouped by the values of one field.
+   *
+   * @param field
+   *          the counted field to group by.
+   * @param filters
+   *          values keyed by counted field, may be empty.
+   * @return the number of messages for each value of the field.
+   */
+  public Map<String, Long> getCountsBy(String field, Map<String, String> filters) {
+    int index = indexOf(field);
+    Map<String, Long> counts = new TreeMap<String, Long>();
+    for (Entry<String, Long> e : cells.entrySet()) {
+      String[] values = split(e.getKey());
+      if (index >= 0 && values[index].length() > 0 && e.getValue() > 0
+          && matches(values, filters)) {
+        Long count = counts.get(values[index]);
+        counts.put(values[index], (count == null) ? e.getValue() : count + e.getValue());
+      }
+    }
+    return counts;
+  }
+
+  private static boolean matches(String[] values, Map<String, String> filters) {
+    for (Entry<String, String> filter : filters.entrySet()) {
+      int index = indexOf(filter.getKey());
+      if (index < 0 || values[index].length() == 0
+          || !values[index].equals(filter.getValue())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static String[] split(String cell) {
+    String[] values = new String[FIELDS.length];
+    int start = 0;
+    for (int i = 0; i < values.length; i++) {
+      int end = cell.indexOf(SEPARATOR, start);
+      if (end < 0) {
+        end = cell.length();
+      }
+      values[i] = cell.substring(start, end);
+      start = end + 1;
+    }
+    return values;
+  }
+
+  private static int indexOf(String field) {
+    for (int i = 0; i < FIELDS.length; i++) {
+      if (FIELDS[i].equals(field)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static String toValue(Object value) {
+    return (value == null) ? "" : String.valueOf(value).replace(SEPARATOR, ' ');
+  }
+}
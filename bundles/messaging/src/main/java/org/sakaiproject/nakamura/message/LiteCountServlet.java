@@ -42,6 +42,7 @@ import org.sakaiproject.nakamura.api.doc.ServiceSelector;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.message.LiteMessagingService;
+import org.sakaiproject.nakamura.api.message.MessageCounts;
 import org.sakaiproject.nakamura.api.search.solr.Query;
 import org.sakaiproject.nakamura.api.search.solr.Result;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
@@ -52,8 +53,10 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
@@ -68,6 +71,10 @@ import javax.servlet.http.HttpServletResponse;
  *  - filters: only nodes with the properties in filters and the values in values
  *    get traversed
  *  - groupedby: group the results by the values of this parameter.
+ *
+ * When only sakai:messagebox, sakai:read and sakai:category are filtered or grouped on,
+ * the count comes from the counts kept on the message store, otherwise it is searched
+ * for.
  */
 @SlingServlet(methods = {"GET"}, resourceTypes = {"sakai/messagestore"}, selectors = {"count"}, generateComponent = true, generateService = true)
 @Properties(value = {
@@ -118,15 +125,10 @@ public class LiteCountServlet extends SlingSafeMethodsServlet {
     Session session = StorageClientUtils.adaptToSession(request.getResourceResolver().adaptTo(javax.jcr.Session.class));
 
     try {
-      // Do the query
-      // We do the query on the user his messageStore's path.
-      String messageStorePath = ClientUtils.escapeQueryChars(messagingService.getFullPathToStore(request.getRemoteUser(), session));
-      //path:a\:zach/contacts AND resourceType:sakai/contact AND state:("ACCEPTED" -NONE) (name:"*" OR firstName:"*" OR lastName:"*" OR email:"*")) AND readers:(zach OR everyone)&start=0&rows=25&sort=score desc
-      StringBuilder queryString = new StringBuilder("(path:"
-          + messageStorePath + "* AND resourceType:sakai/message"
-          + " AND type:internal");
+      String storePath = messagingService.getFullPathToStore(request.getRemoteUser(), session);
 
       // Get the filters
+      Map<String, String> filterValues = new LinkedHashMap<String, String>();
       if (request.getRequestParameter("filters") != null
           && request.getRequestParameter("values") != null) {
         // The user wants to filter some things.
@@ -137,12 +139,62 @@ public class LiteCountServlet extends SlingSafeMethodsServlet {
         if (filters.length != values.length) {
           response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
               "The amount of values doesn't match the amount of keys.");
+          return;
         }
 
         for (int i = 0; i < filters.length; i++) {
-          String filterName = filters[i].replaceFirst("sakai:", "");
-          queryString.append(" AND " + filterName + ":\"" + values[i] + "\"");
+          filterValues.put(filters[i].replaceFirst("sakai:", ""), values[i]);
+        }
+      }
+
+      String groupedby = null;
+      if (request.getRequestParameter("groupedby") != null) {
+        groupedby = request.getRequestParameter("groupedby").getString();
+        if (groupedby.startsWith("sakai:")) {
+          groupedby = groupedby.substring(6);
+        }
+      }
+
+      // Answer from the store's counts when they cover the request.
+      MessageCounts counts = null;
+      if (isCounted(filterValues.keySet(), groupedby)) {
+        counts = messagingService.getCounts(storePath, session);
+      }
+      if (counts != null) {
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        JSONWriter write = new JSONWriter(response.getWriter());
+        write.object();
+        write.key("count");
+        if (groupedby == null) {
+          write.value(counts.getCount(filterValues));
+        } else {
+          write.array();
+          for (Entry<String, Long> e : counts.getCountsBy(groupedby, filterValues)
+              .entrySet()) {
+            write.object();
+            write.key("group");
+            write.value(e.getKey());
+            write.key("count");
+            write.value(e.getValue());
+            write.endObject();
+          }
+          write.endArray();
         }
+        write.endObject();
+        return;
+      }
+
+      // Do the query
+      // We do the query on the user his messageStore's path.
+      String messageStorePath = ClientUtils.escapeQueryChars(storePath);
+      //path:a\:zach/contacts AND resourceType:sakai/contact AND state:("ACCEPTED" -NONE) (name:"*" OR firstName:"*" OR lastName:"*" OR email:"*")) AND readers:(zach OR everyone)&start=0&rows=25&sort=score desc
+      StringBuilder queryString = new StringBuilder("(path:"
+          + messageStorePath + "* AND resourceType:sakai/message"
+          + " AND type:internal");
+
+      for (Entry<String, String> filter : filterValues.entrySet()) {
+        queryString.append(" AND " + filter.getKey() + ":\"" + filter.getValue() + "\"");
       }
 
       queryString.append(")");
@@ -181,11 +233,6 @@ public class LiteCountServlet extends SlingSafeMethodsServlet {
         // The user want to group the count by a specified set.
         // We will have to traverse each node, get that property and count each
         // value for it.
-        String groupedby = request.getRequestParameter("groupedby").getString();
-        if (groupedby.startsWith("sakai:")) {
-          groupedby = groupedby.substring(6);
-        }
-
         long count = 0;
         Map<String, Integer> mapCount = new HashMap<String, Integer>();
         while (resultIterator.hasNext()) {
@@ -233,4 +280,21 @@ public class LiteCountServlet extends SlingSafeMethodsServlet {
     }
 
   }
+
+  /**
+   * @param filters
+   * @param groupedby
+   * @return true if the message store counts can answer for these filters and grouping.
+   */
+  private boolean isCounted(Set<String> filters, String groupedby) {
+    if (groupedby != null && !MessageCounts.isCounted(groupedby)) {
+      return false;
+    }
+    for (String filter : filters) {
+      if (!MessageCounts.isCounted(filter)) {
+        return false;
+      }
+    }
+    return true;
+  }
 }
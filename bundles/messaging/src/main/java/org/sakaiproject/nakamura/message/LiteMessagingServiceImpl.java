@@ -29,16 +29,25 @@ import static org.sakaiproject.nakamura.api.message.MessageConstants.STATE_NONE;
 import static org.sakaiproject.nakamura.api.message.MessageConstants.STATE_NOTIFIED;
 import static org.sakaiproject.nakamura.api.message.MessageConstants.STATE_PENDING;
 
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.felix.scr.annotations.Services;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.apache.sling.commons.scheduler.Scheduler;
 import org.osgi.service.event.Event;
 import org.osgi.service.event.EventAdmin;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.Permissions;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
@@ -46,10 +55,12 @@ import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.locking.Lock;
 import org.sakaiproject.nakamura.api.locking.LockManager;
 import org.sakaiproject.nakamura.api.locking.LockTimeoutException;
 import org.sakaiproject.nakamura.api.message.LiteMessagingService;
 import org.sakaiproject.nakamura.api.message.MessageConstants;
+import org.sakaiproject.nakamura.api.message.MessageCounts;
 import org.sakaiproject.nakamura.api.message.MessagingException;
 import org.sakaiproject.nakamura.api.user.UserConstants;
 import org.sakaiproject.nakamura.util.ActivityUtils;
@@ -62,18 +73,58 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Dictionary;
+import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Service for doing operations with messages.
+ * Service for doing operations with messages. It also keeps the counts of the internal
+ * messages in each store, see {@link MessageCounts}. Each counted message records the
+ * cell it is counted in, so a change to a message moves it between cells once however
+ * often the change is seen, and a store is recounted in full from time to time to
+ * correct any drift.
  */
-@Component(immediate = true, label = "Sakai Messaging Service", description = "Service for doing operations with messages.", name = "org.sakaiproject.nakamura.api.message.LiteMessagingService")
-@Service
-@Properties(value = { @Property(name = "service.vendor", value = "The Sakai Foundation") })
-public class LiteMessagingServiceImpl implements LiteMessagingService {
+@Component(immediate = true, metatype = true, label = "Sakai Messaging Service", description = "Service for doing operations with messages.", name = "org.sakaiproject.nakamura.api.message.LiteMessagingService")
+@Services(value = { @Service(value = LiteMessagingService.class),
+    @Service(value = EventHandler.class) })
+@Properties(value = {
+    @Property(name = "service.vendor", value = "The Sakai Foundation"),
+    @Property(name = "event.topics", value = {
+        "org/sakaiproject/nakamura/lite/content/ADDED",
+        "org/sakaiproject/nakamura/lite/content/UPDATED",
+        "org/sakaiproject/nakamura/lite/content/DELETE" }) })
+public class LiteMessagingServiceImpl implements LiteMessagingService, EventHandler {
+
+  @Property(longValue = 300, label = "Recount Interval Seconds", description = "How often to recount a batch of message stores")
+  static final String RECOUNT_INTERVAL = "message.counts.recount.interval";
+
+  @Property(intValue = 50, label = "Recount Batch Size", description = "The most message stores to recount each interval")
+  static final String RECOUNT_BATCH_SIZE = "message.counts.recount.batchsize";
+
+  @Property(longValue = 24, label = "Recount After Hours", description = "A message store is recounted when its counts are read this long after its last recount")
+  static final String RECOUNT_AFTER = "message.counts.recount.after";
+
+  @Property(intValue = 2, label = "Count Threads", description = "The number of threads that apply message changes to the counts of their stores")
+  static final String COUNT_THREADS = "message.counts.threads";
+
+  private static final String RECOUNT_JOB_NAME = "messageCountsRecountJob";
+
+  /**
+   * The most stores waiting for their changed messages to be counted, beyond that a store
+   * is queued for a recount instead.
+   */
+  private static final int MAX_PENDING_STORES = 10000;
 
   @Reference
   protected transient LockManager lockManager;
@@ -81,9 +132,70 @@ public class LiteMessagingServiceImpl implements LiteMessagingService {
   @Reference
   protected transient EventAdmin eventAdmin;
 
+  @Reference
+  protected transient Repository contentRepository;
+
+  @Reference
+  protected transient Scheduler scheduler;
+
   private static final Logger LOGGER = LoggerFactory
       .getLogger(LiteMessagingServiceImpl.class);
 
+  private int recountBatchSize = 50;
+  private long recountAfter = 24L * 3600000L;
+
+  /**
+   * The stores waiting to be recounted, in the order they were found to need it.
+   */
+  private final Set<String> recountQueue = new LinkedHashSet<String>();
+
+  /**
+   * The messages changed in each store that have yet to be counted, with the cell each
+   * was counted in before the change that deleted it, if it was.
+   */
+  private final Map<String, Map<String, String>> pendingCounts = new HashMap<String, Map<String, String>>();
+
+  private ExecutorService countExecutor;
+
+  @Activate
+  protected void activate(Map<?, ?> props) {
+    recountBatchSize = OsgiUtil.toInteger(props.get(RECOUNT_BATCH_SIZE), 50);
+    recountAfter = OsgiUtil.toLong(props.get(RECOUNT_AFTER), 24L) * 3600000L;
+    long interval = OsgiUtil.toLong(props.get(RECOUNT_INTERVAL), 300L);
+    int countThreads = Math.max(1, OsgiUtil.toInteger(props.get(COUNT_THREADS), 2));
+    countExecutor = new ThreadPoolExecutor(countThreads, countThreads, 60L,
+        TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(MAX_PENDING_STORES),
+        new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Message Counts");
+            t.setDaemon(true);
+            return t;
+          }
+        });
+    try {
+      scheduler.addPeriodicJob(RECOUNT_JOB_NAME, new Runnable() {
+        public void run() {
+          recountQueued();
+        }
+      }, null, interval, false);
+    } catch (Exception e) {
+      LOGGER.error("Failed to add periodic job to recount message stores", e);
+    }
+  }
+
+  @Deactivate
+  protected void deactivate(Map<?, ?> props) {
+    scheduler.removeJob(RECOUNT_JOB_NAME);
+    if (countExecutor != null) {
+      countExecutor.shutdown();
+      countExecutor = null;
+    }
+    // anything still pending is corrected when the stores are next recounted.
+    synchronized (pendingCounts) {
+      pendingCounts.clear();
+    }
+  }
+
   /**
    * {@inheritDoc}
    * @see org.sakaiproject.nakamura.api.message.LiteMessagingService#create(org.sakaiproject.nakamura.api.lite.Session, java.util.Map)
@@ -137,6 +249,14 @@ public class LiteMessagingServiceImpl implements LiteMessagingService {
     msg.setProperty(MessageConstants.PROP_SAKAI_CREATED, cal);
     msg.setProperty("sling:resourceSuperType", "sparse/Content");
     msg.setProperty(MessageConstants.PROP_SAKAI_MESSAGE_STORE, messagePathBase);
+    // count the message while its store is still locked, the store may not be
+    // writable by the sender in which case it is counted when the change is seen.
+    String storePath = getStorePath(messagePath);
+    String cell = messagePathBase.equals(storePath) ? getCell(msg) : null;
+    if (cell != null) {
+      // recorded with the message itself rather than in a second update.
+      msg.setProperty(MessageConstants.PROP_SAKAI_COUNTED, cell);
+    }
 
     try {
       lockManager.waitForLock(messagePathBase);
@@ -159,6 +279,17 @@ public class LiteMessagingServiceImpl implements LiteMessagingService {
             + e.getMessage());
         throw new MessagingException("Unable to save message.");
       }
+      if (cell != null) {
+        try {
+          moveCount(session.getContentManager(), storePath, null, cell);
+        } catch (StorageClientException e) {
+          LOGGER.debug("Unable to count message {} {} ", messagePath, e.getMessage());
+          queueRecount(storePath);
+        } catch (AccessDeniedException e) {
+          LOGGER.debug("Unable to count message {} {} ", messagePath, e.getMessage());
+          queueRecount(storePath);
+        }
+      }
       return msg;
     } finally {
       lockManager.clearLocks();
@@ -259,6 +390,376 @@ public class LiteMessagingServiceImpl implements LiteMessagingService {
     return false;
   }
 
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.message.LiteMessagingService#getCounts(java.lang.String, org.sakaiproject.nakamura.api.lite.Session)
+   */
+  public MessageCounts getCounts(String storePath, Session session)
+      throws StorageClientException, AccessDeniedException {
+    MessageCounts counts = readCounts(session.getContentManager().get(
+        getStoreNodePath(storePath)));
+    if (counts == null || counts.getReconciled() < System.currentTimeMillis() - recountAfter) {
+      synchronized (recountQueue) {
+        recountQueue.add(storePath);
+      }
+    }
+    return counts;
+  }
+
+  /**
+   * Keep the counts of a store up to date as its messages change. Messages are read, moved
+   * between boxes and deleted by updating the content directly, so the changes are seen
+   * here rather than in this service. This runs on the event thread, so the change is
+   * only queued, and counted in the background with the other changes to the same store.
+   *
+   * {@inheritDoc}
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String path = (String) event.getProperty(StoreListener.PATH_PROPERTY);
+    final String storePath = getStorePath(path);
+    if (storePath == null) {
+      return;
+    }
+    @SuppressWarnings("unchecked")
+    Map<String, Object> beforeEvent = (Map<String, Object>) event
+        .getProperty(StoreListener.BEFORE_EVENT_PROPERTY);
+    String beforeCounted = (beforeEvent == null) ? null : (String) beforeEvent
+        .get(MessageConstants.PROP_SAKAI_COUNTED);
+    boolean queued;
+    synchronized (pendingCounts) {
+      Map<String, String> messages = pendingCounts.get(storePath);
+      queued = messages != null;
+      if (!queued) {
+        messages = new HashMap<String, String>();
+        pendingCounts.put(storePath, messages);
+      }
+      messages.put(path, beforeCounted);
+    }
+    ExecutorService executor = countExecutor;
+    if (queued || executor == null) {
+      return;
+    }
+    try {
+      executor.execute(new Runnable() {
+        public void run() {
+          countPending(storePath);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      synchronized (pendingCounts) {
+        pendingCounts.remove(storePath);
+      }
+      LOGGER.warn("Too many message stores waiting to be counted, recounting {} ",
+          storePath);
+      queueRecount(storePath);
+    }
+  }
+
+  /**
+   * Count the pending changes of every store, in the calling thread.
+   */
+  protected void countPending() {
+    List<String> storePaths;
+    synchronized (pendingCounts) {
+      storePaths = new ArrayList<String>(pendingCounts.keySet());
+    }
+    for (String storePath : storePaths) {
+      countPending(storePath);
+    }
+  }
+
+  /**
+   * Apply the pending changes to the messages of a store to its counts.
+   *
+   * @param storePath
+   */
+  private void countPending(String storePath) {
+    Map<String, String> messages;
+    synchronized (pendingCounts) {
+      messages = pendingCounts.remove(storePath);
+    }
+    if (messages == null) {
+      return;
+    }
+    Session adminSession = null;
+    Lock lock = null;
+    try {
+      adminSession = contentRepository.loginAdministrative();
+      ContentManager contentManager = adminSession.getContentManager();
+      List<String> changed = new ArrayList<String>();
+      for (Entry<String, String> e : messages.entrySet()) {
+        Content message = contentManager.get(e.getKey());
+        String cell = getCell(message);
+        String counted = getCounted(message, e.getValue());
+        // most changes, including recording the cell, leave the counts as they are.
+        if (cell == null ? counted != null : !cell.equals(counted)) {
+          changed.add(e.getKey());
+        }
+      }
+      if (changed.isEmpty()) {
+        return;
+      }
+      lock = lockManager.waitForLock(storePath);
+      for (String path : changed) {
+        Content message = contentManager.get(path);
+        updateCount(contentManager, storePath, message, getCounted(message,
+            messages.get(path)));
+      }
+    } catch (LockTimeoutException e) {
+      LOGGER.warn("Unable to lock message store {} to count its messages ", storePath);
+      queueRecount(storePath);
+    } catch (StorageClientException e) {
+      LOGGER.warn("Unable to count messages in {} {} ", storePath, e.getMessage());
+      queueRecount(storePath);
+    } catch (AccessDeniedException e) {
+      LOGGER.warn("Unable to count messages in {} {} ", storePath, e.getMessage());
+      queueRecount(storePath);
+    } finally {
+      if (lock != null) {
+        lock.unlock();
+      }
+      logout(adminSession);
+    }
+  }
+
+  /**
+   * @param message
+   *          the message as it is now, null if it has been deleted.
+   * @param beforeCounted
+   *          the cell the message was counted in before the last change to it.
+   * @return the cell the message is counted in, or was when it was deleted.
+   */
+  private String getCounted(Content message, String beforeCounted) {
+    if (message != null) {
+      return (String) message.getProperty(MessageConstants.PROP_SAKAI_COUNTED);
+    }
+    return beforeCounted;
+  }
+
+  /**
+   * Move a message to the count cell it belongs in, if it is not already counted there.
+   * The store must be locked. The message was changed outside this service, so recording
+   * the cell it is now counted in takes an update of its own.
+   *
+   * @param contentManager
+   * @param storePath
+   * @param message
+   *          the message as it is now, null if it has been deleted.
+   * @param counted
+   *          the cell the message was counted in, null if it was not counted.
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   */
+  private void updateCount(ContentManager contentManager, String storePath,
+      Content message, String counted) throws StorageClientException,
+      AccessDeniedException {
+    String cell = getCell(message);
+    if (cell == null ? counted == null : cell.equals(counted)) {
+      return;
+    }
+    if (moveCount(contentManager, storePath, counted, cell) && message != null) {
+      setCounted(contentManager, message, cell);
+    }
+  }
+
+  /**
+   * Move one message between the count cells of a store. The store must be locked.
+   *
+   * @param contentManager
+   * @param storePath
+   * @param counted
+   *          the cell the message was counted in, null if it was not counted.
+   * @param cell
+   *          the cell the message belongs in now, null if it is not counted.
+   * @return false if the store has never been counted, the first recount will count the
+   *         message.
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   */
+  private boolean moveCount(ContentManager contentManager, String storePath,
+      String counted, String cell) throws StorageClientException, AccessDeniedException {
+    Content store = contentManager.get(getStoreNodePath(storePath));
+    MessageCounts counts = readCounts(store);
+    if (counts == null) {
+      return false;
+    }
+    Map<String, Long> cells = new HashMap<String, Long>(counts.getCells());
+    if (counted != null) {
+      addCount(cells, counted, -1);
+    }
+    if (cell != null) {
+      addCount(cells, cell, 1);
+    }
+    store.setProperty(MessageConstants.PROP_SAKAI_MESSAGE_COUNTS, new MessageCounts(cells,
+        counts.getReconciled()).toStored());
+    contentManager.update(store);
+    return true;
+  }
+
+  /**
+   * Recount the stores that are waiting for it, up to the batch size.
+   */
+  protected void recountQueued() {
+    List<String> batch = new ArrayList<String>();
+    synchronized (recountQueue) {
+      for (Iterator<String> i = recountQueue.iterator(); i.hasNext()
+          && batch.size() < recountBatchSize;) {
+        batch.add(i.next());
+        i.remove();
+      }
+    }
+    if (batch.isEmpty()) {
+      return;
+    }
+    Session adminSession = null;
+    try {
+      adminSession = contentRepository.loginAdministrative();
+      for (String storePath : batch) {
+        recount(adminSession.getContentManager(), storePath);
+      }
+    } catch (StorageClientException e) {
+      LOGGER.warn("Unable to recount message stores {} ", e.getMessage());
+    } catch (AccessDeniedException e) {
+      LOGGER.warn("Unable to recount message stores {} ", e.getMessage());
+    } finally {
+      logout(adminSession);
+    }
+  }
+
+  /**
+   * Count every message in a store, and record the cell each is counted in.
+   *
+   * @param contentManager
+   *          an admin content manager.
+   * @param storePath
+   */
+  protected void recount(ContentManager contentManager, String storePath) {
+    Lock lock = null;
+    try {
+      lock = lockManager.waitForLock(storePath);
+      String storeNodePath = getStoreNodePath(storePath);
+      Map<String, Long> cells = new HashMap<String, Long>();
+      recount(contentManager, storeNodePath, cells);
+      Content store = contentManager.get(storeNodePath);
+      if (store == null) {
+        store = new Content(storeNodePath, null);
+      }
+      long now = System.currentTimeMillis();
+      store.setProperty(MessageConstants.PROP_SAKAI_MESSAGE_COUNTS, new MessageCounts(
+          cells, now).toStored());
+      store.setProperty(MessageConstants.PROP_SAKAI_MESSAGE_COUNTS_RECONCILED, now);
+      contentManager.update(store);
+      LOGGER.debug("Recounted message store {} {} ", storePath, cells);
+    } catch (LockTimeoutException e) {
+      LOGGER.warn("Unable to lock message store {} to recount it ", storePath);
+    } catch (StorageClientException e) {
+      LOGGER.warn("Unable to recount message store {} {} ", storePath, e.getMessage());
+    } catch (AccessDeniedException e) {
+      LOGGER.warn("Unable to recount message store {} {} ", storePath, e.getMessage());
+    } finally {
+      if (lock != null) {
+        lock.unlock();
+      }
+    }
+  }
+
+  private void recount(ContentManager contentManager, String path,
+      Map<String, Long> cells) throws StorageClientException, AccessDeniedException {
+    for (Iterator<Content> children = contentManager.listChildren(path); children
+        .hasNext();) {
+      Content child = children.next();
+      String cell = getCell(child);
+      if (cell != null) {
+        addCount(cells, cell, 1);
+      }
+      if (cell == null ? child.hasProperty(MessageConstants.PROP_SAKAI_COUNTED) : !cell
+          .equals(child.getProperty(MessageConstants.PROP_SAKAI_COUNTED))) {
+        setCounted(contentManager, child, cell);
+      }
+      recount(contentManager, child.getPath(), cells);
+    }
+  }
+
+  private void setCounted(ContentManager contentManager, Content message, String cell)
+      throws StorageClientException, AccessDeniedException {
+    if (cell == null) {
+      message.removeProperty(MessageConstants.PROP_SAKAI_COUNTED);
+    } else {
+      message.setProperty(MessageConstants.PROP_SAKAI_COUNTED, cell);
+    }
+    contentManager.update(message);
+  }
+
+  private void queueRecount(String storePath) {
+    synchronized (recountQueue) {
+      recountQueue.add(storePath);
+    }
+  }
+
+  private void logout(Session session) {
+    if (session != null) {
+      try {
+        session.logout();
+      } catch (ClientPoolException e) {
+        LOGGER.warn("Failed to logout of administrative session {} ", e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * @param message
+   * @return the count cell for a message, or null if it is not an internal message.
+   */
+  private String getCell(Content message) {
+    if (message == null
+        || !SAKAI_MESSAGE_RT.equals(message.getProperty(SLING_RESOURCE_TYPE_PROPERTY))
+        || !MessageConstants.TYPE_INTERNAL.equals(message
+            .getProperty(MessageConstants.PROP_SAKAI_TYPE))) {
+      return null;
+    }
+    return MessageCounts.cell(message.getProperty(PROP_SAKAI_MESSAGEBOX),
+        message.getProperty(MessageConstants.PROP_SAKAI_READ),
+        message.getProperty(MessageConstants.PROP_SAKAI_CATEGORY));
+  }
+
+  private MessageCounts readCounts(Content store) {
+    if (store == null || !store.hasProperty(MessageConstants.PROP_SAKAI_MESSAGE_COUNTS)) {
+      return null;
+    }
+    Object reconciled = store.getProperty(MessageConstants.PROP_SAKAI_MESSAGE_COUNTS_RECONCILED);
+    return MessageCounts.fromStored(StorageClientUtils.nonNullStringArray((String[]) store
+        .getProperty(MessageConstants.PROP_SAKAI_MESSAGE_COUNTS)),
+        (reconciled == null) ? 0L : StorageClientUtils.toLong(reconciled));
+  }
+
+  private static void addCount(Map<String, Long> cells, String cell, long delta) {
+    Long count = cells.get(cell);
+    cells.put(cell, Math.max(0L, ((count == null) ? 0L : count) + delta));
+  }
+
+  /**
+   * @param path
+   *          the path to a message.
+   * @return the path of the user or group message store holding it, as returned by
+   *         {@link #getFullPathToStore(String, Session)}, or null if it is not in one.
+   */
+  static String getStorePath(String path) {
+    if (path == null) {
+      return null;
+    }
+    int i = path.indexOf("/" + MessageConstants.FOLDER_MESSAGES + "/");
+    if (i < 0) {
+      return null;
+    }
+    return path.substring(0, i + MessageConstants.FOLDER_MESSAGES.length() + 2);
+  }
+
+  private static String getStoreNodePath(String storePath) {
+    return storePath.endsWith("/") ? storePath.substring(0, storePath.length() - 1)
+        : storePath;
+  }
+
   private void raisePendingMessageEvent(Session session, Content msg) throws StorageClientException, AccessDeniedException {
     if (SAKAI_MESSAGE_RT.equals(msg.getProperty(SLING_RESOURCE_TYPE_PROPERTY)) &&
             (!msg.hasProperty(PROP_SAKAI_MESSAGEBOX) ||
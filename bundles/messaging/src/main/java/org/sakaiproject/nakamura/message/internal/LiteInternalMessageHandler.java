@@ -20,7 +20,9 @@ package org.sakaiproject.nakamura.message.internal;
 
 import com.google.common.collect.ImmutableMap;
 
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
@@ -29,7 +31,9 @@ import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.api.wrappers.ValueMapDecorator;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
+import org.apache.sling.commons.osgi.OsgiUtil;
 import org.osgi.service.event.Event;
+import org.osgi.service.event.EventAdmin;
 import org.sakaiproject.nakamura.api.lite.ClientPoolException;
 import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
@@ -41,6 +45,7 @@ import org.sakaiproject.nakamura.api.lite.authorizable.Group;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.locking.Lock;
 import org.sakaiproject.nakamura.api.locking.LockManager;
 import org.sakaiproject.nakamura.api.locking.LockTimeoutException;
 import org.sakaiproject.nakamura.api.message.LiteMessageProfileWriter;
@@ -61,13 +66,25 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Handler for messages that are sent locally and intended for local delivery. Needs to be
  * started immediately to make sure it registers with JCR as soon as possible.
  */
-@Component(immediate = true, label = "LiteInternalMessageHandler", description = "Handler for internally delivered messages.")
+@Component(immediate = true, metatype = true, label = "LiteInternalMessageHandler", description = "Handler for internally delivered messages.")
 @Service({ LiteMessageTransport.class, LiteMessageProfileWriter.class })
 @Properties(value = {
     @Property(name = "service.vendor", value = "The Sakai Foundation"),
@@ -91,12 +108,47 @@ public class LiteInternalMessageHandler implements LiteMessageTransport,
   @Reference
   private BasicUserInfoService basicUserInfoService;
 
+  @Reference
+  protected transient EventAdmin eventAdmin;
+
+  @Property(intValue = 100, label = "Delivery batch size", description = "The number of recipients whose copies are written by one worker, with one event raised for each batch.")
+  static final String DELIVERY_BATCH_SIZE = "message.delivery.batchsize";
+
+  @Property(intValue = 4, label = "Delivery threads", description = "The number of workers delivering the batches of a message sent to a group.")
+  static final String DELIVERY_THREADS = "message.delivery.threads";
+
+  private int batchSize = 100;
+  private ExecutorService deliveryExecutor;
+
   /**
    * Default constructor
    */
   public LiteInternalMessageHandler() {
   }
 
+  @Activate
+  protected void activate(Map<String, Object> properties) {
+    batchSize = Math.max(1, OsgiUtil.toInteger(properties.get(DELIVERY_BATCH_SIZE), 100));
+    int threads = Math.max(1, OsgiUtil.toInteger(properties.get(DELIVERY_THREADS), 4));
+    deliveryExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "Message Delivery " + count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  @Deactivate
+  protected void deactivate(Map<String, Object> properties) {
+    if (deliveryExecutor != null) {
+      deliveryExecutor.shutdown();
+      deliveryExecutor = null;
+    }
+  }
+
   /**
    * {@inheritDoc}
    * 
@@ -105,111 +157,217 @@ public class LiteInternalMessageHandler implements LiteMessageTransport,
    */
   public void send(MessageRoutes routes, Event event, Content originalMessage) {
     Session session = null;
+    List<String> recipients;
     try {
-
       session = slingRepository.loginAdministrative();
-
-      // recipients keeps track of who have already received the message, to avoid
-      // duplicate messages
-      List<String> recipients = new ArrayList<String>();
-      AuthorizableManager authorizableManager = session.getAuthorizableManager();
-      for (MessageRoute route : routes) {
-        if (MessageTransport.INTERNAL_TRANSPORT.equals(route.getTransport())) {
-          String recipient = route.getRcpt();
-          LOG.info("Started handling a message for delivery to {} ", recipient );
-          // the path were we want to save messages in.
-          String messageId = (String) originalMessage
-              .getProperty(MessageConstants.PROP_SAKAI_ID);
-          sendHelper(recipients, recipient, originalMessage, session, messageId,
-              authorizableManager);
-        }
-      }
+      recipients = expandRecipients(routes, session.getAuthorizableManager());
     } catch (AccessDeniedException e) {
       LOG.error(e.getMessage(), e);
+      return;
     } catch (ClientPoolException e) {
       LOG.error(e.getMessage(), e);
+      return;
     } catch (StorageClientException e) {
       LOG.error(e.getMessage(), e);
+      return;
     } finally {
-      if (session != null) {
-        try {
-          session.logout();
-        } catch (ClientPoolException e) {
-          throw new RuntimeException("Failed to logout session.", e);
+      logout(session);
+    }
+    if (recipients.isEmpty()) {
+      return;
+    }
+    LOG.info("Delivering {} to {} recipients ", originalMessage.getPath(), recipients.size());
+
+    // the first batch is delivered on this thread, the rest are handed to the workers
+    // and waited for, so the send completes as it did when delivering one by one.
+    List<Future<?>> pending = new ArrayList<Future<?>>();
+    ExecutorService executor = deliveryExecutor;
+    for (int i = batchSize; i < recipients.size(); i += batchSize) {
+      final List<String> batch = recipients.subList(i,
+          Math.min(i + batchSize, recipients.size()));
+      final Content message = originalMessage;
+      Runnable delivery = new Runnable() {
+        public void run() {
+          deliverBatch(batch, message);
         }
+      };
+      if (executor == null) {
+        delivery.run();
+      } else {
+        pending.add(executor.submit(delivery));
+      }
+    }
+    deliverBatch(recipients.subList(0, Math.min(batchSize, recipients.size())),
+        originalMessage);
+    for (Future<?> f : pending) {
+      try {
+        f.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        LOG.warn("Interrupted waiting for the delivery of {} ", originalMessage.getPath());
+        return;
+      } catch (ExecutionException e) {
+        LOG.error(e.getMessage(), e.getCause());
       }
     }
   }
 
-  private void sendHelper(List<String> recipients, String recipient,
-      Content originalMessage, Session session, String messageId,
-      AuthorizableManager authManager) {
-    try {
-      ContentManager contentManager = session.getContentManager();
+  /**
+   * Expand the internal routes into the users to deliver to. Groups are expanded once,
+   * however deeply they are nested or often they are reached, and every recipient appears
+   * only once.
+   *
+   * @param routes
+   * @param authManager
+   * @return the recipients in the order they were reached.
+   * @throws AccessDeniedException
+   * @throws StorageClientException
+   */
+  protected List<String> expandRecipients(MessageRoutes routes, AuthorizableManager authManager)
+      throws AccessDeniedException, StorageClientException {
+    Set<String> seen = new HashSet<String>();
+    List<String> recipients = new ArrayList<String>();
+    LinkedList<String> toExpand = new LinkedList<String>();
+    for (MessageRoute route : routes) {
+      if (MessageTransport.INTERNAL_TRANSPORT.equals(route.getTransport())) {
+        toExpand.add(route.getRcpt());
+      }
+    }
+    while (!toExpand.isEmpty()) {
+      String recipient = toExpand.removeFirst();
+      // prevent infinite recursion in cyclic group references and duplicate messages
+      if (!seen.add(recipient)) {
+        continue;
+      }
       Authorizable au = authManager.findAuthorizable(recipient);
-      if (au != null && au instanceof Group) {
-        Group group = (Group) au;
-        recipients.add(recipient); // prevent infinite recursion in cyclic group references
-        // user must be in the group directly to send a message:
-        for (String memberName : group.getMembers()) {
-          if (!recipients.contains(memberName)) {
-            // call back to itself: this allows for groups to be in groups and future
-            // extensions
-            sendHelper(recipients, memberName, originalMessage, session, messageId,
-                authManager);
+      if (au instanceof Group) {
+        // user must be in the group directly to send a message, groups in groups are
+        // expanded in turn.
+        for (String memberName : ((Group) au).getMembers()) {
+          if (!seen.contains(memberName)) {
+            toExpand.add(memberName);
           }
         }
       } else {
-        // only send a message to a user who hasn't already received one:
-        if (!recipients.contains(recipient)) {
+        recipients.add(recipient);
+      }
+    }
+    return recipients;
+  }
 
-          String messageStorePath = messagingService.getFullPathToStore(recipient, session);
-          if (messageStorePath.endsWith("/")) {
-            messageStorePath = messageStorePath.substring(0, messageStorePath.length() - 1);
-          }
-          boolean forPublicOrEveryone = hasEveryoneOrPublicPermission(messageStorePath, contentManager);
-
-          if ( forPublicOrEveryone || messagingService.checkDeliveryAccessOk(recipient, originalMessage, session ) ) {
-            String toPath = messagingService.getFullPathToMessage(recipient, messageId,
-                session);
-            
-            
-  
-            try {
-              lockManager.waitForLock(toPath);
-            } catch (LockTimeoutException e1) {
-              throw new MessagingException("Unable to lock destination message store");
-            }
-            
-            ImmutableMap.Builder<String, Object> propertyBuilder = ImmutableMap.builder();
-            // Copy the content into the user his folder.
-            contentManager.update(
-                new Content(toPath.substring(0, toPath.lastIndexOf("/")), propertyBuilder
-                    .build()));
-            contentManager.copy(originalMessage.getPath(), toPath, true);
-            Content message = contentManager.get(toPath);
-            LOG.debug("Message As delivered at {} from {} is {} ",new Object[]{message.getPath(), originalMessage.getPath(), message});
-  
-            // Add some extra properties on the just created node.
-            message.setProperty(MessageConstants.PROP_SAKAI_READ, false);
-            message.setProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX, MessageConstants.BOX_INBOX);
-            message.setProperty(MessageConstants.PROP_SAKAI_SENDSTATE, MessageConstants.STATE_NOTIFIED);
-            message.setProperty(MessageConstants.PROP_SAKAI_MESSAGE_STORE, messagingService.getFullPathToStore(recipient, session));
-            contentManager.update(message);
-          } else {
-            LOG.warn("Unable to deliver message, permission denied {} ", originalMessage.getPath());
-          }
-          recipients.add(recipient);
+  /**
+   * Write a copy of the message for each recipient in the batch with one session, and
+   * raise one event for the copies delivered.
+   *
+   * @param batch
+   * @param originalMessage
+   */
+  protected void deliverBatch(List<String> batch, Content originalMessage) {
+    Session session = null;
+    List<String> delivered = new ArrayList<String>(batch.size());
+    List<String> paths = new ArrayList<String>(batch.size());
+    try {
+      session = slingRepository.loginAdministrative();
+      ContentManager contentManager = session.getContentManager();
+      String messageId = (String) originalMessage
+          .getProperty(MessageConstants.PROP_SAKAI_ID);
+      for (String recipient : batch) {
+        String toPath = deliver(recipient, originalMessage, messageId, session,
+            contentManager);
+        if (toPath != null) {
+          delivered.add(recipient);
+          paths.add(toPath);
         }
       }
     } catch (AccessDeniedException e) {
       LOG.error(e.getMessage(), e);
+    } catch (ClientPoolException e) {
+      LOG.error(e.getMessage(), e);
+    } catch (StorageClientException e) {
+      LOG.error(e.getMessage(), e);
+    } finally {
+      logout(session);
+    }
+    if (!delivered.isEmpty() && eventAdmin != null) {
+      Dictionary<String, Object> properties = new Hashtable<String, Object>();
+      properties.put(MessageConstants.EVENT_LOCATION, originalMessage.getPath());
+      properties.put(MessageConstants.EVENT_RECIPIENTS,
+          delivered.toArray(new String[delivered.size()]));
+      properties.put(MessageConstants.EVENT_PATHS, paths.toArray(new String[paths.size()]));
+      eventAdmin.postEvent(new Event(MessageConstants.DELIVEREDMESSAGE_EVENT, properties));
+    }
+  }
+
+  /**
+   * Deliver a copy of the message to one user.
+   *
+   * @return the path of the copy, or null if it was not delivered.
+   */
+  private String deliver(String recipient, Content originalMessage, String messageId,
+      Session session, ContentManager contentManager) {
+    Lock lock = null;
+    try {
+      String messageStorePath = messagingService.getFullPathToStore(recipient, session);
+      if (messageStorePath.endsWith("/")) {
+        messageStorePath = messageStorePath.substring(0, messageStorePath.length() - 1);
+      }
+      boolean forPublicOrEveryone = hasEveryoneOrPublicPermission(messageStorePath, contentManager);
+
+      if ( forPublicOrEveryone || messagingService.checkDeliveryAccessOk(recipient, originalMessage, session ) ) {
+        String toPath = messagingService.getFullPathToMessage(recipient, messageId,
+            session);
+
+        try {
+          lock = lockManager.waitForLock(toPath);
+        } catch (LockTimeoutException e1) {
+          throw new MessagingException("Unable to lock destination message store");
+        }
+
+        ImmutableMap.Builder<String, Object> propertyBuilder = ImmutableMap.builder();
+        // Copy the content into the user his folder.
+        contentManager.update(
+            new Content(toPath.substring(0, toPath.lastIndexOf("/")), propertyBuilder
+                .build()));
+        contentManager.copy(originalMessage.getPath(), toPath, true);
+        Content message = contentManager.get(toPath);
+        LOG.debug("Message As delivered at {} from {} is {} ",new Object[]{message.getPath(), originalMessage.getPath(), message});
+
+        // Add some extra properties on the just created node.
+        message.setProperty(MessageConstants.PROP_SAKAI_READ, false);
+        message.setProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX, MessageConstants.BOX_INBOX);
+        message.setProperty(MessageConstants.PROP_SAKAI_SENDSTATE, MessageConstants.STATE_NOTIFIED);
+        message.setProperty(MessageConstants.PROP_SAKAI_MESSAGE_STORE, messageStorePath + "/");
+        // the copy is counted in the recipient's store when the change is seen, not in the
+        // cell the sender's copy was counted in.
+        message.removeProperty(MessageConstants.PROP_SAKAI_COUNTED);
+        contentManager.update(message);
+        return toPath;
+      } else {
+        LOG.warn("Unable to deliver message, permission denied {} ", originalMessage.getPath());
+      }
+    } catch (MessagingException e) {
+      LOG.error(e.getMessage(), e);
+    } catch (AccessDeniedException e) {
+      LOG.error(e.getMessage(), e);
     } catch (StorageClientException e) {
       LOG.error(e.getMessage(), e);
     } catch (IOException e) {
       LOG.error(e.getMessage(), e);
     } finally {
-      lockManager.clearLocks();
+      if (lock != null) {
+        lock.unlock();
+      }
+    }
+    return null;
+  }
+
+  private void logout(Session session) {
+    if (session != null) {
+      try {
+        session.logout();
+      } catch (ClientPoolException e) {
+        throw new RuntimeException("Failed to logout session.", e);
+      }
     }
   }
 
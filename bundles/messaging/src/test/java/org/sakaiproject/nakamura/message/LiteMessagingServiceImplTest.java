@@ -18,7 +18,9 @@
 package org.sakaiproject.nakamura.message;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.fail;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -35,19 +37,28 @@ import org.mockito.Matchers;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.osgi.service.event.Event;
 import org.osgi.service.event.EventAdmin;
+import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.locking.LockManager;
 import org.sakaiproject.nakamura.api.locking.LockTimeoutException;
 import org.sakaiproject.nakamura.api.message.MessageConstants;
+import org.sakaiproject.nakamura.api.message.MessageCounts;
 import org.sakaiproject.nakamura.api.message.MessagingException;
 
+import java.util.ArrayList;
+import java.util.Dictionary;
 import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
 import java.util.Map;
 
 import javax.jcr.RepositoryException;
@@ -65,6 +76,8 @@ public class LiteMessagingServiceImplTest {
   private LockManager lockManager;
   @Mock
   private EventAdmin eventAdmin;
+  @Mock
+  private Repository contentRepository;
 
   private String userName = "joe";
   private String groupName = "g-physics-101-viewers";
@@ -79,6 +92,8 @@ public class LiteMessagingServiceImplTest {
     messagingServiceImpl = new LiteMessagingServiceImpl();
     messagingServiceImpl.lockManager = lockManager;
     messagingServiceImpl.eventAdmin = eventAdmin;
+    messagingServiceImpl.contentRepository = contentRepository;
+    when(contentRepository.loginAdministrative()).thenReturn(session);
   }
 
   @After
@@ -123,6 +138,34 @@ public class LiteMessagingServiceImplTest {
     verify(eventAdmin, times(2)).postEvent(Matchers.<Event>any());
   }
 
+  @Test
+  public void testCreateCountsInOneUpdate() throws Exception {
+    when(session.getUserId()).thenReturn("joe");
+    Map<String, Content> store = storeContents();
+    store.put("a:joe/message", new Content("a:joe/message", null));
+    messagingServiceImpl.recount(contentManager, "a:joe/message/");
+
+    Map<String, Object> mapProperties = new HashMap<String, Object>();
+    mapProperties.put(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY, SAKAI_MESSAGE_RT);
+    mapProperties.put(MessageConstants.PROP_SAKAI_TYPE, MessageConstants.TYPE_INTERNAL);
+    mapProperties.put(MessageConstants.PROP_SAKAI_MESSAGEBOX, MessageConstants.BOX_OUTBOX);
+    mapProperties.put(MessageConstants.PROP_SAKAI_READ, true);
+    // already sent, so there is no pending message update.
+    mapProperties.put(MessageConstants.PROP_SAKAI_SENDSTATE, STATE_NOTIFIED);
+    Content result = messagingServiceImpl.create(session, mapProperties, "foo");
+    verify(contentManager, times(1)).update(result);
+    assertEquals(MessageCounts.cell(MessageConstants.BOX_OUTBOX, true, null), result
+        .getProperty(MessageConstants.PROP_SAKAI_COUNTED));
+    MessageCounts counts = messagingServiceImpl.getCounts("a:joe/message/", session);
+    assertEquals(1L, counts.getCount(filter(MessageCounts.BOX, MessageConstants.BOX_OUTBOX)));
+
+    // the change seen afterwards is already counted.
+    messagingServiceImpl.handleEvent(contentEvent("ADDED", result.getPath(), null));
+    messagingServiceImpl.countPending();
+    counts = messagingServiceImpl.getCounts("a:joe/message/", session);
+    assertEquals(1L, counts.getCount(new HashMap<String, String>()));
+  }
+
   @Test
   public void testCreateFail() throws Exception {
     when(session.getUserId()).thenReturn("joe");
@@ -137,4 +180,162 @@ public class LiteMessagingServiceImplTest {
     }
     verify(eventAdmin, times(0)).postEvent(Matchers.<Event>any());
   }
+
+  @Test
+  public void testCountMessageChanges() throws Exception {
+    Map<String, Content> store = storeContents();
+    store.put("a:joe/message", new Content("a:joe/message", null));
+    messagingServiceImpl.recount(contentManager, "a:joe/message/");
+
+    String path = "a:joe/message/inbox/m1";
+    store.put(path, createMessage(path, "inbox", false, "message"));
+    messagingServiceImpl.handleEvent(contentEvent("ADDED", path, null));
+    messagingServiceImpl.countPending();
+    // seeing the same change twice counts it once.
+    messagingServiceImpl.handleEvent(contentEvent("UPDATED", path, null));
+    messagingServiceImpl.countPending();
+    MessageCounts counts = messagingServiceImpl.getCounts("a:joe/message/", session);
+    assertEquals(1L, counts.getCount(filter(MessageCounts.READ, "false")));
+
+    // read it
+    store.get(path).setProperty(MessageConstants.PROP_SAKAI_READ, true);
+    messagingServiceImpl.handleEvent(contentEvent("UPDATED", path, null));
+    messagingServiceImpl.countPending();
+    counts = messagingServiceImpl.getCounts("a:joe/message/", session);
+    assertEquals(0L, counts.getCount(filter(MessageCounts.READ, "false")));
+    assertEquals(1L, counts.getCount(filter(MessageCounts.READ, "true")));
+
+    // move it to the trash
+    store.get(path).setProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX, "trash");
+    messagingServiceImpl.handleEvent(contentEvent("UPDATED", path, null));
+    messagingServiceImpl.countPending();
+    counts = messagingServiceImpl.getCounts("a:joe/message/", session);
+    assertEquals(0L, counts.getCount(filter(MessageCounts.BOX, "inbox")));
+    assertEquals(Long.valueOf(1L), counts.getCountsBy(MessageCounts.BOX,
+        new HashMap<String, String>()).get("trash"));
+
+    // and delete it
+    Content deleted = store.remove(path);
+    messagingServiceImpl.handleEvent(contentEvent("DELETE", path, deleted.getProperties()));
+    messagingServiceImpl.countPending();
+    counts = messagingServiceImpl.getCounts("a:joe/message/", session);
+    assertEquals(0L, counts.getCount(new HashMap<String, String>()));
+  }
+
+  @Test
+  public void testCountChangesCoalesced() throws Exception {
+    Map<String, Content> store = storeContents();
+    store.put("a:joe/message", new Content("a:joe/message", null));
+    messagingServiceImpl.recount(contentManager, "a:joe/message/");
+    verify(lockManager, times(1)).waitForLock("a:joe/message/");
+
+    for (int i = 0; i < 3; i++) {
+      String path = "a:joe/message/inbox/m" + i;
+      store.put(path, createMessage(path, "inbox", false, "message"));
+      messagingServiceImpl.handleEvent(contentEvent("ADDED", path, null));
+    }
+    // the event thread only queues the changes.
+    verify(contentRepository, never()).loginAdministrative();
+    messagingServiceImpl.countPending();
+    verify(contentRepository, times(1)).loginAdministrative();
+    verify(lockManager, times(2)).waitForLock("a:joe/message/");
+    MessageCounts counts = messagingServiceImpl.getCounts("a:joe/message/", session);
+    assertEquals(3L, counts.getCount(filter(MessageCounts.READ, "false")));
+  }
+
+  @Test
+  public void testRecount() throws Exception {
+    Map<String, Content> store = storeContents();
+    store.put("a:joe/message/inbox/m1", createMessage("a:joe/message/inbox/m1", "inbox", false, "message"));
+    store.put("a:joe/message/inbox/m2", createMessage("a:joe/message/inbox/m2", "inbox", true, "invitation"));
+    store.put("a:joe/message/outbox/m3", createMessage("a:joe/message/outbox/m3", "outbox", false, "message"));
+    Content chat = createMessage("a:joe/message/inbox/m4", "inbox", false, "message");
+    chat.setProperty(MessageConstants.PROP_SAKAI_TYPE, MessageConstants.TYPE_CHAT);
+    store.put(chat.getPath(), chat);
+
+    // not counted yet, so the first read asks for a recount.
+    assertNull(messagingServiceImpl.getCounts("a:joe/message/", session));
+    messagingServiceImpl.recountQueued();
+
+    MessageCounts counts = messagingServiceImpl.getCounts("a:joe/message/", session);
+    assertEquals(3L, counts.getCount(new HashMap<String, String>()));
+    Map<String, String> unreadInbox = filter(MessageCounts.BOX, "inbox");
+    unreadInbox.put(MessageCounts.READ, "false");
+    assertEquals(1L, counts.getCount(unreadInbox));
+    Map<String, Long> byCategory = counts.getCountsBy(MessageCounts.CATEGORY,
+        filter(MessageCounts.BOX, "inbox"));
+    assertEquals(2, byCategory.size());
+    assertEquals(Long.valueOf(1L), byCategory.get("invitation"));
+    assertEquals(MessageCounts.cell("inbox", true, "invitation"), store.get(
+        "a:joe/message/inbox/m2").getProperty(MessageConstants.PROP_SAKAI_COUNTED));
+    assertNull(chat.getProperty(MessageConstants.PROP_SAKAI_COUNTED));
+  }
+
+  /**
+   * Back the content manager with a map.
+   */
+  private Map<String, Content> storeContents() throws Exception {
+    final Map<String, Content> contents = new HashMap<String, Content>();
+    when(contentManager.get(Mockito.anyString())).thenAnswer(new Answer<Content>() {
+      public Content answer(InvocationOnMock invocation) throws Throwable {
+        return contents.get(invocation.getArguments()[0]);
+      }
+    });
+    Mockito.doAnswer(new Answer<Object>() {
+      public Object answer(InvocationOnMock invocation) throws Throwable {
+        Content content = (Content) invocation.getArguments()[0];
+        contents.put(content.getPath(), content);
+        return null;
+      }
+    }).when(contentManager).update(Mockito.any(Content.class));
+    when(contentManager.listChildren(Mockito.anyString())).thenAnswer(
+        new Answer<Object>() {
+          public Object answer(InvocationOnMock invocation) throws Throwable {
+            String parent = invocation.getArguments()[0] + "/";
+            List<Content> children = new ArrayList<Content>();
+            for (String path : contents.keySet()) {
+              if (path.startsWith(parent) && path.indexOf('/', parent.length()) < 0) {
+                children.add(contents.get(path));
+              }
+            }
+            for (String path : new ArrayList<String>(contents.keySet())) {
+              // the folders between the store and its messages.
+              if (path.startsWith(parent) && path.indexOf('/', parent.length()) > 0) {
+                String folder = path.substring(0, path.indexOf('/', parent.length()));
+                if (!contents.containsKey(folder)) {
+                  children.add(new Content(folder, null));
+                  contents.put(folder, new Content(folder, null));
+                }
+              }
+            }
+            return children.iterator();
+          }
+        });
+    return contents;
+  }
+
+  private Content createMessage(String path, String box, boolean read, String category) {
+    Content message = new Content(path, null);
+    message.setProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY, SAKAI_MESSAGE_RT);
+    message.setProperty(MessageConstants.PROP_SAKAI_TYPE, MessageConstants.TYPE_INTERNAL);
+    message.setProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX, box);
+    message.setProperty(MessageConstants.PROP_SAKAI_READ, read);
+    message.setProperty(MessageConstants.PROP_SAKAI_CATEGORY, category);
+    return message;
+  }
+
+  private Event contentEvent(String topic, String path, Map<String, Object> before) {
+    Dictionary<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(StoreListener.PATH_PROPERTY, path);
+    if (before != null) {
+      properties.put(StoreListener.BEFORE_EVENT_PROPERTY, before);
+    }
+    return new Event("org/sakaiproject/nakamura/lite/content/" + topic, properties);
+  }
+
+  private Map<String, String> filter(String field, String value) {
+    Map<String, String> filter = new HashMap<String, String>();
+    filter.put(field, value);
+    return filter;
+  }
 }
@@ -0,0 +1,170 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.message.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventAdmin;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.locking.Lock;
+import org.sakaiproject.nakamura.api.locking.LockManager;
+import org.sakaiproject.nakamura.api.message.LiteMessagingService;
+import org.sakaiproject.nakamura.api.message.MessageConstants;
+import org.sakaiproject.nakamura.api.message.MessageRoute;
+import org.sakaiproject.nakamura.api.message.MessageRoutes;
+import org.sakaiproject.nakamura.message.listener.MessageRouteImpl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ *
+ */
+public class LiteInternalMessageHandlerTest {
+
+  private LiteInternalMessageHandler handler;
+  private AuthorizableManager authorizableManager;
+  private ContentManager contentManager;
+  private LiteMessagingService messagingService;
+  private EventAdmin eventAdmin;
+  private Lock lock;
+
+  @Before
+  public void setUp() throws Exception {
+    Repository repository = mock(Repository.class);
+    Session session = mock(Session.class);
+    authorizableManager = mock(AuthorizableManager.class);
+    contentManager = mock(ContentManager.class);
+    messagingService = mock(LiteMessagingService.class);
+    LockManager lockManager = mock(LockManager.class);
+    lock = mock(Lock.class);
+    eventAdmin = mock(EventAdmin.class);
+
+    when(repository.loginAdministrative()).thenReturn(session);
+    when(session.getAuthorizableManager()).thenReturn(authorizableManager);
+    when(session.getContentManager()).thenReturn(contentManager);
+    when(lockManager.waitForLock(anyString())).thenReturn(lock);
+
+    handler = new LiteInternalMessageHandler();
+    handler.slingRepository = repository;
+    handler.messagingService = messagingService;
+    handler.lockManager = lockManager;
+    handler.eventAdmin = eventAdmin;
+  }
+
+  @Test
+  public void testExpandNestedGroups() throws Exception {
+    group("g-course", "alice", "g-tutors", "bob");
+    group("g-tutors", "bob", "carol", "g-course");
+
+    List<String> recipients = handler.expandRecipients(
+        routes("g-course", "alice", "smtp:dave@example.com"), authorizableManager);
+
+    assertEquals(Arrays.asList("alice", "bob", "carol"), recipients);
+  }
+
+  @Test
+  public void testDeliverInBatches() throws Exception {
+    handler.activate(ImmutableMap.<String, Object> of(
+        LiteInternalMessageHandler.DELIVERY_BATCH_SIZE, 2,
+        LiteInternalMessageHandler.DELIVERY_THREADS, 2));
+    try {
+      group("g-course", "u1", "u2", "u3", "g-section", "u4");
+      group("g-section", "u4", "u5");
+      for (int i = 1; i <= 5; i++) {
+        String user = "u" + i;
+        when(messagingService.getFullPathToStore(eq(user), any(Session.class))).thenReturn(
+            "a:" + user + "/message/");
+        when(messagingService.getFullPathToMessage(eq(user), eq("msg1"), any(Session.class)))
+            .thenReturn("a:" + user + "/message/inbox/msg1");
+        when(messagingService.checkDeliveryAccessOk(eq(user), any(Content.class),
+            any(Session.class))).thenReturn(true);
+        when(contentManager.get("a:" + user + "/message/inbox/msg1")).thenReturn(
+            new Content("a:" + user + "/message/inbox/msg1", null));
+      }
+      Content message = new Content("a:sender/message/outbox/msg1",
+          new HashMap<String, Object>(ImmutableMap.of(MessageConstants.PROP_SAKAI_ID,
+              (Object) "msg1")));
+
+      handler.send(routes("g-course"), null, message);
+
+      verify(contentManager, times(5)).copy(eq(message.getPath()), anyString(), eq(true));
+      verify(lock, times(5)).unlock();
+      ArgumentCaptor<Event> events = ArgumentCaptor.forClass(Event.class);
+      verify(eventAdmin, times(3)).postEvent(events.capture());
+      Set<String> delivered = new HashSet<String>();
+      for (Event event : events.getAllValues()) {
+        assertEquals(MessageConstants.DELIVEREDMESSAGE_EVENT, event.getTopic());
+        assertEquals(message.getPath(), event.getProperty(MessageConstants.EVENT_LOCATION));
+        String[] recipients = (String[]) event.getProperty(MessageConstants.EVENT_RECIPIENTS);
+        String[] paths = (String[]) event.getProperty(MessageConstants.EVENT_PATHS);
+        assertEquals(recipients.length, paths.length);
+        for (int i = 0; i < recipients.length; i++) {
+          assertEquals("a:" + recipients[i] + "/message/inbox/msg1", paths[i]);
+          delivered.add(recipients[i]);
+        }
+      }
+      assertEquals(new HashSet<String>(Arrays.asList("u1", "u2", "u3", "u4", "u5")),
+          delivered);
+    } finally {
+      handler.deactivate(null);
+    }
+  }
+
+  private void group(String id, String... members) throws Exception {
+    Group group = mock(Group.class);
+    when(group.getId()).thenReturn(id);
+    when(group.getMembers()).thenReturn(members);
+    when(authorizableManager.findAuthorizable(id)).thenReturn(group);
+  }
+
+  private MessageRoutes routes(String... recipients) {
+    MessageRoutesList routes = new MessageRoutesList();
+    for (String recipient : recipients) {
+      routes.add(new MessageRouteImpl(recipient));
+    }
+    return routes;
+  }
+
+  private static class MessageRoutesList extends ArrayList<MessageRoute> implements
+      MessageRoutes {
+    private static final long serialVersionUID = 1L;
+  }
+}
@@ -2,6 +2,8 @@ package org.sakaiproject.nakamura.api.messagebucket;
 
 
 
+import java.util.Map;
+
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
@@ -11,7 +13,7 @@ import javax.servlet.http.HttpServletResponse;
 public interface MessageBucket {
 
   /**
-   * @return true if the bucket has content that can be distributed
+   * @return true if the bucket has messages waiting to be sent
    */
   boolean isReady();
 
@@ -26,11 +28,21 @@ public interface MessageBucket {
   void removeWaiter(Waiter waiter);
 
   /**
-   * @param response send the contents of the bucket out over the response.
+   * @param response send all the messages waiting in the bucket out over the response, as
+   *          a JSON object with the messages in a "messages" array, oldest first. The
+   *          messages sent are removed from the bucket.
    * @throws MessageBucketException 
    */
   void send(HttpServletResponse response) throws  MessageBucketException;
 
+  /**
+   * Add a message to the bucket and wake anything waiting on it. Messages queue up until
+   * they are sent, the oldest being dropped if too many build up.
+   * @param message the message, which must be serializable as JSON.
+   * @throws MessageBucketException if the message can't be serialized.
+   */
+  void addMessage(Map<String, Object> message) throws MessageBucketException;
+
   /**
    * Unbind the request that was bound to this bucket using this token.
    * @param token the token that was used to bind with.
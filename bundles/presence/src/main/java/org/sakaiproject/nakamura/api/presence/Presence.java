@@ -0,0 +1,57 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.presence;
+
+/**
+ * The presence of a user at a point in time: their status and where they are.
+ */
+public final class Presence {
+
+  /**
+   * The presence of a user who is not online.
+   */
+  public static final Presence OFFLINE = new Presence(PresenceStatus.offline.name(), "none");
+
+  private final String status;
+  private final String location;
+
+  /**
+   * @param status
+   *          the status (free text or matches key from {@link PresenceStatus}).
+   * @param location
+   *          the location, "none" if there is none.
+   */
+  public Presence(String status, String location) {
+    this.status = status;
+    this.location = location;
+  }
+
+  /**
+   * @return the status (free text or matches key from {@link PresenceStatus}).
+   */
+  public String getStatus() {
+    return status;
+  }
+
+  /**
+   * @return the location, "none" if there is none.
+   */
+  public String getLocation() {
+    return location;
+  }
+}
@@ -17,6 +17,7 @@
  */
 package org.sakaiproject.nakamura.api.presence;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
@@ -99,4 +100,22 @@ public interface PresenceService {
   Map<String, String> online(String location);
 
   String[] getCurrentStatus(String uuid);
+
+  /**
+   * @param uuid
+   *          the user id.
+   * @return the status and location of the user, {@link Presence#OFFLINE} if they are not
+   *         online.
+   */
+  Presence getPresence(String uuid);
+
+  /**
+   * Look up the presence of many users at once.
+   *
+   * @param uuids
+   *          the user ids.
+   * @return a map of user id to presence, in the order of the ids given. Users who are not
+   *         online map to {@link Presence#OFFLINE}.
+   */
+  Map<String, Presence> getStatuses(Collection<String> uuids);
 }
@@ -81,4 +81,36 @@ public class PresenceUtils {
     }
   }
 
+  /**
+   * Method to generate the JSON related to the presence of a single user from presence
+   * that has already been looked up, see
+   * {@link PresenceService#getStatuses(java.util.Collection)}.
+   *
+   * @param output
+   *          the writer to output the JSON into
+   * @param userId
+   *          the user to output presence data for
+   * @param presence
+   *          the presence of the user
+   * @param partialObject
+   *          if true then only output the keys and values but do not open or close the
+   *          object, if false then output a complete JSON object (opened and closed)
+   * @throws JSONException
+   */
+  public static void makePresenceJSON(JSONWriter output, String userId, Presence presence,
+      boolean partialObject) throws JSONException {
+    if (!partialObject) {
+      output.object();
+    }
+    output.key("user");
+    output.value(userId);
+    output.key(PresenceService.PRESENCE_STATUS_PROP);
+    output.value(presence.getStatus());
+    output.key(PresenceService.PRESENCE_LOCATION_PROP);
+    output.value(presence.getLocation());
+    if (!partialObject) {
+      output.endObject();
+    }
+  }
+
 }
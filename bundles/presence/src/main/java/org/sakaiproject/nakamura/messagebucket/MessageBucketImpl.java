@@ -10,59 +10,197 @@ import org.sakaiproject.nakamura.api.messagebucket.Waiter;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+/**
+ * A bucket of messages waiting to be collected. Messages are held as JSON text, so the
+ * memory they take is known and sending them only writes strings. The size of the bucket
+ * is reported to the registry that created it, if there is one.
+ */
 public class MessageBucketImpl implements MessageBucket {
 
+  /**
+   * A rough size in bytes of an empty bucket, used to account for buckets with no messages.
+   */
+  static final long BUCKET_OVERHEAD = 512;
+  static final int DEFAULT_MAX_MESSAGES = 100;
+
   private Map<Waiter, Waiter> waiters = Maps.newConcurrentHashMap();
   private Map<String, HttpServletRequest> bound = Maps.newConcurrentHashMap();
-  private boolean ready = false;
-  private Map<String, Object> messagePayload;
+  /**
+   * Guards the messages. Not the bucket itself, as the UI event servlet holds the bucket's
+   * monitor while a request waits on it.
+   */
+  private final Object lock = new Object();
+  private final LinkedList<String> messages = new LinkedList<String>();
+  private final MessageBucketRegistry registry;
+  private final int maxMessages;
+  private long size;
+  private boolean removed;
+  private volatile long lastAccess = System.currentTimeMillis();
+
+  public MessageBucketImpl() {
+    this(null, DEFAULT_MAX_MESSAGES);
+  }
+
+  /**
+   * @param registry
+   *          the registry to report changes in size to, may be null.
+   * @param maxMessages
+   *          the most messages to hold, the oldest are dropped beyond this.
+   */
+  MessageBucketImpl(MessageBucketRegistry registry, int maxMessages) {
+    this.registry = registry;
+    this.maxMessages = Math.max(1, maxMessages);
+  }
 
   public boolean isReady() {
-    return ready;
+    synchronized (lock) {
+      return !messages.isEmpty();
+    }
   }
 
   public void addWaiter(Waiter waiter) {
+    touch();
     waiters.put(waiter, waiter);
   }
 
   public void removeWaiter(Waiter waiter) {
+    touch();
     waiters.remove(waiter);
   }
 
   public void send(HttpServletResponse response) throws MessageBucketException {
-    try {
-      if (ready) {
-        ExtendedJSONWriter e = new ExtendedJSONWriter(response.getWriter());
-        e.valueMap(messagePayload);
-      } else {
+    touch();
+    List<String> pending;
+    synchronized (lock) {
+      if (messages.isEmpty()) {
         throw new MessageBucketException("Message not ready");
       }
+      pending = new ArrayList<String>(messages);
+      messages.clear();
+      adjustSize(-size);
+    }
+    try {
+      PrintWriter writer = response.getWriter();
+      writer.write("{\"messages\":[");
+      for (int i = 0; i < pending.size(); i++) {
+        if (i > 0) {
+          writer.write(',');
+        }
+        writer.write(pending.get(i));
+      }
+      writer.write("]}");
     } catch (IOException e) {
       throw new MessageBucketException(e.getMessage(), e);
-    } catch (JSONException e) {
-      throw new MessageBucketException(e.getMessage(), e);
     }
   }
 
   public void unbind(String token, HttpServletRequest request) {
-    bound.put(token, request);
+    bound.remove(token);
   }
 
   public void bind(String token, HttpServletRequest request) {
-    bound.remove(token);
+    touch();
+    bound.put(token, request);
   }
 
-  public void markReady(Map<String, Object> messagePayload) {
-    this.messagePayload = messagePayload;
-    ready = true;
+  public void addMessage(Map<String, Object> message) throws MessageBucketException {
+    String json;
+    try {
+      StringWriter sw = new StringWriter();
+      new ExtendedJSONWriter(sw).valueMap(message);
+      json = sw.toString();
+    } catch (JSONException e) {
+      throw new MessageBucketException(e.getMessage(), e);
+    }
+    synchronized (lock) {
+      messages.addLast(json);
+      adjustSize(sizeOf(json));
+      while (messages.size() > maxMessages) {
+        adjustSize(-sizeOf(messages.removeFirst()));
+      }
+    }
+    if (registry != null) {
+      // outside the lock, the registry locks buckets when it evicts them.
+      registry.checkCapacity();
+    }
     for (Waiter w : ImmutableSet.copyOf(waiters.keySet())) {
       w.resume();
     }
   }
 
+  /**
+   * @return the number of requests waiting on this bucket.
+   */
+  public int getWaiterCount() {
+    return waiters.size();
+  }
+
+  /**
+   * @return the number of messages waiting to be sent.
+   */
+  public int getMessageCount() {
+    synchronized (lock) {
+      return messages.size();
+    }
+  }
+
+  /**
+   * @return the approximate size in bytes of the messages waiting to be sent.
+   */
+  public long getSize() {
+    synchronized (lock) {
+      return size;
+    }
+  }
+
+  /**
+   * @param now
+   * @param idleTimeout
+   * @return true if nothing is waiting on the bucket and it has not been used for
+   *         idleTimeout ms.
+   */
+  boolean isIdle(long now, long idleTimeout) {
+    return waiters.isEmpty() && now - lastAccess > idleTimeout;
+  }
+
+  void touch() {
+    lastAccess = System.currentTimeMillis();
+  }
+
+  /**
+   * Drop the messages in a bucket that has been taken out of its registry. Any messages
+   * added afterwards are no longer counted by the registry.
+   */
+  void remove() {
+    synchronized (lock) {
+      messages.clear();
+      adjustSize(-size);
+      removed = true;
+    }
+  }
+
+  /**
+   * Change the size, keeping the registry's total in step. Called holding the lock.
+   */
+  private void adjustSize(long delta) {
+    size += delta;
+    if (registry != null && !removed) {
+      registry.sizeChanged(delta);
+    }
+  }
+
+  private static long sizeOf(String json) {
+    // 2 bytes a char and the String and list entry overhead.
+    return 2L * json.length() + 64;
+  }
 }
@@ -0,0 +1,225 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.messagebucket;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds message buckets by key, least recently used first. Buckets nothing is waiting on
+ * are removed once they have been idle for the idle timeout, and the least recently used of
+ * them are evicted when the buckets and their messages take more than the maximum size.
+ * Idle buckets are swept when buckets are looked up, at most every quarter of the idle
+ * timeout.
+ */
+public class MessageBucketRegistry implements MessageBucketRegistryMBean {
+
+  private final Map<String, MessageBucketImpl> buckets = new LinkedHashMap<String, MessageBucketImpl>(
+      16, 0.75f, true);
+  private final AtomicLong size = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private final AtomicLong expirations = new AtomicLong();
+  private final long maxSize;
+  private final long idleTimeout;
+  private final int maxMessages;
+  private long lastSweep = System.currentTimeMillis();
+
+  /**
+   * @param maxSize
+   *          the memory in bytes the buckets may take.
+   * @param idleTimeout
+   *          the time in ms after which a bucket that has not been used is removed.
+   * @param maxMessages
+   *          the most messages each bucket holds.
+   */
+  public MessageBucketRegistry(long maxSize, long idleTimeout, int maxMessages) {
+    this.maxSize = maxSize;
+    this.idleTimeout = idleTimeout;
+    this.maxMessages = maxMessages;
+  }
+
+  /**
+   * @param key
+   * @return the bucket for the key, created if there is none.
+   */
+  public MessageBucketImpl getBucket(String key) {
+    long now = System.currentTimeMillis();
+    MessageBucketImpl bucket;
+    synchronized (buckets) {
+      if (now - lastSweep > idleTimeout / 4) {
+        lastSweep = now;
+        expire(now);
+      }
+      bucket = buckets.get(key);
+      if (bucket == null) {
+        bucket = new MessageBucketImpl(this, maxMessages);
+        buckets.put(key, bucket);
+        size.addAndGet(MessageBucketImpl.BUCKET_OVERHEAD);
+      }
+      bucket.touch();
+    }
+    checkCapacity();
+    return bucket;
+  }
+
+  /**
+   * Called by buckets as their size changes.
+   *
+   * @param delta
+   *          the change in bytes.
+   */
+  void sizeChanged(long delta) {
+    size.addAndGet(delta);
+  }
+
+  /**
+   * Evict the least recently used buckets nothing is waiting on until the buckets fit in
+   * the maximum size.
+   */
+  void checkCapacity() {
+    if (size.get() <= maxSize) {
+      return;
+    }
+    synchronized (buckets) {
+      for (Iterator<MessageBucketImpl> i = buckets.values().iterator(); i.hasNext()
+          && size.get() > maxSize;) {
+        MessageBucketImpl bucket = i.next();
+        if (bucket.getWaiterCount() == 0) {
+          i.remove();
+          removed(bucket);
+          evictions.incrementAndGet();
+        }
+      }
+    }
+  }
+
+  /**
+   * Remove buckets that have been idle for longer than the idle timeout. Called holding
+   * the buckets lock.
+   */
+  private void expire(long now) {
+    for (Iterator<MessageBucketImpl> i = buckets.values().iterator(); i.hasNext();) {
+      MessageBucketImpl bucket = i.next();
+      if (bucket.isIdle(now, idleTimeout)) {
+        i.remove();
+        removed(bucket);
+        expirations.incrementAndGet();
+      }
+    }
+  }
+
+  private void removed(MessageBucketImpl bucket) {
+    bucket.remove();
+    size.addAndGet(-MessageBucketImpl.BUCKET_OVERHEAD);
+  }
+
+  /**
+   * Remove all the buckets.
+   */
+  public void clear() {
+    synchronized (buckets) {
+      for (MessageBucketImpl bucket : buckets.values()) {
+        removed(bucket);
+      }
+      buckets.clear();
+    }
+  }
+
+  private List<MessageBucketImpl> snapshot() {
+    synchronized (buckets) {
+      return new ArrayList<MessageBucketImpl>(buckets.values());
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.messagebucket.MessageBucketRegistryMBean#getBucketCount()
+   */
+  public int getBucketCount() {
+    synchronized (buckets) {
+      return buckets.size();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.messagebucket.MessageBucketRegistryMBean#getWaiterCount()
+   */
+  public int getWaiterCount() {
+    int waiters = 0;
+    for (MessageBucketImpl bucket : snapshot()) {
+      waiters += bucket.getWaiterCount();
+    }
+    return waiters;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.messagebucket.MessageBucketRegistryMBean#getMessageCount()
+   */
+  public int getMessageCount() {
+    int messages = 0;
+    for (MessageBucketImpl bucket : snapshot()) {
+      messages += bucket.getMessageCount();
+    }
+    return messages;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.messagebucket.MessageBucketRegistryMBean#getSize()
+   */
+  public long getSize() {
+    return size.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.messagebucket.MessageBucketRegistryMBean#getMaxSize()
+   */
+  public long getMaxSize() {
+    return maxSize;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.messagebucket.MessageBucketRegistryMBean#getEvictions()
+   */
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.messagebucket.MessageBucketRegistryMBean#getExpirations()
+   */
+  public long getExpirations() {
+    return expirations.get();
+  }
+}
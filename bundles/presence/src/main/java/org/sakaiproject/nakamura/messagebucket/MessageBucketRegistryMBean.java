@@ -0,0 +1,60 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.messagebucket;
+
+/**
+ * Management view of the message buckets held for long polling UI event requests.
+ */
+public interface MessageBucketRegistryMBean {
+
+  /**
+   * @return the number of buckets held.
+   */
+  int getBucketCount();
+
+  /**
+   * @return the number of requests waiting on buckets.
+   */
+  int getWaiterCount();
+
+  /**
+   * @return the number of messages waiting to be collected.
+   */
+  int getMessageCount();
+
+  /**
+   * @return the approximate memory in bytes taken by the buckets and their messages.
+   */
+  long getSize();
+
+  /**
+   * @return the memory in bytes the buckets may take before the least recently used are
+   *         evicted.
+   */
+  long getMaxSize();
+
+  /**
+   * @return the number of buckets evicted to keep within the maximum size.
+   */
+  long getEvictions();
+
+  /**
+   * @return the number of buckets removed after being idle.
+   */
+  long getExpirations();
+}
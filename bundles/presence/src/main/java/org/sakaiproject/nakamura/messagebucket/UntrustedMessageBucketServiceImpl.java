@@ -4,6 +4,8 @@ import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.commons.osgi.OsgiUtil;
@@ -13,13 +15,17 @@ import org.sakaiproject.nakamura.api.messagebucket.MessageBucket;
 import org.sakaiproject.nakamura.api.messagebucket.MessageBucketException;
 import org.sakaiproject.nakamura.api.messagebucket.MessageBucketService;
 import org.sakaiproject.nakamura.util.Signature;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
 import java.security.SignatureException;
 import java.text.MessageFormat;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
 import javax.servlet.http.HttpServletRequest;
 
 /**
@@ -30,11 +36,27 @@ import javax.servlet.http.HttpServletRequest;
 @Service(value=MessageBucketService.class)
 public class UntrustedMessageBucketServiceImpl implements MessageBucketService {
 
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(UntrustedMessageBucketServiceImpl.class);
   private static final String DEFAULT_URL_PATTERN = "http://localhost:8080/system/uievent/default?token={3}&server={6}&user={7}";
   private static final String BUCKETURLPATTERN_CONFIG = "bucketurlpattern";
+
+  private static final long DEFAULT_IDLE_TIMEOUT = 600000L;
+  @Property(longValue = DEFAULT_IDLE_TIMEOUT, description = "Time in ms after which a bucket nothing has used or waited on is removed, with its messages")
+  private static final String IDLE_TIMEOUT_CONFIG = "bucketidletimeout";
+
+  private static final long DEFAULT_MAX_SIZE = 16L * 1024L * 1024L;
+  @Property(longValue = DEFAULT_MAX_SIZE, description = "Approximate memory in bytes all the buckets may take, beyond this the least recently used buckets are evicted")
+  private static final String MAX_SIZE_CONFIG = "bucketmaxsize";
+
+  @Property(intValue = MessageBucketImpl.DEFAULT_MAX_MESSAGES, description = "The most messages a bucket holds, the oldest are dropped beyond this")
+  private static final String MAX_MESSAGES_CONFIG = "bucketmaxmessages";
+
   private String sharedSecret;
-  private Map<String, MessageBucket> messageBuckets = new ConcurrentHashMap<String, MessageBucket>();
+  private MessageBucketRegistry messageBuckets = new MessageBucketRegistry(
+      DEFAULT_MAX_SIZE, DEFAULT_IDLE_TIMEOUT, MessageBucketImpl.DEFAULT_MAX_MESSAGES);
   private String urlPattern;
+  private ObjectName statisticsName;
   
   @Reference
   private ClusterTrackingService clusterService;
@@ -43,6 +65,31 @@ public class UntrustedMessageBucketServiceImpl implements MessageBucketService {
   public void activate(Map<String, Object> properties) {
     sharedSecret = String.valueOf(System.currentTimeMillis()); // not that secure !
     urlPattern = OsgiUtil.toString(properties.get(BUCKETURLPATTERN_CONFIG), DEFAULT_URL_PATTERN);
+    messageBuckets = new MessageBucketRegistry(OsgiUtil.toLong(
+        properties.get(MAX_SIZE_CONFIG), DEFAULT_MAX_SIZE), OsgiUtil.toLong(
+        properties.get(IDLE_TIMEOUT_CONFIG), DEFAULT_IDLE_TIMEOUT), OsgiUtil.toInteger(
+        properties.get(MAX_MESSAGES_CONFIG), MessageBucketImpl.DEFAULT_MAX_MESSAGES));
+    try {
+      statisticsName = new ObjectName("org.sakaiproject.nakamura:type=MessageBuckets");
+      ManagementFactory.getPlatformMBeanServer().registerMBean(messageBuckets,
+          statisticsName);
+    } catch (JMException e) {
+      LOGGER.warn("Unable to register message bucket statistics {} ", e.getMessage());
+      statisticsName = null;
+    }
+  }
+
+  @Deactivate
+  public void deactivate(Map<String, Object> properties) {
+    if (statisticsName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(statisticsName);
+      } catch (JMException e) {
+        LOGGER.debug(e.getMessage(), e);
+      }
+      statisticsName = null;
+    }
+    messageBuckets.clear();
   }
 
   public MessageBucket getBucket(String token) throws MessageBucketException {
@@ -50,12 +97,7 @@ public class UntrustedMessageBucketServiceImpl implements MessageBucketService {
     if (key == null) {
       throw new MessageBucketException("Invalid Token " + token);
     }
-    MessageBucket mb = messageBuckets.get(key);
-    if (mb == null) {
-      mb = new MessageBucketImpl();
-      messageBuckets.put(key, mb);
-    }
-    return mb;
+    return messageBuckets.getBucket(key);
   }
 
   public String getToken(String userId, String context) throws MessageBucketException {
@@ -29,16 +29,28 @@ import org.apache.felix.scr.annotations.Service;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.api.presence.Presence;
 import org.sakaiproject.nakamura.api.presence.PresenceService;
 import org.sakaiproject.nakamura.api.presence.PresenceStatus;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Presence is held in two cluster replicated caches. The status cache holds a fixed layout
+ * record per user of last seen time, location and status, as an Object[] so it can be
+ * replicated without the cache needing this bundle's classes. Reading it takes no parsing.
+ * The location cache holds the users seen at each location.
+ * <p>
+ * Pings are coalesced: a ping from the same location within the heartbeat window of the
+ * last write does not write anything, and a location's map of users is only rewritten when
+ * a user arrives there.
+ */
 @Component(immediate = true,label = "Sakai Presence Service", description = "Service for getting info about the presence status and locations of current users", name = "org.sakaiproject.nakamura.api.presence.PresenceService")
 @Service(value = PresenceService.class)
 @Properties(value = {
@@ -51,13 +63,18 @@ public class PresenceServiceImpl implements PresenceService {
   private static final String LOCATION_CACHE = "presence.location";
   private static final String USER_STATUS_CACHE = "presence.status";
   private static final long PRESENCE_TTL = 5L * 60L * 1000L; // 5 minutes
-  // private static final int USER_ELEMENT = 0;
-  private static final int TIMESTAMP_ELEMENT = 1;
-  private static final int LOCATION_ELEMENT = 2;
-  private static final int STATUS_ELEMENT = 3;
-  private static final int STATUS_SIZE = 4;
+  /**
+   * Repeated pings within this time of the last write are not written.
+   */
+  private static final long HEARTBEAT_WINDOW = 60L * 1000L; // 1 minute
+  private static final String NONE = "none";
+
+  // the layout of a status record.
+  private static final int TIMESTAMP_ELEMENT = 0;
+  private static final int LOCATION_ELEMENT = 1;
+  private static final int STATUS_ELEMENT = 2;
 
-  private Cache<String> userStatusCache;
+  private Cache<Object> userStatusCache;
   private Cache<Map<String, String>> locationCache;
 
   @Reference
@@ -87,7 +104,7 @@ public class PresenceServiceImpl implements PresenceService {
    *      java.lang.String)
    */
   public void setStatus(String uuid, String status) {
-    updateLocationCache(uuid, getTimeStamp(), null, status);
+    updateRecord(uuid, getTimeStamp(), null, status);
   }
 
   /**
@@ -95,27 +112,26 @@ public class PresenceServiceImpl implements PresenceService {
    * @see org.sakaiproject.nakamura.api.presence.PresenceService#clear(java.lang.String)
    */
   public void clear(String uuid) {
+    Cache<Object> statusCache = userStatusCache;
+    if (statusCache == null) {
+      LOGGER.warn("User status cache is null, check the cacheManager");
+      return;
+    }
     // see if there is a current status to clear
-    String[] currentStatus = getCurrentStatus(uuid);
-    if (currentStatus != null) {
-      if (userStatusCache != null) {
-        // clear the user from the status cache
-        if (userStatusCache.containsKey(uuid)) {
-          userStatusCache.remove(uuid);
-        }
-      }
-      // try to find the location and clear the user from that
-      String location = null;
-      if (currentStatus.length > LOCATION_ELEMENT) {
-        location = currentStatus[LOCATION_ELEMENT];
-      }
-      if (location != null && locationCache != null) {
-        // found the location so clear the user from within this cache
-        Map<String, String> locationInstanceCache = locationCache.get(location);
-        if (locationInstanceCache != null) {
-          if (locationInstanceCache.containsKey(uuid)) {
-            locationInstanceCache.remove(uuid);
-            locationCache.put(location, locationInstanceCache);
+    Object[] record = getRecord(statusCache, uuid, getTimeStamp());
+    if (record != null) {
+      // clear the user from the status cache
+      statusCache.remove(uuid);
+      // and from the location they were at
+      String location = (String) record[LOCATION_ELEMENT];
+      Cache<Map<String, String>> locations = locationCache;
+      if (!NONE.equals(location) && locations != null) {
+        synchronized (locations) {
+          Map<String, String> users = locations.get(location);
+          if (users != null && users.containsKey(uuid)) {
+            Map<String, String> updated = new HashMap<String, String>(users);
+            updated.remove(uuid);
+            locations.put(location, updated);
           }
         }
       }
@@ -128,16 +144,7 @@ public class PresenceServiceImpl implements PresenceService {
    */
   public String getStatus(String uuid) {
     // TODO should the default status really be offline if not set? -AZ
-    String result = PresenceStatus.offline.name();
-    String[] currentStatus = getCurrentStatus(uuid);
-    if (currentStatus != null) {
-      if (currentStatus.length > STATUS_ELEMENT) {
-        result = currentStatus[STATUS_ELEMENT];
-      } else {
-        result = PresenceStatus.online.name();
-      }
-    }
-    return result;
+    return getPresence(uuid).getStatus();
   }
 
   /**
@@ -145,38 +152,56 @@ public class PresenceServiceImpl implements PresenceService {
    * @see org.sakaiproject.nakamura.api.presence.PresenceService#getLocation(java.lang.String)
    */
   public String getLocation(String uuid) {
-    String location = "none";
-    String[] currentStatus = getCurrentStatus(uuid);
-    if (currentStatus != null) {
-      if (currentStatus.length > LOCATION_ELEMENT) {
-        location = currentStatus[LOCATION_ELEMENT];
+    return getPresence(uuid).getLocation();
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.presence.PresenceService#getPresence(java.lang.String)
+   */
+  public Presence getPresence(String uuid) {
+    Cache<Object> statusCache = userStatusCache;
+    if (statusCache == null) {
+      LOGGER.warn("User status cache is null, check the cacheManager");
+      return Presence.OFFLINE;
+    }
+    return toPresence(getRecord(statusCache, uuid, getTimeStamp()));
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.presence.PresenceService#getStatuses(java.util.Collection)
+   */
+  public Map<String, Presence> getStatuses(Collection<String> uuids) {
+    Map<String, Presence> statuses = new LinkedHashMap<String, Presence>(
+        uuids.size() * 4 / 3 + 1);
+    Cache<Object> statusCache = userStatusCache;
+    if (statusCache == null) {
+      LOGGER.warn("User status cache is null, check the cacheManager");
+      for (String uuid : uuids) {
+        statuses.put(uuid, Presence.OFFLINE);
       }
+      return statuses;
     }
-    return location;
+    long now = getTimeStamp();
+    for (String uuid : uuids) {
+      statuses.put(uuid, toPresence(getRecord(statusCache, uuid, now)));
+    }
+    return statuses;
   }
-  
 
   public String[] getCurrentStatus(String uuid) {
-    String[] result = null;
-    if (userStatusCache != null) {
-      String currentStatus = userStatusCache.get(uuid);
-      long timeout = getTimeStamp() - PRESENCE_TTL;
-      // load the current status or the defaults.
-      if (currentStatus != null) {
-        String[] locationStatus = StringUtils.split(currentStatus, ":",
-            STATUS_SIZE);
-        if (locationStatus.length > TIMESTAMP_ELEMENT) {
-          // timed out ?
-          long lastTs = Long.parseLong(locationStatus[TIMESTAMP_ELEMENT]);
-          if (lastTs > timeout) {
-            result = locationStatus;
-          }
-        }
-      }
-    } else {
+    Cache<Object> statusCache = userStatusCache;
+    if (statusCache == null) {
       LOGGER.warn("User status cache is null, check the cacheManager");
+      return null;
     }
-    return result;
+    Object[] record = getRecord(statusCache, uuid, getTimeStamp());
+    if (record == null) {
+      return null;
+    }
+    return new String[] { uuid, String.valueOf(record[TIMESTAMP_ELEMENT]),
+        (String) record[LOCATION_ELEMENT], (String) record[STATUS_ELEMENT] };
   }
 
   /**
@@ -187,8 +212,8 @@ public class PresenceServiceImpl implements PresenceService {
    */
   public Map<String, String> online(List<String> connections) {
     Map<String, String> online = Maps.newHashMap();
-    for (String uuid : connections) {
-      online.put(uuid, getStatus(uuid));
+    for (Map.Entry<String, Presence> e : getStatuses(connections).entrySet()) {
+      online.put(e.getKey(), e.getValue().getStatus());
     }
     return online;
   }
@@ -199,15 +224,17 @@ public class PresenceServiceImpl implements PresenceService {
    * @see org.sakaiproject.nakamura.api.presence.PresenceService#online(java.lang.String)
    */
   public Map<String, String> online(String location) {
-    if (locationCache != null) {
-      Map<String, String> locationInstanceCache = locationCache.get(location);
-      if (locationInstanceCache != null) {
+    Cache<Map<String, String>> locations = locationCache;
+    Cache<Object> statusCache = userStatusCache;
+    if (locations != null && statusCache != null) {
+      Map<String, String> users = locations.get(location);
+      if (users != null) {
+        long now = getTimeStamp();
         Map<String, String> onlineMap = Maps.newHashMap();
-        for (Entry<String, String> e : locationInstanceCache.entrySet()) {
-          String[] currentStatus = getCurrentStatus(e.getKey());
-          if (currentStatus != null
-              && location.equals(currentStatus[LOCATION_ELEMENT])) {
-            onlineMap.put(e.getKey(), currentStatus[STATUS_ELEMENT]);
+        for (String uuid : users.keySet()) {
+          Object[] record = getRecord(statusCache, uuid, now);
+          if (record != null && location.equals(record[LOCATION_ELEMENT])) {
+            onlineMap.put(uuid, (String) record[STATUS_ELEMENT]);
           }
         }
         return onlineMap;
@@ -227,44 +254,78 @@ public class PresenceServiceImpl implements PresenceService {
   public void ping(String uuid, String location) {
     long now = getTimeStamp();
     if (StringUtils.isEmpty(location)) {
-      location = "none";
+      location = NONE;
     }
     if (StringUtils.isEmpty(uuid)) {
-      uuid = "none";
+      uuid = NONE;
     }
-    if (updateLocationCache(uuid, now, location, null)) {
-      // need to update
-      if (!"none".equals(location) && locationCache != null) {
-        Map<String, String> locationInstanceCache = locationCache.get(location);
-        if (locationInstanceCache == null) {
-          synchronized (locationCache) {
-            locationInstanceCache = locationCache.get(location);
-            if (locationInstanceCache == null) {
-              locationInstanceCache = new ConcurrentHashMap<String, String>();
-              locationCache.put(location, locationInstanceCache);
-            }
-          }
-        }
+    if (updateRecord(uuid, now, location, null) && !NONE.equals(location)) {
+      addToLocation(uuid, location, now);
+    }
+  }
 
-        String userKey = getLocationKey(uuid, location);
-        if (!locationInstanceCache.containsKey(uuid)) {
-          locationInstanceCache.put(uuid, userKey);
+  /**
+   * Add a user to the users at a location. The map of users is copied, so that the change
+   * is replicated, and users who are no longer at the location are left out of the copy.
+   */
+  private void addToLocation(String uuid, String location, long now) {
+    Cache<Map<String, String>> locations = locationCache;
+    Cache<Object> statusCache = userStatusCache;
+    if (locations == null || statusCache == null) {
+      return;
+    }
+    synchronized (locations) {
+      Map<String, String> users = locations.get(location);
+      if (users != null && users.containsKey(uuid)) {
+        return;
+      }
+      Map<String, String> updated = new HashMap<String, String>();
+      if (users != null) {
+        for (Map.Entry<String, String> e : users.entrySet()) {
+          Object[] record = getRecord(statusCache, e.getKey(), now);
+          if (record != null && location.equals(record[LOCATION_ELEMENT])) {
+            updated.put(e.getKey(), e.getValue());
+          }
         }
       }
+      updated.put(uuid, getLocationKey(uuid, location));
+      locations.put(location, updated);
     }
   }
 
   /**
-   * @return
+   * @return the time now.
    */
   private long getTimeStamp() {
-    long now = System.currentTimeMillis();
-    // make now slow changing, 20s resolution
-    return now / 20000;
+    return System.currentTimeMillis();
+  }
+
+  /**
+   * @return the record for the user if they have been seen within the presence ttl,
+   *         otherwise null.
+   */
+  private Object[] getRecord(Cache<Object> statusCache, String uuid, long now) {
+    Object value = statusCache.get(uuid);
+    // anything else is from an older version, and is treated as not being there.
+    if (value instanceof Object[]) {
+      Object[] record = (Object[]) value;
+      if (record.length > STATUS_ELEMENT
+          && ((Long) record[TIMESTAMP_ELEMENT]) > now - PRESENCE_TTL) {
+        return record;
+      }
+    }
+    return null;
+  }
+
+  private Presence toPresence(Object[] record) {
+    if (record == null) {
+      return Presence.OFFLINE;
+    }
+    return new Presence((String) record[STATUS_ELEMENT], (String) record[LOCATION_ELEMENT]);
   }
 
   /**
-   * Update the users location cache.
+   * Update the users status record.
    * 
    * @param uuid
    *          the user id
@@ -274,49 +335,32 @@ public class PresenceServiceImpl implements PresenceService {
    *          the location, null if not provided in this update
    * @param status
    *          the status, null if not provided in this update
-   * @return true if an update was performed.
+   * @return true if the record was written.
    */
-  private boolean updateLocationCache(String uuid, long now, String location,
-      String status) {
-    boolean update = false;
-    if (userStatusCache != null) {
-      String currentStatus = userStatusCache.get(uuid);
-      // load the current status or the defaults.
-      String[] locationStatus = new String[] { uuid, String.valueOf(now - 1),
-          "none", "online" };
-      if (currentStatus != null) {
-        locationStatus = StringUtils.split(currentStatus, ":", STATUS_SIZE);
-
-      }
-      // compare with non null current versions.
-      String[] ls = new String[] { uuid, String.valueOf(now), location, status };
-
-      for (int i = 0; i < locationStatus.length; i++) {
-        if (ls[i] != null) {
-          if (!locationStatus[i].equals(ls[i])) {
-            update = true;
-          }
-        }
-      }
-
-      if (update) {
-        // set any null values to what they were previously
-        for (int i = 0; i < locationStatus.length; i++) {
-          if (ls[i] == null) {
-            ls[i] = locationStatus[i];
-          }
-        }
-        String newStatus = ':' + StringUtils.join(ls, ':');
-        if (!newStatus.equals(currentStatus)) {
-          userStatusCache.put(uuid, newStatus);
-        } else {
-          update = false;
-        }
-      }
-    } else {
+  private boolean updateRecord(String uuid, long now, String location, String status) {
+    Cache<Object> statusCache = userStatusCache;
+    if (statusCache == null) {
       LOGGER.warn("User status cache is null, check the cacheManager");
+      return false;
+    }
+    Object[] current = getRecord(statusCache, uuid, now);
+    String currentLocation = NONE;
+    String currentStatus = PresenceStatus.online.name();
+    if (current != null) {
+      currentLocation = (String) current[LOCATION_ELEMENT];
+      currentStatus = (String) current[STATUS_ELEMENT];
+      // coalesce heartbeats that change nothing
+      if ((location == null || location.equals(currentLocation))
+          && (status == null || status.equals(currentStatus))
+          && ((Long) current[TIMESTAMP_ELEMENT]) > now - HEARTBEAT_WINDOW) {
+        return false;
+      }
     }
-    return update;
+    Object[] record = new Object[] { Long.valueOf(now),
+        location == null ? currentLocation : location,
+        status == null ? currentStatus : status };
+    statusCache.put(uuid, record);
+    return true;
   }
 
   /**
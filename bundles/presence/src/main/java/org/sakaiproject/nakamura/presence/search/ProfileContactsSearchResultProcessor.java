@@ -23,6 +23,7 @@ import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
 import org.osgi.framework.Constants;
@@ -31,6 +32,8 @@ import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.presence.PresenceService;
 import org.sakaiproject.nakamura.api.profile.ProfileService;
 import org.sakaiproject.nakamura.api.search.SearchConstants;
@@ -41,7 +44,15 @@ import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.RepositoryException;
 
 /**
  * Search result processor to write out profile information when search returns home nodes
@@ -75,20 +86,41 @@ public class ProfileContactsSearchResultProcessor extends ProfileNodeSearchResul
   public void writeResults(SlingHttpServletRequest request, JSONWriter write,
       Iterator<Result> results) throws JSONException {
     ExtendedJSONWriter exWriter = (ExtendedJSONWriter) write;
-    Session session = StorageClientUtils.adaptToSession(request.getResourceResolver()
-        .adaptTo(javax.jcr.Session.class));
+    javax.jcr.Session jcrSession = request.getResourceResolver().adaptTo(
+        javax.jcr.Session.class);
+    Session session = StorageClientUtils.adaptToSession(jcrSession);
 
     String currUser = request.getRemoteUser();
     try {
-      // write out the profile information for each result
+      // find the authorizables of the page so their profiles can be got in one call
+      AuthorizableManager authMgr = session.getAuthorizableManager();
+      List<String> otherUsers = new ArrayList<String>();
+      Map<String, Authorizable> authorizables = new LinkedHashMap<String, Authorizable>();
       while (results.hasNext()) {
-        Result result = results.next();
+        String otherUser = String.valueOf(results.next().getFirstValue("path"));
+        otherUsers.add(otherUser);
+        try {
+          Authorizable auth = authMgr.findAuthorizable(otherUser);
+          if (auth != null) {
+            authorizables.put(otherUser, auth);
+          }
+        } catch (AccessDeniedException e) {
+          LOGGER.debug(e.getMessage(), e);
+        }
+      }
+      Map<String, ValueMap> profiles = getProfiles(authorizables.values(), jcrSession);
+
+      // write out the profile information for each result
+      for (String otherUser : otherUsers) {
         // start the object here so we can decorate with contact details
         write.object();
-        super.writeResult(request, write, result, true);
+        Authorizable auth = authorizables.get(otherUser);
+        ValueMap map = profiles.get(otherUser);
+        if (auth != null && map != null) {
+          writeProfile(write, auth, map);
+        }
 
         // add contact information if appropriate
-        String otherUser = String.valueOf(result.getFirstValue("path"));
         connMgr.writeConnectionInfo(exWriter, session, currUser, otherUser);
 
         write.endObject();
@@ -99,4 +131,14 @@ public class ProfileContactsSearchResultProcessor extends ProfileNodeSearchResul
       LOGGER.error(e.getMessage(), e);
     }
   }
+
+  private Map<String, ValueMap> getProfiles(Collection<Authorizable> authorizables,
+      javax.jcr.Session jcrSession) throws StorageClientException {
+    try {
+      return profileService.getCompactProfileMaps(authorizables, jcrSession);
+    } catch (RepositoryException e) {
+      LOGGER.error(e.getMessage(), e);
+      return Collections.emptyMap();
+    }
+  }
 }
@@ -128,12 +128,7 @@ public class ProfileNodeSearchResultProcessor implements SolrSearchResultProcess
       }
       if (auth != null) {
         ValueMap map = profileService.getProfileMap(auth, jcrSession);
-        ExtendedJSONWriter.writeValueMapInternals(write, map);
-
-        // If this is a User Profile, then include Presence data.
-        if (!auth.isGroup()) {
-          PresenceUtils.makePresenceJSON(write, authorizableId, presenceService, true);
-        }
+        writeProfile(write, auth, map);
       }
       if (!objectInProgress) {
         write.endObject();
@@ -146,4 +141,24 @@ public class ProfileNodeSearchResultProcessor implements SolrSearchResultProcess
       LOGGER.error(e.getMessage(), e);
     }
   }
+
+  /**
+   * Write the internals of a profile, with presence data if it is a user's.
+   *
+   * @param write
+   * @param auth
+   *          The authorizable the profile belongs to.
+   * @param map
+   *          The profile.
+   * @throws JSONException
+   */
+  protected void writeProfile(JSONWriter write, Authorizable auth, ValueMap map)
+      throws JSONException {
+    ExtendedJSONWriter.writeValueMapInternals(write, map);
+
+    // If this is a User Profile, then include Presence data.
+    if (!auth.isGroup()) {
+      PresenceUtils.makePresenceJSON(write, auth.getId(), presenceService, true);
+    }
+  }
 }
@@ -40,6 +40,7 @@ import org.sakaiproject.nakamura.api.doc.ServiceMethod;
 import org.sakaiproject.nakamura.api.doc.ServiceResponse;
 import org.sakaiproject.nakamura.api.doc.ServiceSelector;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
+import org.sakaiproject.nakamura.api.presence.Presence;
 import org.sakaiproject.nakamura.api.presence.PresenceService;
 import org.sakaiproject.nakamura.api.presence.PresenceUtils;
 import org.sakaiproject.nakamura.api.profile.ProfileService;
@@ -50,6 +51,7 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.io.Writer;
 import java.util.List;
+import java.util.Map;
 
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
@@ -167,11 +169,14 @@ public class PresenceContactsServlet extends SlingSafeMethodsServlet {
           ConnectionState.ACCEPTED);
       output.key("contacts");
       UserManager um = AccessControlUtil.getUserManager(session);
+      // look up the presence of all the contacts at once
+      Map<String, Presence> statuses = presenceService.getStatuses(userIds);
       output.array();
-      for (String userId : userIds) {
+      for (Map.Entry<String, Presence> contact : statuses.entrySet()) {
+        String userId = contact.getKey();
         output.object();
         // put in the basics
-        PresenceUtils.makePresenceJSON(output, userId, presenceService, true);
+        PresenceUtils.makePresenceJSON(output, userId, contact.getValue(), true);
         // add in the profile
         Authorizable au = um.getAuthorizable(userId);
         ValueMap map = profileService.getProfileMap(au, session);
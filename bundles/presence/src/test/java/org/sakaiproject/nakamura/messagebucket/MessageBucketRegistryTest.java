@@ -0,0 +1,146 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.messagebucket;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.sling.commons.json.JSONArray;
+import org.apache.sling.commons.json.JSONObject;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.messagebucket.Waiter;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ *
+ */
+public class MessageBucketRegistryTest {
+
+  @Test
+  public void testPendingMessagesSentTogether() throws Exception {
+    MessageBucketRegistry registry = new MessageBucketRegistry(1024 * 1024, 60000, 2);
+    MessageBucketImpl bucket = registry.getBucket("ieb-chat");
+    assertFalse(bucket.isReady());
+    bucket.addMessage(createMessage("1"));
+    bucket.addMessage(createMessage("2"));
+    bucket.addMessage(createMessage("3"));
+    assertTrue(bucket.isReady());
+    assertEquals(2, registry.getMessageCount());
+
+    StringWriter sw = new StringWriter();
+    HttpServletResponse response = createMock(HttpServletResponse.class);
+    expect(response.getWriter()).andReturn(new PrintWriter(sw));
+    replay(response);
+    bucket.send(response);
+
+    // the oldest message was dropped
+    JSONArray messages = new JSONObject(sw.toString()).getJSONArray("messages");
+    assertEquals(2, messages.length());
+    assertEquals("2", messages.getJSONObject(0).getString("id"));
+    assertEquals("3", messages.getJSONObject(1).getString("id"));
+    assertFalse(bucket.isReady());
+    assertEquals(MessageBucketImpl.BUCKET_OVERHEAD, registry.getSize());
+  }
+
+  @Test
+  public void testAddWakesWaiters() throws Exception {
+    MessageBucketRegistry registry = new MessageBucketRegistry(1024 * 1024, 60000, 10);
+    MessageBucketImpl bucket = registry.getBucket("ieb-chat");
+    final int[] resumed = new int[1];
+    Waiter waiter = new Waiter() {
+      public void resume() {
+        resumed[0]++;
+      }
+    };
+    bucket.addWaiter(waiter);
+    assertEquals(1, registry.getWaiterCount());
+    bucket.addMessage(createMessage("1"));
+    assertEquals(1, resumed[0]);
+    bucket.removeWaiter(waiter);
+    assertEquals(0, registry.getWaiterCount());
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsed() throws Exception {
+    long max = 3 * MessageBucketImpl.BUCKET_OVERHEAD;
+    MessageBucketRegistry registry = new MessageBucketRegistry(max, 60000, 10);
+    MessageBucketImpl a = registry.getBucket("a");
+    MessageBucketImpl b = registry.getBucket("b");
+    b.addWaiter(new Waiter() {
+      public void resume() {
+      }
+    });
+    registry.getBucket("c");
+    registry.getBucket("a");
+    assertEquals(3, registry.getBucketCount());
+
+    // b is the least recently used, but is being waited on, so c goes.
+    registry.getBucket("d");
+    assertEquals(3, registry.getBucketCount());
+    assertEquals(1, registry.getEvictions());
+    assertSame(a, registry.getBucket("a"));
+    assertSame(b, registry.getBucket("b"));
+
+    // a message that pushes the size over evicts too
+    registry.getBucket("d").addMessage(createMessage("1"));
+    assertTrue(registry.getSize() <= max);
+    assertEquals(2, registry.getEvictions());
+    assertNotSame(a, registry.getBucket("a"));
+  }
+
+  @Test
+  public void testIdleBucketsExpire() throws Exception {
+    MessageBucketRegistry registry = new MessageBucketRegistry(1024 * 1024, 40, 10);
+    MessageBucketImpl idle = registry.getBucket("idle");
+    idle.addMessage(createMessage("1"));
+    MessageBucketImpl waited = registry.getBucket("waited");
+    waited.addWaiter(new Waiter() {
+      public void resume() {
+      }
+    });
+    Thread.sleep(100);
+    registry.getBucket("new");
+    assertEquals(2, registry.getBucketCount());
+    assertEquals(1, registry.getExpirations());
+    assertSame(waited, registry.getBucket("waited"));
+    assertEquals(2 * MessageBucketImpl.BUCKET_OVERHEAD, registry.getSize());
+
+    // messages for a removed bucket are not counted
+    idle.addMessage(createMessage("2"));
+    assertEquals(2 * MessageBucketImpl.BUCKET_OVERHEAD, registry.getSize());
+  }
+
+  private Map<String, Object> createMessage(String id) {
+    Map<String, Object> message = new HashMap<String, Object>();
+    message.put("id", id);
+    message.put("body", "Hello");
+    return message;
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.presence;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.api.presence.Presence;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
+import org.sakaiproject.nakamura.testutils.benchmark.Benchmarks;
+import org.sakaiproject.nakamura.testutils.benchmark.Benchmarks.Operation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares looking up the presence of a contact list one user at a time, parsing the
+ * colon separated string records the service used to keep, with a single
+ * {@link PresenceServiceImpl#getStatuses(java.util.Collection)} call.
+ */
+public class PresenceLookupBenchmark {
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(PresenceLookupBenchmark.class);
+  private static final int CONTACTS = 500;
+  private static final int ITERATIONS = 2000;
+
+  @Test
+  public void benchmarkContactLookup() throws Exception {
+    Cache<Object> statusCache = new MapCacheImpl<Object>();
+    final Cache<Object> legacyCache = new MapCacheImpl<Object>();
+    CacheManagerService cacheManagerService = createMock(CacheManagerService.class);
+    expect(cacheManagerService.getCache("presence.location", CacheScope.CLUSTERREPLICATED))
+        .andReturn(new MapCacheImpl<Object>()).anyTimes();
+    expect(cacheManagerService.getCache("presence.status", CacheScope.CLUSTERREPLICATED))
+        .andReturn(statusCache).anyTimes();
+    replay(cacheManagerService);
+    final PresenceServiceImpl presenceService = new PresenceServiceImpl();
+    presenceService.bindCacheManagerService(cacheManagerService);
+
+    final List<String> contacts = new ArrayList<String>();
+    final long tick = System.currentTimeMillis() / 20000L;
+    for (int i = 0; i < CONTACTS; i++) {
+      String user = "user" + i;
+      contacts.add(user);
+      if (i % 2 == 0) {
+        presenceService.ping(user, "location" + (i % 10));
+        presenceService.setStatus(user, "busy");
+        legacyCache.put(user, user + ":" + tick + ":location" + (i % 10) + ":busy");
+      }
+    }
+
+    final AtomicInteger online = new AtomicInteger();
+    Operation perContact = new Operation() {
+      public void run() {
+        online.set(legacyLookup(legacyCache, contacts, tick));
+      }
+    };
+    Operation bulkLookup = new Operation() {
+      public void run() {
+        int n = 0;
+        for (Presence presence : presenceService.getStatuses(contacts).values()) {
+          if (presence != Presence.OFFLINE) {
+            n++;
+          }
+        }
+        online.set(n);
+      }
+    };
+
+    // warm up
+    Benchmarks.nanosFor(1, ITERATIONS, perContact);
+    Benchmarks.nanosFor(1, ITERATIONS, bulkLookup);
+
+    long legacy = Benchmarks.nanosFor(1, ITERATIONS, perContact);
+    assertEquals(CONTACTS / 2, online.get());
+    long bulk = Benchmarks.nanosFor(1, ITERATIONS, bulkLookup);
+    assertEquals(CONTACTS / 2, online.get());
+
+    LOGGER.info("{} contacts: per contact string records {} us/lookup, bulk {} us/lookup",
+        new Object[] { CONTACTS, legacy / ITERATIONS / 1000L, bulk / ITERATIONS / 1000L });
+  }
+
+  /**
+   * The old lookup, which fetched and split the record once for the status and again
+   * for the location of each contact.
+   */
+  private int legacyLookup(Cache<Object> cache, List<String> contacts, long tick) {
+    int online = 0;
+    for (String user : contacts) {
+      String status = legacyElement(cache, user, 3, tick);
+      legacyElement(cache, user, 2, tick);
+      if (status != null) {
+        online++;
+      }
+    }
+    return online;
+  }
+
+  private String legacyElement(Cache<Object> cache, String user, int element, long tick) {
+    String record = (String) cache.get(user);
+    if (record == null) {
+      return null;
+    }
+    String[] parts = record.split(":", 4);
+    if (Long.parseLong(parts[1]) < tick - 15) {
+      return null;
+    }
+    return parts[element];
+  }
+}
@@ -22,6 +22,8 @@ import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 
 import com.google.common.collect.Lists;
 
@@ -33,6 +35,7 @@ import org.junit.Test;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.api.presence.Presence;
 import org.sakaiproject.nakamura.api.presence.PresenceService;
 import org.sakaiproject.nakamura.api.presence.PresenceStatus;
 import org.sakaiproject.nakamura.memory.MapCacheImpl;
@@ -168,6 +171,39 @@ public class PresenceServiceImplTest {
     }
   }
   
+  @Test
+  public void testGetStatuses() {
+    presenceService.ping("user1", "locationA");
+    presenceService.setStatus("user1", "busy");
+    presenceService.setStatus("user3", "online");
+    Map<String, Presence> statuses = presenceService.getStatuses(Lists.newArrayList(
+        "user3", "user2", "user1"));
+    assertEquals(Lists.newArrayList("user3", "user2", "user1"), Lists
+        .newArrayList(statuses.keySet()));
+    assertEquals("busy", statuses.get("user1").getStatus());
+    assertEquals("locationA", statuses.get("user1").getLocation());
+    assertSame(Presence.OFFLINE, statuses.get("user2"));
+    assertEquals("online", statuses.get("user3").getStatus());
+    assertEquals("none", statuses.get("user3").getLocation());
+  }
+
+  @Test
+  public void testPingCoalesced() {
+    presenceService.ping("user1", "locationA");
+    Object record = presenceStatusCache.get("user1");
+    Object users = presenceLocationCache.get("locationA");
+    // the same ping again does not write
+    presenceService.ping("user1", "locationA");
+    assertSame(record, presenceStatusCache.get("user1"));
+    assertSame(users, presenceLocationCache.get("locationA"));
+    // moving does, and the user is no longer online at the old location
+    presenceService.ping("user1", "locationB");
+    assertNotSame(record, presenceStatusCache.get("user1"));
+    assertEquals("locationB", presenceService.getLocation("user1"));
+    assertEquals(0, presenceService.online("locationA").size());
+    assertEquals(1, presenceService.online("locationB").size());
+  }
+
   public PresenceService getPresenceService() {
     return this.presenceService;
   }
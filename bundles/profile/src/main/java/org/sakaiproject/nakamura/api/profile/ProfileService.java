@@ -26,6 +26,9 @@ import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.user.BasicUserInfoService;
 
+import java.util.Collection;
+import java.util.Map;
+
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 
@@ -54,6 +57,23 @@ public interface ProfileService {
 
   ValueMap getProfileMap(Content profileContent, Session session) throws RepositoryException;
 
+  /**
+   * Gets the profiles of a number of authorizables, such as a page of search results, in
+   * one call. Each profile is the same as {@link #getProfileMap(Authorizable, Session)}
+   * returns, taken from the snapshots of resolved profiles where there are any.
+   *
+   * @param authorizables
+   *          The authorizables to get the profiles of.
+   * @param session
+   *          A JCR Session that can be used to access the necessary nodes.
+   * @return The profiles by authorizable ID, in the order of the authorizables. Profiles the
+   *         session is not allowed to read are left out.
+   * @throws RepositoryException
+   * @throws StorageClientException
+   */
+  Map<String, ValueMap> getCompactProfileMaps(Collection<Authorizable> authorizables,
+      Session session) throws RepositoryException, StorageClientException;
+
   ValueMap getProfileMap(
       org.apache.jackrabbit.api.security.user.Authorizable authorizable, Session session) throws RepositoryException;
 
@@ -22,18 +22,26 @@ import static org.sakaiproject.nakamura.api.profile.ProfileConstants.GROUP_PROFI
 import static org.sakaiproject.nakamura.api.user.UserConstants.GROUP_DESCRIPTION_PROPERTY;
 import static org.sakaiproject.nakamura.api.user.UserConstants.GROUP_TITLE_PROPERTY;
 
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.ReferenceCardinality;
 import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.ReferenceStrategy;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.felix.scr.annotations.Services;
 import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.api.wrappers.ValueMapDecorator;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessControlManager;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
@@ -53,7 +61,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -68,9 +78,25 @@ import javax.jcr.Session;
  *
  */
 @Component(immediate = true, metatype = true, specVersion="1.1")
-@Service
+@Services(value = { @Service(value = ProfileService.class),
+    @Service(value = EventHandler.class) })
+@Properties(value = {
+    @Property(name = "service.vendor", value = "The Sakai Foundation"),
+    @Property(name = "event.topics", value = {
+        "org/sakaiproject/nakamura/lite/authorizables/ADDED",
+        "org/sakaiproject/nakamura/lite/authorizables/UPDATED",
+        "org/sakaiproject/nakamura/lite/authorizables/DELETE",
+        "org/sakaiproject/nakamura/lite/content/ADDED",
+        "org/sakaiproject/nakamura/lite/content/UPDATED",
+        "org/sakaiproject/nakamura/lite/content/DELETE" }) })
 @Reference(name = "ProfileProviders", referenceInterface = ProfileProvider.class, policy = ReferencePolicy.DYNAMIC, cardinality = ReferenceCardinality.OPTIONAL_MULTIPLE, strategy = ReferenceStrategy.EVENT, bind = "bindProfileProvider", unbind = "unbindProfileProvider")
-public class ProfileServiceImpl implements ProfileService {
+public class ProfileServiceImpl implements ProfileService, EventHandler {
+
+  @Property(intValue = 1000, label = "Profile Cache Size", description = "The most authorizables whose resolved profiles are kept")
+  static final String CACHE_SIZE = "sakai.profile.cache.size";
+
+  @Property(longValue = 300, label = "Profile Cache Seconds", description = "How long a resolved profile is kept before it is resolved again")
+  static final String CACHE_TTL = "sakai.profile.cache.ttl";
 
   private Map<String, ProfileProvider> providers = new ConcurrentHashMap<String, ProfileProvider>();
   private ProviderSettingsFactory providerSettingsFactory = new ProviderSettingsFactory();
@@ -82,6 +108,14 @@ public class ProfileServiceImpl implements ProfileService {
   @Reference
   private BasicUserInfoService basicUserInfoService;
 
+  private ProfileSnapshots snapshots = new ProfileSnapshots(1000, 300000L);
+
+  @Activate
+  protected void activate(Map<?, ?> props) {
+    snapshots = new ProfileSnapshots(OsgiUtil.toInteger(props.get(CACHE_SIZE), 1000),
+        OsgiUtil.toLong(props.get(CACHE_TTL), 300L) * 1000L);
+  }
+
   /**
    * {@inheritDoc}
    * @throws AccessDeniedException 
@@ -152,23 +186,91 @@ public class ProfileServiceImpl implements ProfileService {
    */
   public ValueMap getProfileMap(Authorizable authorizable, Session session)
       throws RepositoryException, StorageClientException, AccessDeniedException {
+    return getProfileMap(authorizable, session, StorageClientUtils.adaptToSession(session));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.profile.ProfileService#getCompactProfileMaps(java.util.Collection,
+   *      javax.jcr.Session)
+   */
+  public Map<String, ValueMap> getCompactProfileMaps(
+      Collection<Authorizable> authorizables, Session session) throws RepositoryException,
+      StorageClientException {
+    org.sakaiproject.nakamura.api.lite.Session sparseSession = StorageClientUtils.adaptToSession(session);
+    Map<String, ValueMap> profiles = new LinkedHashMap<String, ValueMap>();
+    for (Authorizable authorizable : authorizables) {
+      if (profiles.containsKey(authorizable.getId())) {
+        continue;
+      }
+      try {
+        profiles.put(authorizable.getId(),
+            getProfileMap(authorizable, session, sparseSession));
+      } catch (AccessDeniedException e) {
+        LOG.debug("Unable to read the profile of {} {} ", authorizable.getId(),
+            e.getMessage());
+      }
+    }
+    return profiles;
+  }
+
+  /**
+   * Gets the profile from its snapshot, or resolves it and keeps a snapshot unless it has
+   * sections from external providers, as those can change without this service knowing.
+   */
+  private ValueMap getProfileMap(Authorizable authorizable, Session session,
+      org.sakaiproject.nakamura.api.lite.Session sparseSession)
+      throws RepositoryException, StorageClientException, AccessDeniedException {
     if (User.ANON_USER.equals(authorizable.getId())) {
       return new ValueMapDecorator(basicUserInfoService.getProperties(authorizable));
     }
-    String profilePath = LitePersonalUtils.getProfilePath(authorizable.getId());
-    org.sakaiproject.nakamura.api.lite.Session sparseSession = StorageClientUtils.adaptToSession(session);
-    ContentManager contentManager = sparseSession.getContentManager();
-    ValueMap profileMap = new ValueMapDecorator(new HashMap<String, Object>());
-    
-    if (contentManager.exists(profilePath)) {
-      Content profileContent = contentManager.get(profilePath);
-      profileMap.putAll(getResolvedProfileMap(authorizable, profileContent, session));
+    String reader = sparseSession.getUserId();
+    ValueMap profileMap = snapshots.get(authorizable.getId(), reader);
+    if (profileMap == null) {
+      long generation = snapshots.getGeneration();
+      String profilePath = LitePersonalUtils.getProfilePath(authorizable.getId());
+      ContentManager contentManager = sparseSession.getContentManager();
+      profileMap = new ValueMapDecorator(new HashMap<String, Object>());
+      boolean external = false;
+
+      if (contentManager.exists(profilePath)) {
+        Content profileContent = contentManager.get(profilePath);
+        Map<String, List<ProviderSettings>> providersMap = scanForProviders(profileContent, session);
+        external = !providersMap.isEmpty();
+        profileMap.putAll(getResolvedProfileMap(profileContent, providersMap));
+      }
+      if (!external) {
+        snapshots.put(authorizable.getId(), reader, profileMap, generation);
+      }
     }
 
     profileMap.putAll(basicUserInfoService.getProperties(authorizable));
     return profileMap;
   }
 
+  /**
+   * Drops the snapshots of profiles whose content or authorizable changed.
+   *
+   * {@inheritDoc}
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String path = (String) event.getProperty(StoreListener.PATH_PROPERTY);
+    if (path == null) {
+      return;
+    }
+    if (event.getTopic().startsWith(StoreListener.TOPIC_BASE + "authorizables/")) {
+      snapshots.invalidate(path);
+    } else {
+      String authorizableId = PathUtils.getAuthorizableId(path);
+      if (authorizableId != null
+          && path.startsWith(LitePersonalUtils.getProfilePath(authorizableId))) {
+        snapshots.invalidate(authorizableId);
+      }
+    }
+  }
+
   /**
    * {@inheritDoc}
    * @param jcrSession 
@@ -176,8 +278,21 @@ public class ProfileServiceImpl implements ProfileService {
    * @see org.sakaiproject.nakamura.api.profile.ProfileService#getProfileMap(javax.jcr.Node)
    */
   public ValueMap getResolvedProfileMap(Authorizable authorizable, Content profileContent, Session jcrSession) throws RepositoryException {
+    return getResolvedProfileMap(profileContent, scanForProviders(profileContent, jcrSession));
+  }
+
+  /**
+   * @param profileContent
+   *          The top node of a profile.
+   * @param providersMap
+   *          The external providers found in the profile by
+   *          {@link #scanForProviders(Content, Session)}.
+   * @return The profile merged with the information from the external providers.
+   * @throws RepositoryException
+   */
+  private ValueMap getResolvedProfileMap(Content profileContent,
+      Map<String, List<ProviderSettings>> providersMap) throws RepositoryException {
     // Get the data from our external providers.
-    Map<String, List<ProviderSettings>> providersMap = scanForProviders(profileContent, jcrSession);
     Map<Content, Future<Map<String, Object>>> providedNodeData = new HashMap<Content, Future<Map<String, Object>>>();
     for (Entry<String, List<ProviderSettings>> e : providersMap.entrySet()) {
       ProfileProvider pp = providers.get(e.getKey());
@@ -320,6 +435,10 @@ public class ProfileServiceImpl implements ProfileService {
     String objectName = PathUtils.lastElement(profilePath);
     ContentManager contentManager = session.getContentManager();
     String authorizableId = PathUtils.getAuthorizableId(profilePath);
+    if (authorizableId != null) {
+      // don't wait for the change events, so the updated profile is read back at once.
+      snapshots.invalidate(authorizableId);
+    }
     // update the authorizable
     if (authorizableId != null) {
       AuthorizableManager authorizableManager = session.getAuthorizableManager();
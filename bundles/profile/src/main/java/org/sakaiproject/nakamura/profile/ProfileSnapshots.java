@@ -0,0 +1,272 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.profile;
+
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Snapshots of resolved profiles. A snapshot is kept serialized, so it is compact and every
+ * read gets its own copy to add to. Which sections of a profile can be read depends on who
+ * is reading, so a snapshot is kept for each user that read the profile. Snapshots are
+ * dropped when the profile or its authorizable changes, and expire in case a change was
+ * missed.
+ */
+class ProfileSnapshots {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ProfileSnapshots.class);
+
+  /**
+   * The most users a snapshot of one profile is kept for.
+   */
+  static final int MAX_READERS = 32;
+
+  /**
+   * The most recent invalidations remembered by authorizable.
+   */
+  static final int MAX_INVALIDATIONS = 1024;
+
+  private static class Snapshot {
+    final byte[] data;
+    final long expires;
+
+    Snapshot(byte[] data, long expires) {
+      this.data = data;
+      this.expires = expires;
+    }
+  }
+
+  /**
+   * The snapshots of each authorizable's profile by the user that read it, least recently
+   * used authorizable first.
+   */
+  private final Map<String, Map<String, Snapshot>> snapshots;
+  private final int maxSize;
+  private final long ttl;
+  /**
+   * Counts the invalidations, so a profile resolved before it was invalidated is not kept.
+   */
+  private final AtomicLong generation = new AtomicLong();
+  /**
+   * The generation each recently invalidated authorizable was invalidated at, oldest
+   * first. A change to one profile only stops snapshots of that profile being kept.
+   */
+  private final Map<String, Long> invalidated;
+  /**
+   * The latest generation dropped from {@link #invalidated}, a profile resolved before it
+   * might have been invalidated since and is not kept.
+   */
+  private long forgotten;
+
+  /**
+   * @param maxSize
+   *          the most authorizables snapshots are kept for.
+   * @param ttl
+   *          how long a snapshot is kept, in ms.
+   */
+  ProfileSnapshots(final int maxSize, long ttl) {
+    this.maxSize = maxSize;
+    this.ttl = ttl;
+    snapshots = new LinkedHashMap<String, Map<String, Snapshot>>(16, 0.75f, true) {
+      private static final long serialVersionUID = 4379218850213641370L;
+
+      @Override
+      protected boolean removeEldestEntry(Entry<String, Map<String, Snapshot>> eldest) {
+        return size() > maxSize;
+      }
+    };
+    invalidated = new LinkedHashMap<String, Long>() {
+      private static final long serialVersionUID = -1781327498371024362L;
+
+      @Override
+      protected boolean removeEldestEntry(Entry<String, Long> eldest) {
+        if (size() > MAX_INVALIDATIONS) {
+          forgotten = eldest.getValue();
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * @return the current generation, to be passed to
+   *         {@link #put(String, String, Map, long)} with a profile resolved after this
+   *         call.
+   */
+  long getGeneration() {
+    return generation.get();
+  }
+
+  /**
+   * @param authorizableId
+   * @param reader
+   *          the user reading the profile.
+   * @return a copy of the profile as it was resolved for the reader, or null if there is
+   *         no current snapshot of it.
+   */
+  ValueMap get(String authorizableId, String reader) {
+    Snapshot snapshot = null;
+    synchronized (snapshots) {
+      Map<String, Snapshot> readers = snapshots.get(authorizableId);
+      if (readers != null) {
+        snapshot = readers.get(reader);
+      }
+    }
+    if (snapshot == null || snapshot.expires < System.currentTimeMillis()) {
+      return null;
+    }
+    try {
+      ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(snapshot.data));
+      try {
+        return toValueMap((Map<?, ?>) in.readObject());
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      LOGGER.warn("Unable to read the profile snapshot of {} {} ", authorizableId,
+          e.getMessage());
+    } catch (ClassNotFoundException e) {
+      LOGGER.warn("Unable to read the profile snapshot of {} {} ", authorizableId,
+          e.getMessage());
+    }
+    return null;
+  }
+
+  /**
+   * Keep a snapshot of a resolved profile, unless that profile was invalidated since it
+   * was resolved.
+   *
+   * @param authorizableId
+   * @param reader
+   *          the user the profile was resolved for.
+   * @param profile
+   * @param resolvedGeneration
+   *          the generation from {@link #getGeneration()} before the profile was resolved.
+   */
+  void put(String authorizableId, String reader, Map<String, Object> profile,
+      long resolvedGeneration) {
+    if (maxSize <= 0) {
+      return;
+    }
+    byte[] data;
+    try {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      ObjectOutputStream out = new ObjectOutputStream(baos);
+      out.writeObject(toHashMap(profile));
+      out.close();
+      data = baos.toByteArray();
+    } catch (IOException e) {
+      // most likely a value that can't be serialized, the profile will be resolved each time.
+      LOGGER.debug("Unable to snapshot the profile of {} {} ", authorizableId,
+          e.getMessage());
+      return;
+    }
+    synchronized (snapshots) {
+      Long invalidatedAt = invalidated.get(authorizableId);
+      if (resolvedGeneration < forgotten
+          || (invalidatedAt != null && invalidatedAt > resolvedGeneration)) {
+        return;
+      }
+      Map<String, Snapshot> readers = snapshots.get(authorizableId);
+      if (readers == null) {
+        readers = new LinkedHashMap<String, Snapshot>(4, 0.75f, true) {
+          private static final long serialVersionUID = -4093650164446573322L;
+
+          @Override
+          protected boolean removeEldestEntry(Entry<String, Snapshot> eldest) {
+            return size() > MAX_READERS;
+          }
+        };
+        snapshots.put(authorizableId, readers);
+      }
+      readers.put(reader, new Snapshot(data, System.currentTimeMillis() + ttl));
+    }
+  }
+
+  /**
+   * Drop the snapshots of an authorizable's profile.
+   *
+   * @param authorizableId
+   */
+  void invalidate(String authorizableId) {
+    synchronized (snapshots) {
+      // re-inserted so the map stays in order of invalidation.
+      invalidated.remove(authorizableId);
+      invalidated.put(authorizableId, generation.incrementAndGet());
+      snapshots.remove(authorizableId);
+    }
+  }
+
+  /**
+   * @return the number of snapshots kept.
+   */
+  int size() {
+    int size = 0;
+    synchronized (snapshots) {
+      for (Map<String, Snapshot> readers : snapshots.values()) {
+        size += readers.size();
+      }
+    }
+    return size;
+  }
+
+  /**
+   * @return a copy of the map with nested maps copied to HashMaps, as the ValueMaps the
+   *         profile is made of can't be serialized.
+   */
+  private static HashMap<String, Object> toHashMap(Map<?, ?> map) {
+    HashMap<String, Object> copy = new HashMap<String, Object>();
+    for (Entry<?, ?> e : map.entrySet()) {
+      Object value = e.getValue();
+      if (value instanceof Map<?, ?>) {
+        value = toHashMap((Map<?, ?>) value);
+      }
+      copy.put(String.valueOf(e.getKey()), value);
+    }
+    return copy;
+  }
+
+  /**
+   * @return the map with nested maps wrapped as ValueMaps again, as they were resolved.
+   */
+  private static ValueMap toValueMap(Map<?, ?> map) {
+    ValueMap valueMap = new ValueMapDecorator(new HashMap<String, Object>());
+    for (Entry<?, ?> e : map.entrySet()) {
+      Object value = e.getValue();
+      if (value instanceof Map<?, ?>) {
+        value = toValueMap((Map<?, ?>) value);
+      }
+      valueMap.put(String.valueOf(e.getKey()), value);
+    }
+    return valueMap;
+  }
+}
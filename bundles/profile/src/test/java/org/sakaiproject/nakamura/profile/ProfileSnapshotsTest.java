@@ -0,0 +1,146 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.profile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ *
+ */
+public class ProfileSnapshotsTest {
+
+  private Map<String, Object> createProfile() {
+    ValueMap aboutme = new ValueMapDecorator(new HashMap<String, Object>());
+    aboutme.put("hobbies", new String[] { "chess", "rowing" });
+    aboutme.put("_path", "/~alice/public/authprofile/aboutme");
+    ValueMap profile = new ValueMapDecorator(new HashMap<String, Object>());
+    profile.put("userid", "alice");
+    profile.put("aboutme", aboutme);
+    profile.put("created", Calendar.getInstance());
+    profile.put("count", 3L);
+    return profile;
+  }
+
+  @Test
+  public void testSnapshotIsCopied() {
+    ProfileSnapshots snapshots = new ProfileSnapshots(10, 60000L);
+    Map<String, Object> profile = createProfile();
+    snapshots.put("alice", "bob", profile, snapshots.getGeneration());
+
+    ValueMap first = snapshots.get("alice", "bob");
+    assertEquals("alice", first.get("userid"));
+    assertEquals(3L, first.get("count"));
+    assertEquals(profile.get("created"), first.get("created"));
+    assertTrue(first.get("aboutme") instanceof ValueMap);
+    ValueMap aboutme = (ValueMap) first.get("aboutme");
+    assertArrayEquals(new String[] { "chess", "rowing" }, (String[]) aboutme.get("hobbies"));
+
+    // changing a snapshot that was read must not change the next read.
+    first.put("basic", "changed");
+    ValueMap second = snapshots.get("alice", "bob");
+    assertNotSame(first, second);
+    assertNull(second.get("basic"));
+  }
+
+  @Test
+  public void testSnapshotPerReader() {
+    ProfileSnapshots snapshots = new ProfileSnapshots(10, 60000L);
+    snapshots.put("alice", "bob", createProfile(), snapshots.getGeneration());
+    assertNull(snapshots.get("alice", "carol"));
+    assertEquals("alice", snapshots.get("alice", "bob").get("userid"));
+  }
+
+  @Test
+  public void testInvalidate() {
+    ProfileSnapshots snapshots = new ProfileSnapshots(10, 60000L);
+    snapshots.put("alice", "bob", createProfile(), snapshots.getGeneration());
+    snapshots.put("alice", "carol", createProfile(), snapshots.getGeneration());
+    snapshots.put("dave", "bob", createProfile(), snapshots.getGeneration());
+    assertEquals(3, snapshots.size());
+
+    snapshots.invalidate("alice");
+    assertNull(snapshots.get("alice", "bob"));
+    assertNull(snapshots.get("alice", "carol"));
+    assertEquals(1, snapshots.size());
+  }
+
+  @Test
+  public void testResolvedBeforeInvalidateIsNotKept() {
+    ProfileSnapshots snapshots = new ProfileSnapshots(10, 60000L);
+    long generation = snapshots.getGeneration();
+    // the profile changes while it is being resolved.
+    snapshots.invalidate("alice");
+    snapshots.put("alice", "bob", createProfile(), generation);
+    assertNull(snapshots.get("alice", "bob"));
+  }
+
+  @Test
+  public void testOtherInvalidateDoesNotStopKeep() {
+    ProfileSnapshots snapshots = new ProfileSnapshots(10, 60000L);
+    long generation = snapshots.getGeneration();
+    // a different profile changes while alice's is being resolved.
+    snapshots.invalidate("dave");
+    snapshots.put("alice", "bob", createProfile(), generation);
+    assertNotNull(snapshots.get("alice", "bob"));
+  }
+
+  @Test
+  public void testForgottenInvalidateStopsKeep() {
+    ProfileSnapshots snapshots = new ProfileSnapshots(10, 60000L);
+    long generation = snapshots.getGeneration();
+    snapshots.invalidate("alice");
+    // push alice out of the remembered invalidations.
+    for (int i = 0; i < ProfileSnapshots.MAX_INVALIDATIONS; i++) {
+      snapshots.invalidate("user" + i);
+    }
+    snapshots.put("alice", "bob", createProfile(), generation);
+    assertNull(snapshots.get("alice", "bob"));
+  }
+
+  @Test
+  public void testExpired() {
+    ProfileSnapshots snapshots = new ProfileSnapshots(10, -1L);
+    snapshots.put("alice", "bob", createProfile(), snapshots.getGeneration());
+    assertNull(snapshots.get("alice", "bob"));
+  }
+
+  @Test
+  public void testLeastRecentlyUsedEvicted() {
+    ProfileSnapshots snapshots = new ProfileSnapshots(2, 60000L);
+    snapshots.put("alice", "bob", createProfile(), snapshots.getGeneration());
+    snapshots.put("dave", "bob", createProfile(), snapshots.getGeneration());
+    snapshots.get("alice", "bob");
+    snapshots.put("erin", "bob", createProfile(), snapshots.getGeneration());
+    assertEquals(2, snapshots.size());
+    assertNull(snapshots.get("dave", "bob"));
+    assertEquals("alice", snapshots.get("alice", "bob").get("userid"));
+  }
+}
@@ -63,6 +63,12 @@ public interface SolrSearchConstants {
    * Property that defines whether the results should have a limit on it.
    */
   public static final String SAKAI_LIMIT_RESULTS = "sakai:limit-results";
+  /**
+   * Property that allows the rendered results of a template to be cached until the next
+   * Solr commit. Only set this on templates whose results do not depend on who is asking
+   * beyond what they can read.
+   */
+  public static final String SAKAI_CACHE_RESULTS = "sakai:cache-results";
   /**
    *
    */
@@ -0,0 +1,273 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_BATCHRESULTPROCESSOR;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_CACHE_RESULTS;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_LIMIT_RESULTS;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_PROPERTY_PROVIDER;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_QUERY_TEMPLATE;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_QUERY_TEMPLATE_OPTIONS;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_RESULTPROCESSOR;
+
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.JSONObject;
+import org.sakaiproject.nakamura.api.search.solr.Query;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+
+/**
+ * Everything a search template node says about a search, read from the repository once.
+ * The query and option templates are scanned for ${term} markers up front, so checking a
+ * request for missing parameters does not rescan them, and options with no markers are
+ * used without evaluation. Instances are immutable and shared between requests.
+ */
+public class CompiledSearchTemplate {
+
+  private final String path;
+  private final String queryType;
+  private final String queryTemplate;
+  private final String[] propertyProviderNames;
+  private final Map<String, String> defaultProperties;
+  private final Map<String, OptionTemplate> options;
+  private final String resultProcessor;
+  private final String batchResultProcessor;
+  private final boolean limitResults;
+  private final boolean cacheResults;
+
+  /**
+   * Read a search template node.
+   *
+   * @param queryNode
+   *          a node with a sakai:query-template.
+   * @throws RepositoryException
+   * @throws JSONException
+   *           if the template options are not valid JSON.
+   */
+  public CompiledSearchTemplate(Node queryNode) throws RepositoryException, JSONException {
+    path = queryNode.getPath();
+    // check the resource type and set the query type appropriately
+    // default to using solr for queries
+    if ("sakai/sparse-search".equals(queryNode.getProperty("sling:resourceType")
+        .getString())) {
+      queryType = Query.SPARSE;
+    } else {
+      queryType = Query.SOLR;
+    }
+    queryTemplate = queryNode.getProperty(SAKAI_QUERY_TEMPLATE).getString();
+
+    String[] providers = null;
+    if (queryNode.hasProperty(SAKAI_PROPERTY_PROVIDER)) {
+      Property propProv = queryNode.getProperty(SAKAI_PROPERTY_PROVIDER);
+      if (propProv.isMultiple()) {
+        Value[] propProvVals = propProv.getValues();
+        providers = new String[propProvVals.length];
+        for (int i = 0; i < propProvVals.length; i++) {
+          providers[i] = propProvVals[i].getString();
+        }
+      } else {
+        providers = new String[] { propProv.getString() };
+      }
+    }
+    propertyProviderNames = providers;
+
+    Map<String, String> defaults = new LinkedHashMap<String, String>();
+    PropertyIterator props = queryNode.getProperties();
+    while (props.hasNext()) {
+      Property prop = props.nextProperty();
+      if (!prop.isMultiple()) {
+        defaults.put(prop.getName(), prop.getString());
+      }
+    }
+    defaultProperties = Collections.unmodifiableMap(defaults);
+
+    Map<String, OptionTemplate> opts = new LinkedHashMap<String, OptionTemplate>();
+    JSONObject queryOptions = accumulateQueryOptions(queryNode);
+    if (queryOptions != null) {
+      Iterator<String> keys = queryOptions.keys();
+      while (keys.hasNext()) {
+        String key = keys.next();
+        opts.put(key, new OptionTemplate(queryOptions.getString(key)));
+      }
+    }
+    options = Collections.unmodifiableMap(opts);
+
+    resultProcessor = getString(queryNode, SAKAI_RESULTPROCESSOR);
+    batchResultProcessor = getString(queryNode, SAKAI_BATCHRESULTPROCESSOR);
+    limitResults = !queryNode.hasProperty(SAKAI_LIMIT_RESULTS)
+        || queryNode.getProperty(SAKAI_LIMIT_RESULTS).getBoolean();
+    cacheResults = queryNode.hasProperty(SAKAI_CACHE_RESULTS)
+        && queryNode.getProperty(SAKAI_CACHE_RESULTS).getBoolean();
+  }
+
+  private static String getString(Node node, String name) throws RepositoryException {
+    return node.hasProperty(name) ? node.getProperty(name).getString() : null;
+  }
+
+  /**
+   * Options can be held as a JSON string property or as the properties of a sub-node.
+   */
+  private static JSONObject accumulateQueryOptions(Node queryNode)
+      throws RepositoryException, JSONException {
+    JSONObject queryOptions = null;
+    if (queryNode.hasProperty(SAKAI_QUERY_TEMPLATE_OPTIONS)) {
+      // process the options as JSON string
+      String optionsProp = queryNode.getProperty(SAKAI_QUERY_TEMPLATE_OPTIONS).getString();
+      queryOptions = new JSONObject(optionsProp);
+    } else if (queryNode.hasNode(SAKAI_QUERY_TEMPLATE_OPTIONS)) {
+      // process the options as a sub-node
+      Node optionsNode = queryNode.getNode(SAKAI_QUERY_TEMPLATE_OPTIONS);
+      if (optionsNode.hasProperties()) {
+        queryOptions = new JSONObject();
+        PropertyIterator props = optionsNode.getProperties();
+        while (props.hasNext()) {
+          Property prop = props.nextProperty();
+          String key = prop.getName();
+          String val = prop.getString();
+          if (!key.startsWith("jcr:")) {
+            queryOptions.put(key, val);
+          }
+        }
+      }
+    }
+    return queryOptions;
+  }
+
+  /**
+   * @param template
+   * @return the names in ${name} markers, in the order they appear.
+   */
+  static List<String> findTerms(String template) {
+    List<String> terms = new ArrayList<String>();
+    if (template == null) {
+      return terms;
+    }
+    int startPosition = template.indexOf("${");
+    while (startPosition > -1) {
+      int endPosition = template.indexOf("}", startPosition);
+      if (endPosition > -1) {
+        terms.add(template.substring(startPosition + 2, endPosition));
+        startPosition = template.indexOf("${", endPosition);
+      } else {
+        break;
+      }
+    }
+    return terms;
+  }
+
+  public String getPath() {
+    return path;
+  }
+
+  public String getQueryType() {
+    return queryType;
+  }
+
+  public String getQueryTemplate() {
+    return queryTemplate;
+  }
+
+  /**
+   * @return the property providers to run, or null if none are named.
+   */
+  public String[] getPropertyProviderNames() {
+    return (propertyProviderNames == null) ? null : propertyProviderNames.clone();
+  }
+
+  /**
+   * @return the single valued properties of the template node, which act as defaults
+   *         for the template parameters.
+   */
+  public Map<String, String> getDefaultProperties() {
+    return defaultProperties;
+  }
+
+  /**
+   * @return the query options, by name.
+   */
+  public Map<String, OptionTemplate> getOptions() {
+    return options;
+  }
+
+  /**
+   * @return the named result processor, or null to use the default.
+   */
+  public String getResultProcessor() {
+    return resultProcessor;
+  }
+
+  /**
+   * @return the named batch result processor, or null if batch processing is not used.
+   */
+  public String getBatchResultProcessor() {
+    return batchResultProcessor;
+  }
+
+  public boolean isLimitResults() {
+    return limitResults;
+  }
+
+  public boolean isCacheResults() {
+    return cacheResults;
+  }
+
+  /**
+   * A query option value and the terms it needs.
+   */
+  public static class OptionTemplate {
+    private final String template;
+    private final List<String> terms;
+    private final boolean literal;
+
+    OptionTemplate(String template) {
+      this.template = template;
+      this.terms = Collections.unmodifiableList(findTerms(template));
+      // anything velocity could act on starts with $ or #.
+      this.literal = template.indexOf('$') < 0 && template.indexOf('#') < 0;
+    }
+
+    public String getTemplate() {
+      return template;
+    }
+
+    /**
+     * @return the names of the ${name} markers in the option.
+     */
+    public List<String> getTerms() {
+      return terms;
+    }
+
+    /**
+     * @return true if the option needs no evaluation.
+     */
+    public boolean isLiteral() {
+      return literal;
+    }
+  }
+}
@@ -0,0 +1,164 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Paths deleted since the index last caught up, so search results can skip them until the
+ * deletes reach Solr. Each tombstone is a single entry in a cluster replicated cache keyed
+ * by path, so checking a hit costs one lookup however many paths have been deleted.
+ * <p>
+ * Every server keeps the tombstones it created in order. They are removed when the server
+ * sees a Solr commit, when they are older than the time to live, or oldest first when there
+ * are more than the maximum.
+ * </p>
+ */
+public class DeletedPathTombstones {
+
+  private final CacheManagerService cacheManagerService;
+  private final String cacheName;
+  private final int maxSize;
+  private final long ttl;
+  private final ConcurrentLinkedQueue<Tombstone> created = new ConcurrentLinkedQueue<Tombstone>();
+  private final AtomicInteger size = new AtomicInteger();
+
+  /**
+   * @param cacheManagerService
+   * @param cacheName
+   *          the name of the cluster replicated cache holding path -> time of delete.
+   * @param maxSize
+   *          the most tombstones this server keeps.
+   * @param ttl
+   *          the time in ms after which a tombstone is ignored, 0 or less for no limit.
+   */
+  public DeletedPathTombstones(CacheManagerService cacheManagerService, String cacheName,
+      int maxSize, long ttl) {
+    this.cacheManagerService = cacheManagerService;
+    this.cacheName = cacheName;
+    this.maxSize = maxSize;
+    this.ttl = ttl;
+  }
+
+  /**
+   * Record a path as deleted.
+   *
+   * @param path
+   */
+  public void add(String path) {
+    long now = System.currentTimeMillis();
+    getCache().put(path, now);
+    created.add(new Tombstone(path, now));
+    size.incrementAndGet();
+    Tombstone oldest;
+    while ((size.get() > maxSize || isExpired(created.peek(), now))
+        && (oldest = created.poll()) != null) {
+      size.decrementAndGet();
+      removeIfUnchanged(oldest);
+    }
+  }
+
+  /**
+   * The path exists again, so it must not be hidden.
+   *
+   * @param path
+   */
+  public void remove(String path) {
+    getCache().remove(path);
+  }
+
+  /**
+   * @param path
+   * @return true if the path was deleted and the delete may not be in the index yet.
+   */
+  public boolean isDeleted(String path) {
+    if (path == null) {
+      return false;
+    }
+    Object deleted = getCache().get(path);
+    if (!(deleted instanceof Long)) {
+      return false;
+    }
+    return ttl <= 0 || System.currentTimeMillis() - (Long) deleted <= ttl;
+  }
+
+  /**
+   * Solr has committed, so the deletes made by this server before the commit are in the
+   * index.
+   *
+   * @param commitTime
+   *          the time the commit started.
+   */
+  public void committed(long commitTime) {
+    for (Iterator<Tombstone> i = created.iterator(); i.hasNext();) {
+      Tombstone t = i.next();
+      if (t.deleted > commitTime) {
+        break;
+      }
+      if (created.remove(t)) {
+        size.decrementAndGet();
+        removeIfUnchanged(t);
+      }
+    }
+  }
+
+  /**
+   * @return the number of tombstones created by this server and not yet removed.
+   */
+  public int getSize() {
+    return size.get();
+  }
+
+  private Cache<Object> getCache() {
+    return cacheManagerService.getCache(cacheName, CacheScope.CLUSTERREPLICATED);
+  }
+
+  private boolean isExpired(Tombstone t, long now) {
+    return t != null && ttl > 0 && now - t.deleted > ttl;
+  }
+
+  /**
+   * Remove the shared entry, unless the path has been deleted again since.
+   */
+  private void removeIfUnchanged(Tombstone t) {
+    Cache<Object> cache = getCache();
+    Object deleted = cache.get(t.path);
+    if (deleted instanceof Long && (Long) deleted == t.deleted) {
+      cache.remove(t.path);
+    }
+  }
+
+  /**
+   * A delete made by this server.
+   */
+  private static class Tombstone {
+    private final String path;
+    private final long deleted;
+
+    Tombstone(String path, long deleted) {
+      this.path = path;
+      this.deleted = deleted;
+    }
+  }
+}
@@ -0,0 +1,364 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import com.google.common.collect.Sets;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.felix.scr.annotations.Services;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.search.SearchUtil;
+import org.sakaiproject.nakamura.api.search.solr.Query;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Caches the readers filter query for each user, so that the user's groups are not walked
+ * and escaped on every search. Each entry records the principals it was built from, and a
+ * change to any of those principals, or to the user, drops the entry. Entries also lapse
+ * after a time to live, which bounds how long a change made on another server can go
+ * unseen. The Solr result set factory filters searches with it, and the search servlet
+ * keys cached responses on it, so both see the same membership.
+ */
+@Component(immediate = true, metatype = true)
+@Services(value = { @Service(value = ReaderFilterCache.class),
+    @Service(value = EventHandler.class) })
+@Properties(value = {
+    @Property(name = "service.vendor", value = "The Sakai Foundation"),
+    @Property(name = "service.description", value = "Caches the readers filter for each user."),
+    @Property(name = "event.topics", value = {
+        "org/sakaiproject/nakamura/lite/authorizables/UPDATED",
+        "org/sakaiproject/nakamura/lite/authorizables/DELETE" }) })
+public class ReaderFilterCache implements ReaderFilterCacheMBean, EventHandler {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ReaderFilterCache.class);
+
+  private static final int DEFAULT_MAX_SIZE = 10000;
+  @Property(intValue = DEFAULT_MAX_SIZE, description = "The number of users to cache the readers filter for")
+  static final String MAX_SIZE = "readerFilterCacheSize";
+
+  private static final long DEFAULT_TTL = 300000L;
+  @Property(longValue = DEFAULT_TTL, description = "The time in ms a cached readers filter is used for, changes made on other servers can take this long to be seen")
+  static final String TTL = "readerFilterTtl";
+
+  private int maxSize;
+  private long ttl;
+  private Map<String, Entry> entries;
+  /**
+   * principal id -> users whose filters contain it.
+   */
+  private final Map<String, Set<String>> dependents = new HashMap<String, Set<String>>();
+  /**
+   * Incremented on every invalidation, so a filter built while one happened is not cached.
+   */
+  private final AtomicLong generation = new AtomicLong();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong invalidations = new AtomicLong();
+  private final AtomicLong built = new AtomicLong();
+  private final AtomicLong builtClauses = new AtomicLong();
+  private volatile int maxClauseSize;
+  private ObjectName statisticsName;
+
+  public ReaderFilterCache() {
+    this(DEFAULT_MAX_SIZE, DEFAULT_TTL);
+  }
+
+  /**
+   * @param maxSize
+   *          the most users to hold filters for, the least recently used are dropped.
+   * @param ttl
+   *          the time in ms a filter is used for, 0 or less for no limit.
+   */
+  public ReaderFilterCache(int maxSize, long ttl) {
+    this.maxSize = maxSize;
+    this.ttl = ttl;
+    this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+  }
+
+  @Activate
+  protected void activate(Map<?, ?> props) {
+    synchronized (this) {
+      maxSize = OsgiUtil.toInteger(props.get(MAX_SIZE), DEFAULT_MAX_SIZE);
+      ttl = OsgiUtil.toLong(props.get(TTL), DEFAULT_TTL);
+    }
+    clear();
+    try {
+      statisticsName = new ObjectName("org.sakaiproject.nakamura:type=SolrReaderFilterCache");
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, statisticsName);
+    } catch (JMException e) {
+      LOGGER.warn("Unable to register reader filter cache statistics {} ", e.getMessage());
+      statisticsName = null;
+    }
+  }
+
+  @Deactivate
+  protected void deactivate(Map<?, ?> props) {
+    if (statisticsName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(statisticsName);
+      } catch (JMException e) {
+        LOGGER.debug(e.getMessage(), e);
+      }
+      statisticsName = null;
+    }
+    clear();
+  }
+
+  /**
+   * {@inheritDoc}
+   * A change to a user or group may change the readers of anyone in it.
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String authorizableId = (String) event.getProperty("path");
+    if (authorizableId != null) {
+      invalidate(authorizableId);
+    }
+  }
+
+  /**
+   * Get the readers filter for the user of a session, from the cache if possible. The
+   * readers are sorted so the filter is the same string on every request, and Solr can
+   * reuse the cached filter.
+   *
+   * @param session
+   * @return the filter query restricting results to those the user can read.
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   */
+  public String getReaderFilter(Session session) throws StorageClientException,
+      AccessDeniedException {
+    String userId = session.getUserId();
+    String filter = getFilter(userId);
+    if (filter == null) {
+      long generation = getGeneration();
+      AuthorizableManager am = session.getAuthorizableManager();
+      Authorizable user = am.findAuthorizable(userId);
+      Set<String> principals = Sets.newHashSet();
+      Set<String> readers = new TreeSet<String>();
+      if (user != null) {
+        for (Iterator<Group> gi = user.memberOf(am); gi.hasNext();) {
+          String groupId = gi.next().getId();
+          principals.add(groupId);
+          readers.add(SearchUtil.escapeString(groupId, Query.SOLR));
+        }
+      }
+      principals.add(userId);
+      readers.add(userId);
+      filter = "readers:(" + StringUtils.join(readers, " OR ") + ")";
+      if (user != null) {
+        putFilter(userId, principals, filter, generation);
+      }
+    }
+    return filter;
+  }
+
+  /**
+   * @param userId
+   * @return the cached filter for the user, or null if it must be built.
+   */
+  public synchronized String getFilter(String userId) {
+    Entry e = entries.get(userId);
+    if (e != null && ttl > 0 && System.currentTimeMillis() - e.created > ttl) {
+      remove(userId);
+      e = null;
+    }
+    if (e == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    return e.filter;
+  }
+
+  /**
+   * @return a token to pass to {@link #putFilter(String, Set, String, long)}, taken before
+   *         reading the principals.
+   */
+  public long getGeneration() {
+    return generation.get();
+  }
+
+  /**
+   * Cache a filter for a user, unless something was invalidated since the generation was
+   * taken.
+   *
+   * @param userId
+   * @param principals
+   *          the ids of all the principals the filter was built from.
+   * @param filter
+   * @param generation
+   *          from {@link #getGeneration()} before the principals were read.
+   */
+  public synchronized void putFilter(String userId, Set<String> principals, String filter,
+      long generation) {
+    built.incrementAndGet();
+    builtClauses.addAndGet(principals.size());
+    if (principals.size() > maxClauseSize) {
+      maxClauseSize = principals.size();
+    }
+    if (generation != this.generation.get()) {
+      return;
+    }
+    remove(userId);
+    entries.put(userId, new Entry(filter, principals));
+    for (String principal : principals) {
+      Set<String> users = dependents.get(principal);
+      if (users == null) {
+        users = new HashSet<String>();
+        dependents.put(principal, users);
+      }
+      users.add(userId);
+    }
+    if (entries.size() > maxSize) {
+      Iterator<String> eldest = entries.keySet().iterator();
+      remove(eldest.next());
+    }
+  }
+
+  /**
+   * Drop the filters that depend on an authorizable, because it changed.
+   *
+   * @param authorizableId
+   */
+  public synchronized void invalidate(String authorizableId) {
+    generation.incrementAndGet();
+    Set<String> users = dependents.get(authorizableId);
+    if (users != null) {
+      for (String userId : users.toArray(new String[users.size()])) {
+        if (remove(userId)) {
+          invalidations.incrementAndGet();
+        }
+      }
+    }
+    if (remove(authorizableId)) {
+      invalidations.incrementAndGet();
+    }
+  }
+
+  /**
+   * Must be called with the cache synchronized.
+   *
+   * @return true if there was an entry.
+   */
+  private boolean remove(String userId) {
+    Entry e = entries.remove(userId);
+    if (e == null) {
+      return false;
+    }
+    for (String principal : e.principals) {
+      Set<String> users = dependents.get(principal);
+      if (users != null) {
+        users.remove(userId);
+        if (users.isEmpty()) {
+          dependents.remove(principal);
+        }
+      }
+    }
+    return true;
+  }
+
+  public synchronized void clear() {
+    generation.incrementAndGet();
+    entries.clear();
+    dependents.clear();
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public double getHitRate() {
+    long h = hits.get();
+    long total = h + misses.get();
+    return (total == 0) ? 0.0 : (double) h / total;
+  }
+
+  public long getInvalidations() {
+    return invalidations.get();
+  }
+
+  public synchronized int getSize() {
+    return entries.size();
+  }
+
+  public double getAverageClauseSize() {
+    long n = built.get();
+    return (n == 0) ? 0.0 : (double) builtClauses.get() / n;
+  }
+
+  public int getMaxClauseSize() {
+    return maxClauseSize;
+  }
+
+  public void clearStatistics() {
+    hits.set(0);
+    misses.set(0);
+    invalidations.set(0);
+    built.set(0);
+    builtClauses.set(0);
+    maxClauseSize = 0;
+  }
+
+  /**
+   * A cached filter.
+   */
+  private static class Entry {
+    private final String filter;
+    private final Set<String> principals;
+    private final long created = System.currentTimeMillis();
+
+    Entry(String filter, Set<String> principals) {
+      this.filter = filter;
+      this.principals = principals;
+    }
+  }
+}
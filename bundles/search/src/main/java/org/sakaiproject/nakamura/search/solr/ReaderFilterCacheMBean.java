@@ -0,0 +1,69 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+/**
+ * Management view of the reader filter cache.
+ */
+public interface ReaderFilterCacheMBean {
+
+  /**
+   * @return the number of searches that found a cached reader filter.
+   */
+  long getHits();
+
+  /**
+   * @return the number of searches that had to build the reader filter.
+   */
+  long getMisses();
+
+  /**
+   * @return hits / (hits + misses), 0 if there have been no searches.
+   */
+  double getHitRate();
+
+  /**
+   * @return the number of cached filters dropped because a principal changed.
+   */
+  long getInvalidations();
+
+  /**
+   * @return the number of cached filters.
+   */
+  int getSize();
+
+  /**
+   * @return the average number of principals in the filters built.
+   */
+  double getAverageClauseSize();
+
+  /**
+   * @return the largest number of principals in a filter built.
+   */
+  int getMaxClauseSize();
+
+  /**
+   * Drop all cached filters.
+   */
+  void clear();
+
+  /**
+   * Reset the counters.
+   */
+  void clearStatistics();
+}
@@ -0,0 +1,204 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.felix.scr.annotations.Services;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Holds rendered search responses for templates that opt in, until the next Solr commit.
+ * Callers build the key from everything the response depends on, the cache only bounds
+ * the number and age of entries and empties itself when the index changes.
+ */
+@Component(immediate = true, metatype = true)
+@Services(value = { @Service(value = SearchResponseCache.class),
+    @Service(value = EventHandler.class) })
+@Properties(value = {
+    @Property(name = "service.vendor", value = "The Sakai Foundation"),
+    @Property(name = "service.description", value = "Caches search responses until the next Solr commit."),
+    @Property(name = "event.topics", value = "org/sakaiproject/nakamura/solr/COMMIT") })
+public class SearchResponseCache implements EventHandler, SearchResponseCacheMBean {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SearchResponseCache.class);
+
+  private static final int DEFAULT_MAX_ENTRIES = 1000;
+  @Property(intValue = DEFAULT_MAX_ENTRIES, description = "The most responses to cache, the least recently used are dropped")
+  static final String MAX_ENTRIES = "maxEntries";
+
+  private static final long DEFAULT_TTL = 60000L;
+  @Property(longValue = DEFAULT_TTL, description = "The time in ms a response is cached for if no commit is seen")
+  static final String TTL = "ttl";
+
+  private Map<String, Entry> entries = newEntries(DEFAULT_MAX_ENTRIES);
+  private long ttl = DEFAULT_TTL;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong commits = new AtomicLong();
+  private ObjectName statisticsName;
+
+  @Activate
+  protected void activate(Map<?, ?> props) {
+    synchronized (this) {
+      entries = newEntries(OsgiUtil.toInteger(props.get(MAX_ENTRIES), DEFAULT_MAX_ENTRIES));
+      ttl = OsgiUtil.toLong(props.get(TTL), DEFAULT_TTL);
+    }
+    try {
+      statisticsName = new ObjectName("org.sakaiproject.nakamura:type=SearchResponseCache");
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, statisticsName);
+    } catch (JMException e) {
+      LOGGER.warn("Unable to register search response cache statistics {} ", e.getMessage());
+      statisticsName = null;
+    }
+  }
+
+  @Deactivate
+  protected void deactivate(Map<?, ?> props) {
+    if (statisticsName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(statisticsName);
+      } catch (JMException e) {
+        LOGGER.debug(e.getMessage(), e);
+      }
+      statisticsName = null;
+    }
+    clear();
+  }
+
+  /**
+   * @param key
+   * @return the cached response body, or null.
+   */
+  public synchronized String get(String key) {
+    Entry e = entries.get(key);
+    if (e != null && ttl > 0 && System.currentTimeMillis() - e.created > ttl) {
+      entries.remove(key);
+      e = null;
+    }
+    if (e == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    return e.body;
+  }
+
+  /**
+   * Cache a response, unless the index was committed since the generation was taken.
+   *
+   * @param key
+   * @param body
+   * @param generation
+   *          from {@link #getGeneration()} before the search was run.
+   */
+  public synchronized void put(String key, String body, long generation) {
+    if (generation == commits.get()) {
+      entries.put(key, new Entry(body));
+    }
+  }
+
+  /**
+   * @return a token that changes on every commit.
+   */
+  public long getGeneration() {
+    return commits.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    synchronized (this) {
+      commits.incrementAndGet();
+      entries.clear();
+    }
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public double getHitRate() {
+    long h = hits.get();
+    long total = h + misses.get();
+    return (total == 0) ? 0.0 : (double) h / total;
+  }
+
+  public long getCommits() {
+    return commits.get();
+  }
+
+  public synchronized int getSize() {
+    return entries.size();
+  }
+
+  public synchronized void clear() {
+    entries.clear();
+  }
+
+  public void clearStatistics() {
+    hits.set(0);
+    misses.set(0);
+  }
+
+  private static Map<String, Entry> newEntries(final int maxEntries) {
+    return new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  /**
+   * A cached response.
+   */
+  private static class Entry {
+    private final String body;
+    private final long created = System.currentTimeMillis();
+
+    Entry(String body) {
+      this.body = body;
+    }
+  }
+}
@@ -0,0 +1,59 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+/**
+ * Management view of the search response cache.
+ */
+public interface SearchResponseCacheMBean {
+
+  /**
+   * @return the number of responses served from the cache.
+   */
+  long getHits();
+
+  /**
+   * @return the number of cacheable responses that had to be generated.
+   */
+  long getMisses();
+
+  /**
+   * @return hits / (hits + misses), 0 if nothing has been looked up.
+   */
+  double getHitRate();
+
+  /**
+   * @return the number of times the cache was emptied by a Solr commit.
+   */
+  long getCommits();
+
+  /**
+   * @return the number of responses cached.
+   */
+  int getSize();
+
+  /**
+   * Drop all cached responses.
+   */
+  void clear();
+
+  /**
+   * Reset the counters.
+   */
+  void clearStatistics();
+}
@@ -0,0 +1,108 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SEARCH_PATH_PREFIX;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.felix.scr.annotations.Services;
+import org.apache.sling.api.SlingConstants;
+import org.apache.sling.commons.json.JSONException;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+
+/**
+ * Holds compiled search templates by node path. A template is dropped when its node, an
+ * ancestor or a descendant (such as the options node) is added, changed or removed.
+ */
+@Component(immediate = true)
+@Services(value = { @Service(value = SearchTemplateCache.class),
+    @Service(value = EventHandler.class) })
+@Properties(value = {
+    @Property(name = "service.vendor", value = "The Sakai Foundation"),
+    @Property(name = "service.description", value = "Caches compiled search templates."),
+    @Property(name = EventConstants.EVENT_TOPIC, value = {
+        SlingConstants.TOPIC_RESOURCE_ADDED, SlingConstants.TOPIC_RESOURCE_CHANGED,
+        SlingConstants.TOPIC_RESOURCE_REMOVED }) })
+public class SearchTemplateCache implements EventHandler {
+
+  private final ConcurrentMap<String, CompiledSearchTemplate> templates = new ConcurrentHashMap<String, CompiledSearchTemplate>();
+  /**
+   * Incremented on every change, so a template read while one happened is not cached.
+   */
+  private final AtomicLong generation = new AtomicLong();
+
+  /**
+   * @param queryNode
+   * @return the compiled template for the node, compiling it if it is not cached.
+   * @throws RepositoryException
+   * @throws JSONException
+   */
+  public CompiledSearchTemplate get(Node queryNode) throws RepositoryException,
+      JSONException {
+    String path = queryNode.getPath();
+    CompiledSearchTemplate template = templates.get(path);
+    if (template == null) {
+      long g = generation.get();
+      template = new CompiledSearchTemplate(queryNode);
+      if (g == generation.get()) {
+        templates.put(path, template);
+      }
+    }
+    return template;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String path = (String) event.getProperty(SlingConstants.PROPERTY_PATH);
+    if (path == null || !path.startsWith(SEARCH_PATH_PREFIX)) {
+      return;
+    }
+    generation.incrementAndGet();
+    for (Iterator<String> i = templates.keySet().iterator(); i.hasNext();) {
+      String templatePath = i.next();
+      if (templatePath.equals(path) || templatePath.startsWith(path + "/")
+          || path.startsWith(templatePath + "/")) {
+        i.remove();
+      }
+    }
+  }
+
+  /**
+   * @return the number of compiled templates held.
+   */
+  public int getSize() {
+    return templates.size();
+  }
+}
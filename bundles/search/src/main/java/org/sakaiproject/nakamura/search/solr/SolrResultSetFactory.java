@@ -17,8 +17,6 @@
  */
 package org.sakaiproject.nakamura.search.solr;
 
-import com.google.common.collect.Sets;
-
 import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
@@ -40,11 +38,7 @@ import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
-import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
-import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
-import org.sakaiproject.nakamura.api.lite.authorizable.Group;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
-import org.sakaiproject.nakamura.api.search.SearchUtil;
 import org.sakaiproject.nakamura.api.search.solr.Query;
 import org.sakaiproject.nakamura.api.search.solr.ResultSetFactory;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchException;
@@ -55,19 +49,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
-import org.sakaiproject.nakamura.api.memory.CacheScope;
-import org.sakaiproject.nakamura.api.memory.Cache;
-import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
-import org.sakaiproject.nakamura.api.cluster.ClusterServer;
 
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
-import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Set;
-import java.util.List;
-import java.util.ArrayList;
 
 /**
  *
@@ -78,6 +64,7 @@ import java.util.ArrayList;
     @Property(name = "type", value = Query.SOLR),
     @Property(name = "event.topics", value = {
         "org/sakaiproject/nakamura/lite/content/DELETE",
+        "org/sakaiproject/nakamura/lite/content/ADDED",
         "org/sakaiproject/nakamura/solr/COMMIT"})})
 
   public class SolrResultSetFactory implements ResultSetFactory, EventHandler {
@@ -87,8 +74,12 @@ import java.util.ArrayList;
   private static final String SLOW_QUERY_TIME = "slowQueryTime";
   @Property(intValue = 100)
   private static final String DEFAULT_MAX_RESULTS = "defaultMaxResults";
+  @Property(intValue = 10000, description = "The most deleted paths each server hides from search results until the next Solr commit")
+  private static final String DELETED_PATH_MAX = "deletedPathMax";
+  @Property(longValue = 600000L, description = "The time in ms a deleted path is hidden from search results if no Solr commit is seen")
+  private static final String DELETED_PATH_TTL = "deletedPathTtl";
 
-  private static final String DELETED_PATH_CACHE = "deletedPathQueue";
+  private static final String DELETED_PATH_CACHE = "deletedPathTombstones";
 
   /** only used to mark the logger */
   private final class SlowQueryLogger { }
@@ -103,11 +94,12 @@ import java.util.ArrayList;
   CacheManagerService cacheManagerService;
 
   @Reference
-  ClusterTrackingService clusterTrackingService;
+  ReaderFilterCache readerFilterCache;
 
   private int defaultMaxResults = 100; // set to 100 to allow testing
   private long slowQueryThreshold;
   private long verySlowQueryThreshold;
+  private DeletedPathTombstones deletedPaths;
 
   @Activate
   protected void activate(Map<?, ?> props) {
@@ -115,76 +107,9 @@ import java.util.ArrayList;
         defaultMaxResults);
     slowQueryThreshold = OsgiUtil.toLong(props.get(SLOW_QUERY_TIME), 10L);
     verySlowQueryThreshold = OsgiUtil.toLong(props.get(VERY_SLOW_QUERY_TIME), 100L);
-  }
-
-
-  /*
-   * Get an instance of the cache used to track paths that have been marked as
-   * deleted since the last Solr commit.  This cache is shared by all nodes in a
-   * cluster, acting as a sort of shared memory.
-   */
-  private Cache<Object> getDeletedPathCache() {
-    return cacheManagerService.getCache(DELETED_PATH_CACHE, CacheScope.CLUSTERREPLICATED);
-  }
-
-
-  /*
-   * Record a path as having been deleted, preventing it from appearing in search results.
-   *
-   * @param path the path that was deleted
-   */
-  private synchronized void storeDeletedPath(String path) {
-    Cache<Object> cache = getDeletedPathCache();
-    String myId = clusterTrackingService.getCurrentServerId();
-
-    Integer pathCount = (Integer)cache.get("pathCount@" + myId);
-    pathCount = (pathCount == null) ? 0 : pathCount;
-
-    cache.put("path[" + pathCount + "]@" + myId,
-              SearchUtil.escapeString(path, Query.SOLR));
-    cache.put("pathCount@" + myId, pathCount + 1);
-  }
-
-
-  /*
-   * Clear the list of deleted nodes for this node.
-   */
-  private synchronized void clearDeletedPaths() {
-    Cache<Object> cache = getDeletedPathCache();
-    String myId = clusterTrackingService.getCurrentServerId();
-
-    Integer pathCount = (Integer)cache.get("pathCount@" + myId);
-
-    for (int idx = 0; pathCount != null && idx < pathCount; idx++) {
-      cache.remove("path[" + idx + "]@" + myId);
-    }
-
-    cache.put("pathCount@" + myId, 0);
-  }
-
-
-  /*
-   * Get a list of the paths that were deleted since the last Solr commit across
-   * all nodes in the cluster.
-   */
-  private List<String> getDeletedPaths() {
-    List<String> deletedPaths = new ArrayList<String>();
-    Cache<Object> cache = getDeletedPathCache();
-
-    for (ClusterServer server : clusterTrackingService.getAllServers()) {
-      String serverId = server.getServerId();
-      Integer pathCount = (Integer)cache.get("pathCount@" + serverId);
-
-      for (int idx = 0; pathCount != null && idx < pathCount; idx++) {
-        String path = (String)cache.get("path[" + idx + "]@" + serverId);
-
-        if (path != null) {
-          deletedPaths.add(path);
-        }
-      }
-    }
-
-    return deletedPaths;
+    deletedPaths = new DeletedPathTombstones(cacheManagerService, DELETED_PATH_CACHE,
+        OsgiUtil.toInteger(props.get(DELETED_PATH_MAX), 10000), OsgiUtil.toLong(
+            props.get(DELETED_PATH_TTL), 600000L));
   }
 
 
@@ -195,14 +120,18 @@ import java.util.ArrayList;
       String path = (String)event.getProperty("path");
 
       if (path != null) {
-        storeDeletedPath(path);
+        deletedPaths.add(path);
+      }
+    } else if (topic.equals("org/sakaiproject/nakamura/lite/content/ADDED")) {
+      String path = (String)event.getProperty("path");
+
+      if (path != null) {
+        deletedPaths.remove(path);
       }
     } else if (topic.equals("org/sakaiproject/nakamura/solr/COMMIT")) {
-      clearDeletedPaths();
+      deletedPaths.committed(System.currentTimeMillis());
     }
   }
-      
-
 
   /**
    * Process a query string to search using Solr.
@@ -218,29 +147,21 @@ import java.util.ArrayList;
       boolean asAnon) throws SolrSearchException {
     try {
       String queryString = query.getQueryString();
-      // apply readers restrictions.
+      // apply readers restrictions, as a filter query so Solr caches the matching set.
+      String readerFilter = null;
       if (asAnon) {
-        queryString = "(" + queryString + ")  AND readers:" + User.ANON_USER;
+        readerFilter = "readers:" + User.ANON_USER;
       } else {
         Session session = StorageClientUtils.adaptToSession(request.getResourceResolver().adaptTo(javax.jcr.Session.class));
         if (!User.ADMIN_USER.equals(session.getUserId())) {
-          AuthorizableManager am = session.getAuthorizableManager();
-          Authorizable user = am.findAuthorizable(session.getUserId());
-          Set<String> readers = Sets.newHashSet();
-          for (Iterator<Group> gi = user.memberOf(am); gi.hasNext();) {
-            readers.add(SearchUtil.escapeString(gi.next().getId(), Query.SOLR));
-          }
-          readers.add(session.getUserId());
-          queryString = "(" + queryString + ") AND readers:(" + StringUtils.join(readers," OR ") + ")";
+          readerFilter = readerFilterCache.getReaderFilter(session);
         }
       }
 
-      List<String> deletedPaths = getDeletedPaths();
-      if (!deletedPaths.isEmpty()) {
-        queryString = "(" + queryString + ") AND -path:(" + StringUtils.join(deletedPaths, " OR ") + ")";
-      }
-
       SolrQuery solrQuery = buildQuery(request, queryString, query.getOptions());
+      if (readerFilter != null) {
+        solrQuery.addFilterQuery(readerFilter);
+      }
 
       SolrServer solrServer = solrSearchService.getServer();
       if ( LOGGER.isDebugEnabled()) {
@@ -260,7 +181,7 @@ import java.util.ArrayList;
         }
       } catch (UnsupportedEncodingException e) {
       }
-      SolrSearchResultSetImpl rs = new SolrSearchResultSetImpl(response);
+      SolrSearchResultSetImpl rs = new SolrSearchResultSetImpl(response, deletedPaths);
       if ( LOGGER.isDebugEnabled()) {
         LOGGER.debug("Got {} hits in {} ms", rs.getSize(), response.getElapsedTime());
       }
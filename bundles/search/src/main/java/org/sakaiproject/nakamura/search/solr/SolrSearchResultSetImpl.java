@@ -27,11 +27,24 @@ public class SolrSearchResultSetImpl implements SolrSearchResultSet, SolrQueryRe
   private static final Logger LOGGER = LoggerFactory.getLogger(SolrSearchResultSetImpl.class);
 
   private final QueryResponse queryResponse;
+  private final DeletedPathTombstones deletedPaths;
   private SolrDocumentList responseList;
 
   public SolrSearchResultSetImpl(QueryResponse queryResponse) {
+    this(queryResponse, null);
+  }
+
+  /**
+   * @param queryResponse
+   * @param deletedPaths
+   *          paths to drop from the results as their deletes may not be indexed yet, may
+   *          be null.
+   */
+  public SolrSearchResultSetImpl(QueryResponse queryResponse,
+      DeletedPathTombstones deletedPaths) {
     LOGGER.debug("new SolrSearchResultSetImpl(QueryResponse {})", queryResponse);
     this.queryResponse = queryResponse;
+    this.deletedPaths = deletedPaths;
   }
 
   public Iterator<Result> getResultSetIterator() {
@@ -136,6 +149,28 @@ public class SolrSearchResultSetImpl implements SolrSearchResultSet, SolrQueryRe
           }
         }
       }
+      removeDeleted();
+    }
+  }
+
+
+  /**
+   * Drop the documents for paths deleted since the last commit, one lookup per document
+   * on the page.
+   */
+  private void removeDeleted() {
+    if (deletedPaths == null) {
+      return;
+    }
+    int removed = 0;
+    for (Iterator<SolrDocument> i = responseList.iterator(); i.hasNext();) {
+      if (deletedPaths.isDeleted((String) i.next().getFirstValue("path"))) {
+        i.remove();
+        removed++;
+      }
+    }
+    if (removed > 0) {
+      responseList.setNumFound(Math.max(0, responseList.getNumFound() - removed));
     }
   }
 
@@ -24,12 +24,7 @@ import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.PARA
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.REG_BATCH_PROCESSOR_NAMES;
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.REG_PROCESSOR_NAMES;
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.REG_PROVIDER_NAMES;
-import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_BATCHRESULTPROCESSOR;
-import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_LIMIT_RESULTS;
-import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_PROPERTY_PROVIDER;
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_QUERY_TEMPLATE;
-import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_QUERY_TEMPLATE_OPTIONS;
-import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_RESULTPROCESSOR;
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SEARCH_BATCH_RESULT_PROCESSOR;
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SEARCH_PATH_PREFIX;
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SEARCH_PROPERTY_PROVIDER;
@@ -54,12 +49,16 @@ import org.apache.sling.api.request.RequestParameterMap;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
 import org.apache.sling.commons.json.JSONException;
-import org.apache.sling.commons.json.JSONObject;
 import org.apache.sling.commons.osgi.OsgiUtil;
 import org.apache.solr.client.solrj.util.ClientUtils;
 import org.osgi.framework.Constants;
 import org.osgi.framework.ServiceReference;
 import org.osgi.service.component.ComponentContext;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.User;
 import org.sakaiproject.nakamura.api.doc.ServiceDocumentation;
 import org.sakaiproject.nakamura.api.doc.ServiceMethod;
 import org.sakaiproject.nakamura.api.doc.ServiceParameter;
@@ -77,27 +76,29 @@ import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultProcessor;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchUtil;
 import org.sakaiproject.nakamura.api.templates.TemplateService;
+import org.sakaiproject.nakamura.search.solr.CompiledSearchTemplate.OptionTemplate;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
+import org.sakaiproject.nakamura.util.FlushingWriter;
 import org.sakaiproject.nakamura.util.LitePersonalUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 
 import javax.jcr.Node;
-import javax.jcr.PathNotFoundException;
-import javax.jcr.PropertyIterator;
 import javax.jcr.RepositoryException;
-import javax.jcr.Value;
-import javax.jcr.ValueFormatException;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
 
@@ -203,6 +204,15 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
   @Reference
   private transient TemplateService templateService;
 
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+  private transient SearchResponseCache searchResponseCache;
+
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+  private transient SearchTemplateCache searchTemplateCache;
+
+  @Reference
+  private transient ReaderFilterCache readerFilterCache;
+
   @Override
   protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
       throws ServletException, IOException {
@@ -217,17 +227,15 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
 
       Node node = resource.adaptTo(Node.class);
       if (node != null && node.hasProperty(SAKAI_QUERY_TEMPLATE)) {
+        CompiledSearchTemplate template = compileTemplate(node);
         // TODO: we might want to use this ?
         @SuppressWarnings("unused")
-        boolean limitResults = true;
-        if (node.hasProperty(SAKAI_LIMIT_RESULTS)) {
-          limitResults = node.getProperty(SAKAI_LIMIT_RESULTS).getBoolean();
-        }
+        boolean limitResults = template.isLimitResults();
 
         // KERN-1147 Respond better when all parameters haven't been provided for a query
         Query query = null;
         try {
-          query = processQuery(request, node);
+          query = processQuery(request, template);
         } catch (MissingParameterException e) {
           response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
           return;
@@ -257,9 +265,8 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
         boolean useBatch = false;
         // Get the
         SolrSearchBatchResultProcessor searchBatchProcessor = defaultSearchBatchProcessor;
-        if (node.hasProperty(SAKAI_BATCHRESULTPROCESSOR)) {
-          searchBatchProcessor = batchProcessors.get(node.getProperty(
-              SAKAI_BATCHRESULTPROCESSOR).getString());
+        if (template.getBatchResultProcessor() != null) {
+          searchBatchProcessor = batchProcessors.get(template.getBatchResultProcessor());
           useBatch = true;
           if (searchBatchProcessor == null) {
             searchBatchProcessor = defaultSearchBatchProcessor;
@@ -267,14 +274,29 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
         }
 
         SolrSearchResultProcessor searchProcessor = defaultSearchProcessor;
-        if (node.hasProperty(SAKAI_RESULTPROCESSOR)) {
-          searchProcessor = processors.get(node.getProperty(SAKAI_RESULTPROCESSOR)
-              .getString());
+        if (template.getResultProcessor() != null) {
+          searchProcessor = processors.get(template.getResultProcessor());
           if (searchProcessor == null) {
             searchProcessor = defaultSearchProcessor;
           }
         }
 
+        // templates may opt in to having their responses cached until the next commit.
+        SearchResponseCache responseCache = searchResponseCache;
+        String cacheKey = null;
+        long cacheGeneration = 0;
+        if (responseCache != null && template.isCacheResults()) {
+          cacheGeneration = responseCache.getGeneration();
+          cacheKey = getCacheKey(request, query);
+          String cached = (cacheKey == null) ? null : responseCache.get(cacheKey);
+          if (cached != null) {
+            response.setContentType("application/json");
+            response.setCharacterEncoding("UTF-8");
+            response.getWriter().write(cached);
+            return;
+          }
+        }
+
         SolrSearchResultSet rs = null;
         try {
           // Prepare the result set.
@@ -292,7 +314,10 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
         response.setContentType("application/json");
         response.setCharacterEncoding("UTF-8");
 
-        ExtendedJSONWriter write = new ExtendedJSONWriter(response.getWriter());
+        // stream the page out as it is written unless the whole body is wanted for the cache
+        Writer out = (cacheKey == null) ? new FlushingWriter(response.getWriter())
+            : new StringWriter();
+        ExtendedJSONWriter write = new ExtendedJSONWriter(out);
         write.setTidy(isTidy(request));
 
         write.object();
@@ -333,63 +358,127 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
         }
 
         write.endObject();
+
+        if (cacheKey != null) {
+          String body = out.toString();
+          responseCache.put(cacheKey, body, cacheGeneration);
+          response.getWriter().write(body);
+        }
       }
     } catch (RepositoryException e) {
       LOGGER.error(e.getMessage(), e);
-      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+      sendError(response, e);
     } catch (JSONException e) {
       LOGGER.error(e.getMessage(), e);
+      sendError(response, e);
+    }
+  }
+
+  /**
+   * Once part of a streamed result page has gone out the status can no longer be changed,
+   * the client gets a truncated body instead.
+   */
+  private void sendError(SlingHttpServletResponse response, Exception e)
+      throws IOException {
+    if (!response.isCommitted()) {
       response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
     }
   }
 
+  /**
+   * Build the key for a cached response from the template, the evaluated query, its
+   * options (which include the page), the output format and the readers filter the
+   * results are restricted by. The filter comes from the {@link ReaderFilterCache} the
+   * search itself uses, so a cache hit does not walk the caller's groups, and a change of
+   * membership drops the filter and so the key of any response built for the old one. Any
+   * per user values the template uses, such as {_userId}, are already part of the
+   * evaluated query.
+   *
+   * @param request
+   * @param query
+   * @return the key, or null if the caller could not be identified.
+   */
+  private String getCacheKey(SlingHttpServletRequest request, Query query) {
+    StringBuilder key = new StringBuilder();
+    key.append(query.getName()).append('\n').append(query.getQueryString()).append('\n');
+    key.append(new TreeMap<String, String>(query.getOptions())).append('\n');
+    key.append(isTidy(request)).append('\n');
+    String userId = request.getRemoteUser();
+    if (userId == null || User.ANON_USER.equals(userId)) {
+      key.append(Collections.singleton(User.ANON_USER));
+      return key.toString();
+    }
+    if (User.ADMIN_USER.equals(userId)) {
+      // admin searches are not filtered by readers
+      key.append('*');
+      return key.toString();
+    }
+    try {
+      Session session = StorageClientUtils.adaptToSession(request.getResourceResolver()
+          .adaptTo(javax.jcr.Session.class));
+      key.append(readerFilterCache.getReaderFilter(session));
+      return key.toString();
+    } catch (StorageClientException e) {
+      LOGGER.debug(e.getMessage(), e);
+    } catch (AccessDeniedException e) {
+      LOGGER.debug(e.getMessage(), e);
+    }
+    return null;
+  }
+
+  /**
+   * @param queryNode
+   * @return the compiled template for the node, from the cache when there is one.
+   * @throws RepositoryException
+   * @throws JSONException
+   */
+  private CompiledSearchTemplate compileTemplate(Node queryNode)
+      throws RepositoryException, JSONException {
+    SearchTemplateCache templateCache = searchTemplateCache;
+    if (templateCache != null) {
+      return templateCache.get(queryNode);
+    }
+    return new CompiledSearchTemplate(queryNode);
+  }
+
   /**
    * Processes a velocity template so that variable references are replaced by the same
    * properties in the property provider and request.
    *
    * @param request
    *          the request.
-   * @param queryTemplate
-   *          the query template.
-   * @param propertyProviderName
+   * @param queryNode
+   *          the node holding the query template.
    * @return A processed query template
    * @throws MissingParameterException
    */
   protected Query processQuery(SlingHttpServletRequest request, Node queryNode)
       throws RepositoryException, MissingParameterException, JSONException {
-    // check the resource type and set the query type appropriately
-    // default to using solr for queries
-    javax.jcr.Property resourceType = queryNode.getProperty("sling:resourceType");
-    String queryType = null;
-    if ("sakai/sparse-search".equals(resourceType.getString())) {
-      queryType = Query.SPARSE;
-    } else {
-      queryType = Query.SOLR;
-    }
-
-    String[] propertyProviderNames = null;
-    if (queryNode.hasProperty(SAKAI_PROPERTY_PROVIDER)) {
-      javax.jcr.Property propProv = queryNode.getProperty(SAKAI_PROPERTY_PROVIDER);
-      if (propProv.isMultiple()) {
-        Value[] propProvVals = propProv.getValues();
-        propertyProviderNames = new String[propProvVals.length];
+    return processQuery(request, compileTemplate(queryNode));
+  }
 
-        for (int i = 0; i < propProvVals.length; i++) {
-          propertyProviderNames[i] = propProvVals[i].getString();
-        }
-      } else {
-        propertyProviderNames = new String[1];
-        propertyProviderNames[0] = propProv.getString();
-      }
-    }
+  /**
+   * Processes a compiled template so that variable references are replaced by the same
+   * properties in the property provider and request.
+   *
+   * @param request
+   *          the request.
+   * @param template
+   *          the compiled query template.
+   * @return A processed query template
+   * @throws MissingParameterException
+   */
+  protected Query processQuery(SlingHttpServletRequest request,
+      CompiledSearchTemplate template) throws RepositoryException,
+      MissingParameterException, JSONException {
+    String queryType = template.getQueryType();
     Map<String, String> propertiesMap = loadProperties(request,
-        propertyProviderNames, queryNode.getProperties(), queryType);
-
-    String queryTemplate = queryNode.getProperty(SAKAI_QUERY_TEMPLATE).getString();
+        template.getPropertyProviderNames(), template.getDefaultProperties(), queryType);
 
     // process the query string before checking for missing terms to a) give processors a
     // chance to set things and b) catch any missing terms added by the processors.
-    String queryString = templateService.evaluateTemplate(propertiesMap, queryTemplate);
+    String queryString = templateService.evaluateTemplate(propertiesMap,
+        template.getQueryTemplate());
 
     // expand home directory references to full path; eg. ~user => a:user
     queryString = SearchUtil.expandHomeDirectory(queryString);
@@ -402,13 +491,11 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
               + StringUtils.join(missingTerms, ", "));
     }
 
-    // collect query options
-    JSONObject queryOptions = accumulateQueryOptions(queryNode);
-
     // process the options as templates and check for missing params
-    Map<String, String> options = processOptions(propertiesMap, queryOptions, queryType);
+    Map<String, String> options = processOptions(propertiesMap, template.getOptions(),
+        queryType);
 
-    Query query = new Query(queryNode.getPath(), queryType, queryString, options);
+    Query query = new Query(template.getPath(), queryType, queryString, options);
     return query;
   }
 
@@ -416,69 +503,38 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
    * @param propertiesMap
    * @param queryOptions
    * @return
-   * @throws JSONException
    * @throws MissingParameterException
    */
   private Map<String, String> processOptions(Map<String, String> propertiesMap,
-      JSONObject queryOptions, String queryType) throws JSONException, MissingParameterException {
-    Collection<String> missingTerms;
+      Map<String, OptionTemplate> queryOptions, String queryType)
+      throws MissingParameterException {
     Map<String, String> options = Maps.newHashMap();
-    if (queryOptions != null) {
-      Iterator<String> keys = queryOptions.keys();
-      while(keys.hasNext()) {
-        String key = keys.next();
-        String val = queryOptions.getString(key);
-        missingTerms = templateService.missingTerms(propertiesMap, val);
-        if (!missingTerms.isEmpty()) {
-          throw new MissingParameterException(
-              "Your request is missing parameters for the template: "
-                  + StringUtils.join(missingTerms, ", "));
-        }
-
-        String processedVal = templateService.evaluateTemplate(propertiesMap, val);
-        if ("sort".equals(key)) {
-          processedVal = SearchUtil.escapeString(processedVal, queryType);
+    for (Entry<String, OptionTemplate> option : queryOptions.entrySet()) {
+      String key = option.getKey();
+      OptionTemplate val = option.getValue();
+      List<String> missingTerms = null;
+      for (String term : val.getTerms()) {
+        if (propertiesMap.get(term) == null) {
+          if (missingTerms == null) {
+            missingTerms = new ArrayList<String>();
+          }
+          missingTerms.add(term);
         }
-        options.put(key, processedVal);
       }
-    }
-    return options;
-  }
+      if (missingTerms != null) {
+        throw new MissingParameterException(
+            "Your request is missing parameters for the template: "
+                + StringUtils.join(missingTerms, ", "));
+      }
 
-  /**
-   * @param queryNode
-   * @param queryOptions
-   * @return
-   * @throws RepositoryException
-   * @throws ValueFormatException
-   * @throws PathNotFoundException
-   * @throws JSONException
-   */
-  private JSONObject accumulateQueryOptions(Node queryNode)
-      throws RepositoryException, ValueFormatException, PathNotFoundException,
-      JSONException {
-    JSONObject queryOptions = null;
-    if (queryNode.hasProperty(SAKAI_QUERY_TEMPLATE_OPTIONS)) {
-      // process the options as JSON string
-      String optionsProp = queryNode.getProperty(SAKAI_QUERY_TEMPLATE_OPTIONS).getString();
-      queryOptions = new JSONObject(optionsProp);
-    } else if (queryNode.hasNode(SAKAI_QUERY_TEMPLATE_OPTIONS)) {
-      // process the options as a sub-node
-      Node optionsNode = queryNode.getNode(SAKAI_QUERY_TEMPLATE_OPTIONS);
-      if (optionsNode.hasProperties()) {
-        queryOptions = new JSONObject();
-        PropertyIterator props = optionsNode.getProperties();
-        while (props.hasNext()) {
-          javax.jcr.Property prop = props.nextProperty();
-          String key = prop.getName();
-          String val = prop.getString();
-          if (!key.startsWith("jcr:")) {
-            queryOptions.put(key, val);
-          }
-        }
+      String processedVal = val.isLiteral() ? val.getTemplate() : templateService
+          .evaluateTemplate(propertiesMap, val.getTemplate());
+      if ("sort".equals(key)) {
+        processedVal = SearchUtil.escapeString(processedVal, queryType);
       }
+      options.put(key, processedVal);
     }
-    return queryOptions;
+    return options;
   }
 
   /**
@@ -495,7 +551,7 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
    * @throws RepositoryException
    */
   private Map<String, String> loadProperties(SlingHttpServletRequest request,
-      String[] propertyProviderNames, PropertyIterator defaultProps, String queryType) throws RepositoryException {
+      String[] propertyProviderNames, Map<String, String> defaultProps, String queryType) {
     Map<String, String> propertiesMap = new HashMap<String, String>();
 
     // 0. load authorizable (user) information
@@ -507,12 +563,9 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
 
     // 1. load in properties from the query template node so defaults can be set
     if (defaultProps != null) {
-      while (defaultProps.hasNext()) {
-        javax.jcr.Property prop = defaultProps.nextProperty();
-        String key = prop.getName();
-        if (!propertiesMap.containsKey(key) && !prop.isMultiple()) {
-          String val = prop.getString();
-          propertiesMap.put(key, val);
+      for (Entry<String, String> prop : defaultProps.entrySet()) {
+        if (!propertiesMap.containsKey(prop.getKey())) {
+          propertiesMap.put(prop.getKey(), prop.getValue());
         }
       }
     }
@@ -0,0 +1,111 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
+
+/**
+ *
+ */
+public class DeletedPathTombstonesTest {
+
+  private Cache<Object> shared;
+  private CacheManagerService cacheManagerService;
+
+  @Before
+  public void setUp() {
+    // stands in for the replicated cache, shared by every server.
+    shared = new MapCacheImpl<Object>();
+    cacheManagerService = createMock(CacheManagerService.class);
+    expect(cacheManagerService.getCache("tombstones", CacheScope.CLUSTERREPLICATED))
+        .andReturn(shared).anyTimes();
+    replay(cacheManagerService);
+  }
+
+  @Test
+  public void testDeletedUntilCommit() throws Exception {
+    DeletedPathTombstones server1 = new DeletedPathTombstones(cacheManagerService,
+        "tombstones", 100, 0);
+    DeletedPathTombstones server2 = new DeletedPathTombstones(cacheManagerService,
+        "tombstones", 100, 0);
+    server1.add("/a");
+    Thread.sleep(5);
+    long commit = System.currentTimeMillis();
+    Thread.sleep(5);
+    server1.add("/b");
+    assertTrue(server2.isDeleted("/a"));
+    assertTrue(server2.isDeleted("/b"));
+    assertFalse(server2.isDeleted("/c"));
+
+    // only the server that made the delete clears it.
+    server2.committed(commit);
+    assertTrue(server1.isDeleted("/a"));
+    server1.committed(commit);
+    assertFalse(server1.isDeleted("/a"));
+    assertTrue(server1.isDeleted("/b"));
+    assertEquals(1, server1.getSize());
+  }
+
+  @Test
+  public void testRecreatedPathIsVisible() {
+    DeletedPathTombstones tombstones = new DeletedPathTombstones(cacheManagerService,
+        "tombstones", 100, 0);
+    tombstones.add("/a");
+    tombstones.remove("/a");
+    assertFalse(tombstones.isDeleted("/a"));
+  }
+
+  @Test
+  public void testOldestDroppedWhenFull() {
+    DeletedPathTombstones tombstones = new DeletedPathTombstones(cacheManagerService,
+        "tombstones", 3, 0);
+    for (int i = 0; i < 5; i++) {
+      tombstones.add("/p" + i);
+    }
+    assertEquals(3, tombstones.getSize());
+    assertFalse(tombstones.isDeleted("/p0"));
+    assertFalse(tombstones.isDeleted("/p1"));
+    assertTrue(tombstones.isDeleted("/p4"));
+    assertNull(shared.get("/p0"));
+  }
+
+  @Test
+  public void testTombstonesExpire() throws Exception {
+    DeletedPathTombstones tombstones = new DeletedPathTombstones(cacheManagerService,
+        "tombstones", 100, 50);
+    tombstones.add("/a");
+    assertTrue(tombstones.isDeleted("/a"));
+    Thread.sleep(100);
+    assertFalse(tombstones.isDeleted("/a"));
+    tombstones.add("/b");
+    assertEquals(1, tombstones.getSize());
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+import org.osgi.service.event.Event;
+
+import java.util.Dictionary;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Set;
+
+/**
+ *
+ */
+public class ReaderFilterCacheTest {
+
+  @Test
+  public void testHitAndMiss() {
+    ReaderFilterCache cache = new ReaderFilterCache(10, 0);
+    assertNull(cache.getFilter("ieb"));
+    cache.putFilter("ieb", principals("ieb", "g1", "g2"), "readers:(g1 OR g2 OR ieb)",
+        cache.getGeneration());
+    assertEquals("readers:(g1 OR g2 OR ieb)", cache.getFilter("ieb"));
+    assertEquals(1L, cache.getHits());
+    assertEquals(1L, cache.getMisses());
+    assertEquals(0.5, cache.getHitRate(), 0.001);
+    assertEquals(3.0, cache.getAverageClauseSize(), 0.001);
+    assertEquals(3, cache.getMaxClauseSize());
+  }
+
+  @Test
+  public void testGroupChangeInvalidatesMembers() {
+    ReaderFilterCache cache = new ReaderFilterCache(10, 0);
+    cache.putFilter("ieb", principals("ieb", "g1", "g2"), "f1", cache.getGeneration());
+    cache.putFilter("zach", principals("zach", "g2"), "f2", cache.getGeneration());
+    cache.putFilter("nico", principals("nico", "g3"), "f3", cache.getGeneration());
+
+    cache.invalidate("g2");
+    assertNull(cache.getFilter("ieb"));
+    assertNull(cache.getFilter("zach"));
+    assertEquals("f3", cache.getFilter("nico"));
+    assertEquals(2L, cache.getInvalidations());
+
+    cache.invalidate("nico");
+    assertNull(cache.getFilter("nico"));
+    assertEquals(0, cache.getSize());
+  }
+
+  @Test
+  public void testStaleFilterIsNotCached() {
+    ReaderFilterCache cache = new ReaderFilterCache(10, 0);
+    long generation = cache.getGeneration();
+    // membership changes while the filter is being built.
+    cache.invalidate("g1");
+    cache.putFilter("ieb", principals("ieb", "g1"), "f1", generation);
+    assertNull(cache.getFilter("ieb"));
+  }
+
+  @Test
+  public void testLeastRecentlyUsedIsDropped() {
+    ReaderFilterCache cache = new ReaderFilterCache(2, 0);
+    cache.putFilter("a", principals("a", "g"), "fa", cache.getGeneration());
+    cache.putFilter("b", principals("b", "g"), "fb", cache.getGeneration());
+    cache.getFilter("a");
+    cache.putFilter("c", principals("c", "g"), "fc", cache.getGeneration());
+    assertEquals(2, cache.getSize());
+    assertEquals("fa", cache.getFilter("a"));
+    assertNull(cache.getFilter("b"));
+    assertEquals("fc", cache.getFilter("c"));
+  }
+
+  @Test
+  public void testFilterExpires() throws Exception {
+    ReaderFilterCache cache = new ReaderFilterCache(10, 50);
+    cache.putFilter("ieb", principals("ieb"), "f1", cache.getGeneration());
+    assertEquals("f1", cache.getFilter("ieb"));
+    Thread.sleep(100);
+    assertNull(cache.getFilter("ieb"));
+    assertEquals(0, cache.getSize());
+  }
+
+  @Test
+  public void testAuthorizableEventInvalidates() {
+    ReaderFilterCache cache = new ReaderFilterCache(10, 0);
+    cache.putFilter("ieb", principals("ieb", "g1"), "f1", cache.getGeneration());
+    Hashtable<String, Object> props = new Hashtable<String, Object>();
+    props.put("path", "g1");
+    cache.handleEvent(new Event("org/sakaiproject/nakamura/lite/authorizables/UPDATED",
+        (Dictionary<String, Object>) props));
+    assertNull(cache.getFilter("ieb"));
+  }
+
+  private Set<String> principals(String... ids) {
+    Set<String> principals = new HashSet<String>();
+    for (String id : ids) {
+      principals.add(id);
+    }
+    return principals;
+  }
+}
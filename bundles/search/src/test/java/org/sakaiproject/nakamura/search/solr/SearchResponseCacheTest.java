@@ -0,0 +1,84 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.event.Event;
+
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ *
+ */
+public class SearchResponseCacheTest {
+
+  private SearchResponseCache cache;
+
+  @Before
+  public void setUp() {
+    cache = new SearchResponseCache();
+    Map<String, Object> props = new HashMap<String, Object>();
+    props.put(SearchResponseCache.MAX_ENTRIES, 2);
+    cache.activate(props);
+  }
+
+  @After
+  public void tearDown() {
+    cache.deactivate(null);
+  }
+
+  @Test
+  public void testCommitEmptiesCache() {
+    cache.put("a", "{\"total\":1}", cache.getGeneration());
+    assertEquals("{\"total\":1}", cache.get("a"));
+    cache.handleEvent(new Event("org/sakaiproject/nakamura/solr/COMMIT",
+        (Dictionary<?, ?>) null));
+    assertNull(cache.get("a"));
+    assertEquals(1L, cache.getHits());
+    assertEquals(1L, cache.getMisses());
+    assertEquals(1L, cache.getCommits());
+  }
+
+  @Test
+  public void testResponseStartedBeforeCommitIsNotCached() {
+    long generation = cache.getGeneration();
+    cache.handleEvent(new Event("org/sakaiproject/nakamura/solr/COMMIT",
+        (Dictionary<?, ?>) null));
+    cache.put("a", "stale", generation);
+    assertNull(cache.get("a"));
+  }
+
+  @Test
+  public void testLeastRecentlyUsedIsDropped() {
+    long generation = cache.getGeneration();
+    cache.put("a", "1", generation);
+    cache.put("b", "2", generation);
+    cache.get("a");
+    cache.put("c", "3", generation);
+    assertEquals(2, cache.getSize());
+    assertNull(cache.get("b"));
+    assertEquals("1", cache.get("a"));
+  }
+}
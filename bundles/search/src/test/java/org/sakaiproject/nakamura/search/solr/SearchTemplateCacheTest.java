@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_QUERY_TEMPLATE;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_QUERY_TEMPLATE_OPTIONS;
+
+import org.apache.sling.api.SlingConstants;
+import org.junit.Test;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.search.solr.Query;
+import org.sakaiproject.nakamura.search.solr.CompiledSearchTemplate.OptionTemplate;
+
+import java.util.Arrays;
+import java.util.Dictionary;
+import java.util.Hashtable;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+
+/**
+ *
+ */
+public class SearchTemplateCacheTest {
+
+  @Test
+  public void testCompile() throws Exception {
+    CompiledSearchTemplate template = new CompiledSearchTemplate(createQueryNode(
+        "/var/search/pool/me", "q=${q} AND type:x",
+        "{\"sort\":\"${sortOn} ${sortOrder}\",\"rows\":\"10\"}"));
+    assertEquals(Query.SOLR, template.getQueryType());
+    assertEquals("q=${q} AND type:x", template.getQueryTemplate());
+    OptionTemplate sort = template.getOptions().get("sort");
+    assertFalse(sort.isLiteral());
+    assertEquals(Arrays.asList("sortOn", "sortOrder"), sort.getTerms());
+    OptionTemplate rows = template.getOptions().get("rows");
+    assertTrue(rows.isLiteral());
+    assertTrue(rows.getTerms().isEmpty());
+    assertEquals(Arrays.asList("q"), CompiledSearchTemplate.findTerms(template
+        .getQueryTemplate()));
+  }
+
+  @Test
+  public void testCached() throws Exception {
+    SearchTemplateCache cache = new SearchTemplateCache();
+    Node node = createQueryNode("/var/search/pool/me", "q=*", null);
+    CompiledSearchTemplate template = cache.get(node);
+    assertSame(template, cache.get(node));
+    assertEquals(1, cache.getSize());
+  }
+
+  @Test
+  public void testChangeInvalidates() throws Exception {
+    SearchTemplateCache cache = new SearchTemplateCache();
+    Node node = createQueryNode("/var/search/pool/me", "q=*", null);
+    Node other = createQueryNode("/var/search/pool/all", "q=*", null);
+    CompiledSearchTemplate template = cache.get(node);
+    cache.get(other);
+
+    cache.handleEvent(createEvent(SlingConstants.TOPIC_RESOURCE_CHANGED,
+        "/var/search/pool/me/" + SAKAI_QUERY_TEMPLATE_OPTIONS));
+    assertEquals(1, cache.getSize());
+    assertNotSame(template, cache.get(node));
+
+    // changes outside of the search templates are ignored
+    cache.handleEvent(createEvent(SlingConstants.TOPIC_RESOURCE_REMOVED, "/p/abc"));
+    assertEquals(2, cache.getSize());
+
+    cache.handleEvent(createEvent(SlingConstants.TOPIC_RESOURCE_REMOVED, "/var/search"));
+    assertEquals(0, cache.getSize());
+  }
+
+  private Event createEvent(String topic, String path) {
+    Dictionary<String, Object> props = new Hashtable<String, Object>();
+    props.put(SlingConstants.PROPERTY_PATH, path);
+    return new Event(topic, props);
+  }
+
+  private Node createQueryNode(String path, String queryTemplate, String options)
+      throws Exception {
+    Node node = createNiceMock(Node.class);
+    expect(node.getPath()).andReturn(path).anyTimes();
+    expect(node.getProperty("sling:resourceType")).andReturn(
+        createProperty("sakai/solr-search")).anyTimes();
+    expect(node.hasProperty(SAKAI_QUERY_TEMPLATE)).andReturn(true).anyTimes();
+    expect(node.getProperty(SAKAI_QUERY_TEMPLATE)).andReturn(
+        createProperty(queryTemplate)).anyTimes();
+    if (options != null) {
+      expect(node.hasProperty(SAKAI_QUERY_TEMPLATE_OPTIONS)).andReturn(true).anyTimes();
+      expect(node.getProperty(SAKAI_QUERY_TEMPLATE_OPTIONS)).andReturn(
+          createProperty(options)).anyTimes();
+    }
+    PropertyIterator props = createNiceMock(PropertyIterator.class);
+    replay(props);
+    expect(node.getProperties()).andReturn(props).anyTimes();
+    replay(node);
+    return node;
+  }
+
+  private Property createProperty(String value) throws Exception {
+    Property property = createNiceMock(Property.class);
+    expect(property.getString()).andReturn(value).anyTimes();
+    replay(property);
+    return property;
+  }
+}
@@ -2,109 +2,190 @@ package org.apache.jackrabbit.core.security.principal;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * A reasonably dumb LRU map, but its concurrent.
+ * A concurrent LRU map. Keys are spread over a number of segments, each an access ordered
+ * LinkedHashMap behind its own lock, so lookups and inserts in different segments don't
+ * contend and evicting the least recently used entry of a segment costs O(1). The eviction
+ * order is least recently used per segment, which approximates the order over the whole map.
+ * Null values are allowed, so negative lookups can be cached; null keys are not. The views
+ * returned by {@link #keySet()}, {@link #values()} and {@link #entrySet()} are copies.
  * @param <K>
  * @param <V>
  */
 public class ConcurrentLRUMap<K, V> implements Map<K, V> {
 
-  public class Holder<T> {
+  /**
+   * The most segments a map is split into.
+   */
+  private static final int MAX_SEGMENTS = 16;
+  /**
+   * The fewest entries a segment holds, so small maps are not split so far that the
+   * eviction order is lost.
+   */
+  private static final int MIN_SEGMENT_SIZE = 32;
+
+  private static class Segment<K, V> extends LinkedHashMap<K, V> {
+
+    private static final long serialVersionUID = -2180466227542447380L;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final int maxSize;
+
+    Segment(int maxSize) {
+      super(16, 0.75f, true);
+      this.maxSize = maxSize;
+    }
 
-    protected long last;
-    protected V value;
-    private K key;
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+      return size() > maxSize;
+    }
+  }
+
+  private static class CopiedEntry<K, V> implements Map.Entry<K, V> {
+    private final K key;
+    private V value;
 
-    public Holder(K key, V value) {
+    CopiedEntry(K key, V value) {
       this.key = key;
       this.value = value;
-      this.last = System.currentTimeMillis();
     }
 
-    public int compareTo(Holder<T> o) {
-      return (int) (this.last - o.last);
+    public K getKey() {
+      return key;
+    }
+
+    public V getValue() {
+      return value;
+    }
+
+    public V setValue(V value) {
+      V old = this.value;
+      this.value = value;
+      return old;
     }
 
     @Override
     public boolean equals(Object obj) {
-      try {
-        @SuppressWarnings("unchecked")
-        Holder<T> t = (Holder<T>) obj;
-        return value.equals(t.value);
-      } catch (ClassCastException e) {
+      if (!(obj instanceof Map.Entry<?, ?>)) {
         return false;
       }
+      Map.Entry<?, ?> e = (Map.Entry<?, ?>) obj;
+      return key.equals(e.getKey())
+          && (value == null ? e.getValue() == null : value.equals(e.getValue()));
     }
 
+    @Override
+    public int hashCode() {
+      return key.hashCode() ^ (value == null ? 0 : value.hashCode());
+    }
   }
 
-  /**
-   * 
-   */
-  private static final long serialVersionUID = 6397790801684912025L;
-  private Map<K, Holder<V>> delegate = new ConcurrentHashMap<K, Holder<V>>();
-  private int maxSize = 100;
+  private final Segment<K, V>[] segments;
+  private final int mask;
 
   public ConcurrentLRUMap() {
+    this(100);
   }
 
+  @SuppressWarnings("unchecked")
   public ConcurrentLRUMap(int size) {
-    maxSize = size;
+    int maxSize = Math.max(1, size);
+    int n = 1;
+    while (n < MAX_SEGMENTS && (n * 2) * MIN_SEGMENT_SIZE <= maxSize) {
+      n *= 2;
+    }
+    segments = new Segment[n];
+    int segmentSize = (maxSize + n - 1) / n;
+    for (int i = 0; i < n; i++) {
+      segments[i] = new Segment<K, V>(segmentSize);
+    }
+    mask = n - 1;
+  }
+
+  private Segment<K, V> segmentFor(Object key) {
+    int h = key.hashCode();
+    // spread the high bits down, as the low bits of hashCodes are often poorly distributed
+    h ^= (h >>> 20) ^ (h >>> 12);
+    h ^= (h >>> 7) ^ (h >>> 4);
+    return segments[h & mask];
   }
 
   public int size() {
-    return delegate.size();
+    int size = 0;
+    for (Segment<K, V> s : segments) {
+      s.lock.lock();
+      try {
+        size += s.size();
+      } finally {
+        s.lock.unlock();
+      }
+    }
+    return size;
   }
 
   public boolean isEmpty() {
-    return delegate.isEmpty();
+    return size() == 0;
   }
 
   public boolean containsKey(Object key) {
-    return delegate.containsKey(key);
+    Segment<K, V> s = segmentFor(key);
+    s.lock.lock();
+    try {
+      return s.containsKey(key);
+    } finally {
+      s.lock.unlock();
+    }
   }
 
   public boolean containsValue(Object value) {
-    @SuppressWarnings("unchecked")
-    Holder<V> v = new Holder<V>(null, (V) value);
-    return delegate.containsValue(v);
-  }
-
-  public V put(K key, V value) {
-    if ( delegate.size() > maxSize ) {
-      List<Holder<V>> l = new ArrayList<Holder<V>>(delegate.values());
-      Collections.sort(l,new Comparator<Holder<V>>() {
-
-        public int compare(Holder<V> o1, Holder<V> o2) {
-          return (int) (o1.last - o2.last);
+    for (Segment<K, V> s : segments) {
+      s.lock.lock();
+      try {
+        if (s.containsValue(value)) {
+          return true;
         }
-      });
-      int i = 0;
-      while ( delegate.size() > maxSize && i < l.size() ) {
-        delegate.remove(l.get(i++).key);
+      } finally {
+        s.lock.unlock();
       }
     }
-    Holder<V> v = delegate.put(key, new Holder<V>(key, value));
-    if (v == null) {
-      return null;
+    return false;
+  }
+
+  public V get(Object key) {
+    Segment<K, V> s = segmentFor(key);
+    s.lock.lock();
+    try {
+      return s.get(key);
+    } finally {
+      s.lock.unlock();
+    }
+  }
+
+  public V put(K key, V value) {
+    Segment<K, V> s = segmentFor(key);
+    s.lock.lock();
+    try {
+      return s.put(key, value);
+    } finally {
+      s.lock.unlock();
     }
-    return v.value;
   }
 
   public V remove(Object key) {
-    Holder<V> v = delegate.remove(key);
-    if (v == null) {
-      return null;
+    Segment<K, V> s = segmentFor(key);
+    s.lock.lock();
+    try {
+      return s.remove(key);
+    } finally {
+      s.lock.unlock();
     }
-    return v.value;
   }
 
   public void putAll(Map<? extends K, ? extends V> t) {
@@ -114,52 +195,54 @@ public class ConcurrentLRUMap<K, V> implements Map<K, V> {
   }
 
   public void clear() {
-    delegate.clear();
+    for (Segment<K, V> s : segments) {
+      s.lock.lock();
+      try {
+        s.clear();
+      } finally {
+        s.lock.unlock();
+      }
+    }
   }
 
   public Set<K> keySet() {
-    return delegate.keySet();
+    Set<K> keys = new HashSet<K>();
+    for (Segment<K, V> s : segments) {
+      s.lock.lock();
+      try {
+        keys.addAll(s.keySet());
+      } finally {
+        s.lock.unlock();
+      }
+    }
+    return keys;
   }
 
   public Collection<V> values() {
     List<V> values = new ArrayList<V>();
-    for (Holder<V> v : delegate.values()) {
-      values.add(v.value);
+    for (Segment<K, V> s : segments) {
+      s.lock.lock();
+      try {
+        values.addAll(s.values());
+      } finally {
+        s.lock.unlock();
+      }
     }
     return values;
   }
 
   public Set<Entry<K, V>> entrySet() {
     Set<Entry<K, V>> set = new HashSet<Map.Entry<K, V>>();
-    for (final Entry<K, Holder<V>> e : delegate.entrySet()) {
-      set.add(new Entry<K, V>() {
-
-        public K getKey() {
-          return e.getKey();
-        }
-
-        public V getValue() {
-          return ((Holder<V>) e.getValue()).value;
-        }
-
-        public V setValue(V value) {
-          Holder<V> h = e.setValue((Holder<V>) new Holder<V>(e.getKey(), value));
-          if (h == null) {
-            return null;
-          }
-          return h.value;
+    for (Segment<K, V> s : segments) {
+      s.lock.lock();
+      try {
+        for (Entry<K, V> e : s.entrySet()) {
+          set.add(new CopiedEntry<K, V>(e.getKey(), e.getValue()));
         }
-      });
+      } finally {
+        s.lock.unlock();
+      }
     }
     return set;
   }
-
-  public V get(Object key) {
-    Holder<V> v = delegate.get(key);
-    if (v == null) {
-      return null;
-    }
-    v.last = System.currentTimeMillis();
-    return v.value;
-  }
 }
@@ -55,14 +55,28 @@ public class SparsePrincipalProvider implements PrincipalProvider {
   public static final String MAXSIZE_KEY = "cacheMaxSize";
   /** Option name to enable negative cache entries (see JCR-2672) */
   public static final String NEGATIVE_ENTRY_KEY = "cacheIncludesNegative";
+  /** Option name for the time in ms a negative cache entry is used for */
+  public static final String NEGATIVE_ENTRY_TTL_KEY = "cacheNegativeTtl";
   private static final Logger LOGGER = LoggerFactory
       .getLogger(SparsePrincipalProvider.class);
 
   /** flag indicating if the instance has not been {@link #close() closed} */
   private boolean initialized;
 
+  /** flag indicating if principals that were not found are cached */
+  private boolean includeNegative;
+
+  /** the time in ms a principal that was not found is remembered for */
+  private long negativeTtl;
+
   /** the principal cache */
   private ConcurrentLRUMap<String, Principal> cache = new ConcurrentLRUMap<String, Principal>();
+
+  /**
+   * principals that were not found -> when that stops being believed. Nothing tells this
+   * provider when an authorizable is created, so these entries lapse instead.
+   */
+  private ConcurrentLRUMap<String, Long> negativeCache = new ConcurrentLRUMap<String, Long>();
   private Repository sparseRepository;
   private org.sakaiproject.nakamura.api.lite.Session session;
   private AuthorizableManager authorizableManager;
@@ -178,17 +192,15 @@ public class SparsePrincipalProvider implements PrincipalProvider {
                     memberIds.add(pid);
                   }
                 }
-                if (cache.containsKey(id)) {
-                  prin = cache.get(id);
-                } else {
+                prin = cache.get(id);
+                if (prin == null) {
                   prin = new SparsePrincipal(a, this.getClass().getName());
                   addToCache(prin);
                 }
                 return true;
               } else if (a instanceof org.sakaiproject.nakamura.api.lite.authorizable.User) {
-                if (cache.containsKey(id)) {
-                  prin = cache.get(id);
-                } else {
+                prin = cache.get(id);
+                if (prin == null) {
                   prin = new SparsePrincipal(a, this.getClass().getName());
                   addToCache(prin);
                 }
@@ -272,15 +284,25 @@ public class SparsePrincipalProvider implements PrincipalProvider {
    * {@link #providePrincipal(String)} is called, if no matching entry is present in the
    * cache.<br>
    * NOTE: If the cache is enabled to contain negative entries (see
-   * {@link #NEGATIVE_ENTRY_KEY} configuration option), the cache will also store negative
-   * matches (as <code>null</code> values) in the principal cache.
+   * {@link #NEGATIVE_ENTRY_KEY} configuration option), negative matches are also
+   * remembered, for {@link #NEGATIVE_ENTRY_TTL_KEY} ms so that an authorizable created
+   * after it was looked for is found.
    */
   public Principal getPrincipal(String principalName) {
     checkInitialized();
-    if (cache.containsKey(principalName)) {
-      return (Principal) cache.get(principalName);
+    Principal principal = cache.get(principalName);
+    if (principal != null) {
+      return principal;
+    }
+    if (includeNegative) {
+      Long expires = negativeCache.get(principalName);
+      if (expires != null) {
+        if (expires.longValue() > System.currentTimeMillis()) {
+          return null;
+        }
+        negativeCache.remove(principalName);
+      }
     }
-    Principal principal = null;
     try {
       principal = providePrincipal(principalName);
     } catch (RepositoryException e) {
@@ -288,6 +310,8 @@ public class SparsePrincipalProvider implements PrincipalProvider {
     }
     if (principal != null) {
       cache.put(principalName, principal);
+    } else if (includeNegative) {
+      negativeCache.put(principalName, System.currentTimeMillis() + negativeTtl);
     }
     return principal;
   }
@@ -309,6 +333,7 @@ public class SparsePrincipalProvider implements PrincipalProvider {
    */
   protected void clearCache() {
     cache.clear();
+    negativeCache.clear();
   }
 
   /**
@@ -331,6 +356,9 @@ public class SparsePrincipalProvider implements PrincipalProvider {
 
     int maxSize = Integer.parseInt(options.getProperty(MAXSIZE_KEY, "1000"));
     cache = new ConcurrentLRUMap<String, Principal>(maxSize);
+    includeNegative = Boolean.parseBoolean(options.getProperty(NEGATIVE_ENTRY_KEY, "false"));
+    negativeTtl = Long.parseLong(options.getProperty(NEGATIVE_ENTRY_TTL_KEY, "10000"));
+    negativeCache = new ConcurrentLRUMap<String, Long>(maxSize);
 
     initialized = true;
   }
@@ -0,0 +1,149 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.jackrabbit.core.security.principal;
+
+import org.junit.Test;
+import org.sakaiproject.nakamura.testutils.benchmark.Benchmarks;
+import org.sakaiproject.nakamura.testutils.benchmark.Benchmarks.Operation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures mixed get and put throughput of the map against the previous sort on overflow
+ * implementation, at 1k, 10k and 100k entries. Lookups draw keys from twice the capacity,
+ * so about half miss and are followed by a put, which keeps the map full and evicting as it
+ * is during logins.
+ */
+public class ConcurrentLRUMapBenchmark {
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(ConcurrentLRUMapBenchmark.class);
+  private static final int[] SIZES = new int[] { 1000, 10000, 100000 };
+  private static final int THREADS = 8;
+  private static final long WARMUP = 500;
+  private static final long MEASURE = 2000;
+  private static final int BATCH = 100;
+
+  @Test
+  public void benchmarkMixedGetPut() throws Exception {
+    for (int size : SIZES) {
+      double before = run(size, new PreviousLRUMap<Integer, Integer>(size));
+      double current = run(size, new ConcurrentLRUMap<Integer, Integer>(size));
+      LOGGER.info("{} entries, {} threads: previous {} ops/ms, segmented {} ops/ms",
+          new Object[] { size, THREADS, (long) before, (long) current });
+    }
+  }
+
+  /**
+   * @return operations per ms over the measured period.
+   */
+  private double run(final int size, final Map<Integer, Integer> map) throws Exception {
+    for (int i = 0; i < size; i++) {
+      map.put(i, i);
+    }
+    final AtomicLong seeds = new AtomicLong();
+    // a generator per thread, so the threads only contend on the map.
+    final ThreadLocal<Random> random = new ThreadLocal<Random>() {
+      @Override
+      protected Random initialValue() {
+        return new Random(seeds.getAndIncrement());
+      }
+    };
+    return Benchmarks.callsPerMs(THREADS, WARMUP, MEASURE, BATCH, new Operation() {
+      public void run() {
+        Integer key = random.get().nextInt(size * 2);
+        if (map.get(key) == null) {
+          map.put(key, key);
+        }
+      }
+    });
+  }
+
+  /**
+   * The map as it was before it was segmented, for comparison.
+   */
+  private static class PreviousLRUMap<K, V> extends java.util.AbstractMap<K, V> {
+    private class Holder {
+      private long last;
+      private V value;
+      private K key;
+
+      Holder(K key, V value) {
+        this.key = key;
+        this.value = value;
+        this.last = System.currentTimeMillis();
+      }
+    }
+
+    private Map<K, Holder> delegate = new ConcurrentHashMap<K, Holder>();
+    private int maxSize;
+
+    PreviousLRUMap(int maxSize) {
+      this.maxSize = maxSize;
+    }
+
+    @Override
+    public V put(K key, V value) {
+      if (delegate.size() > maxSize) {
+        // sorted on a copy of the access times, other threads change them while it sorts
+        // and newer JDKs reject a comparison that changes.
+        List<Holder> l = new ArrayList<Holder>();
+        for (Holder h : delegate.values()) {
+          Holder copy = new Holder(h.key, h.value);
+          copy.last = h.last;
+          l.add(copy);
+        }
+        Collections.sort(l, new Comparator<Holder>() {
+          public int compare(Holder o1, Holder o2) {
+            return (int) (o1.last - o2.last);
+          }
+        });
+        int i = 0;
+        while (delegate.size() > maxSize && i < l.size()) {
+          delegate.remove(l.get(i++).key);
+        }
+      }
+      Holder v = delegate.put(key, new Holder(key, value));
+      return (v == null) ? null : v.value;
+    }
+
+    @Override
+    public V get(Object key) {
+      Holder v = delegate.get(key);
+      if (v == null) {
+        return null;
+      }
+      v.last = System.currentTimeMillis();
+      return v.value;
+    }
+
+    @Override
+    public java.util.Set<Entry<K, V>> entrySet() {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
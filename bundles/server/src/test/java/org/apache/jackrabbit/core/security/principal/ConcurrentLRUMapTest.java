@@ -0,0 +1,95 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.jackrabbit.core.security.principal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class ConcurrentLRUMapTest {
+
+  @Test
+  public void testEvictsLeastRecentlyUsed() {
+    ConcurrentLRUMap<String, String> map = new ConcurrentLRUMap<String, String>(3);
+    map.put("a", "A");
+    map.put("b", "B");
+    map.put("c", "C");
+    assertEquals("A", map.get("a"));
+    map.put("d", "D");
+
+    assertEquals(3, map.size());
+    assertTrue(map.containsKey("a"));
+    assertFalse(map.containsKey("b"));
+    assertTrue(map.containsKey("c"));
+    assertTrue(map.containsKey("d"));
+  }
+
+  @Test
+  public void testNullValues() {
+    ConcurrentLRUMap<String, String> map = new ConcurrentLRUMap<String, String>(10);
+    map.put("missing", null);
+    assertTrue(map.containsKey("missing"));
+    assertNull(map.get("missing"));
+    assertTrue(map.containsValue(null));
+  }
+
+  @Test
+  public void testBoundedUnderConcurrentUse() throws Exception {
+    final int maxSize = 1000;
+    final ConcurrentLRUMap<Integer, Integer> map = new ConcurrentLRUMap<Integer, Integer>(
+        maxSize);
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int t = 0; t < 8; t++) {
+      final long seed = t;
+      Thread thread = new Thread() {
+        @Override
+        public void run() {
+          try {
+            Random random = new Random(seed);
+            for (int i = 0; i < 20000; i++) {
+              Integer key = random.nextInt(maxSize * 4);
+              if (map.get(key) == null) {
+                map.put(key, key);
+              }
+            }
+          } catch (Throwable e) {
+            failure.set(e);
+          }
+        }
+      };
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertNull(failure.get());
+    // each segment is bounded, segments round the size up
+    assertTrue(map.size() <= maxSize + 16);
+    assertTrue(map.size() > maxSize / 2);
+  }
+}
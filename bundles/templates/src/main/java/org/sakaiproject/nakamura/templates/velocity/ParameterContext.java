@@ -0,0 +1,106 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.templates.velocity;
+
+import org.apache.sling.api.request.RequestParameter;
+import org.apache.velocity.context.AbstractContext;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A Velocity context over the template parameters. Values are converted to strings as they
+ * are looked up rather than copied up front: a request parameter becomes its string value,
+ * an array its first element and anything else its {@link String#valueOf(Object)}. Values
+ * the template sets or removes are kept aside, so the parameters are never modified.
+ */
+class ParameterContext extends AbstractContext {
+
+  private final Map<String, ? extends Object> parameters;
+  private Map<String, Object> local;
+
+  ParameterContext(Map<String, ? extends Object> parameters) {
+    this.parameters = parameters;
+  }
+
+  @Override
+  public Object internalGet(String key) {
+    if (local != null && local.containsKey(key)) {
+      return local.get(key);
+    }
+    Object value = parameters.get(key);
+    if (value == null && !parameters.containsKey(key)) {
+      return null;
+    }
+    if (value instanceof RequestParameter) {
+      return String.valueOf((RequestParameter) value);
+    } else if (value instanceof String[]) {
+      return ((String[]) value)[0];
+    }
+    return String.valueOf(value);
+  }
+
+  @Override
+  public Object internalPut(String key, Object value) {
+    if (local == null) {
+      local = new HashMap<String, Object>();
+    }
+    Object old = internalGet(key);
+    local.put(key, value);
+    return old;
+  }
+
+  @Override
+  public boolean internalContainsKey(Object key) {
+    if (local != null && local.containsKey(key)) {
+      return local.get(key) != null;
+    }
+    return parameters.containsKey(key);
+  }
+
+  @Override
+  public Object[] internalGetKeys() {
+    Set<Object> keys = new HashSet<Object>();
+    for (Object key : parameters.keySet()) {
+      keys.add(key.toString());
+    }
+    if (local != null) {
+      for (Map.Entry<String, Object> e : local.entrySet()) {
+        if (e.getValue() == null) {
+          keys.remove(e.getKey());
+        } else {
+          keys.add(e.getKey());
+        }
+      }
+    }
+    return keys.toArray();
+  }
+
+  @Override
+  public Object internalRemove(Object key) {
+    // hide the parameter rather than remove it from the caller's map
+    Object old = internalGet(String.valueOf(key));
+    if (local == null) {
+      local = new HashMap<String, Object>();
+    }
+    local.put(String.valueOf(key), null);
+    return old;
+  }
+}
@@ -2,11 +2,18 @@ package org.sakaiproject.nakamura.templates.velocity;
 
 import org.apache.commons.collections.ExtendedProperties;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
-import org.apache.sling.api.request.RequestParameter;
+import org.apache.sling.commons.osgi.OsgiUtil;
 import org.apache.velocity.VelocityContext;
-import org.apache.velocity.app.VelocityEngine;
+import org.apache.velocity.context.InternalContextAdapterImpl;
+import org.apache.velocity.exception.ParseErrorException;
+import org.apache.velocity.exception.TemplateInitException;
+import org.apache.velocity.runtime.RuntimeConstants;
+import org.apache.velocity.runtime.RuntimeInstance;
+import org.apache.velocity.runtime.parser.ParseException;
+import org.apache.velocity.runtime.parser.node.SimpleNode;
 import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.nakamura.api.templates.TemplateNodeSource;
 import org.sakaiproject.nakamura.api.templates.TemplateService;
@@ -14,13 +21,12 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.io.Reader;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import javax.jcr.Node;
@@ -28,46 +34,79 @@ import javax.jcr.Repository;
 import org.apache.commons.lang.StringUtils;
 
 @Service
-@Component(immediate = true)
+@Component(immediate = true, metatype = true)
 public class VelocityTemplateService implements TemplateService, TemplateNodeSource {
 
   private static final Logger LOGGER = LoggerFactory
       .getLogger(VelocityTemplateService.class);
 
-  private VelocityEngine velocityEngine;
+  private static final int DEFAULT_CACHE_SIZE = 500;
+  @Property(intValue = DEFAULT_CACHE_SIZE, label = "Template Cache Size", description = "The number of parsed templates to keep, keyed by the template text.")
+  static final String CACHE_SIZE = "sakai.templates.cacheSize";
+
+  private static final String LOG_TAG = "templateprocessing";
+
+  private RuntimeInstance runtimeInstance;
+
+  /**
+   * Parsed templates by template text, least recently used first. Parsing is the bulk of
+   * the cost of an evaluation and the same few search and proxy templates are evaluated
+   * over and over.
+   */
+  private Map<String, SimpleNode> templateCache;
 
   @Reference
   protected Repository repository;
 
   public String evaluateTemplate(Map<String, ? extends Object> parameters, String template) {
-    Map<String, String> sanitizedParameters = sanitize(parameters);
-    VelocityContext context = new VelocityContext(sanitizedParameters);
     // combine template with parameter map
-    Reader templateReader = new StringReader(template);
+    InternalContextAdapterImpl context = new InternalContextAdapterImpl(
+        new ParameterContext(parameters));
     StringWriter templateWriter = new StringWriter();
+    context.pushCurrentTemplateName(LOG_TAG);
     try {
-      velocityEngine.evaluate(context, templateWriter, "templateprocessing",
-          templateReader);
+      getTemplate(template).render(context, templateWriter);
     } catch (IOException e) {
       LOGGER.error(e.getMessage(), e);
+    } finally {
+      context.popCurrentTemplateName();
     }
     return templateWriter.toString();
   }
 
-  private Map<String,String> sanitize(Map<String, ? extends Object> parameters) {
-    Map<String,String> rv = new HashMap<String,String>();
-    for (Object key : parameters.keySet()) {
-      Object value = parameters.get(key);
-      if (value instanceof RequestParameter) {
-        rv.put(key.toString(), String.valueOf((RequestParameter) value));
-      } else if (value instanceof String[]) {
-        String[] values = (String[])value;
-        rv.put(key.toString(), values[0]);
-      } else {
-        rv.put(key.toString(), String.valueOf(value));
+  /**
+   * @param template
+   *          the template text.
+   * @return the parsed and initialised node tree of the template, from the cache if it has
+   *         been parsed before.
+   * @throws ParseErrorException
+   *           if the template is not valid, as VelocityEngine.evaluate would.
+   */
+  private SimpleNode getTemplate(String template) {
+    SimpleNode nodeTree;
+    synchronized (templateCache) {
+      nodeTree = templateCache.get(template);
+    }
+    if (nodeTree == null) {
+      // two threads may parse the same template, the second simply replaces the first
+      InternalContextAdapterImpl context = new InternalContextAdapterImpl(
+          new VelocityContext());
+      context.pushCurrentTemplateName(LOG_TAG);
+      try {
+        nodeTree = runtimeInstance.parse(new StringReader(template), LOG_TAG);
+        nodeTree.init(context, runtimeInstance);
+      } catch (ParseException e) {
+        throw new ParseErrorException(e.getMessage());
+      } catch (TemplateInitException e) {
+        throw new ParseErrorException(e.getMessage());
+      } finally {
+        context.popCurrentTemplateName();
+      }
+      synchronized (templateCache) {
+        templateCache.put(template, nodeTree);
       }
     }
-    return rv;
+    return nodeTree;
   }
 
   public Collection<String> missingTerms(String template) {
@@ -117,17 +156,28 @@ public class VelocityTemplateService implements TemplateService, TemplateNodeSou
   }
 
   protected void activate(ComponentContext ctx) throws Exception {
-    velocityEngine = new VelocityEngine();
-    velocityEngine.setProperty(VelocityEngine.RUNTIME_LOG_LOGSYSTEM, new VelocityLogger(
+    final int cacheSize = OsgiUtil.toInteger(ctx.getProperties().get(CACHE_SIZE),
+        DEFAULT_CACHE_SIZE);
+    templateCache = new LinkedHashMap<String, SimpleNode>(16, 0.75f, true) {
+      private static final long serialVersionUID = 2316523455384470135L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, SimpleNode> eldest) {
+        return size() > cacheSize;
+      }
+    };
+
+    runtimeInstance = new RuntimeInstance();
+    runtimeInstance.setProperty(RuntimeConstants.RUNTIME_LOG_LOGSYSTEM, new VelocityLogger(
         this.getClass()));
 
-    velocityEngine.setProperty(VelocityEngine.RESOURCE_LOADER, "jcr");
-    velocityEngine.setProperty("jcr.resource.loader.class",
+    runtimeInstance.setProperty(RuntimeConstants.RESOURCE_LOADER, "jcr");
+    runtimeInstance.setProperty("jcr.resource.loader.class",
         JcrResourceLoader.class.getName());
     ExtendedProperties configuration = new ExtendedProperties();
     configuration.addProperty("jcr.resource.loader.resourceSource", this);
-    velocityEngine.setExtendedProperties(configuration);
-    velocityEngine.init();
+    runtimeInstance.setConfiguration(configuration);
+    runtimeInstance.init();
   }
 
   public Node getNode() {
@@ -0,0 +1,196 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.templates.velocity;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.apache.sling.commons.json.JSONObject;
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.app.VelocityEngine;
+import org.junit.Test;
+import org.osgi.service.component.ComponentContext;
+import org.sakaiproject.nakamura.testutils.benchmark.Benchmarks;
+import org.sakaiproject.nakamura.testutils.benchmark.Benchmarks.Operation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measures template evaluation over the query templates and query option templates of the
+ * search definitions under /var/search in the bundles of this tree, against the previous
+ * implementation that copied the parameters and parsed the template on every call. The
+ * templates are found relative to the working directory, so run it from this bundle's
+ * directory.
+ */
+public class VelocityTemplateServiceBenchmark {
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(VelocityTemplateServiceBenchmark.class);
+  private static final long WARMUP = 1000;
+  private static final long MEASURE = 2000;
+
+  /**
+   * Something that evaluates templates.
+   */
+  private interface Evaluator {
+    String evaluate(Map<String, ? extends Object> parameters, String template);
+  }
+
+  @Test
+  public void benchmarkSearchTemplates() throws Exception {
+    final List<String> templates = new ArrayList<String>();
+    findTemplates(new File(".."), templates);
+    final List<Map<String, Object>> parameters = new ArrayList<Map<String, Object>>();
+
+    ComponentContext ctx = mock(ComponentContext.class);
+    when(ctx.getProperties()).thenReturn(new Hashtable<String, Object>());
+    final VelocityTemplateService current = new VelocityTemplateService();
+    current.activate(ctx);
+    for (String template : templates) {
+      // a typical request: the terms of the template, paging and a few other parameters
+      Map<String, Object> p = new HashMap<String, Object>();
+      for (String term : current.missingTerms(template)) {
+        p.put(term, "value-of-" + term);
+      }
+      p.put("page", new String[] { "0" });
+      p.put("items", new String[] { "25" });
+      p.put("_charset_", "utf-8");
+      parameters.add(p);
+    }
+    LOGGER.info("Found {} templates", templates.size());
+    if (templates.isEmpty()) {
+      return;
+    }
+
+    final PreviousTemplateService previous = new PreviousTemplateService();
+    double before = run(templates, parameters, new Evaluator() {
+      public String evaluate(Map<String, ? extends Object> parameters, String template) {
+        return previous.evaluateTemplate(parameters, template);
+      }
+    });
+    double after = run(templates, parameters, new Evaluator() {
+      public String evaluate(Map<String, ? extends Object> parameters, String template) {
+        return current.evaluateTemplate(parameters, template);
+      }
+    });
+    LOGGER.info("parse per call {} evaluations/ms, cached {} evaluations/ms", new Object[] {
+        (long) before, (long) after });
+  }
+
+  /**
+   * @return evaluations per ms over the measured period.
+   */
+  private double run(final List<String> templates,
+      final List<Map<String, Object>> parameters, final Evaluator evaluator)
+      throws Exception {
+    // each call evaluates every template once.
+    return templates.size() * Benchmarks.callsPerMs(1, WARMUP, MEASURE, 1, new Operation() {
+      public void run() {
+        for (int i = 0; i < templates.size(); i++) {
+          evaluator.evaluate(parameters.get(i), templates.get(i));
+        }
+      }
+    });
+  }
+
+  private void findTemplates(File dir, List<String> templates) throws Exception {
+    File[] files = dir.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File f : files) {
+      if (f.isDirectory()) {
+        if (!"target".equals(f.getName()) && !f.getName().startsWith(".")) {
+          findTemplates(f, templates);
+        }
+      } else if (f.getName().endsWith(".json")
+          && f.getPath().replace(File.separatorChar, '/').contains(
+              "/SLING-INF/content/var/search/")) {
+        StringBuilder sb = new StringBuilder();
+        Reader reader = new InputStreamReader(new FileInputStream(f), "UTF-8");
+        try {
+          char[] buffer = new char[4096];
+          for (int i = reader.read(buffer); i >= 0; i = reader.read(buffer)) {
+            sb.append(buffer, 0, i);
+          }
+        } finally {
+          reader.close();
+        }
+        JSONObject json = new JSONObject(sb.toString());
+        if (json.has("sakai:query-template")) {
+          templates.add(json.getString("sakai:query-template"));
+        }
+        JSONObject options = json.optJSONObject("sakai:query-template-options");
+        if (options != null) {
+          Iterator<String> keys = options.keys();
+          while (keys.hasNext()) {
+            templates.add(options.getString(keys.next()));
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * The service as it was before templates were cached, for comparison.
+   */
+  private static class PreviousTemplateService {
+    private VelocityEngine velocityEngine;
+
+    PreviousTemplateService() throws Exception {
+      velocityEngine = new VelocityEngine();
+      velocityEngine.setProperty(VelocityEngine.RUNTIME_LOG_LOGSYSTEM, new VelocityLogger(
+          this.getClass()));
+      velocityEngine.init();
+    }
+
+    String evaluateTemplate(Map<String, ? extends Object> parameters, String template) {
+      Map<String, String> sanitizedParameters = new HashMap<String, String>();
+      for (Object key : parameters.keySet()) {
+        Object value = parameters.get(key);
+        if (value instanceof String[]) {
+          sanitizedParameters.put(key.toString(), ((String[]) value)[0]);
+        } else {
+          sanitizedParameters.put(key.toString(), String.valueOf(value));
+        }
+      }
+      VelocityContext context = new VelocityContext(sanitizedParameters);
+      StringWriter templateWriter = new StringWriter();
+      try {
+        velocityEngine.evaluate(context, templateWriter, "templateprocessing",
+            new StringReader(template));
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+      return templateWriter.toString();
+    }
+  }
+}
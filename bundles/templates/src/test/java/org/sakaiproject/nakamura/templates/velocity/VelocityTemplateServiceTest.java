@@ -0,0 +1,89 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.templates.velocity;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.apache.velocity.exception.ParseErrorException;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.component.ComponentContext;
+
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+
+public class VelocityTemplateServiceTest {
+
+  private VelocityTemplateService templateService;
+
+  @Before
+  public void setUp() throws Exception {
+    ComponentContext ctx = mock(ComponentContext.class);
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(VelocityTemplateService.CACHE_SIZE, 2);
+    when(ctx.getProperties()).thenReturn(properties);
+    templateService = new VelocityTemplateService();
+    templateService.activate(ctx);
+  }
+
+  @Test
+  public void testEvaluateConvertsParameters() {
+    Map<String, Object> parameters = new HashMap<String, Object>();
+    parameters.put("q", "tree");
+    parameters.put("path", new String[] { "a:zach", "a:other" });
+    parameters.put("page", 2);
+    parameters.put("sort", null);
+    assertEquals("tree a:zach 2 null", templateService.evaluateTemplate(parameters,
+        "${q} ${path} ${page} ${sort}"));
+  }
+
+  @Test
+  public void testCachedTemplateUsesNewParameters() {
+    String template = "path:${path} AND resourceType:sakai/message";
+    for (String path : new String[] { "a:alice", "a:bob", "a:alice" }) {
+      Map<String, Object> parameters = new HashMap<String, Object>();
+      parameters.put("path", path);
+      assertEquals("path:" + path + " AND resourceType:sakai/message", templateService
+          .evaluateTemplate(parameters, template));
+    }
+    // more templates than the cache holds
+    Map<String, Object> parameters = new HashMap<String, Object>();
+    parameters.put("x", "1");
+    for (int i = 0; i < 5; i++) {
+      assertEquals(i + ":1", templateService.evaluateTemplate(parameters, i + ":${x}"));
+    }
+  }
+
+  @Test
+  public void testSetDoesNotChangeParameters() {
+    Map<String, Object> parameters = new HashMap<String, Object>();
+    parameters.put("q", "tree");
+    assertEquals("leaf", templateService.evaluateTemplate(parameters,
+        "#set($q = \"leaf\")${q}"));
+    assertEquals("tree", parameters.get("q"));
+    assertEquals("tree", templateService.evaluateTemplate(parameters, "${q}"));
+  }
+
+  @Test(expected = ParseErrorException.class)
+  public void testInvalidTemplate() {
+    templateService.evaluateTemplate(new HashMap<String, Object>(), "#if(${q}");
+  }
+}
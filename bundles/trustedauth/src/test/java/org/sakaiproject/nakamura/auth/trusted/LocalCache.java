@@ -91,5 +91,13 @@ public class LocalCache<T>  implements Cache<Object> {
     return m.put(key, (T) payload);
   }
 
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.memory.Cache#putLocal(java.lang.String, java.lang.Object)
+   */
+  public Object putLocal(String key, Object payload) {
+    return put(key, payload);
+  }
+
 
 }
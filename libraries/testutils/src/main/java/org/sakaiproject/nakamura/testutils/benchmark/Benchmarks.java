@@ -0,0 +1,144 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.testutils.benchmark;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Timing for the benchmarks in the test trees of the bundles.
+ * <p>
+ * A benchmark is a JUnit class named <code>*Benchmark</code>. The name does not match the
+ * surefire includes, so benchmarks are not run as part of the build. Run one by hand from
+ * its module with <code>mvn test -Dtest=NameOfBenchmark</code> and read the results from
+ * the log. A benchmark usually keeps a copy of the code it replaced and times both in the
+ * same run, so the numbers are only compared with each other and not across machines.
+ * </p>
+ */
+public class Benchmarks {
+
+  /**
+   * Something timed.
+   */
+  public interface Operation {
+    void run() throws Exception;
+  }
+
+  /**
+   * Call an operation from a number of threads, all started together, until a warm up
+   * period and then a measured period have passed.
+   *
+   * @param threads
+   *          the number of threads calling the operation.
+   * @param warmup
+   *          the ms the operation is called before calls are counted.
+   * @param measure
+   *          the ms calls are counted for.
+   * @param batch
+   *          the number of calls between reading the clock, so that cheap operations are
+   *          not timing the clock.
+   * @param operation
+   *          the operation, shared by all the threads.
+   * @return calls per ms over the measured period.
+   * @throws Exception
+   *           the first exception thrown by the operation.
+   */
+  public static double callsPerMs(int threads, long warmup, long measure,
+      final int batch, final Operation operation) throws Exception {
+    final AtomicLong count = new AtomicLong();
+    final long warmEnd = System.currentTimeMillis() + warmup;
+    final long end = warmEnd + measure;
+    run(threads, new Operation() {
+      public void run() throws Exception {
+        long n = 0;
+        long now = System.currentTimeMillis();
+        while (now < end) {
+          for (int i = 0; i < batch; i++) {
+            operation.run();
+          }
+          now = System.currentTimeMillis();
+          if (now >= warmEnd) {
+            n += batch;
+          }
+        }
+        count.addAndGet(n);
+      }
+    });
+    return (double) count.get() / measure;
+  }
+
+  /**
+   * Call an operation a number of times from each of a number of threads, all started
+   * together.
+   *
+   * @param threads
+   *          the number of threads calling the operation.
+   * @param calls
+   *          the number of calls each thread makes.
+   * @param operation
+   *          the operation, shared by all the threads.
+   * @return the ns from the threads starting until all of them have finished.
+   * @throws Exception
+   *           the first exception thrown by the operation.
+   */
+  public static long nanosFor(int threads, final int calls, final Operation operation)
+      throws Exception {
+    return run(threads, new Operation() {
+      public void run() throws Exception {
+        for (int i = 0; i < calls; i++) {
+          operation.run();
+        }
+      }
+    });
+  }
+
+  /**
+   * @return the ns from releasing the threads until the last one finished.
+   */
+  private static long run(int nthreads, final Operation body) throws Exception {
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(nthreads);
+    final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+    for (int i = 0; i < nthreads; i++) {
+      Thread t = new Thread("Benchmark " + i) {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            body.run();
+          } catch (Exception e) {
+            failure.compareAndSet(null, e);
+          } finally {
+            done.countDown();
+          }
+        }
+      };
+      t.setDaemon(true);
+      t.start();
+    }
+    long t0 = System.nanoTime();
+    start.countDown();
+    done.await();
+    long elapsed = System.nanoTime() - t0;
+    if (failure.get() != null) {
+      throw failure.get();
+    }
+    return elapsed;
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.util;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * A Writer that flushes the underlying writer each time a set number of characters has
+ * been written through it. Wrapped around a servlet response writer this streams a large
+ * response out to the client in chunks as it is produced, rather than building all of it in
+ * memory first. The first flush commits the response, so the client sees the first bytes
+ * after the first chunk. A slow client blocks the flush, which holds back the code producing
+ * the output rather than letting it run ahead and buffer.
+ * <p>
+ * Nothing is buffered here, so the wrapped writer does not need flushing when output is
+ * complete. Once a chunk has been flushed the response is committed, and errors after that
+ * point can no longer be sent as a status code.
+ */
+public class FlushingWriter extends FilterWriter {
+
+  /**
+   * The default number of characters between flushes.
+   */
+  public static final int DEFAULT_FLUSH_SIZE = 8192;
+
+  private final int flushSize;
+  private int pending;
+
+  /**
+   * @param out
+   *          the writer to stream to.
+   */
+  public FlushingWriter(Writer out) {
+    this(out, DEFAULT_FLUSH_SIZE);
+  }
+
+  /**
+   * @param out
+   *          the writer to stream to.
+   * @param flushSize
+   *          the number of characters to write between flushes.
+   */
+  public FlushingWriter(Writer out, int flushSize) {
+    super(out);
+    if (flushSize < 1) {
+      throw new IllegalArgumentException("Flush size must be positive, was " + flushSize);
+    }
+    this.flushSize = flushSize;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.io.FilterWriter#write(int)
+   */
+  @Override
+  public void write(int c) throws IOException {
+    out.write(c);
+    written(1);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.io.FilterWriter#write(char[], int, int)
+   */
+  @Override
+  public void write(char[] cbuf, int off, int len) throws IOException {
+    out.write(cbuf, off, len);
+    written(len);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.io.FilterWriter#write(java.lang.String, int, int)
+   */
+  @Override
+  public void write(String str, int off, int len) throws IOException {
+    out.write(str, off, len);
+    written(len);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.io.FilterWriter#flush()
+   */
+  @Override
+  public void flush() throws IOException {
+    pending = 0;
+    out.flush();
+  }
+
+  private void written(int len) throws IOException {
+    pending += len;
+    if (pending >= flushSize) {
+      flush();
+    }
+  }
+}
@@ -0,0 +1,168 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.util;
+
+import org.apache.sling.commons.json.JSONException;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compares writing a search style JSON page into a buffer before sending it with streaming
+ * it through a {@link FlushingWriter}. It reports the time until the client would see the
+ * first bytes, the total time, and the most characters held in memory at once, for pages of
+ * 100, 1000 and 2500 items (2500 is the search servlet's maximumResults cap).
+ */
+public class FlushingWriterBenchmark {
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(FlushingWriterBenchmark.class);
+  private static final int[] PAGES = new int[] { 100, 1000, 2500 };
+  private static final int RUNS = 20;
+
+  /**
+   * Stands in for the client connection. It discards what is written, noting when the
+   * first characters were sent and the most characters held between flushes, which is
+   * what the container has to buffer.
+   */
+  private static class ClientWriter extends Writer {
+    private long start = System.nanoTime();
+    private long firstByte = -1;
+    private int held;
+    private int maxHeld;
+
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+      held += len;
+      maxHeld = Math.max(maxHeld, held);
+    }
+
+    @Override
+    public void write(String str, int off, int len) {
+      held += len;
+      maxHeld = Math.max(maxHeld, held);
+    }
+
+    @Override
+    public void flush() {
+      if (firstByte < 0 && held > 0) {
+        firstByte = System.nanoTime() - start;
+      }
+      held = 0;
+    }
+
+    @Override
+    public void close() {
+      flush();
+    }
+  }
+
+  @Test
+  public void benchmarkPages() throws Exception {
+    Map<String, Object> item = createItem();
+    for (int pass = 0; pass < 2; pass++) {
+      // the first pass warms up
+      boolean report = pass == 1;
+      for (int items : PAGES) {
+        long[] buffered = new long[3];
+        long[] streamed = new long[3];
+        for (int i = 0; i < RUNS; i++) {
+          add(buffered, runBuffered(items, item));
+          add(streamed, runStreamed(items, item));
+        }
+        if (report) {
+          LOGGER.info("{} items, buffered: first byte {}us, total {}us, held {} chars",
+              new Object[] { items, buffered[0] / RUNS / 1000, buffered[1] / RUNS / 1000,
+                  buffered[2] });
+          LOGGER.info("{} items, streamed: first byte {}us, total {}us, held {} chars",
+              new Object[] { items, streamed[0] / RUNS / 1000, streamed[1] / RUNS / 1000,
+                  streamed[2] });
+        }
+      }
+    }
+  }
+
+  private void add(long[] totals, long[] run) {
+    totals[0] += run[0];
+    totals[1] += run[1];
+    totals[2] = Math.max(totals[2], run[2]);
+  }
+
+  private long[] runBuffered(int items, Map<String, Object> item) throws JSONException,
+      IOException {
+    ClientWriter client = new ClientWriter();
+    StringWriter buffer = new StringWriter();
+    writePage(new ExtendedJSONWriter(buffer), items, item);
+    client.write(buffer.toString());
+    client.close();
+    return new long[] { client.firstByte, System.nanoTime() - client.start,
+        buffer.getBuffer().length() + client.maxHeld };
+  }
+
+  private long[] runStreamed(int items, Map<String, Object> item) throws JSONException,
+      IOException {
+    ClientWriter client = new ClientWriter();
+    writePage(new ExtendedJSONWriter(new FlushingWriter(client)), items, item);
+    client.close();
+    return new long[] { client.firstByte, System.nanoTime() - client.start,
+        client.maxHeld };
+  }
+
+  private void writePage(ExtendedJSONWriter write, int items, Map<String, Object> item)
+      throws JSONException {
+    write.object();
+    write.key("items");
+    write.value(items);
+    write.key("results");
+    write.array();
+    for (int i = 0; i < items; i++) {
+      write.valueMap(item);
+    }
+    write.endArray();
+    write.key("total");
+    write.value(items);
+    write.endObject();
+  }
+
+  private Map<String, Object> createItem() {
+    Map<String, Object> item = new HashMap<String, Object>();
+    item.put("_path", "p/a1b2c3d4e5");
+    item.put("jcr:path", "/p/a1b2c3d4e5");
+    item.put("sakai:pooled-content-file-name", "Quarterly report 2011.pdf");
+    item.put("sakai:description", "The quarterly report, with the figures for each of"
+        + " the departments and a summary of the year so far.");
+    item.put("sakai:pooled-content-manager", new String[] { "alice", "bob" });
+    item.put("sakai:pooled-content-viewer", new String[] { "everyone", "anonymous" });
+    item.put("sakai:permissions", "public");
+    item.put("sakai:copyright", "creativecommons");
+    item.put("sakai:tags", new String[] { "reports", "finance", "2011" });
+    item.put("_mimeType", "application/pdf");
+    item.put("_length", 1048576L);
+    item.put("_lastModified", 1302000000000L);
+    item.put("_lastModifiedBy", "alice");
+    item.put("_created", 1301000000000L);
+    item.put("_createdBy", "alice");
+    return item;
+  }
+}
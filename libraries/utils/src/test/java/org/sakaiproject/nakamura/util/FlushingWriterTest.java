@@ -0,0 +1,79 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.util;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *
+ */
+public class FlushingWriterTest {
+
+  /**
+   * Records what had been written each time it was flushed.
+   */
+  private static class RecordingWriter extends StringWriter {
+    private List<String> flushed = new ArrayList<String>();
+
+    @Override
+    public void flush() {
+      flushed.add(toString());
+    }
+  }
+
+  @Test
+  public void testFlushesEachChunk() throws IOException {
+    RecordingWriter out = new RecordingWriter();
+    FlushingWriter writer = new FlushingWriter(out, 4);
+    writer.write("ab");
+    assertEquals(0, out.flushed.size());
+    writer.write('c');
+    writer.write("defg".toCharArray(), 0, 2);
+    assertEquals(1, out.flushed.size());
+    assertEquals("abcde", out.flushed.get(0));
+    writer.write("fgh", 0, 3);
+    assertEquals(1, out.flushed.size());
+    writer.write("i");
+    assertEquals(2, out.flushed.size());
+    assertEquals("abcdefghi", out.toString());
+  }
+
+  @Test
+  public void testExplicitFlushRestartsCount() throws IOException {
+    RecordingWriter out = new RecordingWriter();
+    FlushingWriter writer = new FlushingWriter(out, 4);
+    writer.write("abc");
+    writer.flush();
+    writer.write("def");
+    assertEquals(1, out.flushed.size());
+    writer.write("g");
+    assertEquals(2, out.flushed.size());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidFlushSize() {
+    new FlushingWriter(new StringWriter(), 0);
+  }
+}